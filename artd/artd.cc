@@ -24,6 +24,8 @@
 #include <sys/types.h>
 #include <unistd.h>
 
+#include <algorithm>
+#include <atomic>
 #include <climits>
 #include <csignal>
 #include <cstddef>
@@ -43,6 +45,7 @@
 #include <string>
 #include <string_view>
 #include <system_error>
+#include <thread>
 #include <type_traits>
 #include <unordered_set>
 #include <utility>
@@ -109,6 +112,7 @@ using ::aidl::com::android::server::art::DexoptTrigger;
 using ::aidl::com::android::server::art::FileVisibility;
 using ::aidl::com::android::server::art::FsPermission;
 using ::aidl::com::android::server::art::GetDexoptNeededResult;
+using ::aidl::com::android::server::art::GetDexoptStatusQuery;
 using ::aidl::com::android::server::art::GetDexoptStatusResult;
 using ::aidl::com::android::server::art::IArtdCancellationSignal;
 using ::aidl::com::android::server::art::IArtdNotification;
@@ -161,6 +165,10 @@ constexpr int kShortTimeoutSec = 60;  // 1 minute.
 // would take down the system server.
 constexpr int kLongTimeoutSec = 570;  // 9.5 minutes.
 
+// The maximum number of cached results of `getDexoptStatuses`. The cache is cleared when it is
+// full, which only happens if dex files keep coming and going.
+constexpr size_t kMaxDexoptStatusCacheSize = 4096;
+
 std::optional<int64_t> GetSize(std::string_view path) {
   std::error_code ec;
   int64_t size = std::filesystem::file_size(path, ec);
@@ -225,6 +233,57 @@ OatFileAssistant::DexOptTrigger DexOptTriggerFromAidl(int32_t aidl_value) {
   return trigger;
 }
 
+// Appends the stat of the file or directory at `path` to `stamps`. Artifacts are committed by
+// renaming, so any change to the file, or to the files in the directory, changes the stamp.
+void AppendStamp(const std::string& path, /*inout*/ std::vector<int64_t>& stamps) {
+  struct stat st;
+  if (stat(path.c_str(), &st) != 0) {
+    stamps.insert(stamps.end(), {errno, 0, 0, 0, 0, 0});
+    return;
+  }
+  stamps.insert(stamps.end(),
+                {0,
+                 static_cast<int64_t>(st.st_dev),
+                 static_cast<int64_t>(st.st_ino),
+                 static_cast<int64_t>(st.st_size),
+                 st.st_mtim.tv_sec * 1'000'000'000LL + st.st_mtim.tv_nsec,
+                 st.st_ctim.tv_sec * 1'000'000'000LL + st.st_ctim.tv_nsec});
+}
+
+// Returns the stamps of the files and directories that the dexopt status of the given dex file
+// depends on: the dex file, its dex metadata file, the dex files in the class loader context, and
+// the directories that may contain the artifacts.
+Result<std::vector<int64_t>> GetDexoptStatusStamps(
+    const std::string& dex_file,
+    const std::string& instruction_set,
+    const std::optional<std::string>& class_loader_context) {
+  RawArtifactsPath odex_path = OR_RETURN(BuildArtifactsPath(
+      ArtifactsPath{.dexPath = dex_file, .isa = instruction_set, .isInDalvikCache = false}));
+  RawArtifactsPath dalvik_cache_path = OR_RETURN(BuildArtifactsPath(
+      ArtifactsPath{.dexPath = dex_file, .isa = instruction_set, .isInDalvikCache = true}));
+
+  std::vector<int64_t> stamps;
+  AppendStamp(dex_file, stamps);
+  AppendStamp(GetDmFilename(dex_file), stamps);
+  AppendStamp(Dirname(odex_path.oat_path), stamps);
+  AppendStamp(Dirname(dalvik_cache_path.oat_path), stamps);
+
+  if (class_loader_context.has_value()) {
+    std::unique_ptr<ClassLoaderContext> context =
+        ClassLoaderContext::Create(class_loader_context.value());
+    if (context == nullptr) {
+      return Errorf("Class loader context '{}' is invalid", class_loader_context.value());
+    }
+    // Paths in the class loader context are relative to the directory of the dex file.
+    std::string dex_dir = Dirname(dex_file);
+    for (const std::string& path : context->FlattenDexPaths()) {
+      AppendStamp(path.starts_with('/') ? path : dex_dir + "/" + path, stamps);
+    }
+  }
+
+  return stamps;
+}
+
 ArtifactsLocation ArtifactsLocationToAidl(OatFileAssistant::Location location) {
   switch (location) {
     case OatFileAssistant::Location::kLocationNoneOrError:
@@ -583,33 +642,71 @@ ScopedAStatus Artd::getDexoptStatus(const std::string& in_dexFile,
                                     GetDexoptStatusResult* _aidl_return) {
   RETURN_FATAL_IF_PRE_REBOOT(options_);
 
+  *_aidl_return = OR_RETURN_NON_FATAL(
+      GetDexoptStatusImpl(in_dexFile, in_instructionSet, in_classLoaderContext));
+  return ScopedAStatus::ok();
+}
+
+ScopedAStatus Artd::getDexoptStatuses(const std::vector<GetDexoptStatusQuery>& in_queries,
+                                      std::vector<GetDexoptStatusResult>* _aidl_return) {
+  RETURN_FATAL_IF_PRE_REBOOT(options_);
+
+  std::vector<GetDexoptStatusResult> results(in_queries.size());
+  std::atomic<size_t> next_index = 0;
+  auto worker = [&]() {
+    for (size_t i = next_index++; i < in_queries.size(); i = next_index++) {
+      results[i] = GetDexoptStatusCached(in_queries[i]);
+    }
+  };
+
+  // Each query mostly waits on file I/O, so the queries are spread over a few threads.
+  size_t num_threads = std::min(
+      in_queries.size(), static_cast<size_t>(std::max(1u, std::thread::hardware_concurrency())));
+  std::vector<std::thread> threads;
+  for (size_t i = 1; i < num_threads; i++) {
+    threads.emplace_back(worker);
+  }
+  worker();
+  for (std::thread& thread : threads) {
+    thread.join();
+  }
+
+  *_aidl_return = std::move(results);
+  return ScopedAStatus::ok();
+}
+
+Result<GetDexoptStatusResult> Artd::GetDexoptStatusImpl(
+    const std::string& dex_file,
+    const std::string& instruction_set,
+    const std::optional<std::string>& class_loader_context) {
   Result<OatFileAssistantContext*> ofa_context = GetOatFileAssistantContext();
   if (!ofa_context.ok()) {
-    return NonFatal("Failed to get runtime options: " + ofa_context.error().message());
+    return Error() << "Failed to get runtime options: " << ofa_context.error().message();
   }
 
   std::unique_ptr<ClassLoaderContext> context;
   std::string error_msg;
-  auto oat_file_assistant = OatFileAssistant::Create(in_dexFile,
-                                                     in_instructionSet,
-                                                     in_classLoaderContext,
+  auto oat_file_assistant = OatFileAssistant::Create(dex_file,
+                                                     instruction_set,
+                                                     class_loader_context,
                                                      /*load_executable=*/false,
                                                      /*only_load_trusted_executable=*/true,
                                                      ofa_context.value(),
                                                      &context,
                                                      &error_msg);
   if (oat_file_assistant == nullptr) {
-    return NonFatal("Failed to create OatFileAssistant: " + error_msg);
+    return Error() << "Failed to create OatFileAssistant: " << error_msg;
   }
 
+  GetDexoptStatusResult result;
   std::string ignored_odex_status;
   OatFileAssistant::Location location;
-  oat_file_assistant->GetOptimizationStatus(&_aidl_return->locationDebugString,
-                                            &_aidl_return->compilerFilter,
-                                            &_aidl_return->compilationReason,
+  oat_file_assistant->GetOptimizationStatus(&result.locationDebugString,
+                                            &result.compilerFilter,
+                                            &result.compilationReason,
                                             &ignored_odex_status,
                                             &location);
-  _aidl_return->artifactsLocation = ArtifactsLocationToAidl(location);
+  result.artifactsLocation = ArtifactsLocationToAidl(location);
 
   // We ignore odex_status because it is not meaningful. It can only be either "up-to-date",
   // "apk-more-recent", or "io-error-no-oat", which means it doesn't give us information in addition
@@ -618,7 +715,40 @@ ScopedAStatus Artd::getDexoptStatus(const std::string& in_dexFile,
   DCHECK(ignored_odex_status == "up-to-date" || ignored_odex_status == "apk-more-recent" ||
          ignored_odex_status == "io-error-no-oat");
 
-  return ScopedAStatus::ok();
+  return result;
+}
+
+GetDexoptStatusResult Artd::GetDexoptStatusCached(const GetDexoptStatusQuery& query) {
+  DexoptStatusCacheKey key{query.dexFile, query.instructionSet, query.classLoaderContext};
+
+  // The stamps are taken before computing the status, so that a change made in between makes the
+  // cached result stale rather than hiding the change.
+  Result<std::vector<int64_t>> stamps =
+      GetDexoptStatusStamps(query.dexFile, query.instructionSet, query.classLoaderContext);
+  if (stamps.ok()) {
+    std::lock_guard<std::mutex> lock(dexopt_status_cache_mu_);
+    auto it = dexopt_status_cache_.find(key);
+    if (it != dexopt_status_cache_.end() && it->second.stamps == stamps.value()) {
+      return it->second.result;
+    }
+  }
+
+  Result<GetDexoptStatusResult> result =
+      GetDexoptStatusImpl(query.dexFile, query.instructionSet, query.classLoaderContext);
+  if (!result.ok()) {
+    // Errors are not cached because they may be transient.
+    return GetDexoptStatusResult{.errorMessage = result.error().message()};
+  }
+
+  if (stamps.ok()) {
+    std::lock_guard<std::mutex> lock(dexopt_status_cache_mu_);
+    if (dexopt_status_cache_.size() >= kMaxDexoptStatusCacheSize) {
+      dexopt_status_cache_.clear();
+    }
+    dexopt_status_cache_[std::move(key)] = {.stamps = std::move(stamps.value()),
+                                            .result = result.value()};
+  }
+  return result.value();
 }
 
 ndk::ScopedAStatus Artd::isProfileUsable(const ProfilePath& in_profile,
@@ -26,10 +26,12 @@
 #include <csignal>
 #include <cstdint>
 #include <functional>
+#include <map>
 #include <memory>
 #include <mutex>
 #include <optional>
 #include <string>
+#include <tuple>
 #include <unordered_map>
 #include <unordered_set>
 #include <utility>
@@ -162,6 +164,11 @@ class Artd : public aidl::com::android::server::art::BnArtd {
       const std::optional<std::string>& in_classLoaderContext,
       aidl::com::android::server::art::GetDexoptStatusResult* _aidl_return) override;
 
+  ndk::ScopedAStatus getDexoptStatuses(
+      const std::vector<aidl::com::android::server::art::GetDexoptStatusQuery>& in_queries,
+      std::vector<aidl::com::android::server::art::GetDexoptStatusResult>* _aidl_return)
+      override;
+
   ndk::ScopedAStatus isProfileUsable(const aidl::com::android::server::art::ProfilePath& in_profile,
                                      const std::string& in_dexFile,
                                      bool* _aidl_return) override;
@@ -293,6 +300,13 @@ class Artd : public aidl::com::android::server::art::BnArtd {
 
   android::base::Result<void> Start();
 
+ protected:
+  // Computes the dexopt status, bypassing the cache. Virtual for testing.
+  virtual android::base::Result<aidl::com::android::server::art::GetDexoptStatusResult>
+  GetDexoptStatusImpl(const std::string& dex_file,
+                      const std::string& instruction_set,
+                      const std::optional<std::string>& class_loader_context);
+
  private:
   android::base::Result<OatFileAssistantContext*> GetOatFileAssistantContext()
       EXCLUDES(ofa_context_mu_);
@@ -316,6 +330,12 @@ class Artd : public aidl::com::android::server::art::BnArtd {
                                                const ExecCallbacks& callbacks = ExecCallbacks(),
                                                ProcessStat* stat = nullptr) const;
 
+  // Returns the dexopt status for the query, reusing the cached result if none of the files that
+  // the status depends on have changed since. Errors are reported through `errorMessage`.
+  aidl::com::android::server::art::GetDexoptStatusResult GetDexoptStatusCached(
+      const aidl::com::android::server::art::GetDexoptStatusQuery& query)
+      EXCLUDES(dexopt_status_cache_mu_);
+
   android::base::Result<std::string> GetProfman();
 
   android::base::Result<tools::CmdlineBuilder> GetArtExecCmdlineBuilder();
@@ -369,6 +389,16 @@ class Artd : public aidl::com::android::server::art::BnArtd {
   std::mutex ofa_context_mu_;
   std::unique_ptr<OatFileAssistantContext> ofa_context_ GUARDED_BY(ofa_context_mu_);
 
+  // The key is the dex file, the instruction set, and the class loader context.
+  using DexoptStatusCacheKey = std::tuple<std::string, std::string, std::optional<std::string>>;
+  struct CachedDexoptStatus {
+    std::vector<int64_t> stamps;
+    aidl::com::android::server::art::GetDexoptStatusResult result;
+  };
+  std::mutex dexopt_status_cache_mu_;
+  std::map<DexoptStatusCacheKey, CachedDexoptStatus> dexopt_status_cache_
+      GUARDED_BY(dexopt_status_cache_mu_);
+
   const Options options_;
   const std::unique_ptr<art::tools::SystemProperties> props_;
   const std::unique_ptr<ExecUtils> exec_utils_;
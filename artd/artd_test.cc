@@ -87,6 +87,8 @@ using ::aidl::com::android::server::art::DexMetadataPath;
 using ::aidl::com::android::server::art::DexoptOptions;
 using ::aidl::com::android::server::art::FileVisibility;
 using ::aidl::com::android::server::art::FsPermission;
+using ::aidl::com::android::server::art::GetDexoptStatusQuery;
+using ::aidl::com::android::server::art::GetDexoptStatusResult;
 using ::aidl::com::android::server::art::IArtdCancellationSignal;
 using ::aidl::com::android::server::art::IArtdNotification;
 using ::aidl::com::android::server::art::OutputArtifacts;
@@ -117,7 +119,9 @@ using ::testing::AnyOf;
 using ::testing::Contains;
 using ::testing::ContainsRegex;
 using ::testing::DoAll;
+using ::testing::DoDefault;
 using ::testing::ElementsAre;
+using ::testing::ElementsAreArray;
 using ::testing::Field;
 using ::testing::HasSubstr;
 using ::testing::InSequence;
@@ -126,6 +130,7 @@ using ::testing::Matcher;
 using ::testing::MockFunction;
 using ::testing::NiceMock;
 using ::testing::Not;
+using ::testing::Optional;
 using ::testing::Property;
 using ::testing::ResultOf;
 using ::testing::Return;
@@ -1758,6 +1763,145 @@ TEST_F(ArtdTest, deleteProfileFailed) {
   EXPECT_TRUE(artd_->deleteProfile(profile_path_.value()).isOk());
 }
 
+// An `Artd` whose uncached dexopt status is mocked, so that the cache and the worker threads of
+// `getDexoptStatuses` can be tested without a boot classpath.
+class ArtdWithMockDexoptStatus : public Artd {
+ public:
+  using Artd::Artd;
+
+  MOCK_METHOD(Result<GetDexoptStatusResult>,
+              GetDexoptStatusImpl,
+              (const std::string& dex_file,
+               const std::string& instruction_set,
+               const std::optional<std::string>& class_loader_context),
+              (override));
+};
+
+class ArtdGetDexoptStatusesTest : public ArtdTest {
+ protected:
+  void SetUp() override {
+    ArtdTest::SetUp();
+    mock_artd_ = ndk::SharedRefBase::make<ArtdWithMockDexoptStatus>(Options());
+    ON_CALL(*mock_artd_, GetDexoptStatusImpl)
+        .WillByDefault([](const std::string& dex_file,
+                          const std::string&,
+                          const std::optional<std::string>&) -> Result<GetDexoptStatusResult> {
+          return GetDexoptStatusResult{.compilerFilter = "speed", .locationDebugString = dex_file};
+        });
+    query_ = GetDexoptStatusQuery{
+        .dexFile = dex_file_, .instructionSet = isa_, .classLoaderContext = "PCL[]"};
+    CreateFile(dex_file_);
+  }
+
+  std::vector<GetDexoptStatusResult> GetDexoptStatuses(
+      const std::vector<GetDexoptStatusQuery>& queries) {
+    std::vector<GetDexoptStatusResult> results;
+    ndk::ScopedAStatus status = mock_artd_->getDexoptStatuses(queries, &results);
+    EXPECT_TRUE(status.isOk()) << status.getMessage();
+    return results;
+  }
+
+  // Queries `query_` twice, with `change` in between, and expects the status to be computed twice
+  // if `expect_recomputed` is true, or once otherwise.
+  void TestCacheInvalidation(std::function<void()> change, bool expect_recomputed) {
+    EXPECT_CALL(*mock_artd_, GetDexoptStatusImpl(dex_file_, isa_, _))
+        .Times(expect_recomputed ? 2 : 1);
+    EXPECT_THAT(GetDexoptStatuses({query_}),
+                ElementsAre(Field(&GetDexoptStatusResult::locationDebugString, dex_file_)));
+    change();
+    EXPECT_THAT(GetDexoptStatuses({query_}),
+                ElementsAre(Field(&GetDexoptStatusResult::locationDebugString, dex_file_)));
+  }
+
+  std::shared_ptr<ArtdWithMockDexoptStatus> mock_artd_;
+  GetDexoptStatusQuery query_;
+};
+
+TEST_F(ArtdGetDexoptStatusesTest, empty) {
+  EXPECT_CALL(*mock_artd_, GetDexoptStatusImpl).Times(0);
+  EXPECT_THAT(GetDexoptStatuses({}), IsEmpty());
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, cached) {
+  TestCacheInvalidation([] {}, /*expect_recomputed=*/false);
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, dexFileChanged) {
+  TestCacheInvalidation([&] { CreateFile(dex_file_, "new content"); },
+                        /*expect_recomputed=*/true);
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, dmFileAdded) {
+  TestCacheInvalidation([&] { CreateFile(OR_FATAL(BuildDexMetadataPath(dm_path_))); },
+                        /*expect_recomputed=*/true);
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, artifactsAdded) {
+  TestCacheInvalidation([&] { CreateFile(OR_FATAL(BuildArtifactsPath(artifacts_path_)).oat_path); },
+                        /*expect_recomputed=*/true);
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, dalvikCacheArtifactsAdded) {
+  artifacts_path_.isInDalvikCache = true;
+  TestCacheInvalidation([&] { CreateFile(OR_FATAL(BuildArtifactsPath(artifacts_path_)).oat_path); },
+                        /*expect_recomputed=*/true);
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, classLoaderContextFileAdded) {
+  // Relative to the directory of the dex file.
+  query_.classLoaderContext = "PCL[c.jar]";
+  TestCacheInvalidation([&] { CreateFile(scratch_path_ + "/a/c.jar"); },
+                        /*expect_recomputed=*/true);
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, differentClassLoaderContext) {
+  EXPECT_CALL(*mock_artd_, GetDexoptStatusImpl(dex_file_, isa_, Optional(std::string("PCL[]"))))
+      .Times(1);
+  EXPECT_CALL(*mock_artd_,
+              GetDexoptStatusImpl(dex_file_, isa_, Optional(std::string("PCL[c.jar]"))))
+      .Times(1);
+  GetDexoptStatusQuery other_query = query_;
+  other_query.classLoaderContext = "PCL[c.jar]";
+  GetDexoptStatuses({query_, other_query});
+  GetDexoptStatuses({query_, other_query});
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, errorNotCached) {
+  EXPECT_CALL(*mock_artd_, GetDexoptStatusImpl(dex_file_, isa_, _))
+      .WillOnce([](const std::string&,
+                   const std::string&,
+                   const std::optional<std::string>&) -> Result<GetDexoptStatusResult> {
+        return Error() << "Some error";
+      })
+      .WillOnce(DoDefault());
+  EXPECT_THAT(GetDexoptStatuses({query_}),
+              ElementsAre(Field(&GetDexoptStatusResult::errorMessage,
+                                Optional(std::string("Some error")))));
+  EXPECT_THAT(GetDexoptStatuses({query_}),
+              ElementsAre(AllOf(Field(&GetDexoptStatusResult::locationDebugString, dex_file_),
+                                Field(&GetDexoptStatusResult::errorMessage, std::nullopt))));
+}
+
+TEST_F(ArtdGetDexoptStatusesTest, manyQueries) {
+  // The queries are spread over multiple threads. Each of them must be computed exactly once, and
+  // the results must be in the order of the queries.
+  constexpr int kNumQueries = 100;
+  std::vector<GetDexoptStatusQuery> queries;
+  std::vector<Matcher<GetDexoptStatusResult>> matchers;
+  for (int i = 0; i < kNumQueries; i++) {
+    std::string dex_file = ART_FORMAT("{}/a/{}.apk", scratch_path_, i);
+    CreateFile(dex_file);
+    queries.push_back(GetDexoptStatusQuery{
+        .dexFile = dex_file, .instructionSet = isa_, .classLoaderContext = "PCL[]"});
+    matchers.push_back(Field(&GetDexoptStatusResult::locationDebugString, dex_file));
+    EXPECT_CALL(*mock_artd_, GetDexoptStatusImpl(dex_file, isa_, _)).Times(1);
+  }
+
+  EXPECT_THAT(GetDexoptStatuses(queries), ElementsAreArray(matchers));
+  // All cached.
+  EXPECT_THAT(GetDexoptStatuses(queries), ElementsAreArray(matchers));
+}
+
 class ArtdGetVisibilityTest : public ArtdTest {
  protected:
   template <typename PathType>
@@ -83,6 +83,16 @@ public final class AidlUtils {
         return dexMetadataPath;
     }
 
+    @NonNull
+    public static GetDexoptStatusQuery buildGetDexoptStatusQuery(@NonNull String dexPath,
+            @NonNull String isa, @Nullable String classLoaderContext) {
+        var query = new GetDexoptStatusQuery();
+        query.dexFile = dexPath;
+        query.instructionSet = isa;
+        query.classLoaderContext = classLoaderContext;
+        return query;
+    }
+
     @NonNull
     public static PermissionSettings buildPermissionSettings(@NonNull FsPermission dirFsPermission,
             @NonNull FsPermission fileFsPermission, @Nullable SeContext seContext) {
@@ -93,6 +93,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -259,53 +260,77 @@ public final class ArtManagerLocal {
     @NonNull
     public DexoptStatus getDexoptStatus(@NonNull PackageManagerLocal.FilteredSnapshot snapshot,
             @NonNull String packageName, @GetStatusFlags int flags) {
+        return getDexoptStatuses(snapshot, List.of(packageName), flags).get(packageName);
+    }
+
+    /**
+     * Same as {@link #getDexoptStatus(PackageManagerLocal.FilteredSnapshot, String, int)}, but
+     * for multiple packages. The statuses of all the dex files are queried from artd in one call.
+     *
+     * @return a map from package names to statuses, in the order of {@code packageNames}
+     */
+    @NonNull
+    Map<String, DexoptStatus> getDexoptStatuses(
+            @NonNull PackageManagerLocal.FilteredSnapshot snapshot,
+            @NonNull List<String> packageNames, @GetStatusFlags int flags) {
         if ((flags & ArtFlags.FLAG_FOR_PRIMARY_DEX) == 0
                 && (flags & ArtFlags.FLAG_FOR_SECONDARY_DEX) == 0) {
             throw new IllegalArgumentException("Nothing to check");
         }
 
-        PackageState pkgState = Utils.getPackageStateOrThrow(snapshot, packageName);
-        AndroidPackage pkg = Utils.getPackageOrThrow(pkgState);
-        List<Pair<DetailedDexInfo, Abi>> dexAndAbis =
-                mInjector.getArtFileManager().getDexAndAbis(pkgState, pkg,
-                        ArtFileManager.Options.builder()
-                                .setForPrimaryDex((flags & ArtFlags.FLAG_FOR_PRIMARY_DEX) != 0)
-                                .setForSecondaryDex((flags & ArtFlags.FLAG_FOR_SECONDARY_DEX) != 0)
-                                .build());
+        List<List<Pair<DetailedDexInfo, Abi>>> dexAndAbisList = new ArrayList<>();
+        List<GetDexoptStatusQuery> queries = new ArrayList<>();
+        for (String packageName : packageNames) {
+            PackageState pkgState = Utils.getPackageStateOrThrow(snapshot, packageName);
+            AndroidPackage pkg = Utils.getPackageOrThrow(pkgState);
+            List<Pair<DetailedDexInfo, Abi>> dexAndAbis =
+                    mInjector.getArtFileManager().getDexAndAbis(pkgState, pkg,
+                            ArtFileManager.Options.builder()
+                                    .setForPrimaryDex((flags & ArtFlags.FLAG_FOR_PRIMARY_DEX) != 0)
+                                    .setForSecondaryDex(
+                                            (flags & ArtFlags.FLAG_FOR_SECONDARY_DEX) != 0)
+                                    .build());
+            dexAndAbisList.add(dexAndAbis);
+            for (Pair<DetailedDexInfo, Abi> pair : dexAndAbis) {
+                queries.add(AidlUtils.buildGetDexoptStatusQuery(pair.first.dexPath(),
+                        pair.second.isa(), pair.first.classLoaderContext()));
+            }
+        }
 
+        List<GetDexoptStatusResult> results = null;
+        String artdError = null;
         try (var pin = mInjector.createArtdPin()) {
-            List<DexContainerFileDexoptStatus> statuses = new ArrayList<>();
+            results = queries.isEmpty() ? List.of()
+                                        : mInjector.getArtd().getDexoptStatuses(queries);
+        } catch (RemoteException e) {
+            Utils.logArtdException(e);
+            artdError = e.getMessage();
+        }
 
-            for (Pair<DetailedDexInfo, Abi> pair : dexAndAbis) {
+        var statusesByPackage = new LinkedHashMap<String, DexoptStatus>();
+        int index = 0;
+        for (int i = 0; i < packageNames.size(); i++) {
+            List<DexContainerFileDexoptStatus> statuses = new ArrayList<>();
+            for (Pair<DetailedDexInfo, Abi> pair : dexAndAbisList.get(i)) {
                 DetailedDexInfo dexInfo = pair.first;
                 Abi abi = pair.second;
-                try {
-                    GetDexoptStatusResult result = mInjector.getArtd().getDexoptStatus(
-                            dexInfo.dexPath(), abi.isa(), dexInfo.classLoaderContext());
+                GetDexoptStatusResult result = results != null ? results.get(index) : null;
+                index++;
+                if (result != null && result.errorMessage == null) {
                     statuses.add(DexContainerFileDexoptStatus.create(dexInfo.dexPath(),
                             dexInfo instanceof DetailedPrimaryDexInfo, abi.isPrimaryAbi(),
                             abi.name(), result.compilerFilter, result.compilationReason,
                             result.locationDebugString));
-                } catch (ServiceSpecificException e) {
+                } else {
                     statuses.add(DexContainerFileDexoptStatus.create(dexInfo.dexPath(),
                             dexInfo instanceof DetailedPrimaryDexInfo, abi.isPrimaryAbi(),
-                            abi.name(), "error", "error", e.getMessage()));
+                            abi.name(), "error", "error",
+                            result != null ? result.errorMessage : artdError));
                 }
             }
-
-            return DexoptStatus.create(statuses);
-        } catch (RemoteException e) {
-            Utils.logArtdException(e);
-            List<DexContainerFileDexoptStatus> statuses = new ArrayList<>();
-            for (Pair<DetailedDexInfo, Abi> pair : dexAndAbis) {
-                DetailedDexInfo dexInfo = pair.first;
-                Abi abi = pair.second;
-                statuses.add(DexContainerFileDexoptStatus.create(dexInfo.dexPath(),
-                        dexInfo instanceof DetailedPrimaryDexInfo, abi.isPrimaryAbi(), abi.name(),
-                        "error", "error", e.getMessage()));
-            }
-            return DexoptStatus.create(statuses);
+            statusesByPackage.put(packageNames.get(i), DexoptStatus.create(statuses));
         }
+        return statusesByPackage;
     }
 
     /**
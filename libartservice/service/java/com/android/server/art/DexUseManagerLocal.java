@@ -43,6 +43,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.LocalManagerRegistry;
 import com.android.server.art.model.DetailedDexInfo;
 import com.android.server.art.model.DexContainerFileUseInfo;
+import com.android.server.art.proto.DexUseJournalHeaderProto;
 import com.android.server.art.proto.DexUseProto;
 import com.android.server.art.proto.Int32Value;
 import com.android.server.art.proto.PackageDexUseProto;
@@ -58,21 +59,26 @@ import com.android.server.pm.pkg.SharedLibrary;
 
 import com.google.auto.value.AutoValue;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -80,6 +86,7 @@ import java.util.Optional;
 import java.util.SequencedMap;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.BiFunction;
@@ -101,6 +108,19 @@ import java.util.stream.Collectors;
 public class DexUseManagerLocal {
     private static final String FILENAME = "/data/system/package-dex-usage.pb";
 
+    /**
+     * An append-only journal of the records that have changed since {@link #FILENAME} was last
+     * written. It consists of length-delimited {@link PackageDexUseProto} messages, each of which
+     * contains a single record and is applied on top of the data in {@link #FILENAME} in order.
+     */
+    private static final String JOURNAL_FILENAME = "/data/system/package-dex-usage.journal.pb";
+
+    /**
+     * The journal is compacted into {@link #FILENAME} once it reaches this size or the size of
+     * {@link #FILENAME}, whichever is larger.
+     */
+    private static final long MIN_JOURNAL_SIZE_FOR_COMPACTION = 64 * 1024;
+
     /**
      * The minimum interval between disk writes.
      *
@@ -130,13 +150,25 @@ public class DexUseManagerLocal {
     private final LruCache<String, String> mRecentDexFilesToPackageNames =
             new LruCache<>(50 /* maxSize */);
 
+    // Serializes saves, so that the journal is appended to and compacted by one thread at a time.
+    private final Object mSaveLock = new Object();
+
     private final Object mLock = new Object();
     @GuardedBy("mLock") @NonNull private DexUse mDexUse; // Initialized by `load`.
     @GuardedBy("mLock") private int mRevision = 0;
     @GuardedBy("mLock") private int mLastCommittedRevision = 0;
+    /** Records that have changed since the last save, in the order of their first change. */
     @GuardedBy("mLock")
     @NonNull
-    private SecondaryDexLocationManager mSecondaryDexLocationManager =
+    private final Set<DirtyRecord> mDirtyRecords = new LinkedHashSet<>();
+    /** Whether the next save must rewrite the snapshot file instead of appending to the journal. */
+    @GuardedBy("mLock") private boolean mNeedsCompaction = false;
+    @GuardedBy("mLock") private long mSnapshotSizeBytes = 0;
+    @GuardedBy("mLock") private long mJournalSizeBytes = 0;
+    /** The generation of the journal that applies on top of the current snapshot file. */
+    @GuardedBy("mLock") private long mJournalGeneration = 0;
+    @NonNull
+    private final SecondaryDexLocationManager mSecondaryDexLocationManager =
             new SecondaryDexLocationManager();
 
     /**
@@ -218,13 +250,12 @@ public class DexUseManagerLocal {
     @NonNull
     public Set<DexLoader> getPrimaryDexLoaders(
             @NonNull String packageName, @NonNull String dexPath) {
-        synchronized (mLock) {
-            PackageDexUse packageDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
-            if (packageDexUse == null) {
-                return Set.of();
-            }
-            PrimaryDexUse primaryDexUse = packageDexUse.mPrimaryDexUseByDexFile.get(dexPath);
+        PackageDexUse packageDexUse = getPackageDexUse(packageName);
+        if (packageDexUse == null) {
+            return Set.of();
+        }
+        synchronized (packageDexUse) {
+            PrimaryDexUse primaryDexUse = packageDexUse.getPrimaryDexUseByDexFile().get(dexPath);
             if (primaryDexUse == null) {
                 return Set.of();
             }
@@ -279,14 +310,13 @@ public class DexUseManagerLocal {
      * @hide
      */
     public long getPackageLastUsedAtMs(@NonNull String packageName) {
-        synchronized (mLock) {
-            PackageDexUse packageDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
-            if (packageDexUse == null) {
-                return 0;
-            }
+        PackageDexUse packageDexUse = getPackageDexUse(packageName);
+        if (packageDexUse == null) {
+            return 0;
+        }
+        synchronized (packageDexUse) {
             long primaryLastUsedAtMs =
-                    packageDexUse.mPrimaryDexUseByDexFile.values()
+                    packageDexUse.getPrimaryDexUseByDexFile().values()
                             .stream()
                             .flatMap(primaryDexUse
                                     -> primaryDexUse.mRecordByLoader.values().stream())
@@ -294,7 +324,7 @@ public class DexUseManagerLocal {
                             .max(Long::compare)
                             .orElse(0l);
             long secondaryLastUsedAtMs =
-                    packageDexUse.mSecondaryDexUseByDexFile.values()
+                    packageDexUse.getSecondaryDexUseByDexFile().values()
                             .stream()
                             .flatMap(secondaryDexUse
                                     -> secondaryDexUse.mRecordByLoader.values().stream())
@@ -315,71 +345,74 @@ public class DexUseManagerLocal {
     private @NonNull List<CheckedSecondaryDexInfo> getSecondaryDexInfoImpl(
             @NonNull String packageName, boolean checkDexFile,
             boolean excludeObsoleteDexesAndLoaders) {
-        synchronized (mLock) {
-            PackageDexUse packageDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName.get(packageName);
-            if (packageDexUse == null) {
-                return List.of();
+        PackageDexUse packageDexUse = getPackageDexUse(packageName);
+        if (packageDexUse == null) {
+            return List.of();
+        }
+        // Work on a copy, so that the file visibility checks below, which require I/O, don't block
+        // recording dex loads.
+        var secondaryDexUseByDexFile = new LinkedHashMap<String, SecondaryDexUse>();
+        synchronized (packageDexUse) {
+            for (var entry : packageDexUse.getSecondaryDexUseByDexFile().entrySet()) {
+                secondaryDexUseByDexFile.put(entry.getKey(), entry.getValue().copy());
             }
-            var results = new ArrayList<CheckedSecondaryDexInfo>();
-            for (var entry : packageDexUse.mSecondaryDexUseByDexFile.entrySet()) {
-                String dexPath = entry.getKey();
-                SecondaryDexUse secondaryDexUse = entry.getValue();
-
-                @FileVisibility
-                int visibility = checkDexFile ? getDexFileVisibility(dexPath)
-                                              : FileVisibility.OTHER_READABLE;
-                if (visibility == FileVisibility.NOT_FOUND && excludeObsoleteDexesAndLoaders) {
-                    continue;
-                }
+        }
+        var results = new ArrayList<CheckedSecondaryDexInfo>();
+        for (var entry : secondaryDexUseByDexFile.entrySet()) {
+            String dexPath = entry.getKey();
+            SecondaryDexUse secondaryDexUse = entry.getValue();
 
-                Map<DexLoader, SecondaryDexUseRecord> filteredRecordByLoader;
-                if (visibility == FileVisibility.OTHER_READABLE
-                        || !excludeObsoleteDexesAndLoaders) {
-                    filteredRecordByLoader = secondaryDexUse.mRecordByLoader;
-                } else {
-                    // Only keep the entry that belongs to the same app.
-                    DexLoader sameApp = DexLoader.create(packageName, false /* isolatedProcess */);
-                    SecondaryDexUseRecord record = secondaryDexUse.mRecordByLoader.get(sameApp);
-                    filteredRecordByLoader = record != null ? Map.of(sameApp, record) : Map.of();
-                }
-                if (filteredRecordByLoader.isEmpty()) {
-                    continue;
-                }
-                List<String> distinctClcList =
-                        filteredRecordByLoader.values()
-                                .stream()
-                                .map(record -> Utils.assertNonEmpty(record.mClassLoaderContext))
-                                .filter(clc
-                                        -> !clc.equals(
-                                                SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT))
-                                .distinct()
-                                .collect(Collectors.toList());
-                String clc;
-                if (distinctClcList.size() == 0) {
-                    clc = SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT;
-                } else if (distinctClcList.size() == 1) {
-                    clc = distinctClcList.get(0);
-                } else {
-                    // If there are more than one class loader contexts, we can't dexopt the dex
-                    // file.
-                    clc = SecondaryDexInfo.VARYING_CLASS_LOADER_CONTEXTS;
-                }
-                // Although we filter out unsupported CLCs above, `distinctAbiNames` and `loaders`
-                // still need to take apps with unsupported CLCs into account because the vdex file
-                // is still usable to them.
-                Set<String> distinctAbiNames =
-                        filteredRecordByLoader.values()
-                                .stream()
-                                .map(record -> Utils.assertNonEmpty(record.mAbiName))
-                                .collect(Collectors.toSet());
-                Set<DexLoader> loaders = Set.copyOf(filteredRecordByLoader.keySet());
-                results.add(CheckedSecondaryDexInfo.create(dexPath,
-                        Objects.requireNonNull(secondaryDexUse.mUserHandle), clc, distinctAbiNames,
-                        loaders, isUsedByOtherApps(loaders, packageName), visibility));
+            @FileVisibility
+            int visibility = checkDexFile ? getDexFileVisibility(dexPath)
+                                          : FileVisibility.OTHER_READABLE;
+            if (visibility == FileVisibility.NOT_FOUND && excludeObsoleteDexesAndLoaders) {
+                continue;
             }
-            return Collections.unmodifiableList(results);
-        }
+
+            Map<DexLoader, SecondaryDexUseRecord> filteredRecordByLoader;
+            if (visibility == FileVisibility.OTHER_READABLE || !excludeObsoleteDexesAndLoaders) {
+                filteredRecordByLoader = secondaryDexUse.mRecordByLoader;
+            } else {
+                // Only keep the entry that belongs to the same app.
+                DexLoader sameApp = DexLoader.create(packageName, false /* isolatedProcess */);
+                SecondaryDexUseRecord record = secondaryDexUse.mRecordByLoader.get(sameApp);
+                filteredRecordByLoader = record != null ? Map.of(sameApp, record) : Map.of();
+            }
+            if (filteredRecordByLoader.isEmpty()) {
+                continue;
+            }
+            List<String> distinctClcList =
+                    filteredRecordByLoader.values()
+                            .stream()
+                            .map(record -> Utils.assertNonEmpty(record.mClassLoaderContext))
+                            .filter(clc
+                                    -> !clc.equals(
+                                            SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT))
+                            .distinct()
+                            .collect(Collectors.toList());
+            String clc;
+            if (distinctClcList.size() == 0) {
+                clc = SecondaryDexInfo.UNSUPPORTED_CLASS_LOADER_CONTEXT;
+            } else if (distinctClcList.size() == 1) {
+                clc = distinctClcList.get(0);
+            } else {
+                // If there are more than one class loader contexts, we can't dexopt the dex file.
+                clc = SecondaryDexInfo.VARYING_CLASS_LOADER_CONTEXTS;
+            }
+            // Although we filter out unsupported CLCs above, `distinctAbiNames` and `loaders`
+            // still need to take apps with unsupported CLCs into account because the vdex file
+            // is still usable to them.
+            Set<String> distinctAbiNames =
+                    filteredRecordByLoader.values()
+                            .stream()
+                            .map(record -> Utils.assertNonEmpty(record.mAbiName))
+                            .collect(Collectors.toSet());
+            Set<DexLoader> loaders = Set.copyOf(filteredRecordByLoader.keySet());
+            results.add(CheckedSecondaryDexInfo.create(dexPath,
+                    Objects.requireNonNull(secondaryDexUse.mUserHandle), clc, distinctAbiNames,
+                    loaders, isUsedByOtherApps(loaders, packageName), visibility));
+        }
+        return Collections.unmodifiableList(results);
     }
 
     /**
@@ -557,10 +590,8 @@ public class DexUseManagerLocal {
                 return result;
             }
         }
-        synchronized (mLock) {
-            if (isOwningPackageForSecondaryDexLocked(pkgState, dexPath)) {
-                return new FindResult(TYPE_SECONDARY, pkgState.getPackageName());
-            }
+        if (isOwningPackageForSecondaryDex(pkgState, dexPath)) {
+            return new FindResult(TYPE_SECONDARY, pkgState.getPackageName());
         }
         String packageCodeDir = getPackageCodeDir(pkgState);
         if (packageCodeDir != null && Utils.pathStartsWith(dexPath, packageCodeDir)) {
@@ -585,8 +616,7 @@ public class DexUseManagerLocal {
         return false;
     }
 
-    @GuardedBy("mLock")
-    private boolean isOwningPackageForSecondaryDexLocked(
+    private boolean isOwningPackageForSecondaryDex(
             @NonNull PackageState pkgState, @NonNull String dexPath) {
         UserHandle userHandle = mInjector.getCallingUserHandle();
         List<String> locations = mSecondaryDexLocationManager.getLocations(pkgState, userHandle);
@@ -639,91 +669,290 @@ public class DexUseManagerLocal {
 
     private void addPrimaryDexUse(@NonNull String owningPackageName, @NonNull String dexPath,
             @NonNull String loadingPackageName, boolean isolatedProcess, long lastUsedAtMs) {
-        synchronized (mLock) {
-            PrimaryDexUseRecord record =
-                    mDexUse.mPackageDexUseByOwningPackageName
-                            .computeIfAbsent(owningPackageName, k -> new PackageDexUse())
-                            .mPrimaryDexUseByDexFile
-                            .computeIfAbsent(dexPath, k -> new PrimaryDexUse())
-                            .mRecordByLoader.computeIfAbsent(
-                                    DexLoader.create(loadingPackageName, isolatedProcess),
-                                    k -> new PrimaryDexUseRecord());
-            record.mLastUsedAtMs = lastUsedAtMs;
-            mRevision++;
+        DexLoader loader = DexLoader.create(loadingPackageName, isolatedProcess);
+        // Only hold the lock of the package while updating it, so that recording a dex load is not
+        // blocked by accesses to other packages.
+        while (true) {
+            PackageDexUse packageDexUse = getOrCreatePackageDexUse(owningPackageName);
+            synchronized (packageDexUse) {
+                if (packageDexUse.mRemoved) {
+                    // `cleanup` has removed the package in the meantime. Try again with a new one.
+                    continue;
+                }
+                PrimaryDexUseRecord record =
+                        packageDexUse.getPrimaryDexUseByDexFile()
+                                .computeIfAbsent(dexPath, k -> new PrimaryDexUse())
+                                .mRecordByLoader.computeIfAbsent(
+                                        loader, k -> new PrimaryDexUseRecord());
+                record.mLastUsedAtMs = lastUsedAtMs;
+                break;
+            }
         }
-        maybeSaveAsync();
+        markDirty(DirtyRecord.create(owningPackageName, dexPath, false /* isSecondary */, loader));
     }
 
     private void addSecondaryDexUse(@NonNull String owningPackageName, @NonNull String dexPath,
             @NonNull String loadingPackageName, boolean isolatedProcess,
             @NonNull String classLoaderContext, @NonNull String abiName, long lastUsedAtMs) {
+        DexLoader loader = DexLoader.create(loadingPackageName, isolatedProcess);
+        UserHandle userHandle = mInjector.getCallingUserHandle();
+        // See `addPrimaryDexUse`.
+        while (true) {
+            PackageDexUse packageDexUse = getOrCreatePackageDexUse(owningPackageName);
+            synchronized (packageDexUse) {
+                if (packageDexUse.mRemoved) {
+                    continue;
+                }
+                SecondaryDexUse secondaryDexUse =
+                        packageDexUse.getSecondaryDexUseByDexFile().computeIfAbsent(
+                                dexPath, k -> new SecondaryDexUse());
+                secondaryDexUse.mUserHandle = userHandle;
+                SecondaryDexUseRecord record = secondaryDexUse.mRecordByLoader.computeIfAbsent(
+                        loader, k -> new SecondaryDexUseRecord());
+                record.mClassLoaderContext = classLoaderContext;
+                record.mAbiName = abiName;
+                record.mLastUsedAtMs = lastUsedAtMs;
+                break;
+            }
+        }
+        markDirty(DirtyRecord.create(owningPackageName, dexPath, true /* isSecondary */, loader));
+    }
+
+    private void markDirty(@NonNull DirtyRecord dirtyRecord) {
         synchronized (mLock) {
-            SecondaryDexUse secondaryDexUse =
-                    mDexUse.mPackageDexUseByOwningPackageName
-                            .computeIfAbsent(owningPackageName, k -> new PackageDexUse())
-                            .mSecondaryDexUseByDexFile.computeIfAbsent(
-                                    dexPath, k -> new SecondaryDexUse());
-            secondaryDexUse.mUserHandle = mInjector.getCallingUserHandle();
-            SecondaryDexUseRecord record = secondaryDexUse.mRecordByLoader.computeIfAbsent(
-                    DexLoader.create(loadingPackageName, isolatedProcess),
-                    k -> new SecondaryDexUseRecord());
-            record.mClassLoaderContext = classLoaderContext;
-            record.mAbiName = abiName;
-            record.mLastUsedAtMs = lastUsedAtMs;
+            mDirtyRecords.add(dirtyRecord);
             mRevision++;
         }
         maybeSaveAsync();
     }
 
+    @NonNull
+    private PackageDexUse getOrCreatePackageDexUse(@NonNull String owningPackageName) {
+        synchronized (mLock) {
+            return mDexUse.getOrCreate(owningPackageName);
+        }
+    }
+
+    @Nullable
+    private PackageDexUse getPackageDexUse(@NonNull String owningPackageName) {
+        synchronized (mLock) {
+            return mDexUse.get(owningPackageName);
+        }
+    }
+
     /** @hide */
     public @NonNull String dump() {
-        var builder = DexUseProto.newBuilder();
+        Map<String, PackageDexUse> packageDexUseByOwningPackageName;
         synchronized (mLock) {
-            mDexUse.toProto(builder);
+            packageDexUseByOwningPackageName = mDexUse.copyAll();
         }
+        var builder = DexUseProto.newBuilder();
+        DexUse.toProto(packageDexUseByOwningPackageName, builder);
         return builder.build().toString();
     }
 
+    /**
+     * Persists the changes made since the last save.
+     *
+     * Normally, only the records that have changed are appended to the journal. The whole data is
+     * rewritten to the snapshot file, and the journal is discarded, only when the journal has grown
+     * larger than the snapshot, or when something has been removed, which the journal cannot
+     * express.
+     */
     private void save() {
         Utils.check(!mInjector.isPreReboot());
-        var builder = DexUseProto.newBuilder();
-        int thisRevision;
-        synchronized (mLock) {
-            if (mRevision <= mLastCommittedRevision) {
-                return;
+        synchronized (mSaveLock) {
+            int thisRevision;
+            boolean compact;
+            long journalGeneration;
+            boolean journalEmpty;
+            Map<String, PackageDexUse> packageDexUseByOwningPackageName = null;
+            List<DirtyRecord> dirtyRecords = null;
+            synchronized (mLock) {
+                if (mRevision <= mLastCommittedRevision) {
+                    return;
+                }
+                thisRevision = mRevision;
+                compact = mNeedsCompaction
+                        || mJournalSizeBytes
+                                >= Math.max(MIN_JOURNAL_SIZE_FOR_COMPACTION, mSnapshotSizeBytes);
+                journalEmpty = mJournalSizeBytes == 0;
+                if (compact) {
+                    // Start a new generation, so that the old journal is ignored if the device
+                    // crashes before it is deleted.
+                    journalGeneration = mJournalGeneration + 1;
+                    // Only copy the list of packages here. The data of each package is serialized
+                    // below under the lock of the package only, so that the compaction doesn't
+                    // block accesses to other packages. Changes made in the meantime are either
+                    // included in the snapshot or saved by the next save.
+                    packageDexUseByOwningPackageName = mDexUse.copyAll();
+                    // Consume the flag now, so that removals made in the meantime set it again.
+                    mNeedsCompaction = false;
+                } else {
+                    journalGeneration = mJournalGeneration;
+                    dirtyRecords = new ArrayList<>(mDirtyRecords);
+                }
+                mDirtyRecords.clear();
+            }
+            var snapshotBuilder = DexUseProto.newBuilder();
+            var journalRecords = new ArrayList<PackageDexUseProto>();
+            if (compact) {
+                DexUse.toProto(packageDexUseByOwningPackageName, snapshotBuilder);
+                snapshotBuilder.setJournalGeneration(journalGeneration);
+            } else {
+                for (DirtyRecord dirtyRecord : dirtyRecords) {
+                    PackageDexUseProto proto = buildJournalRecord(dirtyRecord);
+                    if (proto != null) {
+                        journalRecords.add(proto);
+                    }
+                }
+            }
+            try {
+                long snapshotSizeBytes = -1;
+                long journalSizeBytes;
+                if (compact) {
+                    snapshotSizeBytes = writeSnapshot(snapshotBuilder.build());
+                    // If the device crashes right here, the old journal is left behind, but it
+                    // won't be replayed because its generation doesn't match the new snapshot.
+                    Files.deleteIfExists(Paths.get(mInjector.getJournalFilename()));
+                    journalSizeBytes = 0;
+                } else {
+                    journalSizeBytes =
+                            appendToJournal(journalRecords, journalEmpty, journalGeneration);
+                }
+                synchronized (mLock) {
+                    mLastCommittedRevision = thisRevision;
+                    if (compact) {
+                        mSnapshotSizeBytes = snapshotSizeBytes;
+                        mJournalSizeBytes = 0;
+                        mJournalGeneration = journalGeneration;
+                    } else {
+                        mJournalSizeBytes += journalSizeBytes;
+                    }
+                }
+            } catch (IOException e) {
+                AsLog.e("Failed to save dex use data", e);
+                synchronized (mLock) {
+                    // The dirty records are lost, and the journal may end with a partial record.
+                    // Rewrite everything next time.
+                    mNeedsCompaction = true;
+                }
             }
-            mDexUse.toProto(builder);
-            thisRevision = mRevision;
         }
+    }
+
+    /**
+     * Returns a journal record that contains the current state of the given record, or null if the
+     * record no longer exists.
+     */
+    @Nullable
+    private PackageDexUseProto buildJournalRecord(@NonNull DirtyRecord dirtyRecord) {
+        PackageDexUse packageDexUse = getPackageDexUse(dirtyRecord.owningPackageName());
+        if (packageDexUse == null) {
+            return null;
+        }
+        synchronized (packageDexUse) {
+            if (packageDexUse.mRemoved) {
+                return null;
+            }
+            var builder = PackageDexUseProto.newBuilder().setOwningPackageName(
+                    dirtyRecord.owningPackageName());
+            DexLoader loader = dirtyRecord.loader();
+            if (dirtyRecord.isSecondary()) {
+                SecondaryDexUse secondaryDexUse =
+                        packageDexUse.getSecondaryDexUseByDexFile().get(dirtyRecord.dexPath());
+                if (secondaryDexUse == null
+                        || !secondaryDexUse.mRecordByLoader.containsKey(loader)) {
+                    return null;
+                }
+                var recordBuilder = SecondaryDexUseRecordProto.newBuilder()
+                                            .setLoadingPackageName(loader.loadingPackageName())
+                                            .setIsolatedProcess(loader.isolatedProcess());
+                secondaryDexUse.mRecordByLoader.get(loader).toProto(recordBuilder);
+                builder.addSecondaryDexUse(
+                        SecondaryDexUseProto.newBuilder()
+                                .setDexFile(dirtyRecord.dexPath())
+                                .setUserId(Int32Value.newBuilder().setValue(
+                                        secondaryDexUse.mUserHandle.getIdentifier()))
+                                .addRecord(recordBuilder));
+            } else {
+                PrimaryDexUse primaryDexUse =
+                        packageDexUse.getPrimaryDexUseByDexFile().get(dirtyRecord.dexPath());
+                if (primaryDexUse == null || !primaryDexUse.mRecordByLoader.containsKey(loader)) {
+                    return null;
+                }
+                var recordBuilder = PrimaryDexUseRecordProto.newBuilder()
+                                            .setLoadingPackageName(loader.loadingPackageName())
+                                            .setIsolatedProcess(loader.isolatedProcess());
+                primaryDexUse.mRecordByLoader.get(loader).toProto(recordBuilder);
+                builder.addPrimaryDexUse(PrimaryDexUseProto.newBuilder()
+                                                 .setDexFile(dirtyRecord.dexPath())
+                                                 .addRecord(recordBuilder));
+            }
+            return builder.build();
+        }
+    }
+
+    /** Atomically replaces the snapshot file. Returns the size of the file in bytes. */
+    private long writeSnapshot(@NonNull DexUseProto proto) throws IOException {
         var file = new File(mInjector.getFilename());
         File tempFile = null;
         try {
             tempFile = File.createTempFile(file.getName(), null /* suffix */, file.getParentFile());
-            try (OutputStream out = new FileOutputStream(tempFile.getPath())) {
-                builder.build().writeTo(out);
+            try (FileOutputStream out = new FileOutputStream(tempFile.getPath())) {
+                proto.writeTo(out);
+                // The journal is deleted right after this, so the snapshot must be durable first.
+                out.getFD().sync();
             }
-            synchronized (mLock) {
-                // Check revision again in case `mLastCommittedRevision` has changed since the check
-                // above, to avoid ABA race.
-                if (thisRevision > mLastCommittedRevision) {
-                    Files.move(tempFile.toPath(), file.toPath(),
-                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-                    mLastCommittedRevision = thisRevision;
-                }
-            }
-        } catch (IOException e) {
-            AsLog.e("Failed to save dex use data", e);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return proto.getSerializedSize();
         } finally {
             Utils.deleteIfExistsSafe(tempFile);
         }
     }
 
+    /**
+     * Appends the given records to the journal, preceded by a header if the journal is empty.
+     * Returns the number of bytes appended.
+     */
+    private long appendToJournal(@NonNull List<PackageDexUseProto> records, boolean journalEmpty,
+            long journalGeneration) throws IOException {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        // Write all the records with a single write, so that a crash can only leave a partial
+        // record at the end of the journal, which is discarded on load.
+        var bytes = new ByteArrayOutputStream();
+        if (journalEmpty) {
+            DexUseJournalHeaderProto.newBuilder()
+                    .setGeneration(journalGeneration)
+                    .build()
+                    .writeDelimitedTo(bytes);
+        }
+        for (PackageDexUseProto record : records) {
+            record.writeDelimitedTo(bytes);
+        }
+        try (FileOutputStream out =
+                        new FileOutputStream(mInjector.getJournalFilename(), true /* append */)) {
+            bytes.writeTo(out);
+            out.getFD().sync();
+        }
+        return bytes.size();
+    }
+
     private void maybeSaveAsync() {
         Utils.check(!mInjector.isPreReboot());
         mDebouncer.maybeRunAsync(this::save);
     }
 
-    /** This should only be called during initialization. */
+    /**
+     * This should only be called during initialization.
+     *
+     * The data is only parsed here. The validation and the conversion to the in-memory
+     * representation are deferred to the first access to each package, as most packages are not
+     * accessed shortly after boot. That happens under the lock of the package only.
+     */
     private void load() {
         DexUseProto proto = null;
         try (InputStream in = new FileInputStream(mInjector.getFilename())) {
@@ -732,18 +961,85 @@ public class DexUseManagerLocal {
             // Nothing else we can do but to start from scratch.
             AsLog.e("Failed to load dex use data", e);
         }
+        long journalGeneration = proto != null ? proto.getJournalGeneration() : 0;
+        var journalRecords = new ArrayList<PackageDexUseProto>();
+        boolean journalCorrupted = false;
+        try (InputStream in = new BufferedInputStream(
+                        new FileInputStream(mInjector.getJournalFilename()))) {
+            DexUseJournalHeaderProto header = DexUseJournalHeaderProto.parseDelimitedFrom(in);
+            if (header != null && header.getGeneration() != journalGeneration) {
+                // The device crashed during a compaction, after the snapshot was written but before
+                // the journal was deleted. The journal is older than the snapshot.
+                AsLog.w("Ignoring stale dex use journal");
+                journalCorrupted = true;
+            } else if (header != null) {
+                PackageDexUseProto record;
+                while ((record = PackageDexUseProto.parseDelimitedFrom(in)) != null) {
+                    if (!isValidJournalRecord(record)) {
+                        // A partially written record may happen to parse. Stop at it.
+                        AsLog.e("Invalid dex use journal record");
+                        journalCorrupted = true;
+                        break;
+                    }
+                    journalRecords.add(record);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // The journal is absent after a compaction. This is expected.
+        } catch (IOException e) {
+            // Typically, the last record is partially written because the device crashed. Keep the
+            // records read so far.
+            AsLog.e("Failed to load dex use journal", e);
+            journalCorrupted = true;
+        }
         synchronized (mLock) {
             if (mDexUse != null) {
                 throw new IllegalStateException("Load has already been attempted");
             }
-            mDexUse = new DexUse();
+            mDexUse = new DexUse(ArtJni::validateDexPath, ArtJni::validateClassLoaderContext);
             if (proto != null) {
-                mDexUse.fromProto(
-                        proto, ArtJni::validateDexPath, ArtJni::validateClassLoaderContext);
+                mDexUse.addUnparsed(proto.getPackageDexUseList());
+                mSnapshotSizeBytes = proto.getSerializedSize();
             }
+            mDexUse.addUnparsed(journalRecords);
+            mJournalSizeBytes = new File(mInjector.getJournalFilename()).length();
+            mJournalGeneration = journalGeneration;
+            // Don't append anything after a corrupted record or to a stale journal.
+            mNeedsCompaction = journalCorrupted;
         }
     }
 
+    /**
+     * Returns true if the given journal record has the shape that {@link #save} writes, i.e., a
+     * single primary or secondary dex use with a single complete record.
+     */
+    private static boolean isValidJournalRecord(@NonNull PackageDexUseProto proto) {
+        if (proto.getOwningPackageName().isEmpty()) {
+            return false;
+        }
+        if (proto.getPrimaryDexUseCount() + proto.getSecondaryDexUseCount() != 1) {
+            return false;
+        }
+        if (proto.getPrimaryDexUseCount() == 1) {
+            PrimaryDexUseProto primaryProto = proto.getPrimaryDexUse(0);
+            if (primaryProto.getDexFile().isEmpty() || primaryProto.getRecordCount() != 1) {
+                return false;
+            }
+            PrimaryDexUseRecordProto recordProto = primaryProto.getRecord(0);
+            return !recordProto.getLoadingPackageName().isEmpty()
+                    && recordProto.getLastUsedAtMs() > 0;
+        }
+        SecondaryDexUseProto secondaryProto = proto.getSecondaryDexUse(0);
+        if (secondaryProto.getDexFile().isEmpty() || !secondaryProto.hasUserId()
+                || secondaryProto.getRecordCount() != 1) {
+            return false;
+        }
+        SecondaryDexUseRecordProto recordProto = secondaryProto.getRecord(0);
+        return !recordProto.getLoadingPackageName().isEmpty()
+                && !recordProto.getClassLoaderContext().isEmpty()
+                && !recordProto.getAbiName().isEmpty() && recordProto.getLastUsedAtMs() > 0;
+    }
+
     private static boolean isUsedByOtherApps(
             @NonNull Set<DexLoader> loaders, @NonNull String owningPackageName) {
         return loaders.stream().anyMatch(loader -> isLoaderOtherApp(loader, owningPackageName));
@@ -800,10 +1096,12 @@ public class DexUseManagerLocal {
     @Nullable
     public String getSecondaryClassLoaderContext(
             @NonNull String owningPackageName, @NonNull String dexFile, @NonNull DexLoader loader) {
-        synchronized (mLock) {
-            return Optional
-                    .ofNullable(mDexUse.mPackageDexUseByOwningPackageName.get(owningPackageName))
-                    .map(packageDexUse -> packageDexUse.mSecondaryDexUseByDexFile.get(dexFile))
+        PackageDexUse packageDexUse = getPackageDexUse(owningPackageName);
+        if (packageDexUse == null) {
+            return null;
+        }
+        synchronized (packageDexUse) {
+            return Optional.ofNullable(packageDexUse.getSecondaryDexUseByDexFile().get(dexFile))
                     .map(secondaryDexUse -> secondaryDexUse.mRecordByLoader.get(loader))
                     .map(record -> record.mClassLoaderContext)
                     .orElse(null);
@@ -819,13 +1117,22 @@ public class DexUseManagerLocal {
         Set<String> packageNames = mInjector.getAllPackageNames();
         Map<String, Integer> dexFileVisibilityByName = new HashMap<>();
 
-        // Scan the data in two passes to avoid holding the lock during I/O.
+        // Only hold `mLock` while copying the list of packages, and the lock of each package while
+        // working on it, so that the cleanup, which parses the data of every package, doesn't block
+        // accesses to other packages. Packages added in the meantime are checked in the next
+        // `cleanup` run.
+        Map<String, PackageDexUse> packageDexUseByOwningPackageName;
         synchronized (mLock) {
-            for (PackageDexUse packageDexUse : mDexUse.mPackageDexUseByOwningPackageName.values()) {
-                for (String dexFile : packageDexUse.mPrimaryDexUseByDexFile.keySet()) {
+            packageDexUseByOwningPackageName = mDexUse.copyAll();
+        }
+
+        // Scan the data in two passes to avoid holding any lock during I/O.
+        for (PackageDexUse packageDexUse : packageDexUseByOwningPackageName.values()) {
+            synchronized (packageDexUse) {
+                for (String dexFile : packageDexUse.getPrimaryDexUseByDexFile().keySet()) {
                     dexFileVisibilityByName.put(dexFile, FileVisibility.NOT_FOUND);
                 }
-                for (String dexFile : packageDexUse.mSecondaryDexUseByDexFile.keySet()) {
+                for (String dexFile : packageDexUse.getSecondaryDexUseByDexFile().keySet()) {
                     dexFileVisibilityByName.put(dexFile, FileVisibility.NOT_FOUND);
                 }
             }
@@ -835,42 +1142,58 @@ public class DexUseManagerLocal {
             entry.setValue(getDexFileVisibility(entry.getKey()));
         }
 
-        synchronized (mLock) {
-            for (var it = mDexUse.mPackageDexUseByOwningPackageName.entrySet().iterator();
-                    it.hasNext();) {
-                Map.Entry<String, PackageDexUse> entry = it.next();
-                String owningPackageName = entry.getKey();
-                PackageDexUse packageDexUse = entry.getValue();
+        boolean changed = false;
+        var removedPackageDexUseByOwningPackageName = new HashMap<String, PackageDexUse>();
+        for (var entry : packageDexUseByOwningPackageName.entrySet()) {
+            String owningPackageName = entry.getKey();
+            PackageDexUse packageDexUse = entry.getValue();
+
+            synchronized (packageDexUse) {
+                if (packageDexUse.mRemoved) {
+                    continue;
+                }
 
                 if (!packageNames.contains(owningPackageName)) {
                     // Remove information about the non-existing owning package.
-                    it.remove();
-                    mRevision++;
+                    packageDexUse.mRemoved = true;
+                    removedPackageDexUseByOwningPackageName.put(owningPackageName, packageDexUse);
                     continue;
                 }
 
-                cleanupPrimaryDexUsesLocked(packageDexUse.mPrimaryDexUseByDexFile, packageNames,
-                        dexFileVisibilityByName, owningPackageName);
+                changed |= cleanupPrimaryDexUses(packageDexUse.getPrimaryDexUseByDexFile(),
+                        packageNames, dexFileVisibilityByName, owningPackageName);
 
-                cleanupSecondaryDexUsesLocked(packageDexUse.mSecondaryDexUseByDexFile, packageNames,
-                        dexFileVisibilityByName, owningPackageName);
+                changed |= cleanupSecondaryDexUses(packageDexUse.getSecondaryDexUseByDexFile(),
+                        packageNames, dexFileVisibilityByName, owningPackageName);
 
-                if (packageDexUse.mPrimaryDexUseByDexFile.isEmpty()
-                        && packageDexUse.mSecondaryDexUseByDexFile.isEmpty()) {
-                    it.remove();
-                    mRevision++;
+                if (packageDexUse.getPrimaryDexUseByDexFile().isEmpty()
+                        && packageDexUse.getSecondaryDexUseByDexFile().isEmpty()) {
+                    packageDexUse.mRemoved = true;
+                    removedPackageDexUseByOwningPackageName.put(owningPackageName, packageDexUse);
                 }
             }
         }
 
+        synchronized (mLock) {
+            for (var entry : removedPackageDexUseByOwningPackageName.entrySet()) {
+                mDexUse.remove(entry.getKey(), entry.getValue());
+            }
+            if (changed || !removedPackageDexUseByOwningPackageName.isEmpty()) {
+                mRevision++;
+                // Removals cannot be expressed by the journal.
+                mNeedsCompaction = true;
+            }
+        }
+
         maybeSaveAsync();
     }
 
-    @GuardedBy("mLock")
-    private void cleanupPrimaryDexUsesLocked(@NonNull Map<String, PrimaryDexUse> primaryDexUses,
+    /** Returns true if anything is removed. */
+    private boolean cleanupPrimaryDexUses(@NonNull Map<String, PrimaryDexUse> primaryDexUses,
             @NonNull Set<String> packageNames,
             @NonNull Map<String, Integer> dexFileVisibilityByName,
             @NonNull String owningPackageName) {
+        boolean changed = false;
         for (var it = primaryDexUses.entrySet().iterator(); it.hasNext();) {
             Map.Entry<String, PrimaryDexUse> entry = it.next();
             String dexFile = entry.getKey();
@@ -887,26 +1210,28 @@ public class DexUseManagerLocal {
             if (visibility == FileVisibility.NOT_FOUND) {
                 // Remove information about the non-existing dex files.
                 it.remove();
-                mRevision++;
+                changed = true;
                 continue;
             }
 
-            cleanupRecordsLocked(
+            changed |= cleanupRecords(
                     primaryDexUse.mRecordByLoader, packageNames, visibility, owningPackageName);
 
             if (primaryDexUse.mRecordByLoader.isEmpty()) {
                 it.remove();
-                mRevision++;
+                changed = true;
             }
         }
+        return changed;
     }
 
-    @GuardedBy("mLock")
-    private void cleanupSecondaryDexUsesLocked(
+    /** Returns true if anything is removed. */
+    private boolean cleanupSecondaryDexUses(
             @NonNull Map<String, SecondaryDexUse> secondaryDexUses,
             @NonNull Set<String> packageNames,
             @NonNull Map<String, Integer> dexFileVisibilityByName,
             @NonNull String owningPackageName) {
+        boolean changed = false;
         for (var it = secondaryDexUses.entrySet().iterator(); it.hasNext();) {
             Map.Entry<String, SecondaryDexUse> entry = it.next();
             String dexFile = entry.getKey();
@@ -923,24 +1248,26 @@ public class DexUseManagerLocal {
             // Remove information about non-existing dex files.
             if (visibility == FileVisibility.NOT_FOUND) {
                 it.remove();
-                mRevision++;
+                changed = true;
                 continue;
             }
 
-            cleanupRecordsLocked(
+            changed |= cleanupRecords(
                     secondaryDexUse.mRecordByLoader, packageNames, visibility, owningPackageName);
 
             if (secondaryDexUse.mRecordByLoader.isEmpty()) {
                 it.remove();
-                mRevision++;
+                changed = true;
             }
         }
+        return changed;
     }
 
-    @GuardedBy("mLock")
-    private void cleanupRecordsLocked(@NonNull Map<DexLoader, ?> records,
+    /** Returns true if anything is removed. */
+    private boolean cleanupRecords(@NonNull Map<DexLoader, ?> records,
             @NonNull Set<String> packageNames, @FileVisibility int visibility,
             @NonNull String owningPackageName) {
+        boolean changed = false;
         for (var it = records.entrySet().iterator(); it.hasNext();) {
             Map.Entry<DexLoader, ?> entry = it.next();
             DexLoader loader = entry.getKey();
@@ -948,7 +1275,7 @@ public class DexUseManagerLocal {
             if (!packageNames.contains(loader.loadingPackageName())) {
                 // Remove information about the non-existing loading package.
                 it.remove();
-                mRevision++;
+                changed = true;
                 continue;
             }
 
@@ -957,10 +1284,11 @@ public class DexUseManagerLocal {
                 // The visibility must have changed since the last load. The loader cannot load this
                 // dex file anymore.
                 it.remove();
-                mRevision++;
+                changed = true;
                 continue;
             }
         }
+        return changed;
     }
 
     /**
@@ -1044,80 +1372,193 @@ public class DexUseManagerLocal {
         public abstract @FileVisibility int fileVisibility();
     }
 
+    /**
+     * The map of packages is guarded by {@code mLock}, while the data of each package is guarded by
+     * the {@link PackageDexUse} itself. {@code mLock} must not be acquired while holding the
+     * latter.
+     */
     private static class DexUse {
-        @NonNull Map<String, PackageDexUse> mPackageDexUseByOwningPackageName = new HashMap<>();
+        @NonNull private final Function<String, String> mValidateDexPath;
+        @NonNull private final BiFunction<String, String, String> mValidateClassLoaderContext;
 
-        void toProto(@NonNull DexUseProto.Builder builder) {
-            for (var entry : mPackageDexUseByOwningPackageName.entrySet()) {
+        @NonNull
+        private final Map<String, PackageDexUse> mPackageDexUseByOwningPackageName =
+                new HashMap<>();
+
+        DexUse(@NonNull Function<String, String> validateDexPath,
+                @NonNull BiFunction<String, String, String> validateClassLoaderContext) {
+            mValidateDexPath = validateDexPath;
+            mValidateClassLoaderContext = validateClassLoaderContext;
+        }
+
+        void addUnparsed(@NonNull List<PackageDexUseProto> protos) {
+            for (PackageDexUseProto packageProto : protos) {
+                PackageDexUse packageDexUse =
+                        getOrCreate(Utils.assertNonEmpty(packageProto.getOwningPackageName()));
+                synchronized (packageDexUse) {
+                    packageDexUse.addUnparsed(packageProto);
+                }
+            }
+        }
+
+        @Nullable
+        PackageDexUse get(@NonNull String owningPackageName) {
+            PackageDexUse packageDexUse = mPackageDexUseByOwningPackageName.get(owningPackageName);
+            return packageDexUse != null && !packageDexUse.mRemoved ? packageDexUse : null;
+        }
+
+        @NonNull
+        PackageDexUse getOrCreate(@NonNull String owningPackageName) {
+            PackageDexUse packageDexUse = get(owningPackageName);
+            if (packageDexUse == null) {
+                packageDexUse = new PackageDexUse(mValidateDexPath, mValidateClassLoaderContext);
+                mPackageDexUseByOwningPackageName.put(owningPackageName, packageDexUse);
+            }
+            return packageDexUse;
+        }
+
+        /**
+         * Returns a copy of the map of packages. The returned packages may be removed by the time
+         * they are accessed, which the caller must check.
+         */
+        @NonNull
+        Map<String, PackageDexUse> copyAll() {
+            return new HashMap<>(mPackageDexUseByOwningPackageName);
+        }
+
+        /** Removes the given package, unless it has been replaced by a new one. */
+        void remove(@NonNull String owningPackageName, @NonNull PackageDexUse packageDexUse) {
+            mPackageDexUseByOwningPackageName.remove(owningPackageName, packageDexUse);
+        }
+
+        /** Serializes the given packages, holding the lock of one package at a time. */
+        static void toProto(@NonNull Map<String, PackageDexUse> packageDexUseByOwningPackageName,
+                @NonNull DexUseProto.Builder builder) {
+            for (var entry : packageDexUseByOwningPackageName.entrySet()) {
                 var packageBuilder =
                         PackageDexUseProto.newBuilder().setOwningPackageName(entry.getKey());
-                entry.getValue().toProto(packageBuilder);
+                PackageDexUse packageDexUse = entry.getValue();
+                synchronized (packageDexUse) {
+                    if (packageDexUse.mRemoved) {
+                        continue;
+                    }
+                    packageDexUse.toProto(packageBuilder);
+                }
                 builder.addPackageDexUse(packageBuilder);
             }
         }
+    }
 
-        void fromProto(@NonNull DexUseProto proto,
-                @NonNull Function<String, String> validateDexPath,
+    /**
+     * The data of a package, including everything nested in it, is guarded by the instance itself,
+     * so that accesses to different packages don't contend with each other.
+     */
+    private static class PackageDexUse {
+        @NonNull private final Function<String, String> mValidateDexPath;
+        @NonNull private final BiFunction<String, String, String> mValidateClassLoaderContext;
+
+        /**
+         * The persisted data that has not been merged into the maps below yet, in the order to
+         * apply. See {@link DexUseManagerLocal#load}.
+         */
+        @GuardedBy("this")
+        @NonNull
+        private final List<PackageDexUseProto> mUnparsedProtos = new ArrayList<>();
+
+        @GuardedBy("this")
+        @NonNull
+        private final Map<String, PrimaryDexUse> mPrimaryDexUseByDexFile = new HashMap<>();
+
+        @GuardedBy("this")
+        @NonNull
+        private final Map<String, SecondaryDexUse> mSecondaryDexUseByDexFile = new HashMap<>();
+
+        /**
+         * Whether the instance has been removed from {@link DexUse} and must not be updated. Only
+         * set while holding the lock, but volatile so that {@link DexUse#getOrCreate} can replace a
+         * removed instance without waiting for the lock.
+         */
+        volatile boolean mRemoved = false;
+
+        PackageDexUse(@NonNull Function<String, String> validateDexPath,
                 @NonNull BiFunction<String, String, String> validateClassLoaderContext) {
-            for (PackageDexUseProto packageProto : proto.getPackageDexUseList()) {
-                var packageDexUse = new PackageDexUse();
-                packageDexUse.fromProto(packageProto, validateDexPath, validateClassLoaderContext);
-                mPackageDexUseByOwningPackageName.put(
-                        Utils.assertNonEmpty(packageProto.getOwningPackageName()), packageDexUse);
-            }
+            mValidateDexPath = validateDexPath;
+            mValidateClassLoaderContext = validateClassLoaderContext;
+        }
+
+        @GuardedBy("this")
+        void addUnparsed(@NonNull PackageDexUseProto proto) {
+            mUnparsedProtos.add(proto);
         }
-    }
 
-    private static class PackageDexUse {
         /**
          * The keys are absolute paths to primary dex files of the owning package (the base APK and
          * split APKs).
          */
-        @NonNull Map<String, PrimaryDexUse> mPrimaryDexUseByDexFile = new HashMap<>();
+        @GuardedBy("this")
+        @NonNull
+        Map<String, PrimaryDexUse> getPrimaryDexUseByDexFile() {
+            ensureParsed();
+            return mPrimaryDexUseByDexFile;
+        }
 
         /**
          * The keys are absolute paths to secondary dex files of the owning package (the APKs and
          * JARs in CE and DE directories).
          */
-        @NonNull Map<String, SecondaryDexUse> mSecondaryDexUseByDexFile = new HashMap<>();
+        @GuardedBy("this")
+        @NonNull
+        Map<String, SecondaryDexUse> getSecondaryDexUseByDexFile() {
+            ensureParsed();
+            return mSecondaryDexUseByDexFile;
+        }
 
+        @GuardedBy("this")
         void toProto(@NonNull PackageDexUseProto.Builder builder) {
-            for (var entry : mPrimaryDexUseByDexFile.entrySet()) {
+            for (var entry : getPrimaryDexUseByDexFile().entrySet()) {
                 var primaryBuilder = PrimaryDexUseProto.newBuilder().setDexFile(entry.getKey());
                 entry.getValue().toProto(primaryBuilder);
                 builder.addPrimaryDexUse(primaryBuilder);
             }
-            for (var entry : mSecondaryDexUseByDexFile.entrySet()) {
+            for (var entry : getSecondaryDexUseByDexFile().entrySet()) {
                 var secondaryBuilder = SecondaryDexUseProto.newBuilder().setDexFile(entry.getKey());
                 entry.getValue().toProto(secondaryBuilder);
                 builder.addSecondaryDexUse(secondaryBuilder);
             }
         }
 
-        void fromProto(@NonNull PackageDexUseProto proto,
-                @NonNull Function<String, String> validateDexPath,
-                @NonNull BiFunction<String, String, String> validateClassLoaderContext) {
+        @GuardedBy("this")
+        private void ensureParsed() {
+            for (PackageDexUseProto proto : mUnparsedProtos) {
+                fromProto(proto);
+            }
+            mUnparsedProtos.clear();
+        }
+
+        @GuardedBy("this")
+        private void fromProto(@NonNull PackageDexUseProto proto) {
+            // Merge into the existing data, as the journal may contain updates to the same dex
+            // files.
             for (PrimaryDexUseProto primaryProto : proto.getPrimaryDexUseList()) {
-                var primaryDexUse = new PrimaryDexUse();
-                primaryDexUse.fromProto(primaryProto);
-                mPrimaryDexUseByDexFile.put(
-                        Utils.assertNonEmpty(primaryProto.getDexFile()), primaryDexUse);
+                mPrimaryDexUseByDexFile
+                        .computeIfAbsent(Utils.assertNonEmpty(primaryProto.getDexFile()),
+                                k -> new PrimaryDexUse())
+                        .fromProto(primaryProto);
             }
             for (SecondaryDexUseProto secondaryProto : proto.getSecondaryDexUseList()) {
                 String dexFile = Utils.assertNonEmpty(secondaryProto.getDexFile());
 
                 // Skip invalid dex paths persisted by previous versions.
-                String errorMsg = validateDexPath.apply(dexFile);
+                String errorMsg = mValidateDexPath.apply(dexFile);
                 if (errorMsg != null) {
                     AsLog.e(errorMsg);
                     continue;
                 }
 
-                var secondaryDexUse = new SecondaryDexUse();
-                secondaryDexUse.fromProto(secondaryProto,
-                        classLoaderContext
-                        -> validateClassLoaderContext.apply(dexFile, classLoaderContext));
-                mSecondaryDexUseByDexFile.put(dexFile, secondaryDexUse);
+                mSecondaryDexUseByDexFile.computeIfAbsent(dexFile, k -> new SecondaryDexUse())
+                        .fromProto(secondaryProto,
+                                classLoaderContext
+                                -> mValidateClassLoaderContext.apply(dexFile, classLoaderContext));
             }
         }
     }
@@ -1152,6 +1593,16 @@ public class DexUseManagerLocal {
         @Nullable UserHandle mUserHandle = null;
         @NonNull Map<DexLoader, SecondaryDexUseRecord> mRecordByLoader = new HashMap<>();
 
+        @NonNull
+        SecondaryDexUse copy() {
+            var copy = new SecondaryDexUse();
+            copy.mUserHandle = mUserHandle;
+            for (var entry : mRecordByLoader.entrySet()) {
+                copy.mRecordByLoader.put(entry.getKey(), entry.getValue().copy());
+            }
+            return copy;
+        }
+
         void toProto(@NonNull SecondaryDexUseProto.Builder builder) {
             builder.setUserId(Int32Value.newBuilder().setValue(mUserHandle.getIdentifier()));
             for (var entry : mRecordByLoader.entrySet()) {
@@ -1227,6 +1678,25 @@ public class DexUseManagerLocal {
         }
     }
 
+    /** Identifies a record that needs to be written to the journal. */
+    @Immutable
+    @AutoValue
+    abstract static class DirtyRecord {
+        static DirtyRecord create(@NonNull String owningPackageName, @NonNull String dexPath,
+                boolean isSecondary, @NonNull DexLoader loader) {
+            return new AutoValue_DexUseManagerLocal_DirtyRecord(
+                    owningPackageName, dexPath, isSecondary, loader);
+        }
+
+        abstract @NonNull String owningPackageName();
+
+        abstract @NonNull String dexPath();
+
+        abstract boolean isSecondary();
+
+        abstract @NonNull DexLoader loader();
+    }
+
     private static class PrimaryDexUseRecord {
         @Nullable long mLastUsedAtMs = 0;
 
@@ -1248,6 +1718,15 @@ public class DexUseManagerLocal {
         @Nullable String mAbiName = null;
         @Nullable long mLastUsedAtMs = 0;
 
+        @NonNull
+        SecondaryDexUseRecord copy() {
+            var copy = new SecondaryDexUseRecord();
+            copy.mClassLoaderContext = mClassLoaderContext;
+            copy.mAbiName = mAbiName;
+            copy.mLastUsedAtMs = mLastUsedAtMs;
+            return copy;
+        }
+
         void toProto(@NonNull SecondaryDexUseRecordProto.Builder builder) {
             builder.setClassLoaderContext(mClassLoaderContext)
                     .setAbiName(mAbiName)
@@ -1264,7 +1743,9 @@ public class DexUseManagerLocal {
 
     // TODO(b/278697552): Consider removing the cache or moving it to `Environment`.
     static class SecondaryDexLocationManager {
-        private @NonNull Map<CacheKey, CacheValue> mCache = new HashMap<>();
+        // Concurrent because it's queried for every package on every dex load that is not found
+        // quickly, and therefore must not be serialized by a lock.
+        private @NonNull Map<CacheKey, CacheValue> mCache = new ConcurrentHashMap<>();
 
         public @NonNull List<String> getLocations(
                 @NonNull PackageState pkgState, @NonNull UserHandle userHandle) {
@@ -1359,6 +1840,11 @@ public class DexUseManagerLocal {
             return FILENAME;
         }
 
+        @NonNull
+        public String getJournalFilename() {
+            return JOURNAL_FILENAME;
+        }
+
         @NonNull
         public ScheduledExecutorService createScheduledExecutor() {
             return Executors.newScheduledThreadPool(1 /* corePoolSize */);
@@ -17,6 +17,7 @@
 package com.android.server.art;
 
 import static com.android.server.art.ArtManagerLocal.DexoptDoneCallback;
+import static com.android.server.art.PrimaryDexUtils.PrimaryDexInfo;
 import static com.android.server.art.model.Config.Callback;
 import static com.android.server.art.model.DexoptResult.DexContainerFileDexoptResult;
 import static com.android.server.art.model.DexoptResult.PackageDexoptResult;
@@ -43,7 +44,10 @@ import com.android.server.pm.pkg.AndroidPackage;
 import com.android.server.pm.pkg.PackageState;
 import com.android.server.pm.pkg.SharedLibrary;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -57,6 +61,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * A helper class to handle dexopt.
@@ -121,7 +126,9 @@ public class DexoptHelper {
         long identityToken = Binder.clearCallingIdentity();
 
         try {
-            List<CompletableFuture<PackageDexoptResult>> futures = new ArrayList<>();
+            // Filled in the dispatch order, but kept in the order of `pkgStates`.
+            List<CompletableFuture<PackageDexoptResult>> futures =
+                    new ArrayList<>(Collections.nCopies(pkgStates.size(), null));
 
             // Child threads will set their own listeners on the cancellation signal, so we must
             // create a separate cancellation signal for each of them so that the listeners don't
@@ -136,10 +143,10 @@ public class DexoptHelper {
                 }
             });
 
-            for (int i = 0; i < pkgStates.size(); i++) {
+            for (int i : getDispatchOrder(pkgStates, params)) {
                 PackageState pkgState = pkgStates.get(i);
                 CancellationSignal childCancellationSignal = childCancellationSignals.get(i);
-                futures.add(CompletableFuture.supplyAsync(() -> {
+                futures.set(i, CompletableFuture.supplyAsync(() -> {
                     AndroidPackage pkg = Utils.getPackageOrThrow(pkgState);
                     if (canDexoptPackage(pkgState)
                             && (params.getFlags() & ArtFlags.FLAG_FOR_SINGLE_SPLIT) != 0) {
@@ -256,6 +263,51 @@ public class DexoptHelper {
         return createResult.apply(null /* packageLevelStatus */);
     }
 
+    /**
+     * Returns the indices of the packages in the order in which they should be submitted to the
+     * executor.
+     *
+     * Boot-time batch dexopt has to finish as a whole, so the packages are dispatched in
+     * descending order of their estimated cost. This way, a large package at the end of the list
+     * doesn't keep one thread busy while the other threads are idle. For other reasons, the given
+     * order is kept because it reflects priority. For example, background dexopt processes the
+     * most recently used packages first, so that they are done even if the job is cancelled.
+     */
+    @NonNull
+    private List<Integer> getDispatchOrder(
+            @NonNull List<PackageState> pkgStates, @NonNull DexoptParams params) {
+        List<Integer> order =
+                IntStream.range(0, pkgStates.size()).boxed().collect(Collectors.toList());
+        if (!ReasonMapping.BOOT_REASONS.contains(params.getReason())) {
+            return order;
+        }
+
+        long[] costs = new long[pkgStates.size()];
+        for (int i = 0; i < pkgStates.size(); i++) {
+            costs[i] = estimateDexoptCost(pkgStates.get(i), params);
+        }
+        // `List.sort` is stable, so packages of the same cost are kept in the given order.
+        order.sort(Comparator.comparingLong(i -> -costs[i]));
+        return order;
+    }
+
+    /**
+     * Returns the estimated cost of dexopting the package. The total size of the primary dex files
+     * is used as the estimate, as the time that dex2oat takes mostly grows with the amount of code.
+     */
+    private long estimateDexoptCost(@NonNull PackageState pkgState, @NonNull DexoptParams params) {
+        AndroidPackage pkg = pkgState.getAndroidPackage();
+        if (pkg == null || !canDexoptPackage(pkgState)
+                || (params.getFlags() & ArtFlags.FLAG_FOR_PRIMARY_DEX) == 0) {
+            return 0;
+        }
+        long cost = 0;
+        for (PrimaryDexInfo dexInfo : PrimaryDexUtils.getDexInfo(pkg)) {
+            cost += mInjector.getFileSize(dexInfo.dexPath());
+        }
+        return cost;
+    }
+
     private boolean canDexoptPackage(@NonNull PackageState pkgState) {
         // getAppHibernationManager may return null here during boot time compilation, which will
         // make this function return true incorrectly for packages that shouldn't be dexopted due to
@@ -361,5 +413,10 @@ public class DexoptHelper {
         public Config getConfig() {
             return mConfig;
         }
+
+        /** Returns the size of the file in bytes, or 0 if the file doesn't exist. */
+        public long getFileSize(@NonNull String path) {
+            return new File(path).length();
+        }
     }
 }
@@ -40,6 +40,7 @@ import android.os.storage.StorageManager;
 
 import androidx.annotation.RequiresApi;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.LocalManagerRegistry;
 import com.android.server.art.Dex2OatStatsReporter.Dex2OatResult;
@@ -61,7 +62,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -78,6 +85,17 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
     @NonNull protected final DexoptParams mParams;
     @NonNull protected final CancellationSignal mCancellationSignal;
 
+    /** The artd cancellation signals of the targets being dexopted. */
+    @GuardedBy("mArtdCancellationSignals")
+    @NonNull
+    private final List<IArtdCancellationSignal> mArtdCancellationSignals = new ArrayList<>();
+
+    /**
+     * Whether the targets being dexopted have been cancelled, either through {@link
+     * #mCancellationSignal} or because {@link #dexopt()} is exiting.
+     */
+    @GuardedBy("mArtdCancellationSignals") private boolean mArtdCancelled = false;
+
     protected Dexopter(@NonNull Injector injector, @NonNull PackageState pkgState,
             @NonNull AndroidPackage pkg, @NonNull DexoptParams params,
             @NonNull CancellationSignal cancellationSignal) {
@@ -100,271 +118,450 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
             return List.of();
         }
 
-        List<DexContainerFileDexoptResult> results = new ArrayList<>();
-
         boolean isInDalvikCache = isInDalvikCache();
-
-        for (DexInfoType dexInfo : getDexInfoList()) {
-            ProfilePath profile = null;
-            boolean succeeded = true;
-            List<String> externalProfileErrors = List.of();
-            try {
-                if (!isDexoptable(dexInfo)) {
-                    continue;
+        int concurrency = Math.min(ReasonMapping.getFileConcurrencyForReason(mParams.getReason()),
+                mInjector.getAvailableProcessors());
+
+        List<DexFileState> dexFiles = new ArrayList<>();
+        ExecutorService executor = null;
+        List<Future<DexContainerFileDexoptResult>> allFutures = new ArrayList<>();
+        synchronized (mArtdCancellationSignals) {
+            mArtdCancelled = false;
+        }
+        mCancellationSignal.setOnCancelListener(this::cancelArtdCancellationSignals);
+        try {
+            if (concurrency <= 1) {
+                // Dexopt the dex files one by one, and stop at the first cancelled target.
+                for (DexInfoType dexInfo : getDexInfoList()) {
+                    DexFileState dexFile = prepareDexFile(dexInfo, isInDalvikCache);
+                    if (dexFile == null) {
+                        continue;
+                    }
+                    dexFiles.add(dexFile);
+                    for (Abi abi : dexFile.mAbis) {
+                        DexContainerFileDexoptResult result = dexoptTarget(dexFile, abi);
+                        dexFile.mResults.add(result);
+                        if (result.getStatus() == DexoptResult.DEXOPT_CANCELLED) {
+                            return collectResults(dexFiles);
+                        }
+                    }
+                    finishDexFile(dexFile);
                 }
+                return collectResults(dexFiles);
+            }
 
-                String compilerFilter = adjustCompilerFilter(mParams.getCompilerFilter(), dexInfo);
-                if (compilerFilter.equals(DexoptParams.COMPILER_FILTER_NOOP)) {
-                    continue;
+            // Prepare all the dex files first, so that the targets of all of them, which are
+            // independent of each other, can be dexopted concurrently. Unlike the serial case, this
+            // means that the profiles of all the dex files are prepared even if dexopt is cancelled
+            // on the first target. Stop preparing once cancelled, but keep the first dex file so
+            // that its first target reports the cancellation as in the serial case.
+            for (DexInfoType dexInfo : getDexInfoList()) {
+                if (!dexFiles.isEmpty() && mCancellationSignal.isCanceled()) {
+                    break;
                 }
-
-                if (mInjector.isPreReboot() && !isDexFileFound(dexInfo)) {
-                    // In the pre-reboot case, it's possible that a dex file doesn't exist in the
-                    // new system image. Although code below can gracefully handle failures, those
-                    // failures can be red herrings in metrics and bug reports, so we skip
-                    // non-existing dex files to avoid them.
-                    continue;
+                DexFileState dexFile = prepareDexFile(dexInfo, isInDalvikCache);
+                if (dexFile != null) {
+                    dexFiles.add(dexFile);
                 }
+            }
 
-                DexMetadataInfo dmInfo =
-                        mInjector.getDexMetadataHelper().getDexMetadataInfo(buildDmPath(dexInfo));
-
-                boolean needsToBeShared = needsToBeShared(dexInfo);
-                boolean isOtherReadable = true;
-                // If true, implies that the profile has changed since the last compilation.
-                boolean profileMerged = false;
-                if (DexFile.isProfileGuidedCompilerFilter(compilerFilter)) {
-                    if (!dmInfo.config().getEnableEmbeddedProfile()) {
-                        String dmPath = DexMetadataHelper.getDmPath(
-                                Objects.requireNonNull(dmInfo.dmPath()));
-                        AsLog.i("Embedded profile disabled by config in the dm file " + dmPath);
-                    }
-
-                    if (needsToBeShared) {
-                        InitProfileResult result = initReferenceProfile(
-                                dexInfo, dmInfo.config().getEnableEmbeddedProfile());
-                        profile = result.profile();
-                        isOtherReadable = result.isOtherReadable();
-                        externalProfileErrors = result.externalProfileErrors();
-                    } else {
-                        InitProfileResult result = getOrInitReferenceProfile(
-                                dexInfo, dmInfo.config().getEnableEmbeddedProfile());
-                        profile = result.profile();
-                        isOtherReadable = result.isOtherReadable();
-                        externalProfileErrors = result.externalProfileErrors();
-                        ProfilePath mergedProfile = mergeProfiles(dexInfo, profile);
-                        if (mergedProfile != null) {
-                            if (profile != null && profile.getTag() == ProfilePath.tmpProfilePath) {
-                                mInjector.getArtd().deleteProfile(profile);
-                            }
-                            profile = mergedProfile;
-                            isOtherReadable = false;
-                            profileMerged = true;
+            int numTargets = dexFiles.stream().mapToInt(dexFile -> dexFile.mAbis.size()).sum();
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, numTargets)));
+            var cancelled = new AtomicBoolean(false);
+            List<List<Future<DexContainerFileDexoptResult>>> futures = new ArrayList<>();
+            for (DexFileState dexFile : dexFiles) {
+                List<Future<DexContainerFileDexoptResult>> dexFileFutures = new ArrayList<>();
+                for (Abi abi : dexFile.mAbis) {
+                    boolean isFirstTarget = allFutures.isEmpty();
+                    Future<DexContainerFileDexoptResult> future = executor.submit(() -> {
+                        // Like in the serial case, don't start new targets once a target is
+                        // cancelled, but always start the first one, so that a cancellation
+                        // before dexopt is reported.
+                        if (!isFirstTarget
+                                && (cancelled.get() || mCancellationSignal.isCanceled())) {
+                            return null;
                         }
-                    }
-                    if (profile == null) {
-                        // A profile guided dexopt with no profile is essentially 'verify',
-                        // and dex2oat already makes this transformation. However, we need to
-                        // explicitly make this transformation here to guide the later decisions
-                        // such as whether the artifacts can be public and whether dexopt is needed.
-                        compilerFilter = printAdjustCompilerFilterReason(compilerFilter,
-                                needsToBeShared ? ReasonMapping.getCompilerFilterForShared()
-                                                : "verify",
-                                "there is no valid profile"
-                                        + (needsToBeShared ? " and the package needs to be shared"
-                                                           : ""));
+                        DexContainerFileDexoptResult result = dexoptTarget(dexFile, abi);
+                        if (result.getStatus() == DexoptResult.DEXOPT_CANCELLED) {
+                            cancelled.set(true);
+                        }
+                        return result;
+                    });
+                    dexFileFutures.add(future);
+                    allFutures.add(future);
+                }
+                futures.add(dexFileFutures);
+            }
+
+            for (int i = 0; i < dexFiles.size(); i++) {
+                DexFileState dexFile = dexFiles.get(i);
+                for (Future<DexContainerFileDexoptResult> future : futures.get(i)) {
+                    DexContainerFileDexoptResult result = getTargetResult(future);
+                    if (result != null) {
+                        dexFile.mResults.add(result);
                     }
                 }
-                boolean isProfileGuidedCompilerFilter =
-                        DexFile.isProfileGuidedCompilerFilter(compilerFilter);
-                Utils.check(isProfileGuidedCompilerFilter == (profile != null));
-
-                boolean canBePublic = (!isProfileGuidedCompilerFilter || isOtherReadable)
-                        && isDexFilePublic(dexInfo);
-                Utils.check(Utils.implies(needsToBeShared, canBePublic));
-                PermissionSettings permissionSettings = getPermissionSettings(dexInfo, canBePublic);
-
-                DexoptOptions dexoptOptions =
-                        getDexoptOptions(dexInfo, isProfileGuidedCompilerFilter);
-
-                for (Abi abi : getAllAbis(dexInfo)) {
-                    @DexoptResult.DexoptResultStatus int status = DexoptResult.DEXOPT_SKIPPED;
-                    long wallTimeMs = 0;
-                    long cpuTimeMs = 0;
-                    long sizeBytes = 0;
-                    long sizeBeforeBytes = 0;
-                    Dex2OatResult dex2OatResult = Dex2OatResult.notRun();
-                    @DexoptResult.DexoptResultExtendedStatusFlags int extendedStatusFlags = 0;
-                    try {
-                        var target = DexoptTarget.<DexInfoType>builder()
-                                             .setDexInfo(dexInfo)
-                                             .setIsa(abi.isa())
-                                             .setIsInDalvikCache(isInDalvikCache)
-                                             .setCompilerFilter(compilerFilter)
-                                             .setDmPath(dmInfo.dmPath())
-                                             .build();
-                        var options = GetDexoptNeededOptions.builder()
-                                              .setProfileMerged(profileMerged)
-                                              .setFlags(mParams.getFlags())
-                                              .setNeedsToBePublic(needsToBeShared)
-                                              .build();
-
-                        if (mInjector.isPreReboot()) {
-                            ArtifactsPath existingArtifacts =
-                                    AidlUtils.buildArtifactsPathAsInputPreReboot(
-                                            target.dexInfo().dexPath(), target.isa(),
-                                            target.isInDalvikCache());
-                            if (mInjector.getArtd().getArtifactsVisibility(existingArtifacts)
-                                    != FileVisibility.NOT_FOUND) {
-                                // Because `getDexoptNeeded` doesn't check Pre-reboot artifacts, we
-                                // do a simple check here to handle job resuming. If the Pre-reboot
-                                // artifacts exist, we assume they are up-to-date because
-                                // `PreRebootDexoptJob` would otherwise clean them up, so we skip
-                                // this dex file. The profile and the dex file may have been changed
-                                // since the last cancelled job run, but we don't handle such cases
-                                // because we are supposed to dexopt every dex file only once for
-                                // each ISA.
-                                extendedStatusFlags |=
-                                        DexoptResult.EXTENDED_SKIPPED_PRE_REBOOT_ALREADY_EXIST;
-                                continue;
-                            }
-                        }
+            }
+            for (DexFileState dexFile : dexFiles) {
+                if (dexFile.mResults.size() == dexFile.mAbis.size()) {
+                    finishDexFile(dexFile);
+                }
+            }
+            return collectResults(dexFiles);
+        } finally {
+            if (executor != null) {
+                // If we are exiting early because of an exception, some targets may still be queued
+                // or running. Stop them and wait for them, before their profiles are deleted below.
+                for (Future<DexContainerFileDexoptResult> future : allFutures) {
+                    future.cancel(false /* mayInterruptIfRunning */);
+                }
+                executor.shutdown();
+                cancelArtdCancellationSignals();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    AsLog.wtf("Interrupted", e);
+                }
+            }
+            // Make sure artd does not leak even if the caller holds `mCancellationSignal` forever.
+            mCancellationSignal.setOnCancelListener(null);
+            for (DexFileState dexFile : dexFiles) {
+                if (dexFile.mProfile != null
+                        && dexFile.mProfile.getTag() == ProfilePath.tmpProfilePath) {
+                    mInjector.getArtd().deleteProfile(dexFile.mProfile);
+                }
+            }
+        }
+    }
 
-                        GetDexoptNeededResult getDexoptNeededResult =
-                                getDexoptNeeded(target, options);
+    /**
+     * Prepares the given dex file for dexopt, including the profile, or returns null if the dex
+     * file should be skipped.
+     */
+    @Nullable
+    private DexFileState prepareDexFile(@NonNull DexInfoType dexInfo, boolean isInDalvikCache)
+            throws RemoteException {
+        if (!isDexoptable(dexInfo)) {
+            return null;
+        }
 
-                        if (!getDexoptNeededResult.hasDexCode) {
-                            extendedStatusFlags |= DexoptResult.EXTENDED_SKIPPED_NO_DEX_CODE;
-                        }
+        String compilerFilter = adjustCompilerFilter(mParams.getCompilerFilter(), dexInfo);
+        if (compilerFilter.equals(DexoptParams.COMPILER_FILTER_NOOP)) {
+            return null;
+        }
 
-                        if (!getDexoptNeededResult.isDexoptNeeded) {
-                            continue;
-                        }
+        if (mInjector.isPreReboot() && !isDexFileFound(dexInfo)) {
+            // In the pre-reboot case, it's possible that a dex file doesn't exist in the new system
+            // image. Although code below can gracefully handle failures, those failures can be red
+            // herrings in metrics and bug reports, so we skip non-existing dex files to avoid them.
+            return null;
+        }
 
-                        try {
-                            // `StorageManager.getAllocatableBytes` returns (free space + space used
-                            // by clearable cache - low storage threshold). Since we only compare
-                            // the result with 0, the clearable cache doesn't make a difference.
-                            // When the free space is below the threshold, there should be no
-                            // clearable cache left because system cleans up cache every minute.
-                            if ((mParams.getFlags() & ArtFlags.FLAG_SKIP_IF_STORAGE_LOW) != 0
-                                    && mInjector.getStorageManager().getAllocatableBytes(
-                                               mPkg.getStorageUuid())
-                                            <= 0) {
-                                extendedStatusFlags |= DexoptResult.EXTENDED_SKIPPED_STORAGE_LOW;
-                                continue;
-                            }
-                        } catch (IOException e) {
-                            AsLog.e("Failed to check storage. Assuming storage not low", e);
-                        }
+        DexMetadataInfo dmInfo =
+                mInjector.getDexMetadataHelper().getDexMetadataInfo(buildDmPath(dexInfo));
 
-                        IArtdCancellationSignal artdCancellationSignal =
-                                mInjector.getArtd().createCancellationSignal();
-                        mCancellationSignal.setOnCancelListener(() -> {
-                            try {
-                                artdCancellationSignal.cancel();
-                            } catch (RemoteException e) {
-                                AsLog.e("An error occurred when sending a cancellation signal", e);
-                            }
-                        });
-
-                        ArtdDexoptResult dexoptResult = dexoptFile(target, profile,
-                                getDexoptNeededResult, permissionSettings,
-                                mParams.getPriorityClass(), dexoptOptions, artdCancellationSignal);
-                        status = dexoptResult.cancelled ? DexoptResult.DEXOPT_CANCELLED
-                                                        : DexoptResult.DEXOPT_PERFORMED;
-                        wallTimeMs = dexoptResult.wallTimeMs;
-                        cpuTimeMs = dexoptResult.cpuTimeMs;
-                        sizeBytes = dexoptResult.sizeBytes;
-                        sizeBeforeBytes = dexoptResult.sizeBeforeBytes;
-                        dex2OatResult = dexoptResult.cancelled ? Dex2OatResult.cancelled()
-                                                               : Dex2OatResult.exited(0);
-
-                        if (status == DexoptResult.DEXOPT_CANCELLED) {
-                            return results;
-                        }
-                    } catch (ServiceSpecificException e) {
-                        // Log the error and continue.
-                        AsLog.e(String.format("Failed to dexopt [packageName = %s, dexPath = %s, "
-                                                + "isa = %s, classLoaderContext = %s]",
-                                        mPkgState.getPackageName(), dexInfo.dexPath(), abi.isa(),
-                                        dexInfo.classLoaderContext()),
-                                e);
-                        status = DexoptResult.DEXOPT_FAILED;
-
-                        // Parse status, exit code and signal from the dex2oat error message
-                        Pattern pattern = Pattern.compile(
-                                "\\[status=(-?\\d+),exit_code=(-?\\d+),signal=(-?\\d+)]");
-                        Matcher matcher = pattern.matcher(Objects.requireNonNull(e.getMessage()));
-                        if (matcher.matches()) {
-                            dex2OatResult = new Dex2OatResult(Integer.parseInt(matcher.group(1)),
-                                    Integer.parseInt(matcher.group(2)),
-                                    Integer.parseInt(matcher.group(3)));
-                        }
-                    } finally {
-                        if (!externalProfileErrors.isEmpty()) {
-                            extendedStatusFlags |= DexoptResult.EXTENDED_BAD_EXTERNAL_PROFILE;
-                        }
-                        var result = DexContainerFileDexoptResult.create(dexInfo.dexPath(),
-                                abi.isPrimaryAbi(), abi.name(), compilerFilter, status, wallTimeMs,
-                                cpuTimeMs, sizeBytes, sizeBeforeBytes, extendedStatusFlags,
-                                externalProfileErrors);
-                        AsLog.i(String.format("Dexopt result: [packageName = %s] %s",
-                                mPkgState.getPackageName(), result));
-                        results.add(result);
-                        if (status != DexoptResult.DEXOPT_SKIPPED
-                                && status != DexoptResult.DEXOPT_PERFORMED) {
-                            succeeded = false;
-                        }
-                        // Make sure artd does not leak even if the caller holds
-                        // `mCancellationSignal` forever.
-                        mCancellationSignal.setOnCancelListener(null);
-
-                        // Variables used in lambda needs to be effectively final.
-                        Dex2OatResult finalDex2OatResult = dex2OatResult;
-                        mInjector.getReporterExecutor().execute(
-                                ()
-                                        -> Dex2OatStatsReporter.report(mPkgState.getAppId(),
-                                                result.getActualCompilerFilter(),
-                                                mParams.getReason(), dmInfo.type(), dexInfo,
-                                                abi.isa(), finalDex2OatResult,
-                                                result.getSizeBytes(),
-                                                result.getDex2oatWallTimeMillis()));
-                    }
+        ProfilePath profile = null;
+        try {
+            boolean needsToBeShared = needsToBeShared(dexInfo);
+            boolean isOtherReadable = true;
+            List<String> externalProfileErrors = List.of();
+            // If true, implies that the profile has changed since the last compilation.
+            boolean profileMerged = false;
+            if (DexFile.isProfileGuidedCompilerFilter(compilerFilter)) {
+                if (!dmInfo.config().getEnableEmbeddedProfile()) {
+                    String dmPath =
+                            DexMetadataHelper.getDmPath(Objects.requireNonNull(dmInfo.dmPath()));
+                    AsLog.i("Embedded profile disabled by config in the dm file " + dmPath);
                 }
 
-                if (profile != null && succeeded) {
-                    if (profile.getTag() == ProfilePath.tmpProfilePath) {
-                        // Commit the profile only if dexopt succeeds.
-                        if (commitProfileChanges(profile.getTmpProfilePath())) {
-                            profile = null;
+                if (needsToBeShared) {
+                    InitProfileResult result = initReferenceProfile(
+                            dexInfo, dmInfo.config().getEnableEmbeddedProfile());
+                    profile = result.profile();
+                    isOtherReadable = result.isOtherReadable();
+                    externalProfileErrors = result.externalProfileErrors();
+                } else {
+                    InitProfileResult result = getOrInitReferenceProfile(
+                            dexInfo, dmInfo.config().getEnableEmbeddedProfile());
+                    profile = result.profile();
+                    isOtherReadable = result.isOtherReadable();
+                    externalProfileErrors = result.externalProfileErrors();
+                    ProfilePath mergedProfile = mergeProfiles(dexInfo, profile);
+                    if (mergedProfile != null) {
+                        if (profile != null && profile.getTag() == ProfilePath.tmpProfilePath) {
+                            mInjector.getArtd().deleteProfile(profile);
                         }
-                    }
-                    // We keep the current profiles in the Pre-reboot Dexopt case, to leave it to
-                    // background dexopt.
-                    if (profileMerged && !mInjector.isPreReboot()) {
-                        // Note that this is just an optimization, to reduce the amount of data that
-                        // the runtime writes on every profile save. The profile merge result on the
-                        // next run won't change regardless of whether the cleanup is done or not
-                        // because profman only looks at the diff.
-                        // A caveat is that it may delete more than what has been merged, if the
-                        // runtime writes additional entries between the merge and the cleanup, but
-                        // this is fine because the runtime writes all JITed classes and methods on
-                        // every save and the additional entries will likely be written back on the
-                        // next save.
-                        cleanupCurProfiles(dexInfo);
+                        profile = mergedProfile;
+                        isOtherReadable = false;
+                        profileMerged = true;
                     }
                 }
-            } finally {
-                if (profile != null && profile.getTag() == ProfilePath.tmpProfilePath) {
-                    mInjector.getArtd().deleteProfile(profile);
+                if (profile == null) {
+                    // A profile guided dexopt with no profile is essentially 'verify', and dex2oat
+                    // already makes this transformation. However, we need to explicitly make this
+                    // transformation here to guide the later decisions such as whether the
+                    // artifacts can be public and whether dexopt is needed.
+                    compilerFilter = printAdjustCompilerFilterReason(compilerFilter,
+                            needsToBeShared ? ReasonMapping.getCompilerFilterForShared() : "verify",
+                            "there is no valid profile"
+                                    + (needsToBeShared ? " and the package needs to be shared"
+                                                       : ""));
                 }
             }
+            boolean isProfileGuidedCompilerFilter =
+                    DexFile.isProfileGuidedCompilerFilter(compilerFilter);
+            Utils.check(isProfileGuidedCompilerFilter == (profile != null));
+
+            boolean canBePublic = (!isProfileGuidedCompilerFilter || isOtherReadable)
+                    && isDexFilePublic(dexInfo);
+            Utils.check(Utils.implies(needsToBeShared, canBePublic));
+
+            var dexFile = new DexFileState(dexInfo, isInDalvikCache, compilerFilter, dmInfo,
+                    needsToBeShared, profileMerged, externalProfileErrors,
+                    getPermissionSettings(dexInfo, canBePublic), getAllAbis(dexInfo));
+            dexFile.mProfile = profile;
+            profile = null;
+            return dexFile;
+        } finally {
+            // Only reached with a non-null profile if the preparation failed.
+            if (profile != null && profile.getTag() == ProfilePath.tmpProfilePath) {
+                mInjector.getArtd().deleteProfile(profile);
+            }
+        }
+    }
+
+    /** Dexopts the given dex file for the given ABI. */
+    @NonNull
+    private DexContainerFileDexoptResult dexoptTarget(@NonNull DexFileState dexFile,
+            @NonNull Abi abi) throws RemoteException {
+        DexInfoType dexInfo = dexFile.mDexInfo;
+        var outcome = new TargetOutcome();
+        DexContainerFileDexoptResult result;
+        try {
+            dexoptTargetImpl(dexFile, abi, outcome);
+        } catch (ServiceSpecificException e) {
+            // Log the error and continue.
+            AsLog.e(String.format("Failed to dexopt [packageName = %s, dexPath = %s, isa = %s, "
+                                    + "classLoaderContext = %s]",
+                            mPkgState.getPackageName(), dexInfo.dexPath(), abi.isa(),
+                            dexInfo.classLoaderContext()),
+                    e);
+            outcome.mStatus = DexoptResult.DEXOPT_FAILED;
+
+            // Parse status, exit code and signal from the dex2oat error message
+            Pattern pattern =
+                    Pattern.compile("\\[status=(-?\\d+),exit_code=(-?\\d+),signal=(-?\\d+)]");
+            Matcher matcher = pattern.matcher(Objects.requireNonNull(e.getMessage()));
+            if (matcher.matches()) {
+                outcome.mDex2OatResult = new Dex2OatResult(Integer.parseInt(matcher.group(1)),
+                        Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+            }
+        } finally {
+            if (!dexFile.mExternalProfileErrors.isEmpty()) {
+                outcome.mExtendedStatusFlags |= DexoptResult.EXTENDED_BAD_EXTERNAL_PROFILE;
+            }
+            result = DexContainerFileDexoptResult.create(dexInfo.dexPath(), abi.isPrimaryAbi(),
+                    abi.name(), dexFile.mCompilerFilter, outcome.mStatus, outcome.mWallTimeMs,
+                    outcome.mCpuTimeMs, outcome.mSizeBytes, outcome.mSizeBeforeBytes,
+                    outcome.mExtendedStatusFlags, dexFile.mExternalProfileErrors);
+            AsLog.i(String.format(
+                    "Dexopt result: [packageName = %s] %s", mPkgState.getPackageName(), result));
+
+            // Variables used in lambda needs to be effectively final.
+            Dex2OatResult finalDex2OatResult = outcome.mDex2OatResult;
+            DexContainerFileDexoptResult finalResult = result;
+            mInjector.getReporterExecutor().execute(
+                    ()
+                            -> Dex2OatStatsReporter.report(mPkgState.getAppId(),
+                                    finalResult.getActualCompilerFilter(), mParams.getReason(),
+                                    dexFile.mDmInfo.type(), dexInfo, abi.isa(), finalDex2OatResult,
+                                    finalResult.getSizeBytes(),
+                                    finalResult.getDex2oatWallTimeMillis()));
+        }
+        return result;
+    }
+
+    private void dexoptTargetImpl(@NonNull DexFileState dexFile, @NonNull Abi abi,
+            @NonNull TargetOutcome outcome) throws RemoteException {
+        var target = DexoptTarget.<DexInfoType>builder()
+                             .setDexInfo(dexFile.mDexInfo)
+                             .setIsa(abi.isa())
+                             .setIsInDalvikCache(dexFile.mIsInDalvikCache)
+                             .setCompilerFilter(dexFile.mCompilerFilter)
+                             .setDmPath(dexFile.mDmInfo.dmPath())
+                             .build();
+        var options = GetDexoptNeededOptions.builder()
+                              .setProfileMerged(dexFile.mProfileMerged)
+                              .setFlags(mParams.getFlags())
+                              .setNeedsToBePublic(dexFile.mNeedsToBeShared)
+                              .build();
+
+        if (mInjector.isPreReboot()) {
+            ArtifactsPath existingArtifacts = AidlUtils.buildArtifactsPathAsInputPreReboot(
+                    target.dexInfo().dexPath(), target.isa(), target.isInDalvikCache());
+            if (mInjector.getArtd().getArtifactsVisibility(existingArtifacts)
+                    != FileVisibility.NOT_FOUND) {
+                // Because `getDexoptNeeded` doesn't check Pre-reboot artifacts, we do a simple
+                // check here to handle job resuming. If the Pre-reboot artifacts exist, we assume
+                // they are up-to-date because `PreRebootDexoptJob` would otherwise clean them up,
+                // so we skip this dex file. The profile and the dex file may have been changed
+                // since the last cancelled job run, but we don't handle such cases because we are
+                // supposed to dexopt every dex file only once for each ISA.
+                outcome.mExtendedStatusFlags |=
+                        DexoptResult.EXTENDED_SKIPPED_PRE_REBOOT_ALREADY_EXIST;
+                return;
+            }
+        }
+
+        GetDexoptNeededResult getDexoptNeededResult = getDexoptNeeded(target, options);
+
+        if (!getDexoptNeededResult.hasDexCode) {
+            outcome.mExtendedStatusFlags |= DexoptResult.EXTENDED_SKIPPED_NO_DEX_CODE;
+        }
+
+        if (!getDexoptNeededResult.isDexoptNeeded) {
+            return;
+        }
+
+        try {
+            // `StorageManager.getAllocatableBytes` returns (free space + space used by clearable
+            // cache - low storage threshold). Since we only compare the result with 0, the
+            // clearable cache doesn't make a difference. When the free space is below the
+            // threshold, there should be no clearable cache left because system cleans up cache
+            // every minute.
+            if ((mParams.getFlags() & ArtFlags.FLAG_SKIP_IF_STORAGE_LOW) != 0
+                    && mInjector.getStorageManager().getAllocatableBytes(mPkg.getStorageUuid())
+                            <= 0) {
+                outcome.mExtendedStatusFlags |= DexoptResult.EXTENDED_SKIPPED_STORAGE_LOW;
+                return;
+            }
+        } catch (IOException e) {
+            AsLog.e("Failed to check storage. Assuming storage not low", e);
+        }
+
+        // Each target gets its own options because `dexoptFile` modifies them, and the targets may
+        // run concurrently.
+        DexoptOptions dexoptOptions = getDexoptOptions(
+                dexFile.mDexInfo, DexFile.isProfileGuidedCompilerFilter(dexFile.mCompilerFilter));
+        IArtdCancellationSignal artdCancellationSignal =
+                mInjector.getArtd().createCancellationSignal();
+        addArtdCancellationSignal(artdCancellationSignal);
+        ArtdDexoptResult dexoptResult;
+        try {
+            dexoptResult = dexoptFile(target, dexFile.mProfile, getDexoptNeededResult,
+                    dexFile.mPermissionSettings, mParams.getPriorityClass(), dexoptOptions,
+                    artdCancellationSignal);
+        } finally {
+            removeArtdCancellationSignal(artdCancellationSignal);
+        }
+        outcome.mStatus = dexoptResult.cancelled ? DexoptResult.DEXOPT_CANCELLED
+                                                 : DexoptResult.DEXOPT_PERFORMED;
+        outcome.mWallTimeMs = dexoptResult.wallTimeMs;
+        outcome.mCpuTimeMs = dexoptResult.cpuTimeMs;
+        outcome.mSizeBytes = dexoptResult.sizeBytes;
+        outcome.mSizeBeforeBytes = dexoptResult.sizeBeforeBytes;
+        outcome.mDex2OatResult =
+                dexoptResult.cancelled ? Dex2OatResult.cancelled() : Dex2OatResult.exited(0);
+    }
+
+    /**
+     * Commits the profile and cleans up the current profiles of the given dex file, if dexopt
+     * succeeded for all of its ABIs.
+     */
+    private void finishDexFile(@NonNull DexFileState dexFile) throws RemoteException {
+        boolean succeeded = dexFile.mResults.stream().allMatch(result
+                -> result.getStatus() == DexoptResult.DEXOPT_SKIPPED
+                        || result.getStatus() == DexoptResult.DEXOPT_PERFORMED);
+        if (dexFile.mProfile == null || !succeeded) {
+            return;
+        }
+        if (dexFile.mProfile.getTag() == ProfilePath.tmpProfilePath) {
+            // Commit the profile only if dexopt succeeds.
+            if (commitProfileChanges(dexFile.mProfile.getTmpProfilePath())) {
+                dexFile.mProfile = null;
+            }
         }
+        // We keep the current profiles in the Pre-reboot Dexopt case, to leave it to background
+        // dexopt.
+        if (dexFile.mProfileMerged && !mInjector.isPreReboot()) {
+            // Note that this is just an optimization, to reduce the amount of data that the
+            // runtime writes on every profile save. The profile merge result on the next run won't
+            // change regardless of whether the cleanup is done or not because profman only looks
+            // at the diff.
+            // A caveat is that it may delete more than what has been merged, if the runtime writes
+            // additional entries between the merge and the cleanup, but this is fine because the
+            // runtime writes all JITed classes and methods on every save and the additional entries
+            // will likely be written back on the next save.
+            cleanupCurProfiles(dexFile.mDexInfo);
+        }
+    }
 
+    @NonNull
+    private List<DexContainerFileDexoptResult> collectResults(
+            @NonNull List<DexFileState> dexFiles) {
+        List<DexContainerFileDexoptResult> results = new ArrayList<>();
+        for (DexFileState dexFile : dexFiles) {
+            results.addAll(dexFile.mResults);
+        }
         return results;
     }
 
+    /**
+     * Returns the result of a target dexopted by the executor, or null if the target was skipped
+     * because another target was cancelled.
+     */
+    @Nullable
+    private static DexContainerFileDexoptResult getTargetResult(
+            @NonNull Future<DexContainerFileDexoptResult> future) throws RemoteException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException r) {
+                throw r;
+            }
+            throw Utils.toRuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void addArtdCancellationSignal(@NonNull IArtdCancellationSignal signal) {
+        boolean cancelled;
+        synchronized (mArtdCancellationSignals) {
+            mArtdCancellationSignals.add(signal);
+            cancelled = mArtdCancelled;
+        }
+        // The listener may have been called before the signal is added.
+        if (cancelled || mCancellationSignal.isCanceled()) {
+            cancelArtdCancellationSignal(signal);
+        }
+    }
+
+    private void removeArtdCancellationSignal(@NonNull IArtdCancellationSignal signal) {
+        synchronized (mArtdCancellationSignals) {
+            mArtdCancellationSignals.remove(signal);
+        }
+    }
+
+    private void cancelArtdCancellationSignals() {
+        List<IArtdCancellationSignal> signals;
+        synchronized (mArtdCancellationSignals) {
+            mArtdCancelled = true;
+            signals = new ArrayList<>(mArtdCancellationSignals);
+        }
+        for (IArtdCancellationSignal signal : signals) {
+            cancelArtdCancellationSignal(signal);
+        }
+    }
+
+    private static void cancelArtdCancellationSignal(@NonNull IArtdCancellationSignal signal) {
+        try {
+            signal.cancel();
+        } catch (RemoteException e) {
+            AsLog.e("An error occurred when sending a cancellation signal", e);
+        }
+    }
+
     // The javadoc on `AdjustCompilerFilterCallback.onAdjustCompilerFilter` may need updating when
     // this method is changed.
     @NonNull
@@ -730,6 +927,50 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
      */
     @Nullable protected abstract DexMetadataPath buildDmPath(@NonNull DexInfoType dexInfo);
 
+    /** The state of a dex file being dexopted, shared by the targets of all its ABIs. */
+    private class DexFileState {
+        @NonNull final DexInfoType mDexInfo;
+        final boolean mIsInDalvikCache;
+        @NonNull final String mCompilerFilter;
+        @NonNull final DexMetadataInfo mDmInfo;
+        final boolean mNeedsToBeShared;
+        final boolean mProfileMerged;
+        @NonNull final List<String> mExternalProfileErrors;
+        @NonNull final PermissionSettings mPermissionSettings;
+        @NonNull final List<Abi> mAbis;
+        /** The profile to use, or null if none. It is deleted at the end if it is temporary. */
+        @Nullable ProfilePath mProfile = null;
+        /** The results of the ABIs, in the order of {@link #mAbis}. */
+        @NonNull final List<DexContainerFileDexoptResult> mResults = new ArrayList<>();
+
+        DexFileState(@NonNull DexInfoType dexInfo, boolean isInDalvikCache,
+                @NonNull String compilerFilter, @NonNull DexMetadataInfo dmInfo,
+                boolean needsToBeShared, boolean profileMerged,
+                @NonNull List<String> externalProfileErrors,
+                @NonNull PermissionSettings permissionSettings, @NonNull List<Abi> abis) {
+            mDexInfo = dexInfo;
+            mIsInDalvikCache = isInDalvikCache;
+            mCompilerFilter = compilerFilter;
+            mDmInfo = dmInfo;
+            mNeedsToBeShared = needsToBeShared;
+            mProfileMerged = profileMerged;
+            mExternalProfileErrors = externalProfileErrors;
+            mPermissionSettings = permissionSettings;
+            mAbis = abis;
+        }
+    }
+
+    /** The outcome of dexopting a target, filled in as the dexopt goes. */
+    private static class TargetOutcome {
+        @DexoptResult.DexoptResultStatus int mStatus = DexoptResult.DEXOPT_SKIPPED;
+        long mWallTimeMs = 0;
+        long mCpuTimeMs = 0;
+        long mSizeBytes = 0;
+        long mSizeBeforeBytes = 0;
+        @NonNull Dex2OatResult mDex2OatResult = Dex2OatResult.notRun();
+        @DexoptResult.DexoptResultExtendedStatusFlags int mExtendedStatusFlags = 0;
+    }
+
     @AutoValue
     abstract static class DexoptTarget<DexInfoType extends DetailedDexInfo> {
         abstract @NonNull DexInfoType dexInfo();
@@ -862,5 +1103,9 @@ public abstract class Dexopter<DexInfoType extends DetailedDexInfo> {
         public boolean isPreReboot() {
             return GlobalInjector.getInstance().isPreReboot();
         }
+
+        public int getAvailableProcessors() {
+            return Runtime.getRuntime().availableProcessors();
+        }
     }
 }
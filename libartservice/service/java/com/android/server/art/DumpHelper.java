@@ -34,6 +34,8 @@ import androidx.annotation.RequiresApi;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.LocalManagerRegistry;
+import com.android.server.art.model.ArtFlags;
+import com.android.server.art.model.DexoptStatus;
 import com.android.server.pm.PackageManagerLocal;
 import com.android.server.pm.pkg.PackageState;
 
@@ -59,6 +61,9 @@ import java.util.stream.Collectors;
  */
 @RequiresApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
 public class DumpHelper {
+    /** The maximum number of packages whose dexopt statuses are queried in one artd call. */
+    @VisibleForTesting public static final int GET_DEXOPT_STATUSES_BATCH_SIZE = 32;
+
     @NonNull private final Injector mInjector;
 
     public DumpHelper(@NonNull ArtManagerLocal artManagerLocal) {
@@ -73,11 +78,31 @@ public class DumpHelper {
     /** Handles {@link ArtManagerLocal#dump(PrintWriter, PackageManagerLocal.FilteredSnapshot)}. */
     public void dump(@NonNull PrintWriter pw,
             @NonNull PackageManagerLocal.FilteredSnapshot snapshot, boolean verifySdmSignatures) {
-        snapshot.getPackageStates()
-                .values()
-                .stream()
-                .sorted(Comparator.comparing(PackageState::getPackageName))
-                .forEach(pkgState -> dumpPackage(pw, snapshot, pkgState, verifySdmSignatures));
+        List<PackageState> pkgStates =
+                snapshot.getPackageStates()
+                        .values()
+                        .stream()
+                        .filter(pkgState
+                                -> !pkgState.isApex() && pkgState.getAndroidPackage() != null)
+                        .sorted(Comparator.comparing(PackageState::getPackageName))
+                        .collect(Collectors.toList());
+        // Query the statuses of multiple packages at once, so that artd can check them in
+        // parallel, but not of all packages at once, so that the reply fits in a binder
+        // transaction.
+        for (int start = 0; start < pkgStates.size(); start += GET_DEXOPT_STATUSES_BATCH_SIZE) {
+            List<PackageState> batch = pkgStates.subList(
+                    start, Math.min(start + GET_DEXOPT_STATUSES_BATCH_SIZE, pkgStates.size()));
+            Map<String, DexoptStatus> statusesByPackage =
+                    mInjector.getArtManagerLocal().getDexoptStatuses(snapshot,
+                            batch.stream()
+                                    .map(PackageState::getPackageName)
+                                    .collect(Collectors.toList()),
+                            ArtFlags.defaultGetStatusFlags());
+            for (PackageState pkgState : batch) {
+                dumpPackage(pw, snapshot, pkgState,
+                        statusesByPackage.get(pkgState.getPackageName()), verifySdmSignatures);
+            }
+        }
         pw.printf("\nCurrent GC: %s\n", ArtJni.getGarbageCollector());
     }
 
@@ -92,15 +117,22 @@ public class DumpHelper {
             return;
         }
 
+        dumpPackage(pw, snapshot, pkgState,
+                mInjector.getArtManagerLocal().getDexoptStatus(
+                        snapshot, pkgState.getPackageName()),
+                verifySdmSignatures);
+    }
+
+    private void dumpPackage(@NonNull PrintWriter pw,
+            @NonNull PackageManagerLocal.FilteredSnapshot snapshot, @NonNull PackageState pkgState,
+            @NonNull DexoptStatus dexoptStatus, boolean verifySdmSignatures) {
         var ipw = new IndentingPrintWriter(pw);
 
         String packageName = pkgState.getPackageName();
         ipw.printf("[%s]\n", packageName);
 
         List<DexContainerFileDexoptStatus> statuses =
-                mInjector.getArtManagerLocal()
-                        .getDexoptStatus(snapshot, packageName)
-                        .getDexContainerFileDexoptStatuses();
+                dexoptStatus.getDexContainerFileDexoptStatuses();
         Map<String, CheckedSecondaryDexInfo> secondaryDexInfoByDexPath =
                 mInjector.getDexUseManager()
                         .getCheckedSecondaryDexInfo(
@@ -213,4 +213,19 @@ public class ReasonMapping {
         return SystemProperties.getInt("pm.dexopt." + reason + ".concurrency",
                 BOOT_REASONS.contains(reason) ? 4 : 1 /* def */);
     }
+
+    /**
+     * Loads from the system property the maximum number of (dex file, ABI) targets of a single
+     * package to dexopt concurrently. Each target runs its own dex2oat process, so this bounds the
+     * extra CPU and memory that one package may use. By default, only install-time dexopt, whose
+     * latency the user waits for, dexopts targets concurrently. Batch dexopt already dexopts
+     * packages concurrently (see {@link #getConcurrencyForReason}). The caller should also cap
+     * the value by the number of processors.
+     *
+     * @hide
+     */
+    public static int getFileConcurrencyForReason(@NonNull String reason) {
+        return SystemProperties.getInt("pm.dexopt." + reason + ".file_concurrency",
+                REASONS_FOR_INSTALL.contains(reason) ? 2 : 1 /* def */);
+    }
 }
@@ -98,6 +98,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -168,6 +169,23 @@ public class ArtManagerLocalTest {
         // that each test case examines.
         lenient().when(mInjector.getPackageManagerLocal()).thenReturn(mPackageManagerLocal);
         lenient().when(mInjector.getArtd()).thenReturn(mArtd);
+        // Answer batched status queries from the stubs of `getDexoptStatus`, reporting non-fatal
+        // errors through `errorMessage` like artd does.
+        lenient().when(mArtd.getDexoptStatuses(any())).thenAnswer(invocation -> {
+            List<GetDexoptStatusQuery> queries = invocation.getArgument(0);
+            var results = new ArrayList<GetDexoptStatusResult>();
+            for (GetDexoptStatusQuery query : queries) {
+                try {
+                    results.add(mArtd.getDexoptStatus(
+                            query.dexFile, query.instructionSet, query.classLoaderContext));
+                } catch (ServiceSpecificException e) {
+                    var result = new GetDexoptStatusResult();
+                    result.errorMessage = e.getMessage();
+                    results.add(result);
+                }
+            }
+            return results;
+        });
         lenient().when(mInjector.createArtdPin()).thenReturn(mArtdPin);
         lenient().when(mInjector.getDexoptHelper()).thenReturn(mDexoptHelper);
         lenient().when(mInjector.getConfig()).thenReturn(mConfig);
@@ -430,6 +448,9 @@ public class ArtManagerLocalTest {
 
         DexoptStatus result = mArtManagerLocal.getDexoptStatus(mSnapshot, PKG_NAME_1);
 
+        // All dex files are queried in one call.
+        verify(mArtd).getDexoptStatuses(any());
+
         assertThat(result.getDexContainerFileDexoptStatuses())
                 .comparingElementsUsing(TestingUtils.<DexContainerFileDexoptStatus>deepEquality())
                 .containsExactly(
@@ -64,7 +64,10 @@ import org.mockito.Mock;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -72,6 +75,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
@@ -112,6 +119,7 @@ public class DexUseManagerTest {
     private MockClock mMockClock;
     private ArgumentCaptor<BroadcastReceiver> mBroadcastReceiverCaptor;
     private File mTempFile;
+    private File mJournalFile;
     private Map<String, PackageState> mPackageStates;
 
     @Before
@@ -166,6 +174,8 @@ public class DexUseManagerTest {
 
         mTempFile = File.createTempFile("package-dex-usage", ".pb");
         mTempFile.deleteOnExit();
+        mJournalFile = File.createTempFile("package-dex-usage", ".journal.pb");
+        mJournalFile.deleteOnExit();
 
         lenient().when(ArtJni.validateDexPath(any())).thenReturn(null);
         lenient().when(ArtJni.validateClassLoaderContext(any(), any())).thenReturn(null);
@@ -177,6 +187,7 @@ public class DexUseManagerTest {
         lenient().when(mInjector.getArtd()).thenReturn(mArtd);
         lenient().when(mInjector.getCurrentTimeMillis()).thenReturn(0l);
         lenient().when(mInjector.getFilename()).thenReturn(mTempFile.getPath());
+        lenient().when(mInjector.getJournalFilename()).thenReturn(mJournalFile.getPath());
         lenient()
                 .when(mInjector.createScheduledExecutor())
                 .thenAnswer(invocation -> mMockClock.createScheduledExecutor());
@@ -864,6 +875,145 @@ public class DexUseManagerTest {
                         true /* isUsedByOtherApps */, mDefaultFileVisibility));
     }
 
+    @Test
+    public void testRecordingNotBlockedByVisibilityCheck() throws Exception {
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "CLC"));
+
+        var checkStarted = new CountDownLatch(1);
+        var checkCanFinish = new CountDownLatch(1);
+        when(mArtd.getDexFileVisibility(mCeDir + "/foo.apk")).thenAnswer(invocation -> {
+            checkStarted.countDown();
+            assertThat(checkCanFinish.await(10, TimeUnit.SECONDS)).isTrue();
+            return FileVisibility.OTHER_READABLE;
+        });
+
+        Future<List<CheckedSecondaryDexInfo>> future = ForkJoinPool.commonPool().submit(
+                ()
+                        -> mDexUseManager.getCheckedSecondaryDexInfo(
+                                OWNING_PKG_NAME, true /* excludeObsoleteDexesAndLoaders */));
+        assertThat(checkStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+        // Recording a load of the same package must not wait for the visibility check.
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/bar.apk", "CLC"));
+        assertThat(mDexUseManager.getSecondaryDexInfo(OWNING_PKG_NAME)).hasSize(2);
+
+        checkCanFinish.countDown();
+        assertThat(future.get()).hasSize(1);
+    }
+
+    @Test
+    public void testSaveAppendsToJournal() throws Exception {
+        when(mInjector.getCurrentTimeMillis()).thenReturn(1000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+
+        // Only the journal should be written.
+        assertThat(mTempFile.length()).isEqualTo(0);
+        long journalLength = mJournalFile.length();
+        assertThat(journalLength).isGreaterThan(0);
+
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, LOADING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+
+        // Only the changed record should be appended.
+        assertThat(mTempFile.length()).isEqualTo(0);
+        assertThat(mJournalFile.length()).isGreaterThan(journalLength);
+        assertThat(mJournalFile.length()).isLessThan(2 * journalLength + 10);
+
+        // The journal should be replayed on load.
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getPrimaryDexLoaders(OWNING_PKG_NAME, BASE_APK))
+                .containsExactly(DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */),
+                        DexLoader.create(LOADING_PKG_NAME, false /* isolatedProcess */));
+    }
+
+    @Test
+    public void testJournalPartialRecord() throws Exception {
+        when(mInjector.getCurrentTimeMillis()).thenReturn(1000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+
+        // Simulate a partially written record at the end of the journal.
+        try (OutputStream out = new FileOutputStream(mJournalFile, true /* append */)) {
+            out.write(new byte[] {100, 1, 2, 3});
+        }
+
+        // The complete records should be loaded.
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getPrimaryDexLoaders(OWNING_PKG_NAME, BASE_APK))
+                .containsExactly(DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */));
+
+        // The next save should compact the data rather than append to the corrupted journal.
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, LOADING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+        assertThat(mJournalFile.exists()).isFalse();
+
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getPrimaryDexLoaders(OWNING_PKG_NAME, BASE_APK))
+                .containsExactly(DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */),
+                        DexLoader.create(LOADING_PKG_NAME, false /* isolatedProcess */));
+    }
+
+    @Test
+    public void testJournalZeroFilledRecord() throws Exception {
+        when(mInjector.getCurrentTimeMillis()).thenReturn(1000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+
+        // Simulate a record that was not written before the device crashed, but whose space was
+        // allocated. It parses as an empty record.
+        try (OutputStream out = new FileOutputStream(mJournalFile, true /* append */)) {
+            out.write(new byte[] {0, 0, 0, 0});
+        }
+
+        // The records before it should be loaded.
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getPrimaryDexLoaders(OWNING_PKG_NAME, BASE_APK))
+                .containsExactly(DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */));
+
+        // The next save should compact the data rather than append to the corrupted journal.
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, LOADING_PKG_NAME, Map.of(BASE_APK, "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+        assertThat(mJournalFile.exists()).isFalse();
+    }
+
+    @Test
+    public void testStaleJournalIgnored() throws Exception {
+        when(mInjector.getCurrentTimeMillis()).thenReturn(1000l);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "CLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+        byte[] staleJournal = Files.readAllBytes(mJournalFile.toPath());
+
+        // Force a compaction.
+        try (OutputStream out = new FileOutputStream(mJournalFile, true /* append */)) {
+            out.write(new byte[] {100, 1, 2, 3});
+        }
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        mDexUseManager.notifyDexContainersLoaded(
+                mSnapshot, OWNING_PKG_NAME, Map.of(mCeDir + "/foo.apk", "UpdatedCLC"));
+        mMockClock.advanceTime(DexUseManagerLocal.INTERVAL_MS);
+        assertThat(mJournalFile.exists()).isFalse();
+
+        // Simulate a crash after the snapshot is written but before the journal is deleted.
+        Files.write(mJournalFile.toPath(), staleJournal);
+
+        // The stale journal must not override the newer snapshot.
+        mDexUseManager = new DexUseManagerLocal(mInjector);
+        assertThat(mDexUseManager.getSecondaryClassLoaderContext(OWNING_PKG_NAME,
+                           mCeDir + "/foo.apk",
+                           DexLoader.create(OWNING_PKG_NAME, false /* isolatedProcess */)))
+                .isEqualTo("UpdatedCLC");
+    }
+
     @Test
     public void testSystemReady() {
         verify(mArtManagerLocal).systemReady();
@@ -229,6 +229,42 @@ public class DexoptHelperTest {
         verifyNoMoreDexopt(6 /* expectedPrimaryTimes */, 6 /* expectedSecondaryTimes */);
     }
 
+    @Test
+    public void testDexoptBootLargestFirst() throws Exception {
+        AndroidPackageSplit fooSplit = mPkgFoo.getSplits().get(0);
+        lenient().when(fooSplit.isHasCode()).thenReturn(true);
+        lenient().when(fooSplit.getPath()).thenReturn("/somewhere/app/foo/base.apk");
+        lenient().when(mInjector.getFileSize("/somewhere/app/foo/base.apk")).thenReturn(1L << 20);
+        AndroidPackageSplit barSplit = mPkgBar.getSplits().get(0);
+        lenient().when(barSplit.isHasCode()).thenReturn(true);
+        lenient().when(barSplit.getPath()).thenReturn("/somewhere/app/bar/base.apk");
+        lenient().when(mInjector.getFileSize("/somewhere/app/bar/base.apk")).thenReturn(1L << 30);
+
+        mParams = new DexoptParams.Builder("boot-after-ota")
+                          .setCompilerFilter("speed-profile")
+                          .setFlags(ArtFlags.FLAG_FOR_PRIMARY_DEX, ArtFlags.FLAG_FOR_PRIMARY_DEX)
+                          .build();
+
+        DexoptResult result = mDexoptHelper.dexopt(mSnapshot, List.of(PKG_NAME_FOO, PKG_NAME_BAR),
+                mParams, mCancellationSignal, mExecutor);
+
+        // The results are in the given order.
+        assertThat(result.getPackageDexoptResults()).hasSize(2);
+        checkPackageResult(result, 0 /* index */, PKG_NAME_FOO, DexoptResult.DEXOPT_PERFORMED,
+                List.of(mPrimaryResults));
+        checkPackageResult(result, 1 /* index */, PKG_NAME_BAR, DexoptResult.DEXOPT_PERFORMED,
+                List.of(mPrimaryResults));
+
+        // The larger package is dexopted first.
+        InOrder inOrder = inOrder(mInjector);
+        inOrder.verify(mInjector).getPrimaryDexopter(
+                same(mPkgStateBar), same(mPkgBar), same(mParams), any());
+        inOrder.verify(mInjector).getPrimaryDexopter(
+                same(mPkgStateFoo), same(mPkgFoo), same(mParams), any());
+
+        verifyNoMoreDexopt(2 /* expectedPrimaryTimes */, 0 /* expectedSecondaryTimes */);
+    }
+
     @Test
     public void testDexoptNoDependencies() throws Exception {
         mParams = new DexoptParams.Builder("install")
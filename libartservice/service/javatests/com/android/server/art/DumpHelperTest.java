@@ -58,6 +58,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -96,6 +97,19 @@ public class DumpHelperTest {
         lenient().when(ArtJni.getGarbageCollector()).thenReturn("CollectorTypeCMC");
 
         lenient().when(mInjector.getArtManagerLocal()).thenReturn(mArtManagerLocal);
+        // Answer batched status queries from the stubs of `getDexoptStatus`.
+        lenient()
+                .when(mArtManagerLocal.getDexoptStatuses(any(), any(), anyInt()))
+                .thenAnswer(invocation -> {
+                    PackageManagerLocal.FilteredSnapshot snapshot = invocation.getArgument(0);
+                    List<String> packageNames = invocation.getArgument(1);
+                    var statuses = new LinkedHashMap<String, DexoptStatus>();
+                    for (String packageName : packageNames) {
+                        statuses.put(packageName,
+                                mArtManagerLocal.getDexoptStatus(snapshot, packageName));
+                    }
+                    return statuses;
+                });
         lenient().when(mInjector.getDexUseManager()).thenReturn(mDexUseManagerLocal);
 
         Map<String, PackageState> pkgStates = createPackageStates();
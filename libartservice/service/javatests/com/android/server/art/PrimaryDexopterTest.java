@@ -21,6 +21,7 @@ import static com.android.server.art.testing.TestingUtils.deepEq;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertThrows;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.argThat;
@@ -39,6 +40,7 @@ import static org.mockito.Mockito.when;
 
 import android.os.Process;
 import android.os.ServiceSpecificException;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 
 import androidx.test.filters.SmallTest;
@@ -62,6 +64,8 @@ import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.zip.ZipFile;
 
@@ -673,6 +677,38 @@ public class PrimaryDexopterTest extends PrimaryDexopterTestBase {
                 false /* isOtherReadable */);
     }
 
+    @Test
+    public void testDexoptConcurrently() throws Exception {
+        lenient()
+                .when(SystemProperties.getInt(eq("pm.dexopt.install.file_concurrency"), anyInt()))
+                .thenReturn(4);
+
+        // Each dexopt call waits for another one to start, which only happens if they run
+        // concurrently.
+        Semaphore dexoptStarted = new Semaphore(0);
+        final long TIMEOUT_SEC = 10;
+        doAnswer(invocation -> {
+            dexoptStarted.release();
+            assertThat(dexoptStarted.tryAcquire(2, TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+            dexoptStarted.release(2);
+            return mArtdDexoptResult;
+        })
+                .when(mArtd)
+                .dexopt(any(), any(), any(), any(), any(), any(), any(), any(), anyInt(), any(),
+                        any());
+
+        List<DexContainerFileDexoptResult> results = mPrimaryDexopter.dexopt();
+        verifyStatusAllOk(results);
+
+        // The results are in the same order as if the targets were dexopted one by one.
+        assertThat(results.stream()
+                           .map(result -> result.getDexContainerFile() + ":" + result.getAbi())
+                           .collect(Collectors.toList()))
+                .containsExactly(mDexPath + ":arm64-v8a", mDexPath + ":armeabi-v7a",
+                        mSplit0DexPath + ":arm64-v8a", mSplit0DexPath + ":armeabi-v7a")
+                .inOrder();
+    }
+
     @Test
     public void testDexoptCancelledBeforeDexopt() throws Exception {
         mCancellationSignal.cancel();
@@ -747,6 +783,131 @@ public class PrimaryDexopterTest extends PrimaryDexopterTestBase {
                         any());
     }
 
+    @Test
+    public void testDexoptConcurrentlyCancelledBeforeDexopt() throws Exception {
+        lenient()
+                .when(SystemProperties.getInt(eq("pm.dexopt.install.file_concurrency"), anyInt()))
+                .thenReturn(2);
+
+        mCancellationSignal.cancel();
+
+        when(mArtd.dexopt(any(), any(), any(), any(), any(), any(), any(), any(), anyInt(), any(),
+                     any()))
+                .thenReturn(createArtdDexoptResult(true /* cancelled */));
+
+        // Like in the serial case, the result should only contain the result of the first target.
+        assertThat(mPrimaryDexopter.dexopt()
+                           .stream()
+                           .map(DexContainerFileDexoptResult::getStatus)
+                           .collect(Collectors.toList()))
+                .containsExactly(DexoptResult.DEXOPT_CANCELLED);
+
+        verify(mArtd, times(1))
+                .dexopt(any(), any(), any(), any(), any(), any(), any(), any(), anyInt(), any(),
+                        any());
+    }
+
+    @Test
+    public void testDexoptConcurrentlyCancelledDuringDexopt() throws Exception {
+        lenient()
+                .when(SystemProperties.getInt(eq("pm.dexopt.install.file_concurrency"), anyInt()))
+                .thenReturn(2);
+        makeProfileUsable(mDmProfile);
+
+        Semaphore dexoptStarted = new Semaphore(0);
+        Semaphore dexoptCancelled = new Semaphore(0);
+        final long TIMEOUT_SEC = 10;
+        mockArtdCancellationSignals(dexoptCancelled);
+
+        // The first target cancels dexopt while the second one is running. The second one runs
+        // until artd is told to cancel it.
+        doAnswer(invocation -> {
+            assertThat(dexoptStarted.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+            mCancellationSignal.cancel();
+            return createArtdDexoptResult(true /* cancelled */);
+        })
+                .when(mArtd)
+                .dexopt(any(), eq(mDexPath), eq("arm64"), any(), any(), any(), any(), any(),
+                        anyInt(), any(), any());
+        doAnswer(invocation -> {
+            dexoptStarted.release();
+            assertThat(dexoptCancelled.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+            return createArtdDexoptResult(true /* cancelled */);
+        })
+                .when(mArtd)
+                .dexopt(any(), eq(mDexPath), eq("arm"), any(), any(), any(), any(), any(),
+                        anyInt(), any(), any());
+
+        assertThat(mPrimaryDexopter.dexopt()
+                           .stream()
+                           .map(DexContainerFileDexoptResult::getStatus)
+                           .collect(Collectors.toList()))
+                .containsExactly(DexoptResult.DEXOPT_CANCELLED, DexoptResult.DEXOPT_CANCELLED);
+
+        // The targets of the split should not start after being cancelled.
+        verify(mArtd, never())
+                .getDexoptNeeded(eq(mSplit0DexPath), any(), any(), any(), anyInt());
+        verify(mArtd, never())
+                .dexopt(any(), eq(mSplit0DexPath), any(), any(), any(), any(), any(), any(),
+                        anyInt(), any(), any());
+
+        verify(mArtd).deleteProfile(
+                deepEq(ProfilePath.tmpProfilePath(mPublicOutputProfile.profilePath)));
+        verify(mArtd, never()).commitTmpProfile(deepEq(mPublicOutputProfile.profilePath));
+    }
+
+    @Test
+    public void testDexoptConcurrentlyThrows() throws Exception {
+        lenient()
+                .when(SystemProperties.getInt(eq("pm.dexopt.install.file_concurrency"), anyInt()))
+                .thenReturn(2);
+        makeProfileUsable(mDmProfile);
+
+        Semaphore dexoptStarted = new Semaphore(0);
+        Semaphore dexoptCancelled = new Semaphore(0);
+        AtomicBoolean dexoptFinished = new AtomicBoolean(false);
+        AtomicReference<IArtdCancellationSignal> runningSignal = new AtomicReference<>();
+        final long TIMEOUT_SEC = 10;
+        mockArtdCancellationSignals(dexoptCancelled);
+
+        // The first target throws while the second one is running. The second one runs until artd
+        // is told to cancel it.
+        doAnswer(invocation -> {
+            assertThat(dexoptStarted.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+            throw new IllegalStateException("This is an error message");
+        })
+                .when(mArtd)
+                .dexopt(any(), eq(mDexPath), eq("arm64"), any(), any(), any(), any(), any(),
+                        anyInt(), any(), any());
+        doAnswer(invocation -> {
+            runningSignal.set(invocation.getArgument(10));
+            dexoptStarted.release();
+            assertThat(dexoptCancelled.tryAcquire(TIMEOUT_SEC, TimeUnit.SECONDS)).isTrue();
+            dexoptFinished.set(true);
+            return createArtdDexoptResult(true /* cancelled */);
+        })
+                .when(mArtd)
+                .dexopt(any(), eq(mDexPath), eq("arm"), any(), any(), any(), any(), any(),
+                        anyInt(), any(), any());
+
+        assertThrows(IllegalStateException.class, () -> mPrimaryDexopter.dexopt());
+
+        // The exception should only be thrown after the running target is cancelled and finishes.
+        assertThat(dexoptFinished.get()).isTrue();
+        verify(runningSignal.get()).cancel();
+
+        // The targets of the split should not start after the exception.
+        verify(mArtd, never())
+                .getDexoptNeeded(eq(mSplit0DexPath), any(), any(), any(), anyInt());
+        verify(mArtd, never())
+                .dexopt(any(), eq(mSplit0DexPath), any(), any(), any(), any(), any(), any(),
+                        anyInt(), any(), any());
+
+        verify(mArtd).deleteProfile(
+                deepEq(ProfilePath.tmpProfilePath(mPublicOutputProfile.profilePath)));
+        verify(mArtd, never()).commitTmpProfile(deepEq(mPublicOutputProfile.profilePath));
+    }
+
     @Test
     public void testDexoptBaseApk() throws Exception {
         mDexoptParams =
@@ -967,6 +1128,23 @@ public class PrimaryDexopterTest extends PrimaryDexopterTestBase {
                 argThat(dexoptOptions -> dexoptOptions.generateAppImage == false), any());
     }
 
+    /**
+     * Makes artd return a new cancellation signal for each dexopt call. Each signal releases a
+     * permit of {@code cancelled} when cancelled.
+     */
+    private void mockArtdCancellationSignals(Semaphore cancelled) throws Exception {
+        when(mArtd.createCancellationSignal()).thenAnswer(invocation -> {
+            var signal = mock(IArtdCancellationSignal.class);
+            doAnswer(cancelInvocation -> {
+                cancelled.release();
+                return null;
+            })
+                    .when(signal)
+                    .cancel();
+            return signal;
+        });
+    }
+
     private void verifyProfileNotUsed(ProfilePath profile) throws Exception {
         assertThat(mUsedProfiles)
                 .comparingElementsUsing(TestingUtils.<ProfilePath>deepEquality())
@@ -96,6 +96,7 @@ public class PrimaryDexopterTestBase {
         lenient().when(mInjector.getReporterExecutor()).thenReturn(mReporterExecutor);
         lenient().when(mInjector.getDexMetadataHelper()).thenReturn(mDexMetadataHelper);
         lenient().when(mInjector.isPreReboot()).thenReturn(false);
+        lenient().when(mInjector.getAvailableProcessors()).thenReturn(8);
 
         lenient()
                 .when(SystemProperties.get("dalvik.vm.systemuicompilerfilter"))
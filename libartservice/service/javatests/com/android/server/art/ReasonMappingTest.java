@@ -87,4 +87,12 @@ public class ReasonMappingTest {
                 .thenReturn(3);
         assertThat(ReasonMapping.getConcurrencyForReason("bg-dexopt")).isEqualTo(3);
     }
+
+    @Test
+    public void testGetFileConcurrencyForReason() {
+        lenient()
+                .when(SystemProperties.getInt(eq("pm.dexopt.install.file_concurrency"), anyInt()))
+                .thenReturn(3);
+        assertThat(ReasonMapping.getFileConcurrencyForReason("install")).isEqualTo(3);
+    }
 }
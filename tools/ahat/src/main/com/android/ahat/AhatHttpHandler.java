@@ -18,7 +18,9 @@ package com.android.ahat;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 
 /**
@@ -29,28 +31,49 @@ import java.io.PrintStream;
 class AhatHttpHandler implements HttpHandler {
 
   private AhatHandler mAhatHandler;
+  private PageCache mCache;
 
-  public AhatHttpHandler(AhatHandler handler) {
+  /**
+   * Constructs an AhatHttpHandler that renders pages using the given handler
+   * and stores the rendered pages in the given cache. The cache may be null,
+   * in which case pages are rendered afresh for every request.
+   */
+  public AhatHttpHandler(AhatHandler handler, PageCache cache) {
     mAhatHandler = handler;
+    mCache = cache;
   }
 
   @Override
   public void handle(HttpExchange exchange) throws IOException {
-    exchange.getResponseHeaders().add("Content-Type", "text/html;charset=utf-8");
-    exchange.sendResponseHeaders(200, 0);
-    PrintStream ps = new PrintStream(exchange.getResponseBody());
-    try {
-      HtmlDoc doc = new HtmlDoc(ps, DocString.text("ahat"), DocString.uri("style.css"));
-      doc.menu(Menu.getMenu());
-      mAhatHandler.handle(doc, new Query(exchange.getRequestURI()));
-      doc.close();
-    } catch (RuntimeException e) {
-      // Print runtime exceptions to standard error for debugging purposes,
-      // because otherwise they are swallowed and not reported.
-      System.err.println("Exception when handling " + exchange.getRequestURI() + ": ");
-      e.printStackTrace();
-      throw e;
+    String uri = exchange.getRequestURI().toString();
+    byte[] page = mCache == null ? null : mCache.get(uri);
+    if (page == null) {
+      // Render the page in memory first so that it can be cached.
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      PrintStream ps = new PrintStream(baos, false, "UTF-8");
+      try {
+        HtmlDoc doc = new HtmlDoc(ps, DocString.text("ahat"), DocString.uri("style.css"));
+        doc.menu(Menu.getMenu());
+        mAhatHandler.handle(doc, new Query(exchange.getRequestURI()));
+        doc.close();
+      } catch (RuntimeException e) {
+        // Print runtime exceptions to standard error for debugging purposes,
+        // because otherwise they are swallowed and not reported.
+        System.err.println("Exception when handling " + uri + ": ");
+        e.printStackTrace();
+        throw e;
+      }
+      ps.close();
+      page = baos.toByteArray();
+      if (mCache != null) {
+        mCache.put(uri, page);
+      }
     }
-    ps.close();
+
+    exchange.getResponseHeaders().add("Content-Type", "text/html;charset=utf-8");
+    exchange.sendResponseHeaders(200, page.length);
+    OutputStream os = exchange.getResponseBody();
+    os.write(page);
+    os.close();
   }
 }
@@ -17,21 +17,32 @@
 package com.android.ahat;
 
 import com.android.ahat.progress.Progress;
+import java.io.PrintStream;
 
 /**
- * A progress bar that prints ascii to System.out.
+ * A progress bar that prints ascii to System.out, or to another given
+ * stream.
  * <p>
- * For best results, have System.out positioned at a new line before using
+ * For best results, have the stream positioned at a new line before using
  * this progress indicator.
  */
 class AsciiProgress implements Progress {
+  private final PrintStream out;
   private String description;
   private long duration;
   private long progress;
 
-  private static void display(String description, long percent) {
-    System.out.print(String.format("\r[ %3d%% ] %s ...", percent, description));
-    System.out.flush();
+  public AsciiProgress() {
+    this(System.out);
+  }
+
+  public AsciiProgress(PrintStream out) {
+    this.out = out;
+  }
+
+  private void display(String description, long percent) {
+    out.print(String.format("\r[ %3d%% ] %s ...", percent, description));
+    out.flush();
   }
 
   @Override
@@ -63,7 +74,7 @@ class AsciiProgress implements Progress {
   @Override
   public void done() {
     update(duration);
-    System.out.println();
+    out.println();
     this.description = null;
   }
 }
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatBitmapInstance;
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.ClassIndex;
+import com.android.ahat.heapdump.Duplicates;
+import com.android.ahat.heapdump.Site;
+import com.android.ahat.heapdump.Sort;
+import com.android.ahat.heapdump.Trend;
+import com.android.ahat.progress.PhaseTimer;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs queries against a heap dump without launching the http server, and
+ * prints the results in a machine readable format.
+ * <p>
+ * The result of each query is a table with one row per result and a fixed
+ * set of columns. Sizes are reported in bytes. If the heap dump has been
+ * diffed against a baseline, each size column is followed by a column giving
+ * the corresponding size in the baseline. Sizes are null for instances that
+ * exist only in the baseline, and baseline sizes are null for instances that
+ * do not exist in the baseline.
+ */
+class BatchQuery {
+  /**
+   * The supported output formats.
+   */
+  enum Format {
+    JSON,
+    CSV
+  }
+
+  /**
+   * The names of the supported queries.
+   */
+  static final List<String> QUERIES = Arrays.asList(
+      "heaps",      // The total size of each heap.
+      "rooted",     // The instances with the largest retained size.
+      "classes",    // The classes with the largest allocated size.
+      "sites",      // The allocation sites with the largest allocated size.
+      "packages",   // The packages with the largest retained size.
+      "bitmaps",    // Groups of duplicate bitmaps.
+      "duplicates", // Groups of instances with identical contents.
+      "trend",      // The classes and sites with the fastest growing retained size.
+      "suspects",   // The leak suspects found by the trend analysis.
+      "stats");     // The time and memory used by each phase of loading.
+
+  private final AhatSnapshot mSnapshot;
+  private final int mLimit;
+  private final PhaseTimer mTimer;
+
+  /**
+   * Constructs a BatchQuery for running queries against the given snapshot.
+   *
+   * @param snapshot the snapshot to query
+   * @param limit the maximum number of results to report for each query
+   */
+  public BatchQuery(AhatSnapshot snapshot, int limit) {
+    this(snapshot, limit, null);
+  }
+
+  /**
+   * Constructs a BatchQuery for running queries against the given snapshot,
+   * reporting the phases recorded by the given timer for the stats query.
+   *
+   * @param snapshot the snapshot to query
+   * @param limit the maximum number of results to report for each query
+   * @param timer the timer the snapshot was loaded with, may be null
+   */
+  public BatchQuery(AhatSnapshot snapshot, int limit, PhaseTimer timer) {
+    mSnapshot = snapshot;
+    mLimit = limit;
+    mTimer = timer;
+  }
+
+  /**
+   * A table of query results.
+   */
+  static class Table {
+    public final String name;
+    public final List<String> columns = new ArrayList<String>();
+    public final List<List<Object>> rows = new ArrayList<List<Object>>();
+
+    public Table(String name) {
+      this.name = name;
+    }
+
+    List<Object> row() {
+      List<Object> row = new ArrayList<Object>();
+      rows.add(row);
+      return row;
+    }
+  }
+
+  /**
+   * Runs the query with the given name.
+   *
+   * @param query the name of the query to run, one of {@link #QUERIES}
+   * @return the results of the query
+   * @throws IllegalArgumentException if the query is not supported
+   */
+  public Table run(String query) {
+    switch (query) {
+      case "heaps": return heaps();
+      case "rooted": return rooted();
+      case "classes": return classes();
+      case "sites": return sites();
+      case "packages": return packages();
+      case "bitmaps": return bitmaps();
+      case "duplicates": return duplicates();
+      case "trend": return trend();
+      case "suspects": return suspects();
+      case "stats": return stats();
+      default: throw new IllegalArgumentException("Unsupported query: " + query);
+    }
+  }
+
+  /**
+   * Adds a size column, followed by a baseline size column if the snapshot
+   * has been diffed.
+   */
+  private void addSizeColumn(Table table, String name) {
+    table.columns.add(name);
+    if (mSnapshot.isDiffed()) {
+      table.columns.add(name + "_baseline");
+    }
+  }
+
+  /**
+   * Adds the given size and, if the snapshot has been diffed, the given
+   * baseline size to a row. A null size indicates there is no current or
+   * no baseline object for the row.
+   */
+  private void addSize(List<Object> row, Long current, Long baseline) {
+    row.add(current);
+    if (mSnapshot.isDiffed()) {
+      row.add(baseline);
+    }
+  }
+
+  private static <T> List<T> top(List<T> values, Comparator<T> comparator, int limit) {
+    List<T> sorted = new ArrayList<T>(values);
+    Collections.sort(sorted, comparator);
+    return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+  }
+
+  private Table heaps() {
+    Table table = new Table("heaps");
+    table.columns.add("heap");
+    addSizeColumn(table, "size");
+    for (AhatHeap heap : mSnapshot.getHeaps()) {
+      List<Object> row = table.row();
+      row.add(heap.getName());
+      AhatHeap base = heap.getBaseline();
+      addSize(row, heap.isPlaceHolder() ? null : heap.getSize().getSize(),
+          base.isPlaceHolder() ? null : base.getSize().getSize());
+    }
+    return table;
+  }
+
+  private Table rooted() {
+    Table table = new Table("rooted");
+    table.columns.add("id");
+    table.columns.add("heap");
+    table.columns.add("class");
+    table.columns.add("summary");
+    addSizeColumn(table, "size");
+    addSizeColumn(table, "retained");
+
+    Comparator<AhatInstance> compare = Sort.withPriority(
+        Sort.INSTANCE_BY_TOTAL_RETAINED_SIZE,
+        Comparator.comparingLong(AhatInstance::getId));
+    for (AhatInstance inst : top(mSnapshot.getRooted(), compare, mLimit)) {
+      addInstance(table.row(), inst);
+    }
+    return table;
+  }
+
+  /**
+   * Adds columns describing the given instance to a row.
+   */
+  private void addInstance(List<Object> row, AhatInstance inst) {
+    row.add(String.format("0x%x", inst.getId()));
+    row.add(inst.getHeap().getName());
+    row.add(inst.getClassName());
+    row.add(Summarizer.summarize(inst).text());
+
+    AhatInstance base = inst.getBaseline();
+    boolean noCurrent = inst.isPlaceHolder();
+    boolean noBaseline = base.isPlaceHolder();
+    addSize(row, noCurrent ? null : inst.getSize().getSize(),
+        noBaseline ? null : base.getSize().getSize());
+    addSize(row, noCurrent ? null : inst.getTotalRetainedSize().getSize(),
+        noBaseline ? null : base.getTotalRetainedSize().getSize());
+  }
+
+  private Table classes() {
+    Table table = new Table("classes");
+    table.columns.add("heap");
+    table.columns.add("class");
+    addSizeColumn(table, "count");
+    addSizeColumn(table, "size");
+
+    Comparator<Site.ObjectsInfo> compare = Sort.withPriority(
+        Sort.OBJECTS_INFO_BY_SIZE,
+        Sort.OBJECTS_INFO_BY_HEAP_NAME,
+        Sort.OBJECTS_INFO_BY_CLASS_NAME);
+    List<Site.ObjectsInfo> infos = mSnapshot.getRootSite().getObjectsInfos();
+    for (Site.ObjectsInfo info : top(infos, compare, mLimit)) {
+      List<Object> row = table.row();
+      row.add(info.heap.getName());
+      row.add(info.getClassName());
+      Site.ObjectsInfo base = info.getBaseline();
+      addSize(row, info.numInstances, base.numInstances);
+      addSize(row, info.numBytes.getSize(), base.numBytes.getSize());
+    }
+    return table;
+  }
+
+  private Table sites() {
+    Table table = new Table("sites");
+    table.columns.add("id");
+    table.columns.add("depth");
+    table.columns.add("site");
+    addSizeColumn(table, "size");
+
+    // Sizes of sites include the sizes of their children. Report each site
+    // along with its depth in the site tree so the nesting can be recovered.
+    List<Site> sites = new ArrayList<Site>();
+    List<Site> work = new ArrayList<Site>();
+    work.add(mSnapshot.getRootSite());
+    while (!work.isEmpty()) {
+      Site site = work.remove(work.size() - 1);
+      sites.add(site);
+      work.addAll(site.getChildren());
+    }
+
+    Comparator<Site> compare = Sort.withPriority(
+        Sort.SITE_BY_TOTAL_SIZE,
+        Comparator.comparingLong(Site::getId));
+    for (Site site : top(sites, compare, mLimit)) {
+      List<Object> row = table.row();
+      row.add(site.getId());
+      int depth = 0;
+      for (Site parent = site.getParent(); parent != null; parent = parent.getParent()) {
+        depth++;
+      }
+      row.add(depth);
+      row.add(Summarizer.summarize(site).text());
+      Site base = site.getBaseline();
+      addSize(row, site.isPlaceHolder() ? null : site.getTotalSize().getSize(),
+          base.isPlaceHolder() ? null : base.getTotalSize().getSize());
+    }
+    return table;
+  }
+
+  private Table packages() {
+    Table table = new Table("packages");
+    table.columns.add("package");
+    addSizeColumn(table, "count");
+    addSizeColumn(table, "size");
+    addSizeColumn(table, "retained");
+
+    Comparator<ClassIndex.Entry> compare = Sort.withPriority(
+        Sort.CLASS_INDEX_ENTRY_BY_TOTAL_RETAINED_SIZE,
+        Sort.CLASS_INDEX_ENTRY_BY_NAME);
+    List<ClassIndex.Entry> packages = mSnapshot.getClassIndex().getPackages();
+    for (ClassIndex.Entry entry : top(packages, compare, mLimit)) {
+      List<Object> row = table.row();
+      row.add(entry.getName());
+      ClassIndex.Entry base = entry.getBaseline();
+      boolean noCurrent = entry.isPlaceHolder();
+      boolean noBaseline = base.isPlaceHolder();
+      addSize(row, noCurrent ? null : entry.getInstanceCount(),
+          noBaseline ? null : base.getInstanceCount());
+      addSize(row, noCurrent ? null : entry.getSize().getSize(),
+          noBaseline ? null : base.getSize().getSize());
+      addSize(row, noCurrent ? null : entry.getTotalRetainedSize().getSize(),
+          noBaseline ? null : base.getTotalRetainedSize().getSize());
+    }
+    return table;
+  }
+
+  private Table bitmaps() {
+    Table table = new Table("bitmaps");
+    table.columns.add("group");
+    table.columns.add("id");
+    table.columns.add("heap");
+    table.columns.add("class");
+    table.columns.add("summary");
+    addSizeColumn(table, "size");
+    addSizeColumn(table, "retained");
+
+    List<List<AhatBitmapInstance>> duplicates = mSnapshot.findDuplicateBitmaps();
+    if (duplicates != null) {
+      for (int i = 0; i < duplicates.size() && i < mLimit; ++i) {
+        for (AhatBitmapInstance bitmap : duplicates.get(i)) {
+          List<Object> row = table.row();
+          row.add(i);
+          addInstance(row, bitmap);
+        }
+      }
+    }
+    return table;
+  }
+
+  private Table duplicates() {
+    Table table = new Table("duplicates");
+    table.columns.add("kind");
+    table.columns.add("copies");
+    table.columns.add("total");
+    table.columns.add("wasted");
+    table.columns.add("id");
+    table.columns.add("class");
+    table.columns.add("summary");
+
+    List<Duplicates.Group> groups = mSnapshot.getDuplicates().getGroups();
+    for (int i = 0; i < groups.size() && i < mLimit; ++i) {
+      Duplicates.Group group = groups.get(i);
+      AhatInstance example = group.getInstances().get(0);
+      List<Object> row = table.row();
+      row.add(group.getKind().toString());
+      row.add((long)group.getInstances().size());
+      row.add(group.getTotalSize());
+      row.add(group.getWastedSize());
+      row.add(String.format("0x%x", example.getId()));
+      row.add(example.getClassName());
+      row.add(Summarizer.summarize(example).text());
+    }
+    return table;
+  }
+
+  private Table trend() {
+    Table table = new Table("trend");
+    table.columns.add("kind");
+    table.columns.add("name");
+    table.columns.add("count_slope");
+    table.columns.add("retained_slope");
+    table.columns.add("counts");
+    table.columns.add("retained");
+
+    // Report the classes and sites whose retained size grows the fastest,
+    // in that order. Counts and retained sizes are given for each heap dump
+    // of the series, separated by spaces, from oldest to newest.
+    Trend trend = mSnapshot.getTrend();
+    if (trend != null) {
+      addSeries(table, "class", trend.getClasses(), trend.getSnapshotCount());
+      addSeries(table, "site", trend.getSites(), trend.getSnapshotCount());
+    }
+    return table;
+  }
+
+  private void addSeries(Table table, String kind, List<Trend.Series> series, int snapshots) {
+    for (int i = 0; i < series.size() && i < mLimit; ++i) {
+      Trend.Series s = series.get(i);
+      StringBuilder counts = new StringBuilder();
+      StringBuilder retained = new StringBuilder();
+      for (int j = 0; j < snapshots; ++j) {
+        counts.append(j == 0 ? "" : " ").append(s.getInstanceCount(j));
+        retained.append(j == 0 ? "" : " ").append(s.getRetainedSize(j));
+      }
+
+      List<Object> row = table.row();
+      row.add(kind);
+      row.add(s.getSite() == null ? s.getName() : Summarizer.summarize(s.getSite()).text());
+      row.add(s.getInstanceCountSlope());
+      row.add(s.getRetainedSizeSlope());
+      row.add(counts.toString());
+      row.add(retained.toString());
+    }
+  }
+
+  private Table suspects() {
+    Table table = new Table("suspects");
+    table.columns.add("id");
+    table.columns.add("heap");
+    table.columns.add("class");
+    table.columns.add("summary");
+    addSizeColumn(table, "size");
+    addSizeColumn(table, "retained");
+
+    Trend trend = mSnapshot.getTrend();
+    if (trend != null) {
+      List<AhatInstance> suspects = trend.getLeakSuspects();
+      for (int i = 0; i < suspects.size() && i < mLimit; ++i) {
+        addInstance(table.row(), suspects.get(i));
+      }
+    }
+    return table;
+  }
+
+  private Table stats() {
+    Table table = new Table("stats");
+    table.columns.add("source");
+    table.columns.add("phase");
+    table.columns.add("wall_ns");
+    table.columns.add("cpu_ns");
+    table.columns.add("allocated");
+    table.columns.add("peak_heap");
+
+    // Measurements that are not supported are reported as null.
+    if (mTimer != null) {
+      List<PhaseTimer.Phase> phases = mTimer.getPhases();
+      for (int i = 0; i < phases.size() && i < mLimit; ++i) {
+        PhaseTimer.Phase phase = phases.get(i);
+        List<Object> row = table.row();
+        row.add(phase.getSource());
+        row.add(phase.getDescription());
+        row.add(phase.getWallTime());
+        row.add(phase.getCpuTime() < 0 ? null : phase.getCpuTime());
+        row.add(phase.getAllocatedBytes() < 0 ? null : phase.getAllocatedBytes());
+        row.add(phase.getPeakHeapBytes());
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Prints the given tables in the given format.
+   */
+  static void print(PrintStream out, Format format, List<Table> tables) {
+    switch (format) {
+      case JSON: printJson(out, tables); break;
+      case CSV: printCsv(out, tables); break;
+      default: throw new AssertionError("unsupported enum member");
+    }
+  }
+
+  /**
+   * Prints the tables as a JSON object with a member for each table. Each
+   * table is printed as an array of objects, one for each row, with a member
+   * for each column.
+   */
+  private static void printJson(PrintStream out, List<Table> tables) {
+    out.println("{");
+    for (int t = 0; t < tables.size(); ++t) {
+      Table table = tables.get(t);
+      out.print("  " + jsonValue(table.name) + ": [");
+      for (int r = 0; r < table.rows.size(); ++r) {
+        List<Object> row = table.rows.get(r);
+        out.print(r == 0 ? "\n    {" : ",\n    {");
+        for (int c = 0; c < row.size(); ++c) {
+          out.print(c == 0 ? "" : ", ");
+          out.print(jsonValue(table.columns.get(c)) + ": " + jsonValue(row.get(c)));
+        }
+        out.print("}");
+      }
+      out.print(table.rows.isEmpty() ? "]" : "\n  ]");
+      out.println(t + 1 < tables.size() ? "," : "");
+    }
+    out.println("}");
+  }
+
+  private static String jsonValue(Object value) {
+    if (value == null) {
+      return "null";
+    }
+    if (value instanceof Number) {
+      return value.toString();
+    }
+
+    String str = value.toString();
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < str.length(); ++i) {
+      char c = str.charAt(i);
+      switch (c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int)c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Prints the tables as CSV. Each table is printed with a header row, and
+   * the name of the table as its first column. Tables are separated by an
+   * empty line.
+   */
+  private static void printCsv(PrintStream out, List<Table> tables) {
+    for (int t = 0; t < tables.size(); ++t) {
+      Table table = tables.get(t);
+      if (t > 0) {
+        out.println();
+      }
+      out.print("query");
+      for (String column : table.columns) {
+        out.print("," + csvValue(column));
+      }
+      out.println();
+      for (List<Object> row : table.rows) {
+        out.print(csvValue(table.name));
+        for (Object value : row) {
+          out.print("," + csvValue(value));
+        }
+        out.println();
+      }
+    }
+  }
+
+  private static String csvValue(Object value) {
+    if (value == null) {
+      return "";
+    }
+
+    String str = value.toString();
+    if (str.indexOf(',') < 0 && str.indexOf('"') < 0
+        && str.indexOf('\n') < 0 && str.indexOf('\r') < 0) {
+      return str;
+    }
+    return "\"" + str.replace("\"", "\"\"") + "\"";
+  }
+}
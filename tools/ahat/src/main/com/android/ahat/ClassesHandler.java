@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.ClassIndex;
+import com.android.ahat.heapdump.Sort;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows the sizes retained by classes, class hierarchies or packages.
+ */
+class ClassesHandler implements AhatHandler {
+  private static final String CLASSES_ID = "classes";
+
+  private AhatSnapshot mSnapshot;
+
+  public ClassesHandler(AhatSnapshot snapshot) {
+    mSnapshot = snapshot;
+  }
+
+  @Override
+  public void handle(Doc doc, Query query) throws IOException {
+    String by = query.get("by", "class");
+    ClassIndex index = mSnapshot.getClassIndex();
+    List<ClassIndex.Entry> entries;
+    String description;
+    switch (by) {
+      case "hierarchy":
+        entries = index.getHierarchies();
+        description = "Class Hierarchy";
+        break;
+
+      case "package":
+        entries = index.getPackages();
+        description = "Package";
+        break;
+
+      default:
+        by = "class";
+        entries = index.getClasses();
+        description = "Class";
+        break;
+    }
+
+    doc.title("Classes");
+
+    // Write a description of the current grouping, with links to change it:
+    //    Group by:   class (switch to hierarchy, package)
+    DocString byChoice = DocString.text(by);
+    byChoice.append(" (switch to ");
+    String comma = "";
+    for (String choice : Arrays.asList("class", "hierarchy", "package")) {
+      if (!choice.equals(by)) {
+        byChoice.append(comma);
+        byChoice.appendLink(query.with("by", choice), DocString.text(choice));
+        comma = ", ";
+      }
+    }
+    byChoice.append(")");
+    doc.descriptions();
+    doc.description(DocString.text("Group by"), byChoice);
+    doc.end();
+    doc.println(DocString.text(""));
+
+    if (entries.isEmpty()) {
+      doc.println(DocString.text("(none)"));
+      return;
+    }
+
+    entries = new ArrayList<ClassIndex.Entry>(entries);
+    Collections.sort(entries, Sort.withPriority(
+          Sort.CLASS_INDEX_ENTRY_BY_TOTAL_RETAINED_SIZE,
+          Sort.CLASS_INDEX_ENTRY_BY_NAME));
+
+    final String groupBy = by;
+    HeapTable.TableConfig<ClassIndex.Entry> table = new HeapTable.TableConfig<ClassIndex.Entry>() {
+      public String getHeapsDescription() {
+        return "Bytes Retained by Heap";
+      }
+
+      public long getSize(ClassIndex.Entry element, AhatHeap heap) {
+        return element.getRetainedSize(heap).getSize();
+      }
+
+      public List<HeapTable.ValueConfig<ClassIndex.Entry>> getValueConfigs() {
+        HeapTable.ValueConfig<ClassIndex.Entry> count
+          = new HeapTable.ValueConfig<ClassIndex.Entry>() {
+          public String getDescription() {
+            return "Instances";
+          }
+
+          public DocString render(ClassIndex.Entry element) {
+            return DocString.format("%,d", element.getInstanceCount());
+          }
+        };
+
+        HeapTable.ValueConfig<ClassIndex.Entry> shallow
+          = new HeapTable.ValueConfig<ClassIndex.Entry>() {
+          public String getDescription() {
+            return "Shallow Size";
+          }
+
+          public DocString render(ClassIndex.Entry element) {
+            return DocString.size(element.getSize().getSize(), element.isPlaceHolder());
+          }
+        };
+
+        HeapTable.ValueConfig<ClassIndex.Entry> name
+          = new HeapTable.ValueConfig<ClassIndex.Entry>() {
+          public String getDescription() {
+            return description;
+          }
+
+          public DocString render(ClassIndex.Entry element) {
+            switch (groupBy) {
+              case "class":
+                return DocString.link(
+                    DocString.formattedUri("objects?class=%s", element.getName()),
+                    DocString.text(element.getName()));
+
+              case "hierarchy":
+                return DocString.link(
+                    DocString.formattedUri("objects?class=%s&subclass=1", element.getName()),
+                    DocString.text(element.getName()));
+
+              default:
+                return DocString.text(element.getName().isEmpty()
+                    ? "(default package)"
+                    : element.getName());
+            }
+          }
+        };
+        return Arrays.asList(count, shallow, name);
+      }
+    };
+    HeapTable.render(doc, query, CLASSES_ID, table, mSnapshot, entries);
+  }
+}
@@ -26,8 +26,13 @@ import java.net.URISyntaxException;
 class DocString {
   private StringBuilder mStringBuilder;
 
+  // The plain text content of the DocString, without markup, links or
+  // images.
+  private StringBuilder mTextBuilder;
+
   public DocString() {
     mStringBuilder = new StringBuilder();
+    mTextBuilder = new StringBuilder();
   }
 
   /**
@@ -67,6 +72,7 @@ class DocString {
    */
   public DocString append(String text) {
     mStringBuilder.append(HtmlEscaper.escape(text));
+    mTextBuilder.append(text);
     return this;
   }
 
@@ -81,6 +87,7 @@ class DocString {
 
   public DocString append(DocString str) {
     mStringBuilder.append(str.html());
+    mTextBuilder.append(str.text());
     return this;
   }
 
@@ -93,6 +100,7 @@ class DocString {
     string.mStringBuilder.append("<span class=\"added\">");
     string.mStringBuilder.append(str.html());
     string.mStringBuilder.append("</span>");
+    string.mTextBuilder.append(str.text());
     return string;
   }
 
@@ -113,6 +121,7 @@ class DocString {
     string.mStringBuilder.append("<span class=\"removed\">");
     string.mStringBuilder.append(str.html());
     string.mStringBuilder.append("</span>");
+    string.mTextBuilder.append(str.text());
     return string;
   }
 
@@ -179,6 +188,7 @@ class DocString {
     mStringBuilder.append("\">");
     mStringBuilder.append(content.html());
     mStringBuilder.append("</a>");
+    mTextBuilder.append(content.text());
     return this;
   }
 
@@ -226,4 +236,12 @@ class DocString {
   public String html() {
     return mStringBuilder.toString();
   }
+
+  /**
+   * Render the DocString as plain text. Links are rendered as their content
+   * and images are omitted.
+   */
+  public String text() {
+    return mTextBuilder.toString();
+  }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Duplicates;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows groups of strings, primitive arrays and bitmaps with identical
+ * contents, from most to least wasted bytes.
+ */
+class DuplicatesHandler implements AhatHandler {
+  private static final String DUPLICATES_ID = "duplicates";
+
+  private AhatSnapshot mSnapshot;
+
+  public DuplicatesHandler(AhatSnapshot snapshot) {
+    mSnapshot = snapshot;
+  }
+
+  @Override
+  public void handle(Doc doc, Query query) throws IOException {
+    Duplicates duplicates = mSnapshot.getDuplicates();
+    String kindName = query.get("kind", null);
+
+    doc.title("Duplicates");
+
+    // Summarize the wasted bytes of each kind, with links to show only the
+    // groups of that kind.
+    doc.descriptions();
+    long total = 0;
+    for (Duplicates.Kind kind : Duplicates.Kind.values()) {
+      long wasted = duplicates.getWastedSize(kind);
+      total += wasted;
+      doc.description(
+          DocString.link(query.with("kind", kind.toString()), DocString.text(kind.toString())),
+          DocString.format("%,d bytes wasted", wasted));
+    }
+    doc.description(
+        DocString.link(query.with("kind", null), DocString.text("all")),
+        DocString.format("%,d bytes wasted", total));
+    doc.end();
+
+    List<Duplicates.Group> groups = new ArrayList<Duplicates.Group>();
+    for (Duplicates.Group group : duplicates.getGroups()) {
+      if (kindName == null || group.getKind().toString().equals(kindName)) {
+        groups.add(group);
+      }
+    }
+
+    doc.section(kindName == null ? "Duplicates" : "Duplicate " + kindName + "s");
+    if (groups.isEmpty()) {
+      doc.println(DocString.text("(none)"));
+      return;
+    }
+
+    doc.table(
+        new Column("Wasted", Column.Align.RIGHT),
+        new Column("Copies", Column.Align.RIGHT),
+        new Column("Total", Column.Align.RIGHT),
+        new Column("Kind"),
+        new Column("Example"));
+    SubsetSelector<Duplicates.Group> selector
+      = new SubsetSelector(query, DUPLICATES_ID, groups);
+    for (Duplicates.Group group : selector.selected()) {
+      doc.row(
+          DocString.format("%,d", group.getWastedSize()),
+          DocString.format("%,d", group.getInstances().size()),
+          DocString.format("%,d", group.getTotalSize()),
+          DocString.text(group.getKind().toString()),
+          Summarizer.summarize(group.getInstances().get(0)));
+    }
+    doc.end();
+    selector.render(doc);
+  }
+}
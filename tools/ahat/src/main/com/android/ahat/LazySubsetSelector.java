@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * A SubsetSelector for elements that are too expensive to collect in full.
+ * Only the selected elements are requested, so unlike SubsetSelector, there
+ * is no way to get the remaining elements.
+ */
+class LazySubsetSelector<T> {
+  private Query mQuery;
+  private String mId;
+  private int mLimit;
+  private int mSize;
+  private List<T> mSelected;
+
+  /**
+   * @param query - The query for the current page.
+   * @param id - the name of the query parameter key that should hold
+   * the limit selectors selected value.
+   * @param size - the total number of elements to select from.
+   * @param first - returns the first n elements to select from, for a given
+   * n no greater than size.
+   */
+  public LazySubsetSelector(Query query, String id, int size, IntFunction<List<T>> first) {
+    mQuery = query;
+    mId = id;
+    mLimit = SubsetSelector.getSelectedLimit(query, id, size);
+    mSize = size;
+    mSelected = first.apply(mLimit);
+  }
+
+  // Return the list of elements included in the selected subset.
+  public List<T> selected() {
+    return mSelected;
+  }
+
+  // Render the limit selector to the given doc.
+  public void render(Doc doc) {
+    SubsetSelector.render(doc, mQuery, mId, mLimit, mSize);
+  }
+}
@@ -21,6 +21,8 @@ import com.android.ahat.heapdump.Diff;
 import com.android.ahat.heapdump.HprofFormatException;
 import com.android.ahat.heapdump.Parser;
 import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Trend;
+import com.android.ahat.progress.PhaseTimer;
 import com.android.ahat.progress.Progress;
 import com.android.ahat.proguard.ProguardMap;
 import com.sun.net.httpserver.HttpServer;
@@ -30,18 +32,27 @@ import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Executors;
 
 /**
  * Contains the main entry point for the ahat heap dump viewer.
  */
 public class Main {
+  // The maximum total size of rendered pages to keep cached in memory.
+  private static final long PAGE_CACHE_BYTES = 64L * 1024 * 1024;
+
   private Main() {
   }
 
   private static void help(PrintStream out) {
     out.println("java -jar ahat.jar [OPTIONS] FILE");
     out.println("  Launch an http server for viewing the given Android heap dump FILE.");
+    out.println("  If --query is given, run the queries and print the results instead.");
+    out.println("  Heap dump files may be gzip compressed. Compressed heap dumps are");
+    out.println("  decompressed to a temporary file in the java.io.tmpdir directory.");
     out.println("");
     out.println("OPTIONS:");
     out.println("  -p <port>");
@@ -52,9 +63,50 @@ public class Main {
     out.println("     Diff the heap dump against the given baseline heap dump FILE.");
     out.println("  --baseline-proguard-map FILE");
     out.println("     Use the proguard map FILE to deobfuscate the baseline heap dump.");
+    out.println("  --trend FILE");
+    out.println("     Analyze the growth of the given earlier heap dump FILE of the same");
+    out.println("     process up to the heap dump being viewed, to help find leaks.");
+    out.println("     May be given multiple times, from the oldest heap dump to the newest.");
+    out.println("     The proguard map given by --proguard-map is used for all of them.");
     out.println("  --retained [strong | soft | finalizer | weak | phantom | unreachable]");
     out.println("     The weakest reachability of instances to treat as retained.");
     out.println("     Defaults to soft");
+    out.println("  --threads <n>");
+    out.println("     The number of threads to use for processing the heap dump and for");
+    out.println("     handling http requests.");
+    out.println("     Defaults to the number of available processors.");
+    out.println("  --lazy-gc-root-fields");
+    out.println("     Recompute the field descriptions along paths from gc roots on");
+    out.println("     demand rather than storing them for every instance, to reduce");
+    out.println("     memory use for very large heap dumps.");
+    out.println("  --no-cache");
+    out.println("     Do not read or write the analysis cache FILE.ahatidx kept next to");
+    out.println("     each heap dump FILE to speed up opening the same heap dump again.");
+    out.println("     The cache holds the reachability, dominators and retained sizes;");
+    out.println("     the heap dump itself is still read each time it is opened.");
+    out.println("  --query QUERY[,QUERY...]");
+    out.println("     Run the given queries against the heap dump and print the results");
+    out.println("     without launching the http server. Supported queries are:");
+    out.println("       heaps    the total size of each heap");
+    out.println("       rooted   the instances with the largest retained size");
+    out.println("       classes  the classes with the largest allocated size");
+    out.println("       sites    the allocation sites with the largest allocated size");
+    out.println("       packages the packages with the largest retained size");
+    out.println("       bitmaps  groups of duplicate bitmaps");
+    out.println("       duplicates");
+    out.println("                groups of strings, arrays and bitmaps with identical contents");
+    out.println("       trend    the classes and sites with the fastest growing retained size");
+    out.println("                over the heap dumps given by --trend");
+    out.println("       suspects the leak suspects found over the heap dumps given by --trend");
+    out.println("       stats    the time and memory used by each phase of loading the heap");
+    out.println("                dumps, to track the performance of ahat itself");
+    out.println("  --format [json | csv]");
+    out.println("     The format to print query results in. Defaults to json.");
+    out.println("  --top <n>");
+    out.println("     The maximum number of results to print for each query.");
+    out.println("     Defaults to 100.");
+    out.println("  -o FILE");
+    out.println("     Print query results to FILE instead of standard output.");
     out.println("");
   }
 
@@ -64,10 +116,18 @@ public class Main {
    * heap dump.
    */
   private static AhatSnapshot loadHeapDump(File hprof,
-      ProguardMap map, Progress progress, Reachability retained) {
-    System.out.println("Processing '" + hprof + "' ...");
+      ProguardMap map, PrintStream log, PhaseTimer timer, Reachability retained, int threads,
+      boolean lazyGcRootFields, boolean cache) {
+    log.println("Processing '" + hprof + "' ...");
     try {
-      return new Parser(hprof).map(map).progress(progress).retained(retained).parse();
+      return new Parser(hprof)
+          .cache(cache ? new File(hprof.getPath() + ".ahatidx") : null)
+          .map(map)
+          .progress(timer.wrap(hprof.getName(), new AsciiProgress(log)))
+          .retained(retained)
+          .threads(threads)
+          .lazyGcRootFields(lazyGcRootFields)
+          .parse();
     } catch (IOException e) {
       System.err.println("Unable to load '" + hprof + "':");
       e.printStackTrace();
@@ -79,6 +139,43 @@ public class Main {
     throw new AssertionError("Unreachable");
   }
 
+  /**
+   * Load the given heap dump file, after analyzing the trend of the given
+   * earlier heap dumps of the same process leading up to it. Only one of
+   * the earlier heap dumps is kept loaded at a time.
+   */
+  private static AhatSnapshot loadHeapDumps(File hprof, List<File> trend,
+      ProguardMap map, PrintStream log, PhaseTimer timer, Reachability retained, int threads,
+      boolean lazyGcRootFields, boolean cache) {
+    if (trend.isEmpty()) {
+      return loadHeapDump(hprof, map, log, timer, retained, threads, lazyGcRootFields,
+          cache);
+    }
+
+    Trend.Builder builder = new Trend.Builder();
+    for (File file : trend) {
+      builder.add(loadHeapDump(file, map, log, timer, retained, threads,
+          lazyGcRootFields, cache));
+    }
+    AhatSnapshot ahat = loadHeapDump(hprof, map, log, timer, retained, threads,
+        lazyGcRootFields, cache);
+    log.println("Analyzing trend of " + (trend.size() + 1) + " heap dumps ...");
+    builder.add(ahat).build();
+    return ahat;
+  }
+
+  /**
+   * Diff the given heap dump against the given baseline heap dump, recording
+   * the time taken as a phase of the given heap dump.
+   */
+  private static void diffHeapDumps(AhatSnapshot ahat, AhatSnapshot base, File hprof,
+      PrintStream log, PhaseTimer timer, int threads) {
+    Progress progress = timer.wrap(hprof.getName(), new AsciiProgress(log));
+    progress.start("Diffing heap dumps", 1);
+    Diff.snapshots(ahat, base, threads);
+    progress.done();
+  }
+
   /**
    * Main entry for ahat heap dump viewer.
    * Launches an http server on localhost for viewing a given heap dump.
@@ -98,29 +195,30 @@ public class Main {
 
     File hprof = null;
     File hprofbase = null;
-    ProguardMap map = new ProguardMap();
-    ProguardMap mapbase = new ProguardMap();
+    List<File> mapFiles = new ArrayList<File>();
+    List<File> mapbaseFiles = new ArrayList<File>();
+    List<File> trend = new ArrayList<File>();
     Reachability retained = Reachability.SOFT;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean lazyGcRootFields = false;
+    boolean cache = true;
+    List<String> queries = null;
+    BatchQuery.Format format = BatchQuery.Format.JSON;
+    int top = 100;
+    File output = null;
     for (int i = 0; i < args.length; i++) {
       if ("-p".equals(args[i]) && i + 1 < args.length) {
         i++;
         port = Integer.parseInt(args[i]);
       } else if ("--proguard-map".equals(args[i]) && i + 1 < args.length) {
         i++;
-        try {
-          map.readFromFile(new File(args[i]));
-        } catch (IOException | ParseException ex) {
-          System.out.println("Unable to read proguard map: " + ex);
-          System.out.println("The proguard map will not be used.");
-        }
+        mapFiles.add(new File(args[i]));
       } else if ("--baseline-proguard-map".equals(args[i]) && i + 1 < args.length) {
         i++;
-        try {
-          mapbase.readFromFile(new File(args[i]));
-        } catch (IOException | ParseException ex) {
-          System.out.println("Unable to read baseline proguard map: " + ex);
-          System.out.println("The proguard map will not be used.");
-        }
+        mapbaseFiles.add(new File(args[i]));
+      } else if ("--trend".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        trend.add(new File(args[i]));
       } else if ("--baseline".equals(args[i]) && i + 1 < args.length) {
         i++;
         if (hprofbase != null) {
@@ -143,6 +241,49 @@ public class Main {
             help(System.err);
             return;
         }
+      } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        threads = Integer.parseInt(args[i]);
+        if (threads < 1) {
+          System.err.println("Invalid number of threads: " + args[i]);
+          help(System.err);
+          return;
+        }
+      } else if ("--lazy-gc-root-fields".equals(args[i])) {
+        lazyGcRootFields = true;
+      } else if ("--no-cache".equals(args[i])) {
+        cache = false;
+      } else if ("--query".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        queries = Arrays.asList(args[i].split(","));
+        for (String query : queries) {
+          if (!BatchQuery.QUERIES.contains(query)) {
+            System.err.println("Invalid query: " + query);
+            help(System.err);
+            return;
+          }
+        }
+      } else if ("--format".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        switch (args[i]) {
+          case "json": format = BatchQuery.Format.JSON; break;
+          case "csv": format = BatchQuery.Format.CSV; break;
+          default:
+            System.err.println("Invalid format: " + args[i]);
+            help(System.err);
+            return;
+        }
+      } else if ("--top".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        top = Integer.parseInt(args[i]);
+        if (top < 0) {
+          System.err.println("Invalid number of results: " + args[i]);
+          help(System.err);
+          return;
+        }
+      } else if ("-o".equals(args[i]) && i + 1 < args.length) {
+        i++;
+        output = new File(args[i]);
       } else {
         if (hprof != null) {
           System.err.println("multiple input files.");
@@ -153,12 +294,69 @@ public class Main {
       }
     }
 
+    // Keep standard output for the query results, unless they are written to
+    // a file.
+    PrintStream log = queries != null && output == null ? System.err : System.out;
+
+    // The proguard maps are read once all the arguments are known, so that
+    // they can be parsed using the requested number of threads.
+    ProguardMap map = new ProguardMap();
+    for (File mapFile : mapFiles) {
+      try {
+        map.readFromFile(mapFile, threads);
+      } catch (IOException | ParseException ex) {
+        log.println("Unable to read proguard map: " + ex);
+        log.println("The proguard map will not be used.");
+      }
+    }
+
+    ProguardMap mapbase = new ProguardMap();
+    for (File mapFile : mapbaseFiles) {
+      try {
+        mapbase.readFromFile(mapFile, threads);
+      } catch (IOException | ParseException ex) {
+        log.println("Unable to read baseline proguard map: " + ex);
+        log.println("The proguard map will not be used.");
+      }
+    }
+
     if (hprof == null) {
       System.err.println("no input file.");
       help(System.err);
       return;
     }
 
+    PhaseTimer timer = new PhaseTimer();
+    if (queries != null) {
+      AhatSnapshot ahat = loadHeapDumps(hprof, trend, map, log, timer, retained, threads,
+          lazyGcRootFields, cache);
+      if (hprofbase != null) {
+        AhatSnapshot base = loadHeapDump(hprofbase, mapbase, log, timer, retained, threads,
+            lazyGcRootFields, cache);
+        diffHeapDumps(ahat, base, hprof, log, timer, threads);
+      }
+
+      BatchQuery batch = new BatchQuery(ahat, top, timer);
+      List<BatchQuery.Table> results = new ArrayList<BatchQuery.Table>();
+      for (String query : queries) {
+        results.add(batch.run(query));
+      }
+
+      if (output == null) {
+        BatchQuery.print(System.out, format, results);
+        System.out.flush();
+      } else {
+        try (PrintStream out = new PrintStream(output, "UTF-8")) {
+          BatchQuery.print(out, format, results);
+        } catch (IOException e) {
+          System.err.println("Unable to write '" + output + "':");
+          e.printStackTrace();
+          System.exit(1);
+        }
+      }
+      return;
+    }
+
     // Launch the server before parsing the hprof file so we get
     // BindExceptions quickly.
     InetAddress loopback = InetAddress.getLoopbackAddress();
@@ -173,23 +371,31 @@ public class Main {
       System.exit(1);
     }
 
-    AhatSnapshot ahat = loadHeapDump(hprof, map, new AsciiProgress(), retained);
+    AhatSnapshot ahat = loadHeapDumps(hprof, trend, map, System.out, timer, retained, threads,
+        lazyGcRootFields, cache);
     if (hprofbase != null) {
-      AhatSnapshot base = loadHeapDump(hprofbase, mapbase, new AsciiProgress(), retained);
-
-      System.out.println("Diffing heap dumps ...");
-      Diff.snapshots(ahat, base);
+      AhatSnapshot base = loadHeapDump(hprofbase, mapbase, System.out, timer, retained, threads,
+          lazyGcRootFields, cache);
+      diffHeapDumps(ahat, base, hprof, System.out, timer, threads);
     }
 
+    // The snapshot does not change once loaded, so requests can be handled
+    // concurrently and the rendered pages can be cached.
+    PageCache pages = new PageCache(PAGE_CACHE_BYTES);
     server.createContext("/",
-        new AhatHttpHandler(new OverviewHandler(ahat, hprof, hprofbase, retained)));
-    server.createContext("/rooted", new AhatHttpHandler(new RootedHandler(ahat)));
-    server.createContext("/object", new AhatHttpHandler(new ObjectHandler(ahat)));
-    server.createContext("/objects", new AhatHttpHandler(new ObjectsHandler(ahat)));
-    server.createContext("/site", new AhatHttpHandler(new SiteHandler(ahat)));
+        new AhatHttpHandler(new OverviewHandler(ahat, hprof, hprofbase, retained), pages));
+    server.createContext("/rooted", new AhatHttpHandler(new RootedHandler(ahat), pages));
+    server.createContext("/object", new AhatHttpHandler(new ObjectHandler(ahat), pages));
+    server.createContext("/objects", new AhatHttpHandler(new ObjectsHandler(ahat), pages));
+    server.createContext("/site", new AhatHttpHandler(new SiteHandler(ahat), pages));
+    server.createContext("/classes", new AhatHttpHandler(new ClassesHandler(ahat), pages));
+    server.createContext("/duplicates",
+        new AhatHttpHandler(new DuplicatesHandler(ahat), pages));
+    server.createContext("/trend", new AhatHttpHandler(new TrendHandler(ahat), pages));
+    server.createContext("/stats", new AhatHttpHandler(new StatsHandler(timer), pages));
     server.createContext("/bitmap", new BitmapHandler(ahat));
     server.createContext("/style.css", new StaticHandler("etc/style.css", "text/css"));
-    server.setExecutor(Executors.newFixedThreadPool(1));
+    server.setExecutor(Executors.newFixedThreadPool(threads));
     System.out.println("Server started on http://localhost:" + port);
 
     server.start();
@@ -20,10 +20,8 @@ import com.android.ahat.heapdump.AhatHeap;
 import com.android.ahat.heapdump.AhatInstance;
 import com.android.ahat.heapdump.AhatSnapshot;
 import com.android.ahat.heapdump.Site;
-import com.android.ahat.heapdump.Sort;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.function.Predicate;
 
@@ -32,10 +30,20 @@ class ObjectsHandler implements AhatHandler {
 
   private AhatSnapshot mSnapshot;
 
+  // Index of instances by class, built on first use.
+  private ObjectsIndex mIndex;
+
   public ObjectsHandler(AhatSnapshot snapshot) {
     mSnapshot = snapshot;
   }
 
+  private synchronized ObjectsIndex getIndex() {
+    if (mIndex == null) {
+      mIndex = new ObjectsIndex(mSnapshot);
+    }
+    return mIndex;
+  }
+
   /**
    * Get the list of instances that match the given site, class, and heap
    * filters. This method is public to facilitate testing.
@@ -67,8 +75,7 @@ class ObjectsHandler implements AhatHandler {
     boolean subclass = (query.getInt("subclass", 0) != 0);
     Site site = mSnapshot.getSite(id);
 
-    List<AhatInstance> insts = getObjects(site, className, subclass, heapName);
-    Collections.sort(insts, Sort.defaultInstanceCompare(mSnapshot));
+    ObjectsIndex.Selection insts = getIndex().select(site, className, subclass, heapName);
 
     doc.title("Instances");
 
@@ -115,14 +122,15 @@ class ObjectsHandler implements AhatHandler {
     doc.end();
     doc.println(DocString.text(""));
 
-    if (insts.isEmpty()) {
+    if (insts.size() == 0) {
       doc.println(DocString.text("(none)"));
     } else {
       SizeTable.table(doc, mSnapshot.isDiffed(),
           new Column("Heap"),
           new Column("Object"));
 
-      SubsetSelector<AhatInstance> selector = new SubsetSelector(query, OBJECTS_ID, insts);
+      LazySubsetSelector<AhatInstance> selector
+        = new LazySubsetSelector<AhatInstance>(query, OBJECTS_ID, insts.size(), insts::first);
       for (AhatInstance inst : selector.selected()) {
         AhatInstance base = inst.getBaseline();
         SizeTable.row(doc, inst.getSize(), base.getSize(),
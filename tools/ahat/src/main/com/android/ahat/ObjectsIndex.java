@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatClassObj;
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Site;
+import com.android.ahat.heapdump.Sort;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An index of the instances of a snapshot by class and heap, used to select
+ * the instances matching a site, class and heap filter without collecting
+ * and sorting every matching instance for every request.
+ * <p>
+ * The instances of each class and heap are sorted once by
+ * {@link Sort#defaultInstanceCompare}, and are also indexed by the id of the
+ * site they are listed under. Site ids are assigned in preorder, so the
+ * instances of a class and heap under a given site are found with a binary
+ * search, and are counted without visiting them. The first instances
+ * matching a filter are found by merging the sorted instances of the
+ * matching classes under each matching site, so the cost of a request
+ * depends on the number of instances shown rather than the number of
+ * instances matching the filter. Instances are returned in the same order as
+ * sorting all matching instances in the order they are visited by
+ * {@link Site#getObjects}, except that ties in the sort order between
+ * instances of different classes or heaps are broken by the order in which
+ * their class and heap are first visited.
+ * <p>
+ * Recently used selections are cached, along with the instances they have
+ * returned so far, so that showing more instances of the same selection only
+ * costs the additional instances shown.
+ * <p>
+ * Once constructed, the index is safe to use from multiple threads.
+ */
+class ObjectsIndex {
+  // The maximum number of selections to cache.
+  private static final int MAX_CACHED_SELECTIONS = 16;
+
+  private final Comparator<AhatInstance> mCompare;
+
+  // Instances of the same class on the same heap, in sorted order. Groups
+  // are ordered by when their first instance is visited, with groups of
+  // instances without a class object last.
+  private final List<Group> mGroups = new ArrayList<Group>();
+
+  // Recently used selections, keyed by the arguments to select, from least
+  // to most recently used.
+  private final Map<List<Object>, Selection> mSelections
+    = new LinkedHashMap<List<Object>, Selection>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<Object>, Selection> eldest) {
+        return size() > MAX_CACHED_SELECTIONS;
+      }
+    };
+
+  /**
+   * Instances of a single class and heap, sorted by mCompare.
+   */
+  private static class Group {
+    public final int index;
+
+    // The class of the instances, or null for instances without a class
+    // object, such as placeholder instances. Those are grouped by class name
+    // instead.
+    public final AhatClassObj classObj;
+    public final String className;
+    public final AhatHeap heap;
+    public final AhatInstance[] instances;
+
+    // The distinct ids of the sites of the instances, in increasing order.
+    public final long[] siteIds;
+
+    // The positions in instances of the instances of each site, in order of
+    // site id and then position. The positions for siteIds[i] are
+    // bySite[siteStarts[i]] up to but excluding bySite[siteStarts[i + 1]].
+    public final int[] bySite;
+    public final int[] siteStarts;
+
+    public Group(int index, AhatClassObj classObj, String className, AhatHeap heap,
+        AhatInstance[] instances) {
+      this.index = index;
+      this.classObj = classObj;
+      this.className = className;
+      this.heap = heap;
+      this.instances = instances;
+
+      // Sort the positions by site id, packing the site id and position of
+      // each instance into a single long so they can be sorted as
+      // primitives.
+      long[] keys = new long[instances.length];
+      for (int i = 0; i < instances.length; ++i) {
+        keys[i] = (siteOf(instances[i]).getId() << 32) | i;
+      }
+      Arrays.sort(keys);
+
+      int numSites = 0;
+      bySite = new int[instances.length];
+      for (int i = 0; i < keys.length; ++i) {
+        bySite[i] = (int)keys[i];
+        if (i == 0 || (keys[i] >>> 32) != (keys[i - 1] >>> 32)) {
+          numSites++;
+        }
+      }
+
+      siteIds = new long[numSites];
+      siteStarts = new int[numSites + 1];
+      int site = 0;
+      for (int i = 0; i < keys.length; ++i) {
+        if (i == 0 || (keys[i] >>> 32) != (keys[i - 1] >>> 32)) {
+          siteIds[site] = keys[i] >>> 32;
+          siteStarts[site] = i;
+          site++;
+        }
+      }
+      siteStarts[numSites] = keys.length;
+    }
+
+    /**
+     * Returns the index in siteIds of the first site with an id not less
+     * than the given id.
+     */
+    public int siteIndex(long id) {
+      int index = Arrays.binarySearch(siteIds, id);
+      return index < 0 ? -index - 1 : index;
+    }
+  }
+
+  /**
+   * Builds an index of all the instances of the given snapshot.
+   */
+  public ObjectsIndex(AhatSnapshot snapshot) {
+    mCompare = Sort.defaultInstanceCompare(snapshot);
+
+    // Group the instances, keeping them in the order they are visited.
+    Map<AhatHeap, Map<AhatClassObj, List<AhatInstance>>> byHeap = new HashMap<>();
+    Map<AhatHeap, Map<String, List<AhatInstance>>> othersByHeap = new HashMap<>();
+    List<List<AhatInstance>> lists = new ArrayList<List<AhatInstance>>();
+    List<List<AhatInstance>> othersLists = new ArrayList<List<AhatInstance>>();
+    snapshot.getRootSite().getObjects(x -> true, inst -> {
+      AhatClassObj classObj = inst.getClassObj();
+      AhatHeap heap = inst.getHeap();
+      if (inst.isPlaceHolder() || classObj == null) {
+        othersByHeap.computeIfAbsent(heap, x -> new HashMap<>())
+          .computeIfAbsent(inst.getClassName(), x -> {
+            List<AhatInstance> list = new ArrayList<AhatInstance>();
+            othersLists.add(list);
+            return list;
+          })
+          .add(inst);
+        return;
+      }
+
+      byHeap.computeIfAbsent(heap, x -> new HashMap<>())
+        .computeIfAbsent(classObj, x -> {
+          List<AhatInstance> list = new ArrayList<AhatInstance>();
+          lists.add(list);
+          return list;
+        })
+        .add(inst);
+    });
+
+    // Sort each group. The sort is stable, so ties stay in visiting order.
+    lists.addAll(othersLists);
+    for (int i = 0; i < lists.size(); ++i) {
+      AhatInstance[] instances = sorted(lists.get(i));
+      lists.set(i, null);
+      AhatInstance first = instances[0];
+      AhatClassObj classObj = first.isPlaceHolder() ? null : first.getClassObj();
+      mGroups.add(new Group(i, classObj, first.getClassName(), first.getHeap(), instances));
+    }
+  }
+
+  private AhatInstance[] sorted(List<AhatInstance> list) {
+    AhatInstance[] instances = list.toArray(new AhatInstance[list.size()]);
+    Arrays.sort(instances, mCompare);
+    return instances;
+  }
+
+  /**
+   * Returns the site the given instance is listed under.
+   */
+  private static Site siteOf(AhatInstance inst) {
+    // Placeholder instances do not have a site of their own. Diff lists them
+    // under the baseline of the site of the instance they stand in for.
+    return inst.isPlaceHolder() ? inst.getBaseline().getSite().getBaseline() : inst.getSite();
+  }
+
+  /**
+   * The instances matching a particular site, class and heap filter.
+   */
+  public class Selection {
+    private final String mClassName;
+    private final boolean mSubclass;
+    private final int mSize;
+
+    // The matching instances returned so far, in sorted order.
+    private final List<AhatInstance> mFirst = new ArrayList<AhatInstance>();
+
+    // The next matching instance of each matching site of each matching
+    // group, for the instances after those in mFirst.
+    private final PriorityQueue<Cursor> mQueue = new PriorityQueue<Cursor>();
+
+    private Selection(Site site, String className, boolean subclass, String heapName) {
+      // Site ids are assigned in preorder, so the ids of a site and all
+      // sites under it form a contiguous range.
+      Site last = site;
+      while (!last.getChildren().isEmpty()) {
+        List<Site> children = last.getChildren();
+        last = children.get(children.size() - 1);
+      }
+      long minSiteId = site.getId();
+      long maxSiteId = last.getId();
+      mClassName = className;
+      mSubclass = subclass;
+
+      int size = 0;
+      for (Group group : mGroups) {
+        if ((heapName == null || group.heap.getName().equals(heapName)) && matches(group)) {
+          int start = group.siteIndex(minSiteId);
+          int end = group.siteIndex(maxSiteId + 1);
+          if (start == 0 && end == group.siteIds.length) {
+            // All the instances of the group match. Merge them directly,
+            // rather than merging the instances of each site.
+            add(new Cursor(group, null, 0, group.instances.length));
+          } else {
+            for (int i = start; i < end; ++i) {
+              add(new Cursor(group, group.bySite, group.siteStarts[i], group.siteStarts[i + 1]));
+            }
+          }
+          size += group.siteStarts[end] - group.siteStarts[start];
+        }
+      }
+      mSize = size;
+    }
+
+    /**
+     * Returns true if the instances of the given group match the class
+     * filter.
+     */
+    private boolean matches(Group group) {
+      if (group.classObj == null) {
+        // Instances without a class object are not instances of any class.
+        return !mSubclass && mClassName.equals(group.className);
+      }
+      if (!mSubclass) {
+        return mClassName.equals(group.className);
+      }
+      for (AhatClassObj cls = group.classObj; cls != null; cls = cls.getSuperClassObj()) {
+        if (mClassName.equals(cls.getName())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void add(Cursor cursor) {
+      if (cursor.advance()) {
+        mQueue.add(cursor);
+      }
+    }
+
+    /**
+     * Returns the total number of matching instances.
+     */
+    public int size() {
+      return mSize;
+    }
+
+    /**
+     * Returns the first n matching instances in sorted order, or all the
+     * matching instances if there are fewer than n.
+     */
+    public synchronized List<AhatInstance> first(int n) {
+      // Merge the sorted instances, using the priority queue holding the
+      // next matching instance from each site of each group.
+      while (mFirst.size() < n && !mQueue.isEmpty()) {
+        Cursor cursor = mQueue.poll();
+        mFirst.add(cursor.current);
+        add(cursor);
+      }
+      return new ArrayList<AhatInstance>(mFirst.subList(0, Math.min(n, mFirst.size())));
+    }
+  }
+
+  /**
+   * The position of the next instance of a range of positions of the
+   * instances of a group.
+   */
+  private class Cursor implements Comparable<Cursor> {
+    private final Group mGroup;
+
+    // The positions in mGroup.instances to visit, or null to visit the
+    // positions in order.
+    private final int[] mPositions;
+    private int mNext;
+    private final int mEnd;
+
+    public AhatInstance current;
+    private int mCurrentPosition;
+
+    Cursor(Group group, int[] positions, int start, int end) {
+      mGroup = group;
+      mPositions = positions;
+      mNext = start;
+      mEnd = end;
+    }
+
+    /**
+     * Moves to the next instance.
+     * Returns false if there are no more instances.
+     */
+    boolean advance() {
+      if (mNext == mEnd) {
+        return false;
+      }
+      mCurrentPosition = mPositions == null ? mNext : mPositions[mNext];
+      mNext++;
+      current = mGroup.instances[mCurrentPosition];
+      return true;
+    }
+
+    @Override
+    public int compareTo(Cursor other) {
+      int compare = mCompare.compare(current, other.current);
+      if (compare == 0) {
+        compare = Integer.compare(mGroup.index, other.mGroup.index);
+      }
+      return compare != 0 ? compare : Integer.compare(mCurrentPosition, other.mCurrentPosition);
+    }
+  }
+
+  /**
+   * Selects the instances allocated at the given site or any site under it
+   * that match the given class and heap filters.
+   *
+   * @param site the site to select instances from
+   * @param className non-null name of the class to restrict instances to.
+   * @param subclass if true, include instances of subclasses of the named class.
+   * @param heapName name of the heap to restrict instances to. May be null to
+   *                 allow instances on any heap.
+   * @return the selected instances
+   */
+  public Selection select(Site site, String className, boolean subclass, String heapName) {
+    List<Object> key = Arrays.asList(site.getId(), className, subclass, heapName);
+    synchronized (mSelections) {
+      Selection selection = mSelections.get(key);
+      if (selection == null) {
+        selection = new Selection(site, className, subclass, heapName);
+        mSelections.put(key, selection);
+      }
+      return selection;
+    }
+  }
+}
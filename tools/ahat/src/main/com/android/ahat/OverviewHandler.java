@@ -22,6 +22,7 @@ import com.android.ahat.heapdump.AhatBitmapInstance;
 import com.android.ahat.heapdump.AhatSnapshot;
 import com.android.ahat.heapdump.Reachability;
 import com.android.ahat.heapdump.Size;
+import com.android.ahat.heapdump.Trend;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
@@ -56,6 +57,14 @@ class OverviewHandler implements AhatHandler {
     if (mBaseHprof != null) {
       doc.description(DocString.text("baseline hprof file"), DocString.text(mBaseHprof.toString()));
     }
+    Trend trend = mSnapshot.getTrend();
+    if (trend != null) {
+      doc.description(DocString.text("trend"),
+          DocString.link(DocString.uri("trend"),
+            DocString.format("%,d heap dumps", trend.getSnapshotCount())));
+    }
+    doc.description(DocString.text("load time"),
+        DocString.link(DocString.uri("stats"), DocString.text("stats")));
     doc.end();
 
     doc.section("Bytes Retained by Heap");
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of rendered pages, keyed by request uri.
+ * <p>
+ * The snapshot being viewed does not change once it has been loaded, so the
+ * page rendered for a given uri is always the same and can be served again
+ * from memory instead of being rendered from scratch. The cache is bounded by
+ * the total number of bytes of the pages it holds. It is safe to use from
+ * multiple threads.
+ */
+class PageCache {
+  private final long mMaxBytes;
+  private long mBytes = 0;
+
+  // Pages in access order, from least to most recently used.
+  private final LinkedHashMap<String, byte[]> mPages =
+    new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+  /**
+   * Constructs a PageCache holding at most the given number of bytes of
+   * pages.
+   */
+  public PageCache(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes < 0");
+    }
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached page for the given uri, or null if there is none.
+   */
+  public synchronized byte[] get(String uri) {
+    return mPages.get(uri);
+  }
+
+  /**
+   * Adds the page for the given uri to the cache, evicting the least
+   * recently used pages as needed to stay within the size limit. Pages
+   * larger than the size limit are not cached.
+   */
+  public synchronized void put(String uri, byte[] page) {
+    if (page.length > mMaxBytes) {
+      return;
+    }
+
+    byte[] old = mPages.put(uri, page);
+    mBytes += page.length - (old == null ? 0 : old.length);
+
+    Iterator<Map.Entry<String, byte[]>> iter = mPages.entrySet().iterator();
+    while (mBytes > mMaxBytes) {
+      mBytes -= iter.next().getValue().length;
+      iter.remove();
+    }
+  }
+
+  /**
+   * Returns the total number of bytes of pages in the cache.
+   */
+  public synchronized long size() {
+    return mBytes;
+  }
+}
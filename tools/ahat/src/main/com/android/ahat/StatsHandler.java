@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.progress.PhaseTimer;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Shows the time and memory used by each phase of loading the heap dumps,
+ * to help track the performance of ahat itself.
+ */
+class StatsHandler implements AhatHandler {
+  private PhaseTimer mTimer;
+
+  public StatsHandler(PhaseTimer timer) {
+    mTimer = timer;
+  }
+
+  @Override
+  public void handle(Doc doc, Query query) throws IOException {
+    doc.title("Stats");
+    List<PhaseTimer.Phase> phases = mTimer.getPhases();
+    if (phases.isEmpty()) {
+      doc.println(DocString.text("(none)"));
+      return;
+    }
+
+    doc.table(
+        new Column("Heap Dump"),
+        new Column("Phase"),
+        new Column("Wall Time (ms)", Column.Align.RIGHT),
+        new Column("CPU Time (ms)", Column.Align.RIGHT),
+        new Column("Allocated", Column.Align.RIGHT),
+        new Column("Peak Heap", Column.Align.RIGHT));
+    long wallTime = 0;
+    long cpuTime = 0;
+    long allocated = 0;
+    long peak = 0;
+    for (PhaseTimer.Phase phase : phases) {
+      doc.row(
+          DocString.text(phase.getSource()),
+          DocString.text(phase.getDescription()),
+          millis(phase.getWallTime()),
+          millis(phase.getCpuTime()),
+          bytes(phase.getAllocatedBytes()),
+          bytes(phase.getPeakHeapBytes()));
+      wallTime += phase.getWallTime();
+      cpuTime = cpuTime < 0 || phase.getCpuTime() < 0 ? -1 : cpuTime + phase.getCpuTime();
+      allocated = allocated < 0 || phase.getAllocatedBytes() < 0
+          ? -1 : allocated + phase.getAllocatedBytes();
+      peak = Math.max(peak, phase.getPeakHeapBytes());
+    }
+    doc.row(
+        DocString.text("Total"),
+        DocString.text(""),
+        millis(wallTime),
+        millis(cpuTime),
+        bytes(allocated),
+        bytes(peak));
+    doc.end();
+  }
+
+  /**
+   * Formats a time in nanoseconds as milliseconds, or as "?" if the time is
+   * not known.
+   */
+  private static DocString millis(long nanos) {
+    return nanos < 0 ? DocString.text("?") : DocString.format("%,.1f", nanos / 1e6);
+  }
+
+  /**
+   * Formats a number of bytes, or "?" if the number is not known.
+   */
+  private static DocString bytes(long bytes) {
+    return bytes < 0 ? DocString.text("?") : DocString.format("%,d", bytes);
+  }
+}
@@ -66,7 +66,7 @@ class SubsetSelector<T> {
    * @param size the total number of elements to select from
    * @return the number of selected elements
    */
-  private static int getSelectedLimit(Query query, String id, int size) {
+  static int getSelectedLimit(Query query, String id, int size) {
     String value = query.get(id, null);
     try {
       int ivalue = Math.min(size, Integer.parseInt(value));
@@ -81,24 +81,29 @@ class SubsetSelector<T> {
   // It has the form:
   //  (showing X of Y - show none - show less - show more - show all)
   public void render(Doc doc) {
-    int all = mElements.size();
+    render(doc, mQuery, mId, mLimit, mElements.size());
+  }
+
+  // Render the limit selector for the given selected limit out of all
+  // elements.
+  static void render(Doc doc, Query query, String id, int limit, int all) {
     if (all > kDefaultShown) {
       DocString menu = new DocString();
-      menu.appendFormat("(%d of %d elements shown - ", mLimit, all);
-      if (mLimit > 0) {
-        int less = Math.max(0, mLimit - kIncrAmount);
-        menu.appendLink(mQuery.with(mId, 0), DocString.text("show none"));
+      menu.appendFormat("(%d of %d elements shown - ", limit, all);
+      if (limit > 0) {
+        int less = Math.max(0, limit - kIncrAmount);
+        menu.appendLink(query.with(id, 0), DocString.text("show none"));
         menu.append(" - ");
-        menu.appendLink(mQuery.with(mId, less), DocString.text("show less"));
+        menu.appendLink(query.with(id, less), DocString.text("show less"));
         menu.append(" - ");
       } else {
         menu.append("show none - show less - ");
       }
-      if (mLimit < all) {
-        int more = Math.min(mLimit + kIncrAmount, all);
-        menu.appendLink(mQuery.with(mId, more), DocString.text("show more"));
+      if (limit < all) {
+        int more = Math.min(limit + kIncrAmount, all);
+        menu.appendLink(query.with(id, more), DocString.text("show more"));
         menu.append(" - ");
-        menu.appendLink(mQuery.with(mId, all), DocString.text("show all"));
+        menu.appendLink(query.with(id, all), DocString.text("show all"));
         menu.append(")");
       } else {
         menu.append("show more - show all)");
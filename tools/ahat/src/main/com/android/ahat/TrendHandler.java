@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Trend;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Shows the classes and allocation sites whose retained size grows the
+ * fastest over a series of heap dumps, and the leak suspects of the last
+ * heap dump of the series.
+ */
+class TrendHandler implements AhatHandler {
+  private static final String SUSPECTS_ID = "suspects";
+  private static final String CLASSES_ID = "classes";
+  private static final String SITES_ID = "sites";
+
+  private AhatSnapshot mSnapshot;
+
+  public TrendHandler(AhatSnapshot snapshot) {
+    mSnapshot = snapshot;
+  }
+
+  @Override
+  public void handle(Doc doc, Query query) throws IOException {
+    Trend trend = mSnapshot.getTrend();
+    doc.title("Trend");
+    if (trend == null) {
+      doc.println(DocString.text("(none: use --trend to analyze earlier heap dumps)"));
+      return;
+    }
+
+    doc.descriptions();
+    doc.description(DocString.text("heap dumps"),
+        DocString.format("%,d", trend.getSnapshotCount()));
+    doc.end();
+
+    doc.section("Leak Suspects");
+    if (trend.getLeakSuspects().isEmpty()) {
+      doc.println(DocString.text("(none)"));
+    } else {
+      DominatedList.render(mSnapshot, doc, query, SUSPECTS_ID, trend.getLeakSuspects());
+    }
+
+    doc.section("Classes");
+    printSeries(doc, query, CLASSES_ID, "Class", trend.getClasses(), trend);
+
+    doc.section("Allocation Sites");
+    printSeries(doc, query, SITES_ID, "Site", trend.getSites(), trend);
+  }
+
+  private static void printSeries(Doc doc, Query query, String id, String description,
+      List<Trend.Series> series, Trend trend) {
+    if (series.isEmpty()) {
+      doc.println(DocString.text("(none)"));
+      return;
+    }
+
+    int last = trend.getSnapshotCount() - 1;
+    doc.table(
+        new Column("Retained Growth", Column.Align.RIGHT),
+        new Column("Count Growth", Column.Align.RIGHT),
+        new Column("First Retained", Column.Align.RIGHT),
+        new Column("Last Retained", Column.Align.RIGHT),
+        new Column("Last Count", Column.Align.RIGHT),
+        new Column(description));
+    SubsetSelector<Trend.Series> selector = new SubsetSelector(query, id, series);
+    for (Trend.Series s : selector.selected()) {
+      doc.row(
+          DocString.format("%,.0f", s.getRetainedSizeSlope()),
+          DocString.format("%,.1f", s.getInstanceCountSlope()),
+          DocString.format("%,d", s.getRetainedSize(0)),
+          DocString.format("%,d", s.getRetainedSize(last)),
+          DocString.format("%,d", s.getInstanceCount(last)),
+          render(s, id));
+    }
+    doc.end();
+    selector.render(doc);
+  }
+
+  private static DocString render(Trend.Series series, String id) {
+    if (series.getSite() != null) {
+      return Summarizer.summarize(series.getSite());
+    }
+    if (CLASSES_ID.equals(id)) {
+      return DocString.link(
+          DocString.formattedUri("objects?class=%s", series.getName()),
+          DocString.text(series.getName()));
+    }
+    return DocString.text(series.getName());
+  }
+}
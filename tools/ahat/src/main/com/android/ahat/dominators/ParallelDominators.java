@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.dominators;
+
+import com.android.ahat.progress.NullProgress;
+import com.android.ahat.progress.Progress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Computes the immediate dominators of a directed graph using multiple
+ * threads. It computes the same dominators as {@link Dominators} for any
+ * directed graph data structure that implements the
+ * {@link Dominators.Graph} interface and has some root node with no incoming
+ * edges.
+ * <p>
+ * The graph is first copied into a compressed sparse row representation
+ * that numbers the nodes with ints and stores the edges in primitive arrays,
+ * with the outgoing references of nodes retrieved in parallel. Immediate
+ * dominators are then computed over the primitive arrays using the
+ * Semi-NCA algorithm, with the predecessors of each node also computed in
+ * parallel.
+ * <p>
+ * In addition to the requirements of {@link Dominators}, the graph's
+ * {@link Dominators.Graph#getReferencesForDominators getReferencesForDominators}
+ * method must be safe to call concurrently for different nodes. All other
+ * methods of the graph are only called from the thread calling
+ * {@link #computeDominators computeDominators}.
+ */
+public class ParallelDominators<Node> {
+  // The number of nodes or edges below which work is done directly rather
+  // than being split further among threads.
+  private static final int LEAF_SIZE = 4096;
+
+  private final Dominators.Graph<Node> graph;
+
+  private Progress progress = new NullProgress();
+  private long numNodes = 0;
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Construct an object to do dominators computation on the given graph.
+   *
+   * @param graph the graph to compute the dominators of
+   */
+  public ParallelDominators(Dominators.Graph<Node> graph) {
+    this.graph = graph;
+  }
+
+  /**
+   * Sets up a progress tracker for the dominators computation.
+   *
+   * @param progress the progress tracker to use
+   * @param numNodes an upper bound on the number of nodes in the graph
+   * @return this ParallelDominators object
+   */
+  public ParallelDominators<Node> progress(Progress progress, long numNodes) {
+    this.progress = progress;
+    this.numNodes = numNodes;
+    return this;
+  }
+
+  /**
+   * Sets the number of threads to use for the dominators computation.
+   * Defaults to the number of available processors.
+   *
+   * @param threads the number of threads to use, at least 1
+   * @return this ParallelDominators object
+   * @throws IllegalArgumentException if threads is less than 1
+   */
+  public ParallelDominators<Node> threads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads < 1");
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  // The nodes of the graph reachable from the root in compressed sparse row
+  // form. Nodes are numbered in the order they are discovered, with the root
+  // node numbered 0. The successors of node i are
+  // targets[offsets[i]] ... targets[offsets[i+1] - 1].
+  private static class Csr {
+    public final Object[] nodes;
+    public final int[] offsets;
+    public final int[] targets;
+
+    public Csr(Object[] nodes, int[] offsets, int[] targets) {
+      this.nodes = nodes;
+      this.offsets = offsets;
+      this.targets = targets;
+    }
+
+    public int size() {
+      return nodes.length;
+    }
+  }
+
+  /**
+   * Computes the immediate dominators of all nodes reachable from the <code>root</code> node.
+   * There must not be any incoming references to the <code>root</code> node.
+   * <p>
+   * The result of this function is to call the {@link Dominators.Graph#setDominator}
+   * function on every node reachable from the root node. The dominator of a
+   * node is always set before the dominator of any node it dominates.
+   *
+   * @param root the root node of the dominators computation
+   */
+  public void computeDominators(Node root) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      Csr csr = buildCsr(pool, root);
+
+      progress.start("Resolving dominators", 4L * csr.size());
+
+      // Number the nodes in depth first order. From here on all node numbers
+      // refer to depth first order, with the root numbered 0.
+      int n = csr.size();
+      int[] order = new int[n];    // Maps depth first number to csr node.
+      int[] number = new int[n];   // Maps csr node to depth first number.
+      int[] parent = new int[n];
+      depthFirstSearch(csr, order, number, parent);
+      progress.advance(n);
+
+      // Compute the predecessors of each node.
+      int[] predOffsets = new int[n + 1];
+      int[] preds = new int[csr.targets.length];
+      computePredecessors(pool, csr, order, number, predOffsets, preds);
+      progress.advance(n);
+
+      // Compute semidominators, then derive immediate dominators from them.
+      int[] semi = computeSemidominators(n, parent, predOffsets, preds);
+      progress.advance(n);
+      int[] idom = semi;
+      for (int w = 1; w < n; ++w) {
+        int d = parent[w];
+        while (d > semi[w]) {
+          d = idom[d];
+        }
+        idom[w] = d;
+      }
+
+      // Report the results in depth first order, so that dominators are
+      // reported before the nodes they dominate.
+      Object[] nodes = csr.nodes;
+      graph.setDominatorsComputationState(root, null);
+      for (int w = 1; w < n; ++w) {
+        Node node = (Node)nodes[order[w]];
+        graph.setDominatorsComputationState(node, null);
+        graph.setDominator(node, (Node)nodes[order[idom[w]]]);
+      }
+      progress.advance(n);
+      progress.done();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  // Discovers the nodes reachable from the root one level at a time,
+  // retrieving the references of each level's nodes in parallel. The
+  // computation state of each discovered node is set to its Integer number.
+  private Csr buildCsr(ForkJoinPool pool, Node root) {
+    progress.start("Initializing dominators", numNodes);
+    List<Object> nodes = new ArrayList<Object>();
+    IntArray offsets = new IntArray();
+    IntArray targets = new IntArray();
+
+    nodes.add(root);
+    graph.setDominatorsComputationState(root, 0);
+    offsets.add(0);
+    int levelStart = 0;
+    while (levelStart < nodes.size()) {
+      int levelEnd = nodes.size();
+      Object[][] refs = new Object[levelEnd - levelStart][];
+      pool.invoke(new ReferencesTask(nodes, refs, levelStart, 0, refs.length));
+      for (Object[] dsts : refs) {
+        for (Object dst : dsts) {
+          Integer id = (Integer)graph.getDominatorsComputationState((Node)dst);
+          if (id == null) {
+            id = nodes.size();
+            nodes.add(dst);
+            graph.setDominatorsComputationState((Node)dst, id);
+          }
+          targets.add(id);
+        }
+        offsets.add(targets.size());
+      }
+      progress.advance(levelEnd - levelStart);
+      levelStart = levelEnd;
+    }
+    progress.done();
+    return new Csr(nodes.toArray(), offsets.toArray(), targets.toArray());
+  }
+
+  // Retrieves the references of a range of nodes, splitting the range among
+  // the threads of the ForkJoinPool it is invoked in.
+  @SuppressWarnings("serial")
+  private class ReferencesTask extends RecursiveAction {
+    private final List<Object> mNodes;
+    private final Object[][] mRefs;
+    private final int mBase;
+    private final int mStart;
+    private final int mEnd;
+
+    ReferencesTask(List<Object> nodes, Object[][] refs, int base, int start, int end) {
+      mNodes = nodes;
+      mRefs = refs;
+      mBase = base;
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (mEnd - mStart > LEAF_SIZE) {
+        int mid = mStart + (mEnd - mStart) / 2;
+        invokeAll(new ReferencesTask(mNodes, mRefs, mBase, mStart, mid),
+                  new ReferencesTask(mNodes, mRefs, mBase, mid, mEnd));
+        return;
+      }
+
+      List<Object> dsts = new ArrayList<Object>();
+      for (int i = mStart; i < mEnd; ++i) {
+        for (Node dst : graph.getReferencesForDominators((Node)mNodes.get(mBase + i))) {
+          dsts.add(dst);
+        }
+        mRefs[i] = dsts.toArray();
+        dsts.clear();
+      }
+    }
+  }
+
+  // Numbers the nodes of the graph in depth first preorder, starting from
+  // the root. parent is set to the depth first number of the parent of each
+  // node in the depth first spanning tree.
+  private static void depthFirstSearch(Csr csr, int[] order, int[] number, int[] parent) {
+    int n = csr.size();
+    Arrays.fill(number, -1);
+
+    // The stack of nodes being visited and, for each, the index of the next
+    // edge to follow.
+    int[] stack = new int[n];
+    int[] next = new int[n];
+    int depth = 0;
+    int id = 0;
+
+    number[0] = id;
+    order[id] = 0;
+    parent[id++] = -1;
+    stack[depth] = 0;
+    next[depth++] = csr.offsets[0];
+    while (depth > 0) {
+      int node = stack[depth - 1];
+      int edge = next[depth - 1];
+      if (edge == csr.offsets[node + 1]) {
+        depth--;
+        continue;
+      }
+      next[depth - 1]++;
+
+      int dst = csr.targets[edge];
+      if (number[dst] == -1) {
+        number[dst] = id;
+        order[id] = dst;
+        parent[id++] = number[node];
+        stack[depth] = dst;
+        next[depth++] = csr.offsets[dst];
+      }
+    }
+  }
+
+  // Computes the predecessors of each node in depth first numbering, so that
+  // the predecessors of node w are preds[predOffsets[w]] ...
+  // preds[predOffsets[w+1] - 1].
+  private static void computePredecessors(ForkJoinPool pool, Csr csr, int[] order, int[] number,
+      int[] predOffsets, int[] preds) {
+    int n = csr.size();
+    AtomicIntegerArray counts = new AtomicIntegerArray(n + 1);
+    pool.invoke(new PredecessorsTask(csr, order, number, counts, null, 0, n));
+    for (int w = 0; w < n; ++w) {
+      predOffsets[w + 1] = predOffsets[w] + counts.get(w);
+    }
+
+    AtomicIntegerArray next = new AtomicIntegerArray(predOffsets);
+    pool.invoke(new PredecessorsTask(csr, order, number, next, preds, 0, n));
+  }
+
+  // Visits the outgoing edges of a range of nodes in depth first numbering,
+  // splitting the range among the threads of the ForkJoinPool it is invoked
+  // in. If preds is null, the number of predecessors of each node is counted
+  // in slots. Otherwise each predecessor is stored in preds at the next free
+  // position for its successor given by slots.
+  @SuppressWarnings("serial")
+  private static class PredecessorsTask extends RecursiveAction {
+    private final Csr mCsr;
+    private final int[] mOrder;
+    private final int[] mNumber;
+    private final AtomicIntegerArray mSlots;
+    private final int[] mPreds;
+    private final int mStart;
+    private final int mEnd;
+
+    PredecessorsTask(Csr csr, int[] order, int[] number, AtomicIntegerArray slots, int[] preds,
+        int start, int end) {
+      mCsr = csr;
+      mOrder = order;
+      mNumber = number;
+      mSlots = slots;
+      mPreds = preds;
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (mEnd - mStart > LEAF_SIZE) {
+        int mid = mStart + (mEnd - mStart) / 2;
+        invokeAll(new PredecessorsTask(mCsr, mOrder, mNumber, mSlots, mPreds, mStart, mid),
+                  new PredecessorsTask(mCsr, mOrder, mNumber, mSlots, mPreds, mid, mEnd));
+        return;
+      }
+
+      for (int v = mStart; v < mEnd; ++v) {
+        int node = mOrder[v];
+        for (int e = mCsr.offsets[node]; e < mCsr.offsets[node + 1]; ++e) {
+          int w = mNumber[mCsr.targets[e]];
+          if (mPreds == null) {
+            mSlots.getAndIncrement(w);
+          } else {
+            mPreds[mSlots.getAndIncrement(w)] = v;
+          }
+        }
+      }
+    }
+  }
+
+  // Computes the semidominator of each node in depth first numbering using
+  // the simple version of the Lengauer-Tarjan link-eval forest with path
+  // compression.
+  private static int[] computeSemidominators(int n, int[] parent, int[] predOffsets,
+      int[] preds) {
+    int[] semi = new int[n];
+    int[] label = new int[n];
+    int[] ancestor = new int[n];
+    int[] path = new int[n];
+    for (int v = 0; v < n; ++v) {
+      semi[v] = v;
+      label[v] = v;
+      ancestor[v] = -1;
+    }
+
+    for (int w = n - 1; w > 0; --w) {
+      int s = semi[w];
+      for (int e = predOffsets[w]; e < predOffsets[w + 1]; ++e) {
+        int v = preds[e];
+
+        // Evaluate the minimum semidominator on the path from v to the root
+        // of its tree in the forest, excluding the root itself, compressing
+        // the path as we go.
+        if (ancestor[v] != -1) {
+          int size = 0;
+          for (int x = v; ancestor[ancestor[x]] != -1; x = ancestor[x]) {
+            path[size++] = x;
+          }
+          while (size > 0) {
+            int x = path[--size];
+            int a = ancestor[x];
+            if (label[a] < label[x]) {
+              label[x] = label[a];
+            }
+            ancestor[x] = ancestor[a];
+          }
+        }
+        if (label[v] < s) {
+          s = label[v];
+        }
+      }
+      semi[w] = s;
+      label[w] = s;
+      ancestor[w] = parent[w];
+    }
+    return semi;
+  }
+
+  // A growable array of ints.
+  private static class IntArray {
+    private int size = 0;
+    private int[] values = new int[16];
+
+    public void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
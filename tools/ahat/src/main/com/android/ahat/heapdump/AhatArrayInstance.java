@@ -16,6 +16,7 @@
 
 package com.android.ahat.heapdump;
 
+import com.google.common.hash.Hasher;
 import java.nio.charset.StandardCharsets;
 import java.util.AbstractList;
 import java.util.Collections;
@@ -28,17 +29,16 @@ import java.util.List;
  * methods inherited from {@link AhatInstance}.
  */
 public class AhatArrayInstance extends AhatInstance {
-  // To save space, we store arrays as primitive arrays or AhatInstance arrays
-  // and provide a wrapper over the arrays to expose a list of Values.
-  // This is especially important for large byte arrays, such as bitmaps.
-  // We keep a separate pointer to the underlying array in the case of byte or
-  // char arrays because they are sometimes useful to have.
-  // TODO: Have different subtypes of AhatArrayInstance to avoid the overhead
-  // of these extra pointers and cost in getReferences when the array type is
-  // not relevant?
+  // To save space, object arrays are stored as AhatInstance arrays, and the
+  // elements of primitive arrays are not copied out of the hprof file at
+  // all. Instead we record where the elements are stored in the hprof file
+  // and decode them on demand. This is especially important for large byte
+  // arrays, such as bitmaps. We provide a wrapper over the arrays to expose
+  // a list of Values.
   private List<Value> mValues;
-  private byte[] mByteArray;    // null if not a byte array.
-  private char[] mCharArray;    // null if not a char array.
+  private HprofBuffer mHprof;   // null if not a primitive array.
+  private Type mType;           // null if not a primitive array.
+  private long mPosition;       // position of the first element in mHprof.
   private final int mRefSize;
 
   AhatArrayInstance(long id, int refSize) {
@@ -47,123 +47,24 @@ public class AhatArrayInstance extends AhatInstance {
   }
 
   /**
-   * Initialize the array elements for a primitive boolean array.
+   * Initialize the array elements for a primitive array of the given type
+   * and length, with elements stored in the given hprof buffer starting at
+   * the given position.
    */
-  void initialize(final boolean[] bools) {
+  void initialize(HprofBuffer hprof, final Type type, long position, final int length) {
+    mHprof = hprof;
+    mType = type;
+    mPosition = position;
     mValues = new AbstractList<Value>() {
       @Override public int size() {
-        return bools.length;
+        return length;
       }
 
       @Override public Value get(int index) {
-        return Value.pack(bools[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive char array.
-   */
-  void initialize(final char[] chars) {
-    mCharArray = chars;
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return chars.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(chars[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive float array.
-   */
-  void initialize(final float[] floats) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return floats.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(floats[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive double array.
-   */
-  void initialize(final double[] doubles) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return doubles.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(doubles[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive byte array.
-   */
-  void initialize(final byte[] bytes) {
-    mByteArray = bytes;
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return bytes.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(bytes[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive short array.
-   */
-  void initialize(final short[] shorts) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return shorts.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(shorts[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive int array.
-   */
-  void initialize(final int[] ints) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return ints.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(ints[index]);
-      }
-    };
-  }
-
-  /**
-   * Initialize the array elements for a primitive long array.
-   */
-  void initialize(final long[] longs) {
-    mValues = new AbstractList<Value>() {
-      @Override public int size() {
-        return longs.length;
-      }
-
-      @Override public Value get(int index) {
-        return Value.pack(longs[index]);
+        if (index < 0 || index >= length) {
+          throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+        }
+        return mHprof.getPrimitiveValueAt(mPosition + (long)index * type.size(mRefSize), type);
       }
     };
   }
@@ -186,6 +87,10 @@ public class AhatArrayInstance extends AhatInstance {
   @Override
   long getExtraJavaSize() {
     int length = getLength();
+    if (mType != null) {
+      return (long)mType.size(mRefSize) * length;
+    }
+
     if (length == 0) {
       return 0;
     }
@@ -227,30 +132,27 @@ public class AhatArrayInstance extends AhatInstance {
   Iterable<Reference> getReferences() {
     // The list of references will be empty if this is a primitive array.
     List<Reference> refs = Collections.emptyList();
-    if (!mValues.isEmpty()) {
-      Value first = mValues.get(0);
-      if (first == null || first.isAhatInstance()) {
-        refs = new AbstractList<Reference>() {
-          @Override
-          public int size() {
-            return mValues.size();
-          }
+    if (mType == null) {
+      refs = new AbstractList<Reference>() {
+        @Override
+        public int size() {
+          return mValues.size();
+        }
 
-          @Override
-          public Reference get(int index) {
-            Value value = mValues.get(index);
-            if (value != null) {
-              assert value.isAhatInstance();
-              String field = "[" + Integer.toString(index) + "]";
-              return new Reference(AhatArrayInstance.this,
-                                   field,
-                                   value.asAhatInstance(),
-                                   Reachability.STRONG);
-            }
-            return null;
+        @Override
+        public Reference get(int index) {
+          Value value = mValues.get(index);
+          if (value != null) {
+            assert value.isAhatInstance();
+            String field = "[" + Integer.toString(index) + "]";
+            return new Reference(AhatArrayInstance.this,
+                                 field,
+                                 value.asAhatInstance(),
+                                 Reachability.STRONG);
           }
-        };
-      }
+          return null;
+        }
+      };
     }
     return new SkipNullsIterator(refs);
   }
@@ -282,36 +184,40 @@ public class AhatArrayInstance extends AhatInstance {
       count = maxChars;
     }
 
-    if (mCharArray != null) {
+    int length = getLength();
+    if (mType == Type.CHAR) {
       // Always treat char arrays as strings.
       if (count == 0) {
         return "";
       }
 
-      int numChars = mCharArray.length;
       int end = offset + count - 1;
-      if (offset >= 0 && offset < numChars && end >= 0 && end < numChars) {
-        return new String(mCharArray, offset, count);
+      if (offset >= 0 && offset < length && end >= 0 && end < length) {
+        char[] chars = new char[count];
+        mHprof.getCharsAt(mPosition + 2L * offset, chars);
+        return new String(chars);
       }
 
       return null;
     }
 
-    if (mByteArray != null) {
+    if (mType == Type.BYTE) {
       // Treat byte arrays as strings if they look like a sequence of ascii
       // characters.
       int end = offset + count - 1;
-      if (offset < 0 || offset >= mByteArray.length || end < 0 || end >= mByteArray.length) {
+      if (offset < 0 || offset >= length || end < 0 || end >= length) {
         return null;
       }
 
-      for (int i = offset; i < end; ++i) {
-        if (mByteArray[i] == '\0') {
-          count = i - offset;
+      byte[] bytes = new byte[count];
+      mHprof.getBytesAt(mPosition + offset, bytes);
+      for (int i = 0; i < count - 1; ++i) {
+        if (bytes[i] == '\0') {
+          count = i;
           break;
         }
 
-        if (!looksLikeAscii(mByteArray[i])) {
+        if (!looksLikeAscii(bytes[i])) {
           return null;
         }
       }
@@ -319,7 +225,7 @@ public class AhatArrayInstance extends AhatInstance {
       if (count <= 0) {
         return null;
       }
-      return asAsciiString(offset, count, maxChars);
+      return new String(bytes, 0, count, StandardCharsets.US_ASCII);
     }
 
     return null;
@@ -330,21 +236,23 @@ public class AhatArrayInstance extends AhatInstance {
    * Only byte arrays are considered as having an associated ascii String value.
    */
   String asAsciiString(int offset, int count, int maxChars) {
-    if (mByteArray == null) {
+    if (mType != Type.BYTE) {
       return null;
     }
 
     if (count == 0) {
       return "";
     }
-    int numChars = mByteArray.length;
+    int numChars = getLength();
     if (0 <= maxChars && maxChars < count) {
       count = maxChars;
     }
 
     int end = offset + count - 1;
     if (offset >= 0 && offset < numChars && end >= 0 && end < numChars) {
-      return new String(mByteArray, offset, count, StandardCharsets.US_ASCII);
+      byte[] bytes = new byte[count];
+      mHprof.getBytesAt(mPosition + offset, bytes);
+      return new String(bytes, StandardCharsets.US_ASCII);
     }
     return null;
   }
@@ -362,7 +270,7 @@ public class AhatArrayInstance extends AhatInstance {
   }
 
   @Override public AhatInstance getAssociatedBitmapInstance() {
-    if (mByteArray != null) {
+    if (mType == Type.BYTE) {
       List<AhatInstance> refs = getReverseReferences();
       if (refs.size() == 1) {
         AhatInstance ref = refs.get(0);
@@ -373,7 +281,7 @@ public class AhatArrayInstance extends AhatInstance {
   }
 
   @Override public AhatClassObj getAssociatedClassForOverhead() {
-    if (mByteArray != null) {
+    if (mType == Type.BYTE) {
       List<AhatInstance> refs = getHardReverseReferences();
       if (refs.size() == 1) {
         AhatClassObj ref = refs.get(0).asClassObj();
@@ -400,7 +308,43 @@ public class AhatArrayInstance extends AhatInstance {
     return String.format("%s[%d]@%08x", className, mValues.size(), getId());
   }
 
+  /**
+   * Adds the type and contents of count elements of this primitive array,
+   * starting at the given offset, to the given hasher. The elements are read
+   * directly from the hprof file.
+   *
+   * @return false if this is not a primitive array or the range is out of
+   *         bounds, in which case nothing is added to the hasher
+   */
+  boolean putContents(int offset, int count, Hasher hasher) {
+    if (mType == null || offset < 0 || count < 0 || offset + count > getLength()) {
+      return false;
+    }
+    long size = mType.size(mRefSize);
+    hasher.putInt(mType.ordinal());
+    hasher.putInt(count);
+    mHprof.putBytesAt(mPosition + offset * size, count * size, hasher);
+    return true;
+  }
+
+  /**
+   * Returns true if this is a primitive byte array.
+   */
+  boolean isByteArray() {
+    return mType == Type.BYTE;
+  }
+
+  /**
+   * Returns a copy of the elements of this array, decoded from the hprof
+   * file, if this is a primitive byte array. Returns null otherwise.
+   */
+  @Override
   byte[] asByteArray() {
-    return mByteArray;
+    if (mType != Type.BYTE) {
+      return null;
+    }
+    byte[] bytes = new byte[getLength()];
+    mHprof.getBytesAt(mPosition, bytes);
+    return bytes;
   }
 }
@@ -17,7 +17,7 @@
 package com.android.ahat.heapdump;
 
 import java.awt.image.BufferedImage;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,6 +27,7 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 import com.google.common.collect.TreeMultimap;
+import com.google.common.hash.Hasher;
 
 /**
  * A java object that has `android.graphics.Bitmap` as its base class.
@@ -64,14 +65,14 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
     // See android.graphics.Bitmap.CompressFormat for format values.
     // -1 means no compression for backward compatibility
     private int format;
-    private Map<Long, byte[]> buffers;
+    private Map<Long, AhatArrayInstance> buffers;
     private Set<Long> referenced;
     private TreeMultimap<BitmapInfo, AhatBitmapInstance> instances;
 
     BitmapDumpData(int count, int format) {
       this.count = count;
       this.format = format;
-      this.buffers = new HashMap<Long, byte[]>(count);
+      this.buffers = new HashMap<Long, AhatArrayInstance>(count);
       this.referenced = new HashSet<Long>(count);
       this.instances = TreeMultimap.create();
     }
@@ -168,7 +169,8 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
         continue;
       }
       AhatInstance buffer = bufferVal.asAhatInstance();
-      result.buffers.put(nativePtr.asLong(), buffer.asArrayInstance().asByteArray());
+      AhatArrayInstance array = buffer.asArrayInstance();
+      result.buffers.put(nativePtr.asLong(), array.isByteArray() ? array : null);
       result.referenced.add(buffer.getId());
     }
     return result;
@@ -194,20 +196,35 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
     private final int width;
     private final int height;
     private final int format;
-    private final byte[] buffer;
-    private final int bufferHash;
+    // The buffer contents are decoded from the heap dump only when needed,
+    // so that they are not kept in memory for every bitmap.
+    private final AhatArrayInstance buffer;
 
-    public BitmapInfo(int width, int height, int format, byte[] buffer) {
+    // A 128 bit hash of the buffer contents, computed directly from the
+    // heap dump.
+    private final long bufferHashHigh;
+    private final long bufferHashLow;
+
+    public BitmapInfo(int width, int height, int format, AhatArrayInstance buffer) {
       this.width = width;
       this.height = height;
       this.format = format;
       this.buffer = buffer;
-      bufferHash = Arrays.hashCode(buffer);
+
+      Hasher hasher = Duplicates.HASH.newHasher();
+      buffer.putContents(0, buffer.getLength(), hasher);
+      ByteBuffer hash = ByteBuffer.wrap(hasher.hash().asBytes());
+      bufferHashHigh = hash.getLong();
+      bufferHashLow = hash.getLong();
+    }
+
+    public byte[] getBuffer() {
+      return buffer.asByteArray();
     }
 
     @Override
     public int hashCode() {
-      return Objects.hash(width, height, format, bufferHash);
+      return Objects.hash(width, height, format, bufferHashHigh, bufferHashLow);
     }
 
     /**
@@ -225,8 +242,11 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
       if (other.format != this.format) {
         return other.format - this.format;
       }
-      if (other.bufferHash != this.bufferHash) {
-        return other.bufferHash - this.bufferHash;
+      if (other.bufferHashHigh != this.bufferHashHigh) {
+        return Long.compare(other.bufferHashHigh, this.bufferHashHigh);
+      }
+      if (other.bufferHashLow != this.bufferHashLow) {
+        return Long.compare(other.bufferHashLow, this.bufferHashLow);
       }
       return 0;
     }
@@ -243,7 +263,20 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
       return (this.width == other.width)
           && (this.height == other.height)
           && (this.format == other.format)
-          && (this.bufferHash == other.bufferHash);
+          && (this.bufferHashHigh == other.bufferHashHigh)
+          && (this.bufferHashLow == other.bufferHashLow);
+    }
+
+    /**
+     * Adds the dimensions, format and buffer contents of the bitmap to the
+     * given hasher.
+     */
+    void putContents(Hasher hasher) {
+      hasher.putInt(width)
+          .putInt(height)
+          .putInt(format)
+          .putLong(bufferHashHigh)
+          .putLong(bufferHashLow);
     }
   }
 
@@ -270,9 +303,9 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
       return null;
     }
 
-    byte[] buffer = getByteArrayField("mBuffer");
-    if (buffer != null) {
-      if (buffer.length < 4 * height * width) {
+    AhatArrayInstance buffer = getArrayField("mBuffer");
+    if (buffer != null && buffer.isByteArray()) {
+      if (buffer.getLength() < 4 * height * width) {
         return null;
       }
       mBitmapInfo = new BitmapInfo(width, height, -1, buffer);
@@ -301,6 +334,31 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
     return mBitmapInfo;
   }
 
+  /**
+   * Returns the array holding the pixel contents of this bitmap, or null if
+   * no appropriate bitmap info is available.
+   */
+  AhatArrayInstance getBitmapBuffer(BitmapDumpData bitmapDumpData) {
+    BitmapInfo info = getBitmapInfo(bitmapDumpData);
+    return info == null ? null : info.buffer;
+  }
+
+  /**
+   * Adds the dimensions, format and pixel contents of this bitmap to the
+   * given hasher.
+   *
+   * @return false if no appropriate bitmap info is available, in which case
+   *         nothing is added to the hasher
+   */
+  boolean putBitmapContents(BitmapDumpData bitmapDumpData, Hasher hasher) {
+    BitmapInfo info = getBitmapInfo(bitmapDumpData);
+    if (info == null) {
+      return false;
+    }
+    info.putContents(hasher);
+    return true;
+  }
+
   /**
    * Represents a bitmap with either
    *   - its format and content in `buffer`
@@ -336,13 +394,14 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
   private BufferedImage asBufferedImage(BitmapInfo info) {
     // Convert the raw data to an image
     // Convert BGRA to ABGR
+    byte[] buffer = info.getBuffer();
     int[] abgr = new int[info.height * info.width];
     for (int i = 0; i < abgr.length; i++) {
       abgr[i] = (
-          (((int) info.buffer[i * 4 + 3] & 0xFF) << 24)
-          + (((int) info.buffer[i * 4 + 0] & 0xFF) << 16)
-          + (((int) info.buffer[i * 4 + 1] & 0xFF) << 8)
-          + ((int) info.buffer[i * 4 + 2] & 0xFF));
+          (((int) buffer[i * 4 + 3] & 0xFF) << 24)
+          + (((int) buffer[i * 4 + 0] & 0xFF) << 16)
+          + (((int) buffer[i * 4 + 1] & 0xFF) << 8)
+          + ((int) buffer[i * 4 + 2] & 0xFF));
     }
 
     BufferedImage bitmap = new BufferedImage(
@@ -371,13 +430,13 @@ public class AhatBitmapInstance extends AhatClassInstance implements Comparable<
      */
     switch (info.format) {
     case 0: /* JPEG */
-      return new Bitmap("image/jpg", info.buffer, null);
+      return new Bitmap("image/jpg", info.getBuffer(), null);
     case 1: /* PNG */
-      return new Bitmap("image/png", info.buffer, null);
+      return new Bitmap("image/png", info.getBuffer(), null);
     case 2: /* WEBP */
     case 3: /* WEBP_LOSSY */
     case 4: /* WEBP_LOSSLESS */
-      return new Bitmap("image/webp", info.buffer, null);
+      return new Bitmap("image/webp", info.getBuffer(), null);
     case -1:/* Legacy */
       return new Bitmap(null, null, asBufferedImage(info));
     default:
@@ -16,6 +16,7 @@
 
 package com.android.ahat.heapdump;
 
+import com.google.common.hash.Hasher;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -44,18 +45,24 @@ public class AhatClassInstance extends AhatInstance {
         : new AhatClassInstance(objectId);
   }
 
-  // Instance fields of the object. These are stored in order of the instance
-  // field descriptors from the class object, starting with this class first,
-  // followed by the super class, and so on. We store the values separate from
-  // the field types and names to save memory.
-  private Value[] mFields;
+  // Instance fields of the object. These are laid out in order of the
+  // instance field descriptors from the class object, starting with this
+  // class first, followed by the super class, and so on. Rather than storing
+  // the field values, we store where to find them: primitive values are read
+  // from the hprof file starting at mPosition, and reference values are the
+  // entries of mFieldData starting at mFirstRef.
+  private ClassInstanceFields mFieldData;
+  private long mPosition;
+  private int mFirstRef;
 
   AhatClassInstance(long id) {
     super(id);
   }
 
-  void initialize(Value[] fields) {
-    mFields = fields;
+  void initialize(ClassInstanceFields fieldData, long position, int firstRef) {
+    mFieldData = fieldData;
+    mPosition = position;
+    mFirstRef = firstRef;
   }
 
   @Override
@@ -119,7 +126,7 @@ public class AhatClassInstance extends AhatInstance {
    * @return Iterable over the instance field values.
    */
   public Iterable<FieldValue> getInstanceFields() {
-    return new InstanceFieldIterator(mFields, getClassObj());
+    return new InstanceFieldIterator(mFieldData, mPosition, mFirstRef, getClassObj());
   }
 
   @Override
@@ -139,19 +146,22 @@ public class AhatClassInstance extends AhatInstance {
     return (field == null) ? null : field.asArrayInstance();
   }
 
-  /**
-   * Reads the given field from the given instance.
-   * The field is assumed to be a byte[] field.
-   *
-   * @param fieldName name of the byte array field
-   * @return null if the field value is null, not a byte[] or could not be read.
-   */
-  protected byte[] getByteArrayField(String fieldName) {
-    AhatInstance field = getRefField(fieldName);
-    return field == null ? null : field.asByteArray();
+  @Override public String asString(int maxChars) {
+    AhatArrayInstance chars = getStringValueArray();
+    if (chars != null) {
+      int numChars = chars.getLength();
+      int count = getIntField("count", numChars);
+      int offset = getIntField("offset", 0);
+      return chars.asMaybeCompressedString(offset, count, maxChars);
+    }
+    return null;
   }
 
-  @Override public String asString(int maxChars) {
+  /**
+   * Returns the array holding the characters of this String, or null if this
+   * is not a String or its characters are not available.
+   */
+  AhatArrayInstance getStringValueArray() {
     if (!isInstanceOfClass("java.lang.String")) {
       return null;
     }
@@ -160,16 +170,25 @@ public class AhatClassInstance extends AhatInstance {
     if (value == null || !value.isAhatInstance()) {
       return null;
     }
+    return value.asAhatInstance().asArrayInstance();
+  }
 
-    AhatInstance inst = value.asAhatInstance();
-    if (inst.isArrayInstance()) {
-      AhatArrayInstance chars = inst.asArrayInstance();
-      int numChars = chars.getLength();
-      int count = getIntField("count", numChars);
-      int offset = getIntField("offset", 0);
-      return chars.asMaybeCompressedString(offset, count, maxChars);
+  /**
+   * Adds the characters of this String to the given hasher, reading them
+   * directly from the hprof file.
+   *
+   * @return false if this is not a String or its characters are not
+   *         available, in which case nothing is added to the hasher
+   */
+  boolean putStringContents(Hasher hasher) {
+    AhatArrayInstance chars = getStringValueArray();
+    if (chars == null) {
+      return false;
     }
-    return null;
+    int numChars = chars.getLength();
+    int count = getIntField("count", numChars);
+    int offset = getIntField("offset", 0);
+    return chars.putContents(offset, count, hasher);
   }
 
   @Override public AhatInstance getReferent() {
@@ -323,10 +342,12 @@ public class AhatClassInstance extends AhatInstance {
 
   private static class InstanceFieldIterator implements Iterable<FieldValue>,
                                                         Iterator<FieldValue> {
-    // The complete list of instance field values to iterate over, including
-    // superclass field values.
-    private Value[] mValues;
-    private int mValueIndex;
+    // Where to read the instance field values from, including superclass
+    // field values. mPosition and mRef are advanced past each field value as
+    // it is read.
+    private final ClassInstanceFields mFieldData;
+    private long mPosition;
+    private int mRef;
 
     // The list of field descriptors specific to the current class in the
     // class hierarchy, not including superclass field descriptors.
@@ -336,10 +357,12 @@ public class AhatClassInstance extends AhatInstance {
     private int mFieldIndex;
     private AhatClassObj mNextClassObj;
 
-    public InstanceFieldIterator(Value[] values, AhatClassObj classObj) {
-      mValues = values;
+    public InstanceFieldIterator(ClassInstanceFields fieldData, long position, int firstRef,
+        AhatClassObj classObj) {
+      mFieldData = fieldData;
+      mPosition = position;
+      mRef = firstRef;
       mFields = classObj.getInstanceFields();
-      mValueIndex = 0;
       mFieldIndex = 0;
       mNextClassObj = classObj.getSuperClassObj();
     }
@@ -363,7 +386,11 @@ public class AhatClassInstance extends AhatInstance {
         throw new NoSuchElementException();
       }
       Field field = mFields[mFieldIndex++];
-      Value value = mValues[mValueIndex++];
+      Value value = mFieldData.getValue(field.type, mPosition, mRef);
+      mPosition += field.type.size(mFieldData.getIdSize());
+      if (field.type == Type.OBJECT) {
+        mRef++;
+      }
       return new FieldValue(field.name, field.type, value);
     }
 
@@ -395,10 +422,16 @@ public class AhatClassInstance extends AhatInstance {
 
   /**
    * A Reference iterator that iterates over the fields of this instance.
+   * Only reference fields are visited; primitive field values are not read.
    */
   private class ReferenceIterator implements Iterable<Reference>,
                                              Iterator<Reference> {
-    private final Iterator<FieldValue> mIter = getInstanceFields().iterator();
+    // The field descriptors of the current class in the class hierarchy, as
+    // in InstanceFieldIterator, and the index of the next reference field.
+    private Field[] mFields = getClassObj().getInstanceFields();
+    private int mFieldIndex = 0;
+    private AhatClassObj mNextClassObj = getClassObj().getSuperClassObj();
+    private int mRef = mFirstRef;
     private Reference mNext = null;
 
     // If we are iterating over a subclass of java.lang.ref.Reference, the
@@ -408,15 +441,26 @@ public class AhatClassInstance extends AhatInstance {
 
     @Override
     public boolean hasNext() {
-      while (mNext == null && mIter.hasNext()) {
-        FieldValue field = mIter.next();
-        if (field.value != null && field.value.isAhatInstance()) {
-          Reachability reachability = Reachability.STRONG;
-          if (mJavaLangRefType != Reachability.STRONG && "referent".equals(field.name)) {
-            reachability = mJavaLangRefType;
+      while (mNext == null) {
+        while (mFieldIndex == mFields.length && mNextClassObj != null) {
+          mFields = mNextClassObj.getInstanceFields();
+          mFieldIndex = 0;
+          mNextClassObj = mNextClassObj.getSuperClassObj();
+        }
+        if (mFieldIndex == mFields.length) {
+          break;
+        }
+
+        Field field = mFields[mFieldIndex++];
+        if (field.type == Type.OBJECT) {
+          AhatInstance ref = mFieldData.getRef(mRef++);
+          if (ref != null) {
+            Reachability reachability = Reachability.STRONG;
+            if (mJavaLangRefType != Reachability.STRONG && "referent".equals(field.name)) {
+              reachability = mJavaLangRefType;
+            }
+            mNext = new Reference(AhatClassInstance.this, "." + field.name, ref, reachability);
           }
-          AhatInstance ref = field.value.asAhatInstance();
-          mNext = new Reference(AhatClassInstance.this, "." + field.name, ref, reachability);
         }
       }
       return mNext != null;
@@ -16,16 +16,11 @@
 
 package com.android.ahat.heapdump;
 
-import com.android.ahat.progress.Progress;
 import java.awt.image.BufferedImage;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.EnumMap;
 import java.util.List;
-import java.util.Queue;
 
 /**
  * A Java instance from a parsed heap dump. It is the base class used for all
@@ -47,18 +42,11 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
   // Field initialized via addRegisterednativeSize.
   private long mRegisteredNativeSize = 0;
 
-  // Fields initialized in computeReachability().
-  private Reachability mReachability = Reachability.UNREACHABLE;
-  private AhatInstance mNextInstanceToGcRoot;
-  private String mNextInstanceToGcRootField;
-  private ArrayList<AhatInstance> mReverseReferences;
-
-  // Fields initialized in DominatorsComputation.computeDominators().
-  // mDominated - the list of instances immediately dominated by this instance.
-  // mRetainedSizes - retained size indexed by heap index.
-  private AhatInstance mImmediateDominator;
-  private List<AhatInstance> mDominated = new ArrayList<AhatInstance>();
-  private Size[] mRetainedSizes;
+  // The graph holding the reachability, dominator and retained size data of
+  // this instance, and the index of this instance in the graph. The graph is
+  // null for instances that are not part of a snapshot, such as placeholders.
+  private InstanceGraph mGraph;
+  private int mGraphIndex;
 
   // The baseline instance for purposes of diff.
   private AhatInstance mBaseline;
@@ -123,11 +111,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the retained size of the object
    */
   public Size getRetainedSize(AhatHeap heap) {
-    int index = heap.getIndex();
-    if (mRetainedSizes != null && 0 <= index && index < mRetainedSizes.length) {
-      return mRetainedSizes[heap.getIndex()];
+    if (mGraph == null) {
+      return Size.ZERO;
     }
-    return Size.ZERO;
+    return mGraph.getRetainedSize(mGraphIndex, heap.getIndex());
   }
 
   /**
@@ -138,13 +125,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the total retained size of the object
    */
   public Size getTotalRetainedSize() {
-    Size size = Size.ZERO;
-    if (mRetainedSizes != null) {
-      for (int i = 0; i < mRetainedSizes.length; i++) {
-        size = size.plus(mRetainedSizes[i]);
-      }
+    if (mGraph == null) {
+      return Size.ZERO;
     }
-    return size;
+    return mGraph.getTotalRetainedSize(mGraphIndex);
   }
 
   /**
@@ -160,7 +144,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the reachability of the instance.
    */
   public Reachability getReachability() {
-    return mReachability;
+    if (mGraph == null) {
+      return Reachability.UNREACHABLE;
+    }
+    return mGraph.getReachability(mGraphIndex);
   }
 
   /**
@@ -171,7 +158,7 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return true if the object is strongly reachable
    */
   public boolean isStronglyReachable() {
-    return mReachability == Reachability.STRONG;
+    return getReachability() == Reachability.STRONG;
   }
 
   /**
@@ -203,7 +190,7 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return true if the object is completely unreachable
    */
   public boolean isUnreachable() {
-    return mReachability == Reachability.UNREACHABLE;
+    return getReachability() == Reachability.UNREACHABLE;
   }
 
   /**
@@ -264,10 +251,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the immediate dominator of this instance
    */
   public AhatInstance getImmediateDominator() {
-    if (mImmediateDominator instanceof SuperRoot) {
+    if (mGraph == null) {
       return null;
     }
-    return mImmediateDominator;
+    return mGraph.getImmediateDominator(mGraphIndex);
   }
 
   /**
@@ -276,7 +263,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return list of immediately dominated objects
    */
   public List<AhatInstance> getDominated() {
-    return mDominated;
+    if (mGraph == null) {
+      return Collections.emptyList();
+    }
+    return mGraph.getDominated(mGraphIndex);
   }
 
   /**
@@ -428,10 +418,10 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
    * @return the objects referencing this object
    */
   public List<AhatInstance> getReverseReferences() {
-    if (mReverseReferences != null) {
-      return mReverseReferences;
+    if (mGraph == null) {
+      return Collections.emptyList();
     }
-    return Collections.emptyList();
+    return mGraph.getReverseReferences(mGraphIndex);
   }
 
   /**
@@ -656,7 +646,7 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
     if (inst.isRoot()) {
       return null;
     }
-    return new PathElement(inst.mNextInstanceToGcRoot, inst.mNextInstanceToGcRootField);
+    return inst.mGraph.getNextPathElementToGcRoot(inst.mGraphIndex);
   }
 
   /**
@@ -707,108 +697,22 @@ public abstract class AhatInstance implements Diffable<AhatInstance> {
   }
 
   /**
-   * Determine the reachability of the all instances reachable from the given
-   * root instance. Initializes the following fields:
-   *   mReachability
-   *   mNextInstanceToGcRoot
-   *   mNextInstanceToGcRootField
-   *   mReverseReferences
-   *
-   * @param progress used to track progress of the traversal.
-   * @param numInsts upper bound on the total number of instances reachable
-   *                 from the root, solely used for the purposes of tracking
-   *                 progress.
+   * Associates this instance with the graph holding its reachability,
+   * dominator and retained size data.
    */
-  static void computeReachability(SuperRoot root, Progress progress, long numInsts) {
-    // Start by doing a breadth first search through strong references.
-    // Then continue the breadth first through each weaker kind of reference.
-    progress.start("Computing reachability", numInsts);
-    EnumMap<Reachability, Queue<Reference>> queues = new EnumMap<>(Reachability.class);
-    for (Reachability reachability : Reachability.values()) {
-      queues.put(reachability, new ArrayDeque<Reference>());
-    }
-
-    for (Reference ref : root.getReferences()) {
-      queues.get(Reachability.STRONG).add(ref);
-    }
+  void setGraph(InstanceGraph graph, int index) {
+    mGraph = graph;
+    mGraphIndex = index;
+  }
 
-    for (Reachability reachability : Reachability.values()) {
-      Queue<Reference> queue = queues.get(reachability);
-      while (!queue.isEmpty()) {
-        Reference ref = queue.poll();
-        if (ref.ref.mReachability == Reachability.UNREACHABLE) {
-          // This is the first time we have seen ref.ref.
-          progress.advance();
-          ref.ref.mReachability = reachability;
-          ref.ref.mNextInstanceToGcRoot = ref.src;
-          ref.ref.mNextInstanceToGcRootField = ref.field;
-          ref.ref.mReverseReferences = new ArrayList<AhatInstance>();
-
-          for (Reference childRef : ref.ref.getReferences()) {
-            if (childRef.reachability.notWeakerThan(reachability)) {
-              queue.add(childRef);
-            } else {
-              queues.get(childRef.reachability).add(childRef);
-            }
-          }
-        }
-
-        // Note: We specifically exclude 'root' from the reverse references
-        // because it is a fake SuperRoot instance not present in the original
-        // heap dump.
-        if (ref.src != root) {
-          ref.ref.mReverseReferences.add(ref.src);
-        }
-      }
-    }
-    progress.done();
-  }
-
-  /**
-   * Recursively compute the retained size of the given instance and all
-   * other instances it dominates.
-   */
-  static void computeRetainedSize(AhatInstance inst, int numHeaps) {
-    // Note: We can't use a recursive implementation because it can lead to
-    // stack overflow. Use an iterative implementation instead.
-    //
-    // Objects not yet processed will have mRetainedSizes set to null.
-    // Once prepared, an object will have mRetaiedSizes set to an array of 0
-    // sizes.
-    Deque<AhatInstance> deque = new ArrayDeque<AhatInstance>();
-    deque.push(inst);
-
-    while (!deque.isEmpty()) {
-      inst = deque.pop();
-      if (inst.mRetainedSizes == null) {
-        inst.mRetainedSizes = new Size[numHeaps];
-        for (int i = 0; i < numHeaps; i++) {
-          inst.mRetainedSizes[i] = Size.ZERO;
-        }
-        if (!(inst instanceof SuperRoot)) {
-          inst.mRetainedSizes[inst.mHeap.getIndex()] =
-            inst.mRetainedSizes[inst.mHeap.getIndex()].plus(inst.getSize());
-        }
-        deque.push(inst);
-        for (AhatInstance dominated : inst.mDominated) {
-          deque.push(dominated);
-        }
-      } else {
-        for (AhatInstance dominated : inst.mDominated) {
-          for (int i = 0; i < numHeaps; i++) {
-            inst.mRetainedSizes[i] = inst.mRetainedSizes[i].plus(dominated.mRetainedSizes[i]);
-          }
-        }
-      }
-    }
+  /**
+   * Returns the index of this instance in its graph.
+   */
+  int getGraphIndex() {
+    return mGraphIndex;
   }
 
   Iterable<AhatInstance> getReferencesForDominators(Reachability retained) {
     return new DominatorReferenceIterator(retained, getReferences());
   }
-
-  void setDominator(AhatInstance dominator) {
-    mImmediateDominator = dominator;
-    mImmediateDominator.mDominated.add(this);
-  }
 }
@@ -16,8 +16,8 @@
 
 package com.android.ahat.heapdump;
 
-import com.android.ahat.dominators.Dominators;
 import com.android.ahat.progress.Progress;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -39,18 +39,38 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
 
   private AhatBitmapInstance.BitmapDumpData mBitmapDumpData = null;
 
+  private final ClassIndex mClassIndex;
+
+  // The number of threads to use for analysis done after loading.
+  private final int mThreads;
+
+  // Computed on first use by getDuplicates.
+  private Duplicates mDuplicates = null;
+
+  // Set by Trend.Builder when this is the last snapshot of a series.
+  private Trend mTrend = null;
+
   AhatSnapshot(SuperRoot root,
                Instances<AhatInstance> instances,
                List<AhatHeap> heaps,
                Site rootSite,
                Progress progress,
-               Reachability retained) {
+               Reachability retained,
+               boolean lazyGcRootFields,
+               AnalysisCache cache,
+               int threads) {
     mSuperRoot = root;
     mInstances = instances;
+    mThreads = threads;
     mHeaps = heaps;
     mRootSite = rootSite;
 
-    AhatInstance.computeReachability(mSuperRoot, progress, mInstances.size());
+    InstanceGraph graph = new InstanceGraph(mSuperRoot, mInstances, mHeaps.size(),
+        lazyGcRootFields);
+    boolean cached = cache != null && cache.load(graph);
+    if (!cached) {
+      graph.computeReachability(progress, threads);
+    }
 
     mBitmapDumpData = AhatBitmapInstance.findBitmapDumpData(mSuperRoot, mInstances);
 
@@ -69,36 +89,29 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
       }
     }
 
-    Dominators.Graph<AhatInstance> graph = new Dominators.Graph<AhatInstance>() {
-      @Override
-      public void setDominatorsComputationState(AhatInstance node, Object state) {
-        node.setTemporaryUserData(state);
-      }
-
-      @Override
-      public Object getDominatorsComputationState(AhatInstance node) {
-        return node.getTemporaryUserData();
-      }
-
-      @Override
-      public Iterable<AhatInstance> getReferencesForDominators(AhatInstance node) {
-        return node.getReferencesForDominators(retained);
-      }
-
-      @Override
-      public void setDominator(AhatInstance node, AhatInstance dominator) {
-        node.setDominator(dominator);
+    if (!cached) {
+      graph.computeDominators(retained, progress, threads);
+      if (cache != null) {
+        try {
+          cache.save(graph);
+        } catch (IOException e) {
+          // The analysis cache is only an optimization for the next time the
+          // heap dump is opened. Carry on without it.
+        }
       }
-    };
-    new Dominators(graph).progress(progress, mInstances.size()).computeDominators(mSuperRoot);
-
-    AhatInstance.computeRetainedSize(mSuperRoot, mHeaps.size());
+    }
 
+    progress.start("Preparing sites", 1);
     for (AhatHeap heap : mHeaps) {
       heap.addToSize(mSuperRoot.getRetainedSize(heap));
     }
 
     mRootSite.prepareForUse(0, mHeaps.size(), retained);
+    progress.done();
+
+    progress.start("Indexing classes", 1);
+    mClassIndex = new ClassIndex(mSuperRoot, mHeaps);
+    progress.done();
   }
 
   /**
@@ -169,6 +182,16 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
     return mSuperRoot.getDominated();
   }
 
+  /**
+   * Returns the sizes of the retained instances of this snapshot aggregated
+   * by class, class hierarchy and package.
+   *
+   * @return the class index for this snapshot
+   */
+  public ClassIndex getClassIndex() {
+    return mClassIndex;
+  }
+
   /**
    * Returns the root allocation site for this snapshot.
    *
@@ -191,6 +214,21 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
     return site == null ? mRootSite : site;
   }
 
+  void setTrend(Trend trend) {
+    mTrend = trend;
+  }
+
+  /**
+   * Returns the trend of the series of snapshots this snapshot is the last
+   * of. Returns null if this snapshot has not been analyzed as part of a
+   * series.
+   *
+   * @return the trend ending with this snapshot
+   */
+  public Trend getTrend() {
+    return mTrend;
+  }
+
   void setBaseline(AhatSnapshot baseline) {
     mBaseline = baseline;
   }
@@ -221,4 +259,19 @@ public class AhatSnapshot implements Diffable<AhatSnapshot> {
   public List<List<AhatBitmapInstance>> findDuplicateBitmaps() {
     return AhatBitmapInstance.findDuplicates(mBitmapDumpData);
   }
+
+  /**
+   * Returns the groups of retained strings, primitive arrays and bitmaps in
+   * this snapshot that have identical contents. The groups are computed the
+   * first time this method is called, using the number of threads the
+   * snapshot was loaded with.
+   *
+   * @return the groups of duplicate instances
+   */
+  public synchronized Duplicates getDuplicates() {
+    if (mDuplicates == null) {
+      mDuplicates = Duplicates.find(mInstances, mBitmapDumpData, mThreads);
+    }
+    return mDuplicates;
+  }
 }
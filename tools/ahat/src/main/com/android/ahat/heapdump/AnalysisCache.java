@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A file caching the results of analyzing a heap dump, so that the
+ * reachability, dominators and retained size computations can be skipped
+ * the next time the same heap dump is opened.
+ * <p>
+ * The cache file starts with a header identifying the format version, the
+ * size and checksum of the heap dump it was computed from, and the
+ * retained reachability used for the analysis. The header is followed by
+ * the contents of the InstanceGraph of the heap dump, stored as big endian
+ * primitive arrays so that the file can be memory mapped and read back in
+ * bulk. A cache file whose header does not match the heap dump being
+ * opened is ignored and overwritten.
+ */
+class AnalysisCache {
+  private static final byte[] MAGIC = {'A', 'H', 'A', 'T', 'I', 'D', 'X', '\0'};
+
+  // The version of the cache file format. This should be incremented
+  // whenever the format or the meaning of its contents changes.
+  private static final int VERSION = 2;
+
+  private final File mFile;
+  private final HprofBuffer mHprof;
+  private final Reachability mRetained;
+
+  // The checksum of the heap dump, computed when first needed.
+  private long mChecksum;
+  private boolean mHaveChecksum = false;
+
+  /**
+   * Creates an analysis cache stored in the given file for the heap dump in
+   * the given buffer.
+   */
+  AnalysisCache(File file, HprofBuffer hprof, Reachability retained) {
+    mFile = file;
+    mHprof = hprof;
+    mRetained = retained;
+  }
+
+  private long checksum() {
+    if (!mHaveChecksum) {
+      mChecksum = mHprof.checksum();
+      mHaveChecksum = true;
+    }
+    return mChecksum;
+  }
+
+  /**
+   * Loads the contents of the given graph from the cache file.
+   * Returns false without modifying the graph if the cache file does not
+   * exist, cannot be read, or was not computed from the same heap dump with
+   * the same retained reachability.
+   */
+  boolean load(InstanceGraph graph) {
+    if (!mFile.isFile()) {
+      return false;
+    }
+
+    try {
+      HprofBuffer in = new HprofBuffer(mFile);
+      byte[] magic = new byte[MAGIC.length];
+      in.getBytes(magic);
+      if (!Arrays.equals(magic, MAGIC)
+          || in.getInt() != VERSION
+          || in.getLong() != mHprof.size()
+          || in.getLong() != checksum()
+          || in.getInt() != mRetained.ordinal()) {
+        return false;
+      }
+      return graph.read(in);
+    } catch (IOException | BufferUnderflowException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Saves the contents of the given graph to the cache file.
+   * The file is written to a temporary file first and then moved into
+   * place, so that a partially written cache file is never used.
+   *
+   * @throws IOException if the cache file could not be written
+   */
+  void save(InstanceGraph graph) throws IOException {
+    File tmp = new File(mFile.getPath() + ".tmp");
+    try (Writer out = new Writer(tmp)) {
+      out.writeBytes(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(mHprof.size());
+      out.writeLong(checksum());
+      out.writeInt(mRetained.ordinal());
+      graph.write(out);
+    } catch (IOException e) {
+      tmp.delete();
+      throw e;
+    }
+    Files.move(tmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Writes big endian primitive values and arrays to a file.
+   */
+  static class Writer implements AutoCloseable {
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(1 << 20);
+
+    Writer(File file) throws IOException {
+      mChannel = FileChannel.open(file.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Makes room for at least the given number of bytes in the buffer.
+     */
+    private void reserve(int bytes) throws IOException {
+      if (mBuffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      mBuffer.flip();
+      while (mBuffer.hasRemaining()) {
+        mChannel.write(mBuffer);
+      }
+      mBuffer.clear();
+    }
+
+    void writeByte(byte value) throws IOException {
+      reserve(1);
+      mBuffer.put(value);
+    }
+
+    void writeInt(int value) throws IOException {
+      reserve(4);
+      mBuffer.putInt(value);
+    }
+
+    void writeLong(long value) throws IOException {
+      reserve(8);
+      mBuffer.putLong(value);
+    }
+
+    void writeBytes(byte[] values) throws IOException {
+      int offset = 0;
+      while (offset < values.length) {
+        reserve(1);
+        int length = Math.min(values.length - offset, mBuffer.remaining());
+        mBuffer.put(values, offset, length);
+        offset += length;
+      }
+    }
+
+    void writeInts(int[] values) throws IOException {
+      int offset = 0;
+      while (offset < values.length) {
+        reserve(4);
+        int length = Math.min(values.length - offset, mBuffer.remaining() / 4);
+        mBuffer.asIntBuffer().put(values, offset, length);
+        mBuffer.position(mBuffer.position() + length * 4);
+        offset += length;
+      }
+    }
+
+    void writeLongs(long[] values) throws IOException {
+      int offset = 0;
+      while (offset < values.length) {
+        reserve(8);
+        int length = Math.min(values.length - offset, mBuffer.remaining() / 8);
+        mBuffer.asLongBuffer().put(values, offset, length);
+        mBuffer.position(mBuffer.position() + length * 8);
+        offset += length;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        mChannel.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sizes of the retained instances of a snapshot aggregated by class, by
+ * class hierarchy and by Java package.
+ * <p>
+ * The instances of a class hierarchy are the instances of a class and of
+ * all its subclasses. The instances of a package are the instances of all
+ * classes in the package and its subpackages, where the package of an array
+ * class is the package of its element class. For example, instances of
+ * <code>java.lang.String[]</code> belong to the packages <code>java</code>
+ * and <code>java.lang</code>.
+ * <p>
+ * The retained size of a group of instances counts each instance retained by
+ * the group once: an instance contributes its retained size to a group only
+ * if it is not dominated by another instance of the same group. For example,
+ * the retained size of the <code>java.util</code> package includes the
+ * nodes of a <code>java.util.HashMap</code> once, as part of the retained
+ * size of the map.
+ * <p>
+ * The index is computed once when the snapshot is loaded, so that questions
+ * such as which package retains the most memory can be answered without
+ * visiting any instances.
+ */
+public class ClassIndex {
+  private final List<Entry> mClasses = new ArrayList<Entry>();
+  private final List<Entry> mHierarchies = new ArrayList<Entry>();
+  private final List<Entry> mPackages = new ArrayList<Entry>();
+  private final Map<String, Entry> mClassesByName = new HashMap<String, Entry>();
+  private final Map<String, Entry> mHierarchiesByName = new HashMap<String, Entry>();
+  private final Map<String, Entry> mPackagesByName = new HashMap<String, Entry>();
+
+  /**
+   * Aggregated sizes for a single class, class hierarchy or package.
+   */
+  public static class Entry implements Diffable<Entry> {
+    private final String mName;
+    private long mCount;
+
+    // Sizes per heap, indexed by heap index.
+    private final long[] mJavaSize;
+    private final long[] mNativeSize;
+    private final long[] mRetainedJavaSize;
+    private final long[] mRetainedNativeSize;
+
+    // The number of instances of this group currently being visited on the
+    // path from the root of the dominator tree. Only used while the index
+    // is being computed.
+    private int mActive;
+
+    private Entry mBaseline = this;
+    private final boolean mIsPlaceHolder;
+
+    private Entry(String name, int numHeaps, boolean placeholder) {
+      mName = name;
+      mJavaSize = new long[numHeaps];
+      mNativeSize = new long[numHeaps];
+      mRetainedJavaSize = new long[numHeaps];
+      mRetainedNativeSize = new long[numHeaps];
+      mIsPlaceHolder = placeholder;
+    }
+
+    /**
+     * Returns the name of the class, class hierarchy or package.
+     * The name of a class hierarchy is the name of the class at its root.
+     * The name of the default package is the empty string.
+     *
+     * @return the name of this entry
+     */
+    public String getName() {
+      return mName;
+    }
+
+    /**
+     * Returns the number of retained instances in this group.
+     *
+     * @return the number of instances
+     */
+    public long getInstanceCount() {
+      return mCount;
+    }
+
+    /**
+     * Returns the total shallow size of the retained instances in this group
+     * allocated on the given heap.
+     *
+     * @param heap the heap to get the size for
+     * @return the shallow size on the heap
+     */
+    public Size getSize(AhatHeap heap) {
+      int index = heap.getIndex();
+      if (index < 0 || index >= mJavaSize.length) {
+        return Size.ZERO;
+      }
+      return new Size(mJavaSize[index], mNativeSize[index]);
+    }
+
+    /**
+     * Returns the total shallow size of the retained instances in this group.
+     *
+     * @return the shallow size
+     */
+    public Size getSize() {
+      return new Size(sum(mJavaSize), sum(mNativeSize));
+    }
+
+    /**
+     * Returns the size retained by the instances in this group on the given
+     * heap.
+     *
+     * @param heap the heap to get the retained size for
+     * @return the retained size on the heap
+     */
+    public Size getRetainedSize(AhatHeap heap) {
+      int index = heap.getIndex();
+      if (index < 0 || index >= mRetainedJavaSize.length) {
+        return Size.ZERO;
+      }
+      return new Size(mRetainedJavaSize[index], mRetainedNativeSize[index]);
+    }
+
+    /**
+     * Returns the size retained by the instances in this group on all heaps.
+     *
+     * @return the total retained size
+     */
+    public Size getTotalRetainedSize() {
+      return new Size(sum(mRetainedJavaSize), sum(mRetainedNativeSize));
+    }
+
+    private static long sum(long[] values) {
+      long sum = 0;
+      for (long value : values) {
+        sum += value;
+      }
+      return sum;
+    }
+
+    void setBaseline(Entry baseline) {
+      mBaseline = baseline;
+    }
+
+    @Override public Entry getBaseline() {
+      return mBaseline;
+    }
+
+    @Override public boolean isPlaceHolder() {
+      return mIsPlaceHolder;
+    }
+
+    @Override public String toString() {
+      return mName;
+    }
+  }
+
+  /**
+   * The entries an instance of a particular class belongs to.
+   */
+  private static class ClassEntries {
+    // The entries that every instance of the class belongs to, without
+    // duplicates.
+    public final Entry[] entries;
+
+    ClassEntries(Entry[] entries) {
+      this.entries = entries;
+    }
+  }
+
+  /**
+   * Computes the index for the instances dominated by the given super root.
+   */
+  ClassIndex(SuperRoot root, List<AhatHeap> heaps) {
+    int numHeaps = heaps.size();
+    Map<AhatClassObj, ClassEntries> byClassObj = new HashMap<AhatClassObj, ClassEntries>();
+
+    // Visit the dominator tree, keeping track of which groups have instances
+    // on the path from the root. An instance is entered when it is popped
+    // from the stack, at which point the entries of its class are pushed so
+    // the instance can be exited once all instances it dominates have been
+    // visited.
+    Deque<Object> stack = new ArrayDeque<Object>();
+    for (AhatInstance inst : root.getDominated()) {
+      stack.push(inst);
+    }
+    while (!stack.isEmpty()) {
+      Object item = stack.pop();
+      if (item instanceof ClassEntries) {
+        for (Entry entry : ((ClassEntries)item).entries) {
+          entry.mActive--;
+        }
+        continue;
+      }
+
+      AhatInstance inst = (AhatInstance)item;
+      AhatClassObj classObj = inst.getClassObj();
+      ClassEntries entries = byClassObj.get(classObj);
+      if (entries == null) {
+        entries = entriesFor(classObj, numHeaps);
+        byClassObj.put(classObj, entries);
+      }
+
+      int heap = inst.getHeap().getIndex();
+      Size size = inst.getSize();
+      Size[] retained = null;
+      for (Entry entry : entries.entries) {
+        entry.mCount++;
+        entry.mJavaSize[heap] += size.getJavaSize();
+        entry.mNativeSize[heap] += size.getRegisteredNativeSize();
+        if (entry.mActive == 0) {
+          if (retained == null) {
+            retained = new Size[numHeaps];
+            for (int i = 0; i < numHeaps; ++i) {
+              retained[i] = inst.getRetainedSize(heaps.get(i));
+            }
+          }
+          for (int i = 0; i < numHeaps; ++i) {
+            entry.mRetainedJavaSize[i] += retained[i].getJavaSize();
+            entry.mRetainedNativeSize[i] += retained[i].getRegisteredNativeSize();
+          }
+        }
+      }
+      for (Entry entry : entries.entries) {
+        entry.mActive++;
+      }
+
+      stack.push(entries);
+      for (AhatInstance child : inst.getDominated()) {
+        stack.push(child);
+      }
+    }
+
+    Comparator<Entry> compare = Sort.withPriority(
+        Sort.CLASS_INDEX_ENTRY_BY_TOTAL_RETAINED_SIZE,
+        Sort.CLASS_INDEX_ENTRY_BY_NAME);
+    Collections.sort(mClasses, compare);
+    Collections.sort(mHierarchies, compare);
+    Collections.sort(mPackages, compare);
+  }
+
+  /**
+   * Returns the entries an instance of the given class belongs to, creating
+   * new entries as needed.
+   */
+  private ClassEntries entriesFor(AhatClassObj classObj, int numHeaps) {
+    List<Entry> entries = new ArrayList<Entry>();
+    String className = classObj == null ? "???" : classObj.getName();
+    entries.add(entry(mClasses, mClassesByName, className, numHeaps));
+
+    for (AhatClassObj cls = classObj; cls != null; cls = cls.getSuperClassObj()) {
+      Entry entry = entry(mHierarchies, mHierarchiesByName, cls.getName(), numHeaps);
+      if (!entries.contains(entry)) {
+        entries.add(entry);
+      }
+    }
+
+    if (classObj != null) {
+      String name = className;
+      while (name.endsWith("[]")) {
+        name = name.substring(0, name.length() - 2);
+      }
+      int end = name.lastIndexOf('.');
+      if (end < 0) {
+        entries.add(entry(mPackages, mPackagesByName, "", numHeaps));
+      }
+      while (end >= 0) {
+        entries.add(entry(mPackages, mPackagesByName, name.substring(0, end), numHeaps));
+        end = name.lastIndexOf('.', end - 1);
+      }
+    }
+    return new ClassEntries(entries.toArray(new Entry[entries.size()]));
+  }
+
+  private static Entry entry(List<Entry> list, Map<String, Entry> byName, String name,
+      int numHeaps) {
+    Entry entry = byName.get(name);
+    if (entry == null) {
+      entry = new Entry(name, numHeaps, false);
+      list.add(entry);
+      byName.put(name, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the entries for each class with retained instances, from largest
+   * to smallest total retained size. Classes are identified by name, so
+   * classes of the same name loaded by different class loaders share an
+   * entry.
+   *
+   * @return the entries for classes
+   */
+  public List<Entry> getClasses() {
+    return mClasses;
+  }
+
+  /**
+   * Returns the entries for each class hierarchy with retained instances,
+   * from largest to smallest total retained size.
+   *
+   * @return the entries for class hierarchies
+   */
+  public List<Entry> getHierarchies() {
+    return mHierarchies;
+  }
+
+  /**
+   * Returns the entries for each package with retained instances, from
+   * largest to smallest total retained size.
+   *
+   * @return the entries for packages
+   */
+  public List<Entry> getPackages() {
+    return mPackages;
+  }
+
+  /**
+   * Returns the entry for the class with the given name.
+   * Returns null if there are no retained instances of the class.
+   *
+   * @param name the name of the class
+   * @return the entry for the class
+   */
+  public Entry findClass(String name) {
+    return mClassesByName.get(name);
+  }
+
+  /**
+   * Returns the entry for the class hierarchy rooted at the class with the
+   * given name.
+   * Returns null if there are no retained instances in the hierarchy.
+   *
+   * @param name the name of the class at the root of the hierarchy
+   * @return the entry for the class hierarchy
+   */
+  public Entry findHierarchy(String name) {
+    return mHierarchiesByName.get(name);
+  }
+
+  /**
+   * Returns the entry for the package with the given name.
+   * Returns null if there are no retained instances in the package.
+   *
+   * @param name the name of the package, or the empty string for the default
+   *             package
+   * @return the entry for the package
+   */
+  public Entry findPackage(String name) {
+    return mPackagesByName.get(name);
+  }
+
+  /**
+   * Sets the entries of a and b with the same names as baselines of each
+   * other. Placeholder entries are added as needed so that every entry has a
+   * corresponding baseline.
+   */
+  static void diff(ClassIndex a, ClassIndex b) {
+    diff(a.mClasses, a.mClassesByName, b.mClasses, b.mClassesByName);
+    diff(a.mHierarchies, a.mHierarchiesByName, b.mHierarchies, b.mHierarchiesByName);
+    diff(a.mPackages, a.mPackagesByName, b.mPackages, b.mPackagesByName);
+  }
+
+  private static void diff(List<Entry> a, Map<String, Entry> abyName,
+      List<Entry> b, Map<String, Entry> bbyName) {
+    int asize = a.size();
+    int bsize = b.size();
+    for (int i = 0; i < asize; i++) {
+      Entry aentry = a.get(i);
+      Entry bentry = bbyName.get(aentry.mName);
+      if (bentry == null) {
+        bentry = new Entry(aentry.mName, 0, true);
+        b.add(bentry);
+      }
+      aentry.setBaseline(bentry);
+      bentry.setBaseline(aentry);
+    }
+
+    for (int i = 0; i < bsize; i++) {
+      Entry bentry = b.get(i);
+      if (!abyName.containsKey(bentry.mName)) {
+        Entry aentry = new Entry(bentry.mName, 0, true);
+        a.add(aentry);
+        aentry.setBaseline(bentry);
+        bentry.setBaseline(aentry);
+      }
+    }
+  }
+}
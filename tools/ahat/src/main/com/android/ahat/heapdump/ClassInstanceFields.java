@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+/**
+ * The instance field values of all the class instances of a heap dump.
+ * <p>
+ * Values of primitive fields are not kept in memory. They are decoded from
+ * the hprof file on demand. Values of reference fields are resolved once
+ * during parsing and stored as the indices of the referenced instances in a
+ * single array shared by all class instances. Each class instance owns a
+ * contiguous range of that array, with one entry for each of its reference
+ * fields in field order.
+ */
+class ClassInstanceFields {
+  // Entry used for reference fields that are null or refer to an instance
+  // not present in the heap dump.
+  private static final int NULL = -1;
+
+  private final HprofBuffer mHprof;
+  private final int mIdSize;
+  private final Instances<AhatInstance> mInstances;
+  private final int[] mRefs;
+
+  ClassInstanceFields(HprofBuffer hprof, int idSize, Instances<AhatInstance> instances,
+      int numRefs) {
+    mHprof = hprof;
+    mIdSize = idSize;
+    mInstances = instances;
+    mRefs = new int[numRefs];
+  }
+
+  int getIdSize() {
+    return mIdSize;
+  }
+
+  /**
+   * Resolves the reference field with the given index to the instance with
+   * the given id.
+   */
+  void setRef(int ref, long id) {
+    mRefs[ref] = mInstances.indexOf(id);
+  }
+
+  /**
+   * Returns the instance referred to by the reference field with the given
+   * index, or null if the field is null.
+   */
+  AhatInstance getRef(int ref) {
+    int index = mRefs[ref];
+    return index == NULL ? null : mInstances.getAt(index);
+  }
+
+  /**
+   * Returns the value of a field of the given type stored at the given
+   * position in the hprof file. For reference fields, ref is the index of the
+   * field in the shared array of reference fields.
+   */
+  Value getValue(Type type, long position, int ref) {
+    if (type == Type.OBJECT) {
+      return Value.pack(getRef(ref));
+    }
+    return mHprof.getPrimitiveValueAt(position, type);
+  }
+}
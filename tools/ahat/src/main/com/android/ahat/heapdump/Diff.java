@@ -18,12 +18,17 @@ package com.android.ahat.heapdump;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * Provides a static method to diff two heap dumps.
@@ -79,62 +84,108 @@ public class Diff {
   }
 
   /**
-   * Key represents an equivalence class of AhatInstances that are allowed to
-   * be considered for correspondence between two different snapshots.
+   * Assigns small integer ids to class and heap names, so that keys can be
+   * compared without comparing strings. This is safe to use concurrently
+   * from multiple threads.
    */
-  private static class Key {
+  private static class Names {
+    private final Map<String, Integer> mIds = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+
+    public int id(String name) {
+      Integer id = mIds.get(name);
+      if (id == null) {
+        id = mIds.computeIfAbsent(name, x -> mNextId.getAndIncrement());
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Keys for a list of instances. Two instances have equal keys if they
+   * belong to the same equivalence class of instances that are allowed to be
+   * considered for correspondence between two different snapshots.
+   * <p>
+   * The equivalence class is determined by the class name, heap name, string
+   * value, class object name and array length of an instance. These are
+   * combined into a single 64 bit key for each instance. Names are also
+   * recorded as ids so that instances whose keys collide are not confused,
+   * but string values are only compared by a 64 bit hash.
+   */
+  private static class Keys {
+    public final long[] key;
+
     // Corresponding objects must belong to classes of the same name.
-    private final String mClass;
+    private final int[] mClass;
 
     // Corresponding objects must belong to heaps of the same name.
-    private final String mHeapName;
-
-    // Corresponding string objects must have the same value.
-    // mStringValue is set to the empty string for non-string objects.
-    private final String mStringValue;
+    private final int[] mHeapName;
 
     // Corresponding class objects must have the same class name.
-    // mClassName is set to the empty string for non-class objects.
-    private final String mClassName;
+    // The class name is the empty string for non-class objects.
+    private final int[] mClassName;
 
     // Corresponding array objects must have the same length.
-    // mArrayLength is set to 0 for non-array objects.
-    private final int mArrayLength;
+    // The array length is 0 for non-array objects.
+    private final int[] mArrayLength;
+
+    public Keys(int size) {
+      key = new long[size];
+      mClass = new int[size];
+      mHeapName = new int[size];
+      mClassName = new int[size];
+      mArrayLength = new int[size];
+    }
 
+    /**
+     * Sets the key at index i to the key for the given instance.
+     */
+    public void set(int i, AhatInstance inst, Names names) {
+      mClass[i] = names.id(inst.getClassName());
+      mHeapName[i] = names.id(inst.getHeap().getName());
+      mClassName[i] = names.id(inst.isClassObj() ? inst.asClassObj().getName() : "");
+      AhatArrayInstance array = inst.asArrayInstance();
+      mArrayLength[i] = array == null ? 0 : array.getLength();
 
-    private Key(AhatInstance inst) {
-      mClass = inst.getClassName();
-      mHeapName = inst.getHeap().getName();
-      mClassName = inst.isClassObj() ? inst.asClassObj().getName() : "";
+      // Corresponding string objects must have the same value.
+      // The string value is the empty string for non-string objects.
       String string = inst.asString();
-      mStringValue = string == null ? "" : string;
-      AhatArrayInstance array = inst.asArrayInstance();
-      mArrayLength = array == null ? 0 : array.getLength();
+      long hash = hash(string == null ? "" : string);
+      hash = mix(hash ^ (((long)mClass[i] << 32) | (mHeapName[i] & 0xFFFFFFFFL)));
+      hash = mix(hash ^ (((long)mClassName[i] << 32) | (mArrayLength[i] & 0xFFFFFFFFL)));
+      key[i] = hash;
     }
 
     /**
-     * Return the key for the given instance.
+     * Returns true if the keys at indices i and j are equal.
      */
-    public static Key keyFor(AhatInstance inst) {
-      return new Key(inst);
+    public boolean equal(int i, int j) {
+      return key[i] == key[j]
+          && mClass[i] == mClass[j]
+          && mHeapName[i] == mHeapName[j]
+          && mClassName[i] == mClassName[j]
+          && mArrayLength[i] == mArrayLength[j];
     }
 
-    @Override
-    public boolean equals(Object other) {
-      if (!(other instanceof Key)) {
-        return false;
+    /**
+     * Returns a 64 bit FNV-1a hash of the given string.
+     */
+    private static long hash(String string) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < string.length(); ++i) {
+        hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
       }
-      Key o = (Key)other;
-      return mClass.equals(o.mClass)
-          && mHeapName.equals(o.mHeapName)
-          && mStringValue.equals(o.mStringValue)
-          && mClassName.equals(o.mClassName)
-          && mArrayLength == o.mArrayLength;
+      return hash;
     }
 
-    @Override
-    public int hashCode() {
-      return Objects.hash(mClass, mHeapName, mStringValue, mClassName, mArrayLength);
+    /**
+     * Mixes the bits of the given value, so that every bit of the result
+     * depends on every bit of the value.
+     */
+    private static long mix(long x) {
+      x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+      x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+      return x ^ (x >>> 33);
     }
   }
 
@@ -142,11 +193,6 @@ public class Diff {
     public final List<AhatInstance> a;
     public final List<AhatInstance> b;
 
-    public InstanceListPair() {
-      this.a = new ArrayList<AhatInstance>();
-      this.b = new ArrayList<AhatInstance>();
-    }
-
     public InstanceListPair(List<AhatInstance> a, List<AhatInstance> b) {
       this.a = a;
       this.b = b;
@@ -179,71 +225,293 @@ public class Diff {
   }
 
   /**
-   * Recursively diff two dominator trees of instances.
+   * Diff two lists of instances immediately dominated by corresponding
+   * instances, or the rooted instances of two snapshots.
    * PlaceHolder objects are appended to the lists as needed to ensure every
-   * object has a corresponding baseline in the other list. All PlaceHolder
-   * objects are also appended to the given placeholders list, so their Site
-   * info can be updated later on.
+   * object has a corresponding baseline in the other list. The PlaceHolder
+   * objects added to p.a and their descendants are appended to aplaceholders,
+   * and similarly for p.b and bplaceholders. Pairs of lists of instances
+   * immediately dominated by corresponding instances are pushed to the work
+   * deque to be diffed later.
    */
-  private static void instances(List<AhatInstance> a, List<AhatInstance> b,
-      List<AhatInstance> placeholders) {
-    // Don't actually use recursion, because we could easily smash the stack.
-    // Instead we iterate.
-    Deque<InstanceListPair> deque = new ArrayDeque<InstanceListPair>();
-    deque.push(new InstanceListPair(a, b));
-    while (!deque.isEmpty()) {
-      InstanceListPair p = deque.pop();
-
-      // Group instances of the same equivalence class together.
-      Map<Key, InstanceListPair> byKey = new HashMap<Key, InstanceListPair>();
-      for (AhatInstance inst : p.a) {
-        Key key = Key.keyFor(inst);
-        InstanceListPair pair = byKey.get(key);
-        if (pair == null) {
-          pair = new InstanceListPair();
-          byKey.put(key, pair);
-        }
-        pair.a.add(inst);
+  private static void instances(InstanceListPair p, Names names, Deque<InstanceListPair> work,
+      List<AhatInstance> aplaceholders, List<AhatInstance> bplaceholders) {
+    int asize = p.a.size();
+    int bsize = p.b.size();
+    if (asize == 0 || bsize == 0) {
+      // Nothing can correspond, so there is no need to compute keys.
+      for (int i = 0; i < asize; i++) {
+        p.b.add(createPlaceHolders(p.a.get(i), bplaceholders));
+      }
+      for (int i = 0; i < bsize; i++) {
+        p.a.add(createPlaceHolders(p.b.get(i), aplaceholders));
       }
-      for (AhatInstance inst : p.b) {
-        Key key = Key.keyFor(inst);
-        InstanceListPair pair = byKey.get(key);
-        if (pair == null) {
-          pair = new InstanceListPair();
-          byKey.put(key, pair);
+      return;
+    }
+
+    Groups groups = group(p.a, p.b, names);
+    for (int g = 0; g < groups.count; g++) {
+      int astart = groups.start[2 * g];
+      int bstart = groups.start[2 * g + 1];
+      int bend = groups.start[2 * g + 2];
+      int common = Math.min(bstart - astart, bend - bstart);
+      for (int i = 0; i < common; i++) {
+        AhatInstance ainst = groups.instances[astart + i];
+        AhatInstance binst = groups.instances[bstart + i];
+        ainst.setBaseline(binst);
+        binst.setBaseline(ainst);
+        List<AhatInstance> adominated = ainst.getDominated();
+        List<AhatInstance> bdominated = binst.getDominated();
+        if (!adominated.isEmpty() || !bdominated.isEmpty()) {
+          work.push(new InstanceListPair(adominated, bdominated));
         }
-        pair.b.add(inst);
       }
 
-      // diff objects from the same key class.
-      for (InstanceListPair pair : byKey.values()) {
-        // Sort by retained size and assume the elements at the top of the lists
-        // correspond to each other in that order. This could probably be
-        // improved if desired, but it gives good enough results for now.
-        Collections.sort(pair.a, Sort.INSTANCE_BY_TOTAL_RETAINED_SIZE);
-        Collections.sort(pair.b, Sort.INSTANCE_BY_TOTAL_RETAINED_SIZE);
+      // Add placeholder objects for anything leftover.
+      for (int i = astart + common; i < bstart; i++) {
+        p.b.add(createPlaceHolders(groups.instances[i], bplaceholders));
+      }
+
+      for (int i = bstart + common; i < bend; i++) {
+        p.a.add(createPlaceHolders(groups.instances[i], aplaceholders));
+      }
+    }
+  }
+
+  /**
+   * The instances of two lists grouped by equivalence class. The instances
+   * of group g from the first list are at indices start[2g] to
+   * start[2g + 1] of the instances array, followed by the instances of the
+   * group from the second list up to index start[2g + 2]. The instances
+   * from each list are sorted by retained size, and the instances at the
+   * same position in the two lists of a group correspond to each other.
+   */
+  private static class Groups {
+    public final AhatInstance[] instances;
+    public final int[] start;
+    public final int count;
+
+    Groups(AhatInstance[] instances, int[] start, int count) {
+      this.instances = instances;
+      this.start = start;
+      this.count = count;
+    }
+  }
+
+  /**
+   * Groups the instances of two non-empty lists by equivalence class.
+   */
+  private static Groups group(List<AhatInstance> a, List<AhatInstance> b, Names names) {
+    int asize = a.size();
+    int bsize = b.size();
+    int size = asize + bsize;
+    AhatInstance[] insts = new AhatInstance[size];
+    Keys keys = new Keys(size);
+    for (int i = 0; i < asize; i++) {
+      insts[i] = a.get(i);
+      keys.set(i, insts[i], names);
+    }
+    for (int i = 0; i < bsize; i++) {
+      insts[asize + i] = b.get(i);
+      keys.set(asize + i, insts[asize + i], names);
+    }
+
+    // Group instances of the same equivalence class together, using an open
+    // addressing hash table from key to group. Groups are numbered in order
+    // of first appearance. Entries in the table hold the group number plus
+    // one, so that zero can be used to mark empty slots.
+    int[] group = new int[size];
+    int[] first = new int[size];
+    int groups = 0;
+    int capacity = IdIndex.tableCapacity(size);
+    int[] table = new int[capacity];
+    int mask = capacity - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = (int)keys.key[i] & mask;
+      int entry;
+      while ((entry = table[slot]) != 0 && !keys.equal(first[entry - 1], i)) {
+        slot = (slot + 1) & mask;
+      }
+      if (entry == 0) {
+        first[groups] = i;
+        entry = ++groups;
+        table[slot] = entry;
+      }
+      group[i] = entry - 1;
+    }
+
+    // Lay out the instances by group, with the instances of each group from
+    // a followed by the instances of that group from b, preserving their
+    // relative order.
+    int[] start = new int[2 * groups + 1];
+    for (int i = 0; i < size; i++) {
+      start[2 * group[i] + (i < asize ? 1 : 2)]++;
+    }
+    for (int i = 1; i <= 2 * groups; i++) {
+      start[i] += start[i - 1];
+    }
+    int[] next = Arrays.copyOf(start, 2 * groups);
+    AhatInstance[] grouped = new AhatInstance[size];
+    for (int i = 0; i < size; i++) {
+      grouped[next[2 * group[i] + (i < asize ? 0 : 1)]++] = insts[i];
+    }
+
+    // Sort by retained size and assume the elements at the top of the lists
+    // correspond to each other in that order. This could probably be
+    // improved if desired, but it gives good enough results for now.
+    for (int g = 0; g < groups; g++) {
+      Arrays.sort(grouped, start[2 * g], start[2 * g + 1], Sort.INSTANCE_BY_TOTAL_RETAINED_SIZE);
+      Arrays.sort(grouped, start[2 * g + 1], start[2 * g + 2],
+          Sort.INSTANCE_BY_TOTAL_RETAINED_SIZE);
+    }
+    return new Groups(grouped, start, groups);
+  }
 
-        int common = Math.min(pair.a.size(), pair.b.size());
+  /**
+   * Finds the instances of snapshot b that correspond to instances of
+   * snapshot a, in the same way as {@link #snapshots} would, but without
+   * modifying either snapshot. Placeholder instances added by earlier diffs
+   * are ignored. The consumer is called with each pair of corresponding
+   * instances, parents in the dominator tree before their children.
+   */
+  static void correspondingInstances(AhatSnapshot a, AhatSnapshot b,
+      BiConsumer<AhatInstance, AhatInstance> consumer) {
+    Names names = new Names();
+    Deque<InstanceListPair> work = new ArrayDeque<InstanceListPair>();
+    work.push(new InstanceListPair(a.getRooted(), b.getRooted()));
+    while (!work.isEmpty()) {
+      InstanceListPair p = work.pop();
+      List<AhatInstance> alist = withoutPlaceHolders(p.a);
+      List<AhatInstance> blist = withoutPlaceHolders(p.b);
+      if (alist.isEmpty() || blist.isEmpty()) {
+        continue;
+      }
+
+      Groups groups = group(alist, blist, names);
+      for (int g = 0; g < groups.count; g++) {
+        int astart = groups.start[2 * g];
+        int bstart = groups.start[2 * g + 1];
+        int bend = groups.start[2 * g + 2];
+        int common = Math.min(bstart - astart, bend - bstart);
         for (int i = 0; i < common; i++) {
-          AhatInstance ainst = pair.a.get(i);
-          AhatInstance binst = pair.b.get(i);
-          ainst.setBaseline(binst);
-          binst.setBaseline(ainst);
-          deque.push(new InstanceListPair(ainst.getDominated(), binst.getDominated()));
+          AhatInstance ainst = groups.instances[astart + i];
+          AhatInstance binst = groups.instances[bstart + i];
+          consumer.accept(ainst, binst);
+          work.push(new InstanceListPair(ainst.getDominated(), binst.getDominated()));
         }
+      }
+    }
+  }
 
-        // Add placeholder objects for anything leftover.
-        for (int i = common; i < pair.a.size(); i++) {
-          p.b.add(createPlaceHolders(pair.a.get(i), placeholders));
+  private static List<AhatInstance> withoutPlaceHolders(List<AhatInstance> insts) {
+    for (AhatInstance inst : insts) {
+      if (inst.isPlaceHolder()) {
+        List<AhatInstance> filtered = new ArrayList<AhatInstance>();
+        for (AhatInstance x : insts) {
+          if (!x.isPlaceHolder()) {
+            filtered.add(x);
+          }
         }
+        return filtered;
+      }
+    }
+    return insts;
+  }
+
+  /**
+   * Diffs pairs of lists of instances from a work deque, along with the
+   * lists of instances they dominate. Work is split off into new tasks for
+   * other threads of the ForkJoinPool to steal while there are few tasks
+   * queued. Completion is tracked by counting rather than joining, because
+   * the dominator trees can be too deep to join recursively.
+   */
+  @SuppressWarnings("serial")
+  private static class InstancesTask extends CountedCompleter<Void> {
+    // The number of queued tasks above which work is no longer split off.
+    private static final int SURPLUS = 2;
+
+    private final Deque<InstanceListPair> mWork;
+    private final Names mNames;
+    private final List<AhatInstance> mAPlaceHolders;
+    private final List<AhatInstance> mBPlaceHolders;
+
+    /**
+     * Constructs a task to diff the given work, adding placeholders to the
+     * given lists, which must be synchronized.
+     */
+    InstancesTask(CountedCompleter<?> parent, Deque<InstanceListPair> work, Names names,
+        List<AhatInstance> aplaceholders, List<AhatInstance> bplaceholders) {
+      super(parent);
+      mWork = work;
+      mNames = names;
+      mAPlaceHolders = aplaceholders;
+      mBPlaceHolders = bplaceholders;
+    }
 
-        for (int i = common; i < pair.b.size(); i++) {
-          p.a.add(createPlaceHolders(pair.b.get(i), placeholders));
+    @Override
+    public void compute() {
+      List<AhatInstance> aplaceholders = new ArrayList<AhatInstance>();
+      List<AhatInstance> bplaceholders = new ArrayList<AhatInstance>();
+      while (!mWork.isEmpty()) {
+        instances(mWork.pop(), mNames, mWork, aplaceholders, bplaceholders);
+        if (mWork.size() > 1 && getSurplusQueuedTaskCount() < SURPLUS) {
+          // Split off the oldest half of the work, which is nearest the
+          // roots of the dominator trees and likely to be the largest.
+          Deque<InstanceListPair> split = new ArrayDeque<InstanceListPair>();
+          for (int i = mWork.size() / 2; i > 0; i--) {
+            split.addFirst(mWork.removeLast());
+          }
+          addToPendingCount(1);
+          new InstancesTask(this, split, mNames, mAPlaceHolders, mBPlaceHolders).fork();
         }
       }
+      mAPlaceHolders.addAll(aplaceholders);
+      mBPlaceHolders.addAll(bplaceholders);
+      tryComplete();
     }
   }
 
+  /**
+   * Recursively diff two dominator trees of instances.
+   * PlaceHolder objects are appended to the lists as needed to ensure every
+   * object has a corresponding baseline in the other list. All PlaceHolder
+   * objects are also appended to the given placeholders list, so their Site
+   * info can be updated later on.
+   */
+  private static void instances(List<AhatInstance> a, List<AhatInstance> b,
+      List<AhatInstance> placeholders, int threads) {
+    Names names = new Names();
+    Deque<InstanceListPair> work = new ArrayDeque<InstanceListPair>();
+    work.push(new InstanceListPair(a, b));
+    List<AhatInstance> aplaceholders = new ArrayList<AhatInstance>();
+    List<AhatInstance> bplaceholders = new ArrayList<AhatInstance>();
+    if (threads == 1) {
+      // Don't actually use recursion, because we could easily smash the
+      // stack. Instead we iterate.
+      while (!work.isEmpty()) {
+        instances(work.pop(), names, work, aplaceholders, bplaceholders);
+      }
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(new InstancesTask(null, work, names,
+              Collections.synchronizedList(aplaceholders),
+              Collections.synchronizedList(bplaceholders)));
+      } finally {
+        pool.shutdown();
+      }
+    }
+
+    // Order the placeholders by their baselines, so the order does not
+    // depend on how the work was divided among threads.
+    Comparator<AhatInstance> byBaseline
+      = Comparator.comparingInt(x -> x.getBaseline().getGraphIndex());
+    aplaceholders.sort(byBaseline);
+    bplaceholders.sort(byBaseline);
+    placeholders.addAll(aplaceholders);
+    placeholders.addAll(bplaceholders);
+  }
+
   /**
    * Sets the baseline for root and all its descendants to baseline.
    */
@@ -330,6 +598,25 @@ public class Diff {
    * @param b the other of the snapshots to diff
    */
   public static void snapshots(AhatSnapshot a, AhatSnapshot b) {
+    snapshots(a, b, 1);
+  }
+
+  /**
+   * Performs a diff of two snapshots using the given number of threads.
+   * The result of the diff is the same regardless of the number of threads
+   * used.
+   *
+   * @param a one of the snapshots to diff
+   * @param b the other of the snapshots to diff
+   * @param threads the number of threads to use, at least 1
+   * @throws IllegalArgumentException if threads is less than 1
+   * @see #snapshots(AhatSnapshot, AhatSnapshot)
+   */
+  public static void snapshots(AhatSnapshot a, AhatSnapshot b, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads < 1");
+    }
+
     a.setBaseline(b);
     b.setBaseline(a);
 
@@ -338,12 +625,15 @@ public class Diff {
 
     // Diff the instances of each snapshot.
     List<AhatInstance> placeholders = new ArrayList<AhatInstance>();
-    instances(a.getRooted(), b.getRooted(), placeholders);
+    instances(a.getRooted(), b.getRooted(), placeholders, threads);
 
     // Diff the sites of each snapshot.
     // This requires the instances have already been diffed.
     sites(a.getRootSite(), b.getRootSite());
 
+    // Diff the class indexes of each snapshot.
+    ClassIndex.diff(a.getClassIndex(), b.getClassIndex());
+
     // Add placeholders to their corresponding sites.
     // This requires the sites have already been diffed.
     for (AhatInstance placeholder : placeholders) {
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Groups of retained strings, primitive arrays and bitmaps with identical
+ * contents.
+ * <p>
+ * All but one copy of each group could in principle be shared, so the
+ * bytes used by the other copies are reported as wasted. Contents are
+ * compared using a 128 bit hash computed directly from the hprof file,
+ * without copying the contents into memory. The probability of two
+ * different contents having the same hash is negligible.
+ * <p>
+ * The characters of a String are only counted as part of the String, not
+ * as a separate primitive array, and the same goes for the pixels of a
+ * bitmap. The overhead arrays of classes are not reported.
+ */
+public class Duplicates {
+  /**
+   * The hash function used for comparing contents.
+   */
+  static final HashFunction HASH = Hashing.murmur3_128();
+
+  /**
+   * The kinds of instances whose contents are compared.
+   */
+  public enum Kind {
+    /**
+     * java.lang.String instances, compared by their characters.
+     */
+    STRING("string"),
+
+    /**
+     * Primitive arrays, compared by their element type and elements.
+     */
+    ARRAY("array"),
+
+    /**
+     * android.graphics.Bitmap instances, compared by their dimensions,
+     * format and pixels.
+     */
+    BITMAP("bitmap");
+
+    private final String name;
+
+    Kind(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * A group of instances with identical contents.
+   */
+  public static class Group {
+    private final Kind mKind;
+    private final List<AhatInstance> mInstances = new ArrayList<AhatInstance>();
+    private long mTotalSize;
+    private long mMaxSize;
+
+    private Group(Kind kind) {
+      mKind = kind;
+    }
+
+    private void add(AhatInstance inst, long size) {
+      mInstances.add(inst);
+      mTotalSize += size;
+      mMaxSize = Math.max(mMaxSize, size);
+    }
+
+    /**
+     * Returns the kind of instances in this group.
+     *
+     * @return the kind of instances in this group
+     */
+    public Kind getKind() {
+      return mKind;
+    }
+
+    /**
+     * Returns the instances in this group, in the order they appear in the
+     * heap dump. There are always at least two.
+     *
+     * @return the instances in this group
+     */
+    public List<AhatInstance> getInstances() {
+      return mInstances;
+    }
+
+    /**
+     * Returns the total number of bytes used by all copies of the contents.
+     * For Strings, this includes the array holding the characters. For
+     * bitmaps, this is the size of the pixel buffer.
+     *
+     * @return the total size of all copies in bytes
+     */
+    public long getTotalSize() {
+      return mTotalSize;
+    }
+
+    /**
+     * Returns the number of bytes that would be saved if a single copy of
+     * the contents were shared by all instances in the group.
+     *
+     * @return the wasted size in bytes
+     */
+    public long getWastedSize() {
+      return mTotalSize - mMaxSize;
+    }
+  }
+
+  private final List<Group> mGroups;
+
+  private Duplicates(List<Group> groups) {
+    mGroups = groups;
+  }
+
+  /**
+   * Returns the groups of duplicate instances, from most to least wasted
+   * bytes. Groups that do not waste any bytes are not included.
+   *
+   * @return the groups of duplicate instances
+   */
+  public List<Group> getGroups() {
+    return mGroups;
+  }
+
+  /**
+   * Returns the total number of wasted bytes of all groups of the given
+   * kind.
+   *
+   * @param kind the kind of instances to count
+   * @return the total wasted size in bytes
+   */
+  public long getWastedSize(Kind kind) {
+    long wasted = 0;
+    for (Group group : mGroups) {
+      if (group.getKind() == kind) {
+        wasted += group.getWastedSize();
+      }
+    }
+    return wasted;
+  }
+
+  /**
+   * The identity of the contents of an instance.
+   */
+  private static class Key {
+    public final Kind kind;
+    public final long high;
+    public final long low;
+
+    Key(Kind kind, byte[] hash) {
+      ByteBuffer buffer = ByteBuffer.wrap(hash);
+      this.kind = kind;
+      this.high = buffer.getLong();
+      this.low = buffer.getLong();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)o;
+      return kind == other.kind && high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int)low;
+    }
+  }
+
+  /**
+   * An instance whose contents are to be compared.
+   */
+  private static class Candidate {
+    public final Kind kind;
+    public final AhatInstance inst;
+
+    // Computed by HashTask.
+    public Key key;
+    public long size;
+
+    Candidate(Kind kind, AhatInstance inst) {
+      this.kind = kind;
+      this.inst = inst;
+    }
+  }
+
+  /**
+   * Finds the groups of retained instances with identical contents.
+   *
+   * @param instances all instances of the heap dump
+   * @param bitmapDumpData the bitmap dump data of the heap dump, may be null
+   * @param threads the number of threads to use for hashing contents
+   */
+  static Duplicates find(Instances<AhatInstance> instances,
+      AhatBitmapInstance.BitmapDumpData bitmapDumpData, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads < 1");
+    }
+
+    // Collect the instances to compare. Arrays holding the characters of
+    // strings and the pixels of bitmaps are accounted for as part of the
+    // string or bitmap instead.
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    Set<AhatInstance> contents = new HashSet<AhatInstance>();
+    for (AhatInstance inst : instances) {
+      if (inst.getImmediateDominator() == null) {
+        // The instance is not retained.
+        continue;
+      }
+
+      AhatBitmapInstance bitmap = inst.asBitmapInstance();
+      if (bitmap != null) {
+        AhatArrayInstance buffer = bitmap.getBitmapBuffer(bitmapDumpData);
+        if (buffer != null) {
+          contents.add(buffer);
+          candidates.add(new Candidate(Kind.BITMAP, inst));
+        }
+        continue;
+      }
+
+      AhatClassInstance classInst = inst.asClassInstance();
+      if (classInst != null) {
+        AhatArrayInstance chars = classInst.getStringValueArray();
+        if (chars != null) {
+          contents.add(chars);
+          candidates.add(new Candidate(Kind.STRING, inst));
+        }
+        continue;
+      }
+
+      if (inst.isArrayInstance()) {
+        candidates.add(new Candidate(Kind.ARRAY, inst));
+      }
+    }
+    candidates.removeIf(c -> c.kind == Kind.ARRAY && contents.contains(c.inst));
+
+    // Hash the contents of the candidates.
+    HashTask task = new HashTask(candidates, bitmapDumpData, 0, candidates.size());
+    if (threads == 1) {
+      task.compute();
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(task);
+      } finally {
+        pool.shutdown();
+      }
+    }
+
+    // Group candidates with the same contents, in the order they appear in
+    // the heap dump.
+    Map<Key, Group> byKey = new LinkedHashMap<Key, Group>();
+    for (Candidate candidate : candidates) {
+      if (candidate.key != null) {
+        byKey.computeIfAbsent(candidate.key, k -> new Group(k.kind))
+          .add(candidate.inst, candidate.size);
+      }
+    }
+
+    List<Group> groups = new ArrayList<Group>();
+    for (Group group : byKey.values()) {
+      if (group.mInstances.size() > 1 && group.getWastedSize() > 0) {
+        groups.add(group);
+      }
+    }
+    Collections.sort(groups, Comparator.comparingLong(Group::getWastedSize).reversed());
+    return new Duplicates(groups);
+  }
+
+  /**
+   * Computes the keys and sizes of a range of candidates, splitting the
+   * range among the threads of the ForkJoinPool it is invoked in.
+   */
+  @SuppressWarnings("serial")
+  private static class HashTask extends RecursiveAction {
+    // The number of candidates below which a range is hashed directly
+    // rather than being split further.
+    private static final int LEAF_SIZE = 1024;
+
+    private final List<Candidate> mCandidates;
+    private final AhatBitmapInstance.BitmapDumpData mBitmapDumpData;
+    private final int mStart;
+    private final int mEnd;
+
+    HashTask(List<Candidate> candidates, AhatBitmapInstance.BitmapDumpData bitmapDumpData,
+        int start, int end) {
+      mCandidates = candidates;
+      mBitmapDumpData = bitmapDumpData;
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (mEnd - mStart > LEAF_SIZE) {
+        int mid = mStart + (mEnd - mStart) / 2;
+        invokeAll(new HashTask(mCandidates, mBitmapDumpData, mStart, mid),
+                  new HashTask(mCandidates, mBitmapDumpData, mid, mEnd));
+        return;
+      }
+
+      for (int i = mStart; i < mEnd; ++i) {
+        hash(mCandidates.get(i));
+      }
+    }
+
+    private void hash(Candidate candidate) {
+      Hasher hasher = HASH.newHasher();
+      AhatInstance inst = candidate.inst;
+      switch (candidate.kind) {
+        case STRING: {
+          AhatClassInstance str = inst.asClassInstance();
+          if (str.putStringContents(hasher)) {
+            candidate.size = inst.getSize().getSize()
+              + str.getStringValueArray().getSize().getSize();
+            candidate.key = new Key(candidate.kind, hasher.hash().asBytes());
+          }
+          break;
+        }
+
+        case ARRAY: {
+          // The overhead arrays of classes cannot be shared, so they are
+          // not reported.
+          AhatArrayInstance array = inst.asArrayInstance();
+          if (array.getAssociatedClassForOverhead() == null
+              && array.putContents(0, array.getLength(), hasher)) {
+            candidate.size = inst.getSize().getSize();
+            candidate.key = new Key(candidate.kind, hasher.hash().asBytes());
+          }
+          break;
+        }
+
+        case BITMAP: {
+          AhatBitmapInstance bitmap = inst.asBitmapInstance();
+          if (bitmap.putBitmapContents(mBitmapDumpData, hasher)) {
+            candidate.size = bitmap.getBitmapBuffer(mBitmapDumpData).getSize().getSize();
+            candidate.key = new Key(candidate.kind, hasher.hash().asBytes());
+          }
+          break;
+        }
+
+        default: throw new AssertionError("unsupported enum member");
+      }
+    }
+  }
+}
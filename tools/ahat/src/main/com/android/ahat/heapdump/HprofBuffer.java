@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import com.google.common.hash.Hasher;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Wrapper around a sequence of ByteBuffers that presents a uniform interface
+ * for accessing data from an hprof file.
+ * <p>
+ * A single ByteBuffer cannot address more than 2^31 bytes, so the hprof file
+ * is split into a chain of fixed size windows, each of which is mapped or
+ * sliced separately. Positions in the file are tracked as long offsets.
+ * Reads that fit entirely in the current window go straight to the
+ * underlying ByteBuffer. Reads that straddle a window boundary fall back to
+ * assembling the value a byte at a time.
+ */
+class HprofBuffer {
+  // The log2 of the default size of each window. Tests use much smaller
+  // windows to exercise reads that straddle window boundaries.
+  static final int DEFAULT_WINDOW_SHIFT = 30;
+
+  // The size of the regions of a file that are mapped at once. Each region
+  // is split into windows, so the window size can be at most this size.
+  private static final long MAP_SIZE = 1L << DEFAULT_WINDOW_SHIFT;
+
+  // Magic numbers at the start of compressed files.
+  private static final int GZIP_MAGIC = 0x1f8b;
+  private static final int ZSTD_MAGIC = 0x28b52ffd;
+  private static final int LZ4_MAGIC = 0x04224d18;
+
+  private boolean mIdSize8;
+  private final ByteBuffer[] mWindows;
+  private final long mSize;
+
+  // The size of each window is 1 << mWindowShift. All windows except the
+  // last are exactly this size. A power of two so that positions can be
+  // split into window index and window offset with shifts and masks.
+  private final int mWindowShift;
+  private final long mWindowMask;
+
+  // The window containing the current position, and its index in mWindows.
+  private ByteBuffer mBuffer;
+  private int mWindowIndex;
+
+  public HprofBuffer(File path) throws IOException {
+    this(path, DEFAULT_WINDOW_SHIFT);
+  }
+
+  /**
+   * Constructs an HprofBuffer that maps the given file in windows of
+   * 1 &lt;&lt; windowShift bytes, where windowShift is at most
+   * DEFAULT_WINDOW_SHIFT.
+   */
+  HprofBuffer(File path, int windowShift) throws IOException {
+    try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+      mSize = channel.size();
+      mWindowShift = windowShift;
+      mWindowMask = (1L << windowShift) - 1;
+      mWindows = new ByteBuffer[numWindows(mSize)];
+      long start = 0;
+      do {
+        long length = Math.min(MAP_SIZE, mSize - start);
+        ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        split(region, (int)(start >>> windowShift));
+        start += MAP_SIZE;
+      } while (start < mSize);
+    }
+    mWindowIndex = 0;
+    mBuffer = mWindows[0];
+  }
+
+  /**
+   * Opens the heap dump in the given file.
+   * <p>
+   * Uncompressed heap dumps are mapped directly from the file. Gzip
+   * compressed heap dumps are decompressed once, into a temporary file in
+   * the java.io.tmpdir directory, and mapped from there so that they can be
+   * read from at random positions without holding the decompressed heap
+   * dump in memory.
+   *
+   * @throws IOException if the file cannot be read, or is compressed in a
+   *         format other than gzip
+   */
+  public static HprofBuffer open(File path) throws IOException {
+    return open(path, DEFAULT_WINDOW_SHIFT);
+  }
+
+  /**
+   * Opens the heap dump in the given file, reading it in windows of
+   * 1 &lt;&lt; windowShift bytes.
+   */
+  static HprofBuffer open(File path, int windowShift) throws IOException {
+    int magic = 0;
+    try (InputStream in = new FileInputStream(path)) {
+      for (int i = 0; i < 4; ++i) {
+        int b = in.read();
+        magic = (magic << 8) | (b < 0 ? 0 : b);
+      }
+    }
+
+    if ((magic >>> 16) == GZIP_MAGIC) {
+      return decompress(path, windowShift);
+    }
+    if (magic == ZSTD_MAGIC || magic == LZ4_MAGIC) {
+      throw new IOException(path + " is compressed in a format that is not supported."
+          + " Decompress it first, or compress it with gzip instead.");
+    }
+    return new HprofBuffer(path, windowShift);
+  }
+
+  /**
+   * Decompresses the given gzip compressed file into a temporary file and
+   * maps it. The temporary file is deleted as soon as it is mapped, or when
+   * the VM exits on platforms where a mapped file cannot be deleted.
+   */
+  private static HprofBuffer decompress(File path, int windowShift) throws IOException {
+    File temp = File.createTempFile("ahat", ".hprof");
+    try {
+      try (InputStream in = new GZIPInputStream(new FileInputStream(path), 1 << 16);
+           OutputStream out = new FileOutputStream(temp)) {
+        in.transferTo(out);
+      } catch (IOException e) {
+        throw new IOException("Unable to decompress " + path + " to " + temp, e);
+      }
+      return new HprofBuffer(temp, windowShift);
+    } finally {
+      if (!temp.delete()) {
+        temp.deleteOnExit();
+      }
+    }
+  }
+
+  public HprofBuffer(ByteBuffer buffer) {
+    this(buffer, DEFAULT_WINDOW_SHIFT);
+  }
+
+  /**
+   * Constructs an HprofBuffer over the given buffer, split into windows of
+   * 1 &lt;&lt; windowShift bytes, where windowShift is at most
+   * DEFAULT_WINDOW_SHIFT.
+   */
+  HprofBuffer(ByteBuffer buffer, int windowShift) {
+    mSize = buffer.capacity();
+    mWindowShift = windowShift;
+    mWindowMask = (1L << windowShift) - 1;
+    mWindows = new ByteBuffer[numWindows(mSize)];
+    split(buffer, 0);
+    mWindowIndex = 0;
+    mBuffer = mWindows[0];
+  }
+
+  /**
+   * Constructs an HprofBuffer over the same data as the given buffer, but
+   * with its own independent position.
+   */
+  private HprofBuffer(HprofBuffer other) {
+    mIdSize8 = other.mIdSize8;
+    mSize = other.mSize;
+    mWindowShift = other.mWindowShift;
+    mWindowMask = other.mWindowMask;
+    mWindows = new ByteBuffer[other.mWindows.length];
+    for (int i = 0; i < mWindows.length; ++i) {
+      mWindows[i] = other.mWindows[i].duplicate().order(other.mWindows[i].order());
+    }
+    mWindowIndex = 0;
+    mBuffer = mWindows[0];
+    mBuffer.position(0);
+  }
+
+  private int numWindows(long size) {
+    return (int)Math.max(1, (size + mWindowMask) >>> mWindowShift);
+  }
+
+  /**
+   * Splits the given buffer into consecutive windows, storing them in
+   * mWindows starting at the given index. An empty buffer is stored as a
+   * single empty window.
+   */
+  private void split(ByteBuffer buffer, int index) {
+    int size = buffer.capacity();
+    int start = 0;
+    do {
+      int end = (int)Math.min(size, start + mWindowMask + 1);
+      ByteBuffer window = buffer.duplicate();
+      window.limit(end);
+      window.position(start);
+      mWindows[index++] = window.slice().order(buffer.order());
+      start = end;
+    } while (start < size);
+  }
+
+  /**
+   * Returns a new HprofBuffer sharing the same underlying data as this
+   * buffer. The returned buffer has its own position, so that it can be used
+   * to read from the hprof file concurrently with this buffer.
+   */
+  public HprofBuffer duplicate() {
+    return new HprofBuffer(this);
+  }
+
+  public void setIdSize8() {
+    mIdSize8 = true;
+  }
+
+  public boolean hasRemaining() {
+    return mBuffer.hasRemaining() || mWindowIndex + 1 < mWindows.length;
+  }
+
+  /**
+   * Returns the size of the file in bytes.
+   */
+  public long size() {
+    return mSize;
+  }
+
+  /**
+   * Computes a CRC-32C checksum of the entire contents of the file. This
+   * does not change the current position.
+   */
+  public long checksum() {
+    CRC32C crc = new CRC32C();
+    for (ByteBuffer window : mWindows) {
+      ByteBuffer data = window.duplicate();
+      data.position(0);
+      crc.update(data);
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Return the current absolution position in the file.
+   */
+  public long tell() {
+    return ((long)mWindowIndex << mWindowShift) + mBuffer.position();
+  }
+
+  /**
+   * Seek to the given absolution position in the file.
+   */
+  public void seek(long position) {
+    if (position < 0 || position > mSize) {
+      throw new BufferUnderflowException();
+    }
+
+    int index = (int)(position >>> mWindowShift);
+    int offset = (int)(position & mWindowMask);
+    if (index == mWindows.length) {
+      // The position is the very end of a file whose size is a multiple of
+      // the window size. Treat it as the end of the last window.
+      index--;
+      offset = mWindows[index].limit();
+    }
+    mWindowIndex = index;
+    mBuffer = mWindows[index];
+    mBuffer.position(offset);
+  }
+
+  /**
+   * Skip ahead in the file by the given delta bytes. Delta may be negative
+   * to skip backwards in the file.
+   */
+  public void skip(long delta) {
+    seek(tell() + delta);
+  }
+
+  /**
+   * Moves to the start of the next window.
+   * @throws BufferUnderflowException if there is no next window.
+   */
+  private void nextWindow() {
+    if (mWindowIndex + 1 >= mWindows.length) {
+      throw new BufferUnderflowException();
+    }
+    mWindowIndex++;
+    mBuffer = mWindows[mWindowIndex];
+    mBuffer.position(0);
+  }
+
+  /**
+   * Reads the next byte from the file, crossing into the next window if
+   * necessary.
+   */
+  private int nextByte() {
+    while (!mBuffer.hasRemaining()) {
+      nextWindow();
+    }
+    return mBuffer.get() & 0xFF;
+  }
+
+  /**
+   * Reads a big endian value of the given number of bytes that straddles a
+   * window boundary.
+   */
+  private long getStraddled(int bytes) {
+    long value = 0;
+    for (int i = 0; i < bytes; ++i) {
+      value = (value << 8) | nextByte();
+    }
+    return value;
+  }
+
+  public int getU1() {
+    return nextByte();
+  }
+
+  public int getU2() {
+    if (mBuffer.remaining() >= 2) {
+      return mBuffer.getShort() & 0xFFFF;
+    }
+    return (int)getStraddled(2);
+  }
+
+  public int getU4() {
+    return getInt();
+  }
+
+  public long getId() {
+    if (mIdSize8) {
+      return getLong();
+    } else {
+      return getInt() & 0xFFFFFFFFL;
+    }
+  }
+
+  public boolean getBool() {
+    return nextByte() != 0;
+  }
+
+  public char getChar() {
+    if (mBuffer.remaining() >= 2) {
+      return mBuffer.getChar();
+    }
+    return (char)getStraddled(2);
+  }
+
+  public float getFloat() {
+    return Float.intBitsToFloat(getInt());
+  }
+
+  public double getDouble() {
+    return Double.longBitsToDouble(getLong());
+  }
+
+  public byte getByte() {
+    return (byte)nextByte();
+  }
+
+  public void getBytes(byte[] bytes) {
+    int offset = 0;
+    while (offset < bytes.length) {
+      while (!mBuffer.hasRemaining()) {
+        nextWindow();
+      }
+      int length = Math.min(bytes.length - offset, mBuffer.remaining());
+      mBuffer.get(bytes, offset, length);
+      offset += length;
+    }
+  }
+
+  /**
+   * Reads ints.length big endian ints into the given array.
+   */
+  public void getInts(int[] ints) {
+    int offset = 0;
+    while (offset < ints.length) {
+      int length = Math.min(ints.length - offset, mBuffer.remaining() / 4);
+      if (length == 0) {
+        // The next int straddles a window boundary, or we are at the end of
+        // the current window.
+        ints[offset++] = getInt();
+      } else {
+        mBuffer.asIntBuffer().get(ints, offset, length);
+        mBuffer.position(mBuffer.position() + length * 4);
+        offset += length;
+      }
+    }
+  }
+
+  /**
+   * Reads longs.length big endian longs into the given array.
+   */
+  public void getLongs(long[] longs) {
+    int offset = 0;
+    while (offset < longs.length) {
+      int length = Math.min(longs.length - offset, mBuffer.remaining() / 8);
+      if (length == 0) {
+        // The next long straddles a window boundary, or we are at the end of
+        // the current window.
+        longs[offset++] = getLong();
+      } else {
+        mBuffer.asLongBuffer().get(longs, offset, length);
+        mBuffer.position(mBuffer.position() + length * 8);
+        offset += length;
+      }
+    }
+  }
+
+  public short getShort() {
+    if (mBuffer.remaining() >= 2) {
+      return mBuffer.getShort();
+    }
+    return (short)getStraddled(2);
+  }
+
+  public int getInt() {
+    if (mBuffer.remaining() >= 4) {
+      return mBuffer.getInt();
+    }
+    return (int)getStraddled(4);
+  }
+
+  public long getLong() {
+    if (mBuffer.remaining() >= 8) {
+      return mBuffer.getLong();
+    }
+    return getStraddled(8);
+  }
+
+  private static Type[] TYPES = new Type[] {
+    null, null, Type.OBJECT, null,
+      Type.BOOLEAN, Type.CHAR, Type.FLOAT, Type.DOUBLE,
+      Type.BYTE, Type.SHORT, Type.INT, Type.LONG
+  };
+
+  public Type getType() throws HprofFormatException {
+    int id = getU1();
+    Type type = id < TYPES.length ? TYPES[id] : null;
+    if (type == null) {
+      throw new HprofFormatException("Invalid basic type id: " + id);
+    }
+    return type;
+  }
+
+  public Type getPrimitiveType() throws HprofFormatException {
+    Type type = getType();
+    if (type == Type.OBJECT) {
+      throw new HprofFormatException("Expected primitive type, but found type 'Object'");
+    }
+    return type;
+  }
+
+  /**
+   * Reads a big endian value of the given number of bytes at the given
+   * absolute position in the file.
+   */
+  private long getAt(long position, int bytes) {
+    ByteBuffer window = mWindows[(int)(position >>> mWindowShift)];
+    int offset = (int)(position & mWindowMask);
+    if (offset + bytes <= window.limit()) {
+      switch (bytes) {
+        case 1: return window.get(offset);
+        case 2: return window.getShort(offset);
+        case 4: return window.getInt(offset);
+        default: return window.getLong(offset);
+      }
+    }
+
+    long value = 0;
+    for (int i = 0; i < bytes; ++i) {
+      long p = position + i;
+      int b = mWindows[(int)(p >>> mWindowShift)].get((int)(p & mWindowMask)) & 0xFF;
+      value = (value << 8) | b;
+    }
+    return value;
+  }
+
+  /**
+   * Returns a view of the window containing the given absolute position in
+   * the file, positioned at that position. The view has its own position, so
+   * reading from it does not change the position of this buffer.
+   */
+  private ByteBuffer windowAt(long position) {
+    ByteBuffer window = mWindows[(int)(position >>> mWindowShift)];
+    ByteBuffer view = window.duplicate().order(window.order());
+    view.position((int)(position & mWindowMask));
+    return view;
+  }
+
+  /**
+   * Reads bytes.length bytes starting at the given absolute position in the
+   * file into the given array. This neither uses nor changes the current
+   * position of the buffer, so it is safe to call concurrently from multiple
+   * threads.
+   */
+  public void getBytesAt(long position, byte[] bytes) {
+    int offset = 0;
+    while (offset < bytes.length) {
+      ByteBuffer window = windowAt(position + offset);
+      int length = Math.min(bytes.length - offset, window.remaining());
+      window.get(bytes, offset, length);
+      offset += length;
+    }
+  }
+
+  /**
+   * Adds length bytes starting at the given absolute position in the file to
+   * the given hasher, reading them directly from the mapped file rather than
+   * copying them into an array first. This neither uses nor changes the
+   * current position of the buffer, so it is safe to call concurrently from
+   * multiple threads.
+   */
+  public void putBytesAt(long position, long length, Hasher hasher) {
+    long offset = 0;
+    while (offset < length) {
+      ByteBuffer window = windowAt(position + offset);
+      int n = (int)Math.min(length - offset, window.remaining());
+      window.limit(window.position() + n);
+      hasher.putBytes(window);
+      offset += n;
+    }
+  }
+
+  /**
+   * Reads chars.length big endian chars starting at the given absolute
+   * position in the file into the given array. This neither uses nor changes
+   * the current position of the buffer, so it is safe to call concurrently
+   * from multiple threads.
+   */
+  public void getCharsAt(long position, char[] chars) {
+    int offset = 0;
+    while (offset < chars.length) {
+      long p = position + 2L * offset;
+      ByteBuffer window = windowAt(p);
+      int length = Math.min(chars.length - offset, window.remaining() / 2);
+      if (length == 0) {
+        // The next char straddles a window boundary.
+        chars[offset++] = (char)getAt(p, 2);
+      } else {
+        window.asCharBuffer().get(chars, offset, length);
+        offset += length;
+      }
+    }
+  }
+
+  /**
+   * Get a primitive value from the given absolute position in the hprof
+   * file. This neither uses nor changes the current position of the buffer,
+   * so it is safe to call concurrently from multiple threads.
+   */
+  public Value getPrimitiveValueAt(long position, Type type) {
+    switch (type) {
+      case BOOLEAN: return Value.pack(getAt(position, 1) != 0);
+      case CHAR: return Value.pack((char)getAt(position, 2));
+      case FLOAT: return Value.pack(Float.intBitsToFloat((int)getAt(position, 4)));
+      case DOUBLE: return Value.pack(Double.longBitsToDouble(getAt(position, 8)));
+      case BYTE: return Value.pack((byte)getAt(position, 1));
+      case SHORT: return Value.pack((short)getAt(position, 2));
+      case INT: return Value.pack((int)getAt(position, 4));
+      case LONG: return Value.pack(getAt(position, 8));
+      default: throw new AssertionError("unsupported enum member");
+    }
+  }
+
+  /**
+   * Get a value from the hprof file. AhatInstance values are returned as
+   * DefferredInstanceValues rather than their corresponding AhatInstance
+   * objects.
+   */
+  public Value getDeferredValue(Type type) {
+    switch (type) {
+      case OBJECT: return new Parser.DeferredInstanceValue(getId());
+      case BOOLEAN: return Value.pack(getBool());
+      case CHAR: return Value.pack(getChar());
+      case FLOAT: return Value.pack(getFloat());
+      case DOUBLE: return Value.pack(getDouble());
+      case BYTE: return Value.pack(getByte());
+      case SHORT: return Value.pack(getShort());
+      case INT: return Value.pack(getInt());
+      case LONG: return Value.pack(getLong());
+      default: throw new AssertionError("unsupported enum member");
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+/**
+ * An index from distinct ids to their positions in an array of ids.
+ * <p>
+ * The index is an open addressing hash table using linear probing, so
+ * lookups only touch primitive arrays. Entries hold the position plus one,
+ * so that zero can be used to mark empty slots. The index costs 16 bytes
+ * per id, including the array of ids itself.
+ */
+class IdIndex {
+  // The largest power of two that can be used as the length of an array.
+  private static final int MAX_TABLE_CAPACITY = 1 << 30;
+
+  private final long[] mIds;
+  private final int[] mTable;
+  private final int mTableShift;
+
+  /**
+   * Creates an index of the given ids, which must be distinct.
+   * Note: this takes ownership of the given array of ids.
+   */
+  IdIndex(long[] ids) {
+    mIds = ids;
+    int capacity = tableCapacity(ids.length);
+    mTable = new int[capacity];
+    mTableShift = 64 - Integer.numberOfTrailingZeros(capacity);
+    int mask = capacity - 1;
+    for (int i = 0; i < ids.length; ++i) {
+      int slot = hash(ids[i]);
+      while (mTable[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      mTable[slot] = i + 1;
+    }
+  }
+
+  /**
+   * Returns the length to use for an open addressing hash table with
+   * linear probing that holds the given number of entries. This is the
+   * smallest power of two at least twice the number of entries, clamped to
+   * the largest power of two that can be used as the length of an array.
+   *
+   * @throws IllegalArgumentException if there are too many entries to fit in
+   *         a table of the maximum capacity with at least one empty slot.
+   */
+  static int tableCapacity(int size) {
+    long capacity = Long.highestOneBit(Math.max(2L, size) * 2 - 1) << 1;
+    if (capacity <= MAX_TABLE_CAPACITY) {
+      return (int)capacity;
+    }
+    if (size >= MAX_TABLE_CAPACITY) {
+      throw new IllegalArgumentException("Too many entries for hash table: " + size);
+    }
+    return MAX_TABLE_CAPACITY;
+  }
+
+  /**
+   * Returns the preferred slot in mTable for the given id.
+   * Instance ids tend to be aligned addresses, so the bits of the id are
+   * mixed with a multiplicative hash before taking the top bits.
+   */
+  private int hash(long id) {
+    return (int)((id * 0x9E3779B97F4A7C15L) >>> mTableShift);
+  }
+
+  /**
+   * Returns the position of the given id in the array of ids.
+   * Returns -1 if the id is not in the array.
+   */
+  int indexOf(long id) {
+    int mask = mTable.length - 1;
+    int slot = hash(id);
+    int entry;
+    while ((entry = mTable[slot]) != 0) {
+      if (mIds[entry - 1] == id) {
+        return entry - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+}
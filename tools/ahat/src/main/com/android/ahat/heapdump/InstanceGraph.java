@@ -0,0 +1,775 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import com.android.ahat.dominators.Dominators;
+import com.android.ahat.dominators.ParallelDominators;
+import com.android.ahat.progress.Progress;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The reachability, dominator tree and retained sizes of the instances of a
+ * heap dump.
+ * <p>
+ * Rather than keeping this data in fields of every AhatInstance, it is kept
+ * in primitive arrays indexed by the position of the instance in the
+ * snapshot's Instances collection. The SuperRoot has the index one past the
+ * last instance. Lists of instances are returned as views that look up the
+ * corresponding AhatInstance objects on demand.
+ */
+class InstanceGraph {
+  // Index used to indicate the absence of an instance.
+  private static final int NONE = -1;
+
+  private static final Reachability[] REACHABILITIES = Reachability.values();
+  private static final byte UNREACHABLE = (byte)Reachability.UNREACHABLE.ordinal();
+
+  private final Instances<AhatInstance> mInstances;
+  private final SuperRoot mSuperRoot;
+  private final int mSuperRootIndex;
+
+  // The ordinal of the reachability of each instance.
+  private final byte[] mReachability;
+
+  // The index of the next instance on the path from each instance to a gc
+  // root, or NONE if the instance is unreachable.
+  private final int[] mNextToGcRoot;
+
+  // The description of the field of the next instance to gc root that refers
+  // to each instance. This is null if lazyGcRootFields is set or when the
+  // graph is read from an analysis cache, in which case the field description
+  // is recomputed when needed.
+  private String[] mNextToGcRootField;
+
+  // The index of the immediate dominator of each instance, or NONE if the
+  // instance has no dominator.
+  private final int[] mDominator;
+
+  // The indices of the instances immediately dominated by the instance with
+  // index i are stored in mDominated between mDominatedStart[i] (inclusive)
+  // and mDominatedStart[i + 1] (exclusive), in order of instance index.
+  private int[] mDominatedStart;
+  private int[] mDominated;
+
+  // The indices of the instances with references to the instance with index
+  // i are stored in mReverse between mReverseStart[i] (inclusive) and
+  // mReverseStart[i + 1] (exclusive), in order of instance index. An
+  // instance with more than one reference to the same instance is listed
+  // once per reference. The super root is never listed.
+  private int[] mReverseStart;
+  private int[] mReverse;
+
+  // Instances added to the dominated lists after the dominators computation,
+  // keyed by index of the dominator. Used by diff for placeholder instances.
+  // Diff may add instances to the lists of different dominators concurrently.
+  private final Map<Integer, List<AhatInstance>> mExtraDominated = new ConcurrentHashMap<>();
+
+  // The retained java and registered native sizes, indexed by heap index and
+  // then by instance index. The sizes for a heap are null if no instance
+  // retains a nonzero size of that kind on the heap.
+  private final long[][] mRetainedJavaSizes;
+  private final long[][] mRetainedNativeSizes;
+
+  /**
+   * Creates the graph for the given instances and associates each of the
+   * instances with it.
+   *
+   * @param root the super root of the instances
+   * @param instances the instances of the heap dump
+   * @param numHeaps the number of heaps in the heap dump
+   * @param lazyGcRootFields whether to recompute gc root path field
+   *        descriptions on demand rather than storing them
+   */
+  InstanceGraph(SuperRoot root, Instances<AhatInstance> instances, int numHeaps,
+      boolean lazyGcRootFields) {
+    mInstances = instances;
+    mSuperRoot = root;
+    mSuperRootIndex = instances.size();
+
+    for (int i = 0; i < mSuperRootIndex; ++i) {
+      instances.getAt(i).setGraph(this, i);
+    }
+    root.setGraph(this, mSuperRootIndex);
+
+    int count = mSuperRootIndex + 1;
+    mReachability = new byte[count];
+    Arrays.fill(mReachability, UNREACHABLE);
+    mNextToGcRoot = new int[count];
+    Arrays.fill(mNextToGcRoot, NONE);
+    mNextToGcRootField = lazyGcRootFields ? null : new String[count];
+    mDominator = new int[count];
+    Arrays.fill(mDominator, NONE);
+    mRetainedJavaSizes = new long[numHeaps][];
+    mRetainedNativeSizes = new long[numHeaps][];
+  }
+
+  /**
+   * Returns the instance with the given index.
+   */
+  private AhatInstance get(int index) {
+    return index == mSuperRootIndex ? mSuperRoot : mInstances.getAt(index);
+  }
+
+  /**
+   * Determine the reachability of the all instances reachable from the super
+   * root. Sets the reachability and next instance to gc root of each
+   * instance, and the reverse references of each reachable instance.
+   * <p>
+   * The instances are visited with a breadth first search through strong
+   * references, continued through each weaker kind of reference in turn.
+   * Each round of the search visits the targets of a list of references,
+   * where the first reference in the list to an instance not yet visited
+   * determines the next instance on its path to a gc root. The rounds are
+   * split among the given number of threads, and the references found by
+   * the threads are concatenated in the order of the list, so the result is
+   * the same regardless of the number of threads used.
+   * <p>
+   * The reverse references are stored in two passes to avoid keeping a list
+   * per instance: the traversal counts the references to each instance, then
+   * the references of every reachable instance are visited again to fill in
+   * the reverse references.
+   *
+   * @param progress used to track progress of the traversal.
+   * @param threads the number of threads to use for the traversal
+   */
+  void computeReachability(Progress progress, int threads) {
+    Traversal traversal = new Traversal(threads);
+    progress.start("Computing reachability", mInstances.size());
+    try {
+      // The references to follow once the search reaches each kind of
+      // reference, in the order they were found.
+      List<List<Reference>> pending = new ArrayList<List<Reference>>();
+      for (Reachability reachability : REACHABILITIES) {
+        pending.add(new ArrayList<Reference>());
+      }
+      for (Reference ref : mSuperRoot.getReferences()) {
+        pending.get(Reachability.STRONG.ordinal()).add(ref);
+      }
+
+      for (Reachability reachability : REACHABILITIES) {
+        List<Reference> round = pending.get(reachability.ordinal());
+        pending.set(reachability.ordinal(), null);
+        while (!round.isEmpty()) {
+          Round result = traversal.visit(reachability, round);
+          for (int i = reachability.ordinal() + 1; i < REACHABILITIES.length; ++i) {
+            pending.get(i).addAll(result.pending.get(i));
+          }
+          progress.advance(result.visited);
+          round = result.next;
+        }
+      }
+    } finally {
+      traversal.shutdown();
+    }
+    progress.done();
+
+    int[] reverseStart = new int[mSuperRootIndex + 2];
+    for (int i = 1; i < reverseStart.length; ++i) {
+      reverseStart[i] = reverseStart[i - 1] + traversal.mReverseCounts.get(i);
+    }
+    int[] reverse = new int[reverseStart[mSuperRootIndex + 1]];
+    int[] next = Arrays.copyOf(reverseStart, mSuperRootIndex + 1);
+    progress.start("Computing reverse references", mSuperRootIndex);
+    for (int src = 0; src < mSuperRootIndex; ++src) {
+      progress.advance();
+      if (mReachability[src] != UNREACHABLE) {
+        for (Reference ref : mInstances.getAt(src).getReferences()) {
+          reverse[next[ref.ref.getGraphIndex()]++] = src;
+        }
+      }
+    }
+    progress.done();
+    mReverseStart = reverseStart;
+    mReverse = reverse;
+  }
+
+  /**
+   * The result of visiting the targets of a list of references.
+   */
+  private static class Round {
+    // The number of instances visited for the first time.
+    public int visited;
+
+    // The references of the visited instances to follow in the next round.
+    public final List<Reference> next = new ArrayList<Reference>();
+
+    // The references of the visited instances that are weaker than the
+    // reachability of the round, indexed by the ordinal of their
+    // reachability.
+    public final List<List<Reference>> pending = new ArrayList<List<Reference>>();
+
+    Round() {
+      for (Reachability reachability : REACHABILITIES) {
+        pending.add(new ArrayList<Reference>());
+      }
+    }
+
+    /**
+     * Appends the result of visiting the references following those of
+     * this round in the list.
+     */
+    void append(Round other) {
+      visited += other.visited;
+      next.addAll(other.next);
+      for (int i = 0; i < REACHABILITIES.length; ++i) {
+        pending.get(i).addAll(other.pending.get(i));
+      }
+    }
+  }
+
+  /**
+   * The state shared by the rounds of computeReachability.
+   */
+  private class Traversal {
+    // The number of references below which a range of a round is processed
+    // directly rather than being split further.
+    private static final int LEAF_SIZE = 1024;
+
+    // The pool the rounds are split among, or null to process them on the
+    // calling thread.
+    private final ForkJoinPool mPool;
+
+    // The position plus one of the first reference in the current round to
+    // each instance not visited before the round, or 0 if there is none.
+    // Entries of visited instances are stale.
+    private final AtomicIntegerArray mClaims;
+
+    // The number of references to each instance, counted at index + 1.
+    private final AtomicIntegerArray mReverseCounts;
+
+    Traversal(int threads) {
+      mPool = threads == 1 ? null : new ForkJoinPool(threads);
+      mClaims = new AtomicIntegerArray(mSuperRootIndex);
+      mReverseCounts = new AtomicIntegerArray(mSuperRootIndex + 2);
+    }
+
+    void shutdown() {
+      if (mPool != null) {
+        mPool.shutdown();
+      }
+    }
+
+    /**
+     * Visits the targets of the given references for the given reachability.
+     */
+    Round visit(Reachability reachability, List<Reference> round) {
+      ClaimTask claim = new ClaimTask(round, 0, round.size());
+      VisitTask visit = new VisitTask(reachability, round, 0, round.size());
+      if (mPool == null || round.size() <= LEAF_SIZE) {
+        claim.compute();
+        return visit.compute();
+      }
+      mPool.invoke(claim);
+      return mPool.invoke(visit);
+    }
+
+    /**
+     * Claims each instance not yet visited for the first reference to it in
+     * a range of the round.
+     */
+    @SuppressWarnings("serial")
+    private class ClaimTask extends RecursiveAction {
+      private final List<Reference> mRound;
+      private final int mStart;
+      private final int mEnd;
+
+      ClaimTask(List<Reference> round, int start, int end) {
+        mRound = round;
+        mStart = start;
+        mEnd = end;
+      }
+
+      @Override
+      protected void compute() {
+        if (mEnd - mStart > LEAF_SIZE) {
+          int mid = mStart + (mEnd - mStart) / 2;
+          invokeAll(new ClaimTask(mRound, mStart, mid), new ClaimTask(mRound, mid, mEnd));
+          return;
+        }
+
+        for (int i = mStart; i < mEnd; ++i) {
+          int index = mRound.get(i).ref.getGraphIndex();
+          if (mReachability[index] == UNREACHABLE) {
+            int claim = mClaims.get(index);
+            while ((claim == 0 || claim > i + 1)
+                && !mClaims.compareAndSet(index, claim, i + 1)) {
+              claim = mClaims.get(index);
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Visits the instances claimed by a range of the round.
+     */
+    @SuppressWarnings("serial")
+    private class VisitTask extends RecursiveTask<Round> {
+      private final Reachability mRoundReachability;
+      private final List<Reference> mRound;
+      private final int mStart;
+      private final int mEnd;
+
+      VisitTask(Reachability reachability, List<Reference> round, int start, int end) {
+        mRoundReachability = reachability;
+        mRound = round;
+        mStart = start;
+        mEnd = end;
+      }
+
+      @Override
+      protected Round compute() {
+        if (mEnd - mStart > LEAF_SIZE) {
+          int mid = mStart + (mEnd - mStart) / 2;
+          VisitTask right = new VisitTask(mRoundReachability, mRound, mid, mEnd);
+          right.fork();
+          Round result = new VisitTask(mRoundReachability, mRound, mStart, mid).compute();
+          result.append(right.join());
+          return result;
+        }
+
+        Round result = new Round();
+        for (int i = mStart; i < mEnd; ++i) {
+          Reference ref = mRound.get(i);
+          int index = ref.ref.getGraphIndex();
+
+          // The claim may be left over from an earlier round, in which case
+          // the instance has already been visited.
+          if (mClaims.get(index) != i + 1 || mReachability[index] != UNREACHABLE) {
+            continue;
+          }
+
+          result.visited++;
+          mReachability[index] = (byte)mRoundReachability.ordinal();
+          mNextToGcRoot[index] = ref.src.getGraphIndex();
+          if (mNextToGcRootField != null) {
+            mNextToGcRootField[index] = ref.field;
+          }
+
+          // Note: We specifically exclude 'root' from the reverse references
+          // because it is a fake SuperRoot instance not present in the
+          // original heap dump. Its references are never visited here.
+          for (Reference childRef : ref.ref.getReferences()) {
+            mReverseCounts.incrementAndGet(childRef.ref.getGraphIndex() + 1);
+            if (childRef.reachability.notWeakerThan(mRoundReachability)) {
+              result.next.add(childRef);
+            } else {
+              result.pending.get(childRef.reachability.ordinal()).add(childRef);
+            }
+          }
+        }
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Computes the dominator tree of the instances reachable from the super
+   * root and the retained size of every instance in it.
+   *
+   * @param retained the weakest reachability of references to follow
+   * @param progress used to track progress of the computation
+   * @param threads the number of threads to use for the computation
+   */
+  void computeDominators(Reachability retained, Progress progress, int threads) {
+    // The indices of dominated instances in the order the dominators
+    // computation reports them. Dominators are always reported before the
+    // instances they dominate.
+    int[] order = new int[mSuperRootIndex];
+    int[] size = new int[1];
+    Dominators.Graph<AhatInstance> graph = new Dominators.Graph<AhatInstance>() {
+      @Override
+      public void setDominatorsComputationState(AhatInstance node, Object state) {
+        node.setTemporaryUserData(state);
+      }
+
+      @Override
+      public Object getDominatorsComputationState(AhatInstance node) {
+        return node.getTemporaryUserData();
+      }
+
+      @Override
+      public Iterable<AhatInstance> getReferencesForDominators(AhatInstance node) {
+        return node.getReferencesForDominators(retained);
+      }
+
+      @Override
+      public void setDominator(AhatInstance node, AhatInstance dominator) {
+        int index = node.getGraphIndex();
+        mDominator[index] = dominator.getGraphIndex();
+        order[size[0]++] = index;
+      }
+    };
+    if (threads == 1) {
+      new Dominators(graph).progress(progress, mInstances.size()).computeDominators(mSuperRoot);
+    } else {
+      new ParallelDominators<AhatInstance>(graph)
+          .progress(progress, mInstances.size())
+          .threads(threads)
+          .computeDominators(mSuperRoot);
+    }
+
+    // Group the dominated instances by dominator in instance order, so that
+    // the dominated lists do not depend on the order the dominators
+    // computation happened to report them in.
+    mDominatedStart = new int[mSuperRootIndex + 2];
+    for (int i = 0; i < size[0]; ++i) {
+      mDominatedStart[mDominator[order[i]] + 1]++;
+    }
+    for (int i = 1; i < mDominatedStart.length; ++i) {
+      mDominatedStart[i] += mDominatedStart[i - 1];
+    }
+    int[] next = Arrays.copyOf(mDominatedStart, mSuperRootIndex + 1);
+    mDominated = new int[size[0]];
+    for (int index = 0; index < mSuperRootIndex; ++index) {
+      if (mDominator[index] != NONE) {
+        mDominated[next[mDominator[index]]++] = index;
+      }
+    }
+
+    // Each instance retains its own size and the retained sizes of the
+    // instances it dominates. Visiting instances in the reverse of the order
+    // their dominators were reported accumulates the retained size of every
+    // instance before it is added to its dominator.
+    progress.start("Computing retained sizes", 2L * size[0]);
+    for (int i = 0; i < size[0]; ++i) {
+      progress.advance();
+      AhatInstance inst = mInstances.getAt(order[i]);
+      Size self = inst.getSize();
+      int heap = inst.getHeap().getIndex();
+      addRetainedSize(mRetainedJavaSizes, heap, order[i], self.getJavaSize());
+      addRetainedSize(mRetainedNativeSizes, heap, order[i], self.getRegisteredNativeSize());
+    }
+    for (int i = size[0] - 1; i >= 0; --i) {
+      progress.advance();
+      int index = order[i];
+      int dominator = mDominator[index];
+      for (long[] sizes : mRetainedJavaSizes) {
+        if (sizes != null) {
+          sizes[dominator] += sizes[index];
+        }
+      }
+      for (long[] sizes : mRetainedNativeSizes) {
+        if (sizes != null) {
+          sizes[dominator] += sizes[index];
+        }
+      }
+    }
+    progress.done();
+  }
+
+  /**
+   * Adds size to the entry for the given heap and instance index of the
+   * retained sizes, allocating the sizes for the heap if needed.
+   */
+  private void addRetainedSize(long[][] sizes, int heap, int index, long size) {
+    if (size != 0) {
+      if (sizes[heap] == null) {
+        sizes[heap] = new long[mSuperRootIndex + 1];
+      }
+      sizes[heap][index] += size;
+    }
+  }
+
+  Reachability getReachability(int index) {
+    return REACHABILITIES[mReachability[index]];
+  }
+
+  /**
+   * Returns the immediate dominator of the instance with the given index, or
+   * null if the instance has no dominator or is dominated by the super root.
+   */
+  AhatInstance getImmediateDominator(int index) {
+    int dominator = mDominator[index];
+    if (dominator == NONE || dominator == mSuperRootIndex) {
+      return null;
+    }
+    return get(dominator);
+  }
+
+  /**
+   * Returns the instances immediately dominated by the instance with the
+   * given index. Instances added to the returned list are remembered by
+   * this graph and included in subsequent calls to getDominated.
+   */
+  List<AhatInstance> getDominated(int index) {
+    return new DominatedList(index);
+  }
+
+  /**
+   * Returns the instances with references to the instance with the given
+   * index.
+   */
+  List<AhatInstance> getReverseReferences(int index) {
+    if (mReverseStart == null || index >= mSuperRootIndex) {
+      return Collections.emptyList();
+    }
+    return new ReverseList(mReverseStart[index], mReverseStart[index + 1]);
+  }
+
+  Size getRetainedSize(int index, int heap) {
+    if (heap < 0 || heap >= mRetainedJavaSizes.length) {
+      return Size.ZERO;
+    }
+    long[] javaSizes = mRetainedJavaSizes[heap];
+    long[] nativeSizes = mRetainedNativeSizes[heap];
+    long javaSize = javaSizes == null ? 0 : javaSizes[index];
+    long nativeSize = nativeSizes == null ? 0 : nativeSizes[index];
+    if (javaSize == 0 && nativeSize == 0) {
+      return Size.ZERO;
+    }
+    return new Size(javaSize, nativeSize);
+  }
+
+  Size getTotalRetainedSize(int index) {
+    long javaSize = 0;
+    long nativeSize = 0;
+    for (int i = 0; i < mRetainedJavaSizes.length; ++i) {
+      javaSize += mRetainedJavaSizes[i] == null ? 0 : mRetainedJavaSizes[i][index];
+      nativeSize += mRetainedNativeSizes[i] == null ? 0 : mRetainedNativeSizes[i][index];
+    }
+    if (javaSize == 0 && nativeSize == 0) {
+      return Size.ZERO;
+    }
+    return new Size(javaSize, nativeSize);
+  }
+
+  /**
+   * Returns the next instance to gc root from the instance with the given
+   * index and a description of which field of that instance refers to the
+   * instance with the given index.
+   */
+  PathElement getNextPathElementToGcRoot(int index) {
+    AhatInstance next = get(mNextToGcRoot[index]);
+    String field = mNextToGcRootField != null
+        ? mNextToGcRootField[index]
+        : findFieldToGcRoot(next, index);
+    return new PathElement(next, field);
+  }
+
+  /**
+   * Returns the description of the reference from src that computeReachability
+   * followed to first reach the instance with the given index.
+   * That is the first of the references from src to the instance that was
+   * queued at the reachability of the instance.
+   */
+  private String findFieldToGcRoot(AhatInstance src, int index) {
+    AhatInstance dst = get(index);
+    Reachability reachability = getReachability(index);
+    Reachability srcReachability = src == mSuperRoot
+        ? Reachability.STRONG
+        : getReachability(src.getGraphIndex());
+    for (Reference ref : src.getReferences()) {
+      if (ref.ref == dst) {
+        Reachability queued = ref.reachability.notWeakerThan(srcReachability)
+            ? srcReachability
+            : ref.reachability;
+        if (queued == reachability) {
+          return ref.field;
+        }
+      }
+    }
+    throw new AssertionError("missing reference from " + src + " to " + dst);
+  }
+
+  /**
+   * Writes the contents of this graph, which must have had its dominators
+   * computed, to an analysis cache. This includes the reverse references of
+   * the instances.
+   */
+  void write(AnalysisCache.Writer out) throws IOException {
+    out.writeInt(mSuperRootIndex);
+    out.writeInt(mRetainedJavaSizes.length);
+    out.writeInt(mDominated.length);
+    out.writeInt(mReverse.length);
+    long[] ids = new long[mSuperRootIndex];
+    for (int i = 0; i < mSuperRootIndex; ++i) {
+      ids[i] = mInstances.getAt(i).getId();
+    }
+    out.writeLongs(ids);
+    out.writeBytes(mReachability);
+    out.writeInts(mNextToGcRoot);
+    out.writeInts(mDominator);
+    out.writeInts(mDominatedStart);
+    out.writeInts(mDominated);
+    out.writeInts(mReverseStart);
+    out.writeInts(mReverse);
+    for (int i = 0; i < mRetainedJavaSizes.length; ++i) {
+      writeSizes(out, mRetainedJavaSizes[i]);
+      writeSizes(out, mRetainedNativeSizes[i]);
+    }
+  }
+
+  private static void writeSizes(AnalysisCache.Writer out, long[] sizes) throws IOException {
+    out.writeByte(sizes == null ? (byte)0 : (byte)1);
+    if (sizes != null) {
+      out.writeLongs(sizes);
+    }
+  }
+
+  /**
+   * Reads the contents of this graph from an analysis cache, in place of
+   * computing the reachability and dominators of the instances.
+   * Returns false without modifying the graph if the cache does not match the
+   * instances of this graph.
+   */
+  boolean read(HprofBuffer in) {
+    int count = mSuperRootIndex + 1;
+    int numInstances = in.getInt();
+    int numHeaps = in.getInt();
+    int numDominated = in.getInt();
+    int numReverse = in.getInt();
+    if (numInstances != mSuperRootIndex
+        || numHeaps != mRetainedJavaSizes.length
+        || numDominated < 0 || numDominated > mSuperRootIndex
+        || numReverse < 0) {
+      return false;
+    }
+
+    // Check the size of the cache up front, so that we don't find out it is
+    // truncated after we have started modifying the graph.
+    long minSize = 8L * numInstances + count + 4L * count + 4L * count
+        + 4L * (count + 1) + 4L * numDominated + 4L * (count + 1) + 4L * numReverse
+        + 2L * numHeaps;
+    long maxSize = minSize + 16L * numHeaps * count;
+    long remaining = in.size() - in.tell();
+    if (remaining < minSize || remaining > maxSize) {
+      return false;
+    }
+
+    long[] ids = new long[numInstances];
+    in.getLongs(ids);
+    for (int i = 0; i < numInstances; ++i) {
+      if (ids[i] != mInstances.getAt(i).getId()) {
+        return false;
+      }
+    }
+
+    in.getBytes(mReachability);
+    in.getInts(mNextToGcRoot);
+    in.getInts(mDominator);
+    mDominatedStart = new int[count + 1];
+    in.getInts(mDominatedStart);
+    mDominated = new int[numDominated];
+    in.getInts(mDominated);
+    int[] reverseStart = new int[count + 1];
+    in.getInts(reverseStart);
+    int[] reverse = new int[numReverse];
+    in.getInts(reverse);
+    for (int i = 0; i < numHeaps; ++i) {
+      mRetainedJavaSizes[i] = readSizes(in, count);
+      mRetainedNativeSizes[i] = readSizes(in, count);
+    }
+
+    // The field descriptions of paths to gc roots are not cached.
+    mNextToGcRootField = null;
+
+    mReverseStart = reverseStart;
+    mReverse = reverse;
+    return true;
+  }
+
+  private static long[] readSizes(HprofBuffer in, int count) {
+    if (in.getU1() == 0) {
+      return null;
+    }
+    long[] sizes = new long[count];
+    in.getLongs(sizes);
+    return sizes;
+  }
+
+  /**
+   * A view of the instances immediately dominated by an instance.
+   */
+  private class DominatedList extends AbstractList<AhatInstance> {
+    private final int mIndex;
+
+    DominatedList(int index) {
+      mIndex = index;
+    }
+
+    private int computed() {
+      return mDominatedStart == null
+          ? 0
+          : mDominatedStart[mIndex + 1] - mDominatedStart[mIndex];
+    }
+
+    @Override
+    public int size() {
+      List<AhatInstance> extra = mExtraDominated.get(mIndex);
+      return computed() + (extra == null ? 0 : extra.size());
+    }
+
+    @Override
+    public AhatInstance get(int i) {
+      int computed = computed();
+      if (0 <= i && i < computed) {
+        return InstanceGraph.this.get(mDominated[mDominatedStart[mIndex] + i]);
+      }
+      List<AhatInstance> extra = mExtraDominated.get(mIndex);
+      if (extra == null || i < 0) {
+        throw new IndexOutOfBoundsException("index: " + i + ", size: " + computed);
+      }
+      return extra.get(i - computed);
+    }
+
+    @Override
+    public boolean add(AhatInstance inst) {
+      mExtraDominated.computeIfAbsent(mIndex, k -> new ArrayList<AhatInstance>()).add(inst);
+      modCount++;
+      return true;
+    }
+  }
+
+  /**
+   * A view of the instances with references to an instance.
+   */
+  private class ReverseList extends AbstractList<AhatInstance> implements RandomAccess {
+    private final int mStart;
+    private final int mEnd;
+
+    ReverseList(int start, int end) {
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    public int size() {
+      return mEnd - mStart;
+    }
+
+    @Override
+    public AhatInstance get(int i) {
+      if (i < 0 || i >= mEnd - mStart) {
+        throw new IndexOutOfBoundsException("index: " + i + ", size: " + size());
+      }
+      return mInstances.getAt(mReverse[mStart + i]);
+    }
+  }
+}
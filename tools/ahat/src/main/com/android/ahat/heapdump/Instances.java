@@ -28,6 +28,11 @@ class Instances<T extends AhatInstance> implements Iterable<T> {
 
   private final List<T> mInstances;
 
+  // An index from id to index in mInstances. Keeping the ids in a primitive
+  // index lets us look up instances by id without dereferencing any of the
+  // instances themselves.
+  private IdIndex mIndex;
+
   /**
    * Create a collection of instances that can be looked up by id.
    * Note: this takes ownership of the given list of instances.
@@ -35,8 +40,8 @@ class Instances<T extends AhatInstance> implements Iterable<T> {
   public Instances(List<T> instances) {
     mInstances = instances;
 
-    // Sort the instances by id so we can use binary search to lookup
-    // instances by id.
+    // Sort the instances by id. Iteration is in order of id, which the
+    // parser relies on to match instances up with their root data.
     instances.sort(new Comparator<AhatInstance>() {
       @Override
       public int compare(AhatInstance a, AhatInstance b) {
@@ -62,6 +67,27 @@ class Instances<T extends AhatInstance> implements Iterable<T> {
       }
     };
     mInstances.removeIf(isDuplicate);
+    buildIndex();
+  }
+
+  /**
+   * (Re)builds mIndex from the current contents of mInstances.
+   */
+  private void buildIndex() {
+    long[] ids = new long[mInstances.size()];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = mInstances.get(i).getId();
+    }
+    mIndex = new IdIndex(ids);
+  }
+
+  /**
+   * Returns the index of the instance with the given id, where instances are
+   * ordered by id.
+   * Returns -1 if no instance with the given id is found.
+   */
+  public int indexOf(long id) {
+    return mIndex.indexOf(id);
   }
 
   /**
@@ -69,26 +95,22 @@ class Instances<T extends AhatInstance> implements Iterable<T> {
    * Returns null if no instance with the given id is found.
    */
   public T get(long id) {
-    // Binary search over the sorted instances.
-    int start = 0;
-    int end = mInstances.size();
-    while (start < end) {
-      int mid = start + ((end - start) / 2);
-      T midInst = mInstances.get(mid);
-      long midId = midInst.getId();
-      if (id == midId) {
-        return midInst;
-      } else if (id < midId) {
-        end = mid;
-      } else {
-        start = mid + 1;
-      }
-    }
-    return null;
+    int index = indexOf(id);
+    return index < 0 ? null : mInstances.get(index);
+  }
+
+  /**
+   * Returns the instance at the given index, where instances are ordered by
+   * id.
+   */
+  public T getAt(int index) {
+    return mInstances.get(index);
   }
 
   public void removeIf(Predicate<T> predicate) {
-    mInstances.removeIf(predicate);
+    if (mInstances.removeIf(predicate)) {
+      buildIndex();
+    }
   }
 
   public int size() {
@@ -23,9 +23,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -33,6 +31,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Provides methods for parsing heap dumps.
@@ -58,6 +58,9 @@ public class Parser {
   private ProguardMap map = new ProguardMap();
   private Progress progress = new NullProgress();
   private Reachability retained = Reachability.SOFT;
+  private int threads = 1;
+  private boolean lazyGcRootFields = false;
+  private File cache = null;
 
   /**
    * Creates an hprof Parser that parses a heap dump from a byte buffer.
@@ -70,12 +73,21 @@ public class Parser {
 
   /**
    * Creates an hprof Parser that parses a heap dump from a file.
+   * The file may be gzip compressed, in which case it is decompressed into a
+   * temporary file in the java.io.tmpdir directory before parsing.
    *
    * @param hprof file to parse the heap dump from.
    * @throws IOException if the file cannot be accessed.
    */
   public Parser(File hprof) throws IOException {
-    this.hprof = new HprofBuffer(hprof);
+    this.hprof = HprofBuffer.open(hprof);
+  }
+
+  /**
+   * Creates an hprof Parser that parses a heap dump from the given buffer.
+   */
+  Parser(HprofBuffer hprof) {
+    this.hprof = hprof;
   }
 
   /**
@@ -117,6 +129,63 @@ public class Parser {
     return this;
   }
 
+  /**
+   * Sets the number of threads to use when resolving references between
+   * instances in the heap dump and computing their reachability and
+   * dominators. The parsed heap dump is the same regardless of the number of
+   * threads used.
+   * Defaults to 1.
+   *
+   * @param threads the number of threads to use, at least 1.
+   * @return this Parser instance.
+   * @throws IllegalArgumentException if threads is less than 1.
+   */
+  public Parser threads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads < 1");
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Sets whether to recompute the field descriptions along paths from gc
+   * roots on demand rather than storing them for every instance. This
+   * reduces the memory used by the parsed heap dump at the cost of
+   * recomputing a field description each time it is accessed. The parsed
+   * heap dump is otherwise the same regardless of this setting. Defaults to
+   * false.
+   *
+   * @param lazyGcRootFields whether to recompute gc root path field
+   *        descriptions on demand.
+   * @return this Parser instance.
+   */
+  public Parser lazyGcRootFields(boolean lazyGcRootFields) {
+    this.lazyGcRootFields = lazyGcRootFields;
+    return this;
+  }
+
+  /**
+   * Sets the file to use as a cache of the results of analyzing the heap
+   * dump. If the file holds results for the same heap dump and retained
+   * reachability, they are loaded from the file instead of being recomputed.
+   * Otherwise the results are computed and written to the file for next
+   * time. The parsed heap dump is the same either way, and failures to read
+   * or write the file are ignored. Defaults to null, meaning no cache is
+   * used.
+   * <p>
+   * Only the reachability, dominator and retained size computations are
+   * cached. The heap dump is still read and its references resolved every
+   * time it is parsed.
+   *
+   * @param cache the analysis cache file, or null to not use a cache.
+   * @return this Parser instance.
+   */
+  public Parser cache(File cache) {
+    this.cache = cache;
+    return this;
+  }
+
   /**
    * Parse the heap dump.
    *
@@ -207,11 +276,11 @@ public class Parser {
         progress.update(hprof.tell());
         int tag = hprof.getU1();
         int time = hprof.getU4();
-        int recordLength = hprof.getU4();
+        long recordLength = Integer.toUnsignedLong(hprof.getU4());
         switch (tag) {
           case 0x01: { // STRING
             long id = hprof.getId();
-            byte[] bytes = new byte[recordLength - idSize];
+            byte[] bytes = new byte[(int)(recordLength - idSize)];
             hprof.getBytes(bytes);
             String str = new String(bytes, StandardCharsets.UTF_8);
             strings.put(id, str);
@@ -277,7 +346,7 @@ public class Parser {
 
           case 0x0C:   // HEAP DUMP
           case 0x1C: { // HEAP DUMP SEGMENT
-            int endOfRecord = hprof.tell() + recordLength;
+            long endOfRecord = hprof.tell() + recordLength;
             if (classById == null) {
               classById = new Instances<AhatClassObj>(classes);
             }
@@ -413,7 +482,7 @@ public class Parser {
                   int length = hprof.getU4();
                   long classId = hprof.getId();
                   ObjArrayData data = new ObjArrayData(length, hprof.tell());
-                  hprof.skip(length * idSize);
+                  hprof.skip((long)length * idSize);
 
                   Site site = sites.get(stackSerialNumber);
                   AhatClassObj classObj = classById.get(classId);
@@ -437,81 +506,13 @@ public class Parser {
                         "No class definition found for " + type.name + "[]");
                   }
 
+                  // The array elements are decoded from the hprof file only
+                  // when needed.
                   AhatArrayInstance obj = new AhatArrayInstance(objectId, idSize);
                   obj.initialize(heaps.getCurrentHeap(), site, classObj);
+                  obj.initialize(hprof, type, hprof.tell(), length);
+                  hprof.skip((long)length * type.size(idSize));
                   instances.add(obj);
-                  switch (type) {
-                    case BOOLEAN: {
-                      boolean[] data = new boolean[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getBool();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case CHAR: {
-                      char[] data = new char[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getChar();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case FLOAT: {
-                      float[] data = new float[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getFloat();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case DOUBLE: {
-                      double[] data = new double[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getDouble();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case BYTE: {
-                      byte[] data = new byte[length];
-                      hprof.getBytes(data);
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case SHORT: {
-                      short[] data = new short[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getShort();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case INT: {
-                      int[] data = new int[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getInt();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-
-                    case LONG: {
-                      long[] data = new long[length];
-                      for (int i = 0; i < length; ++i) {
-                        data[i] = hprof.getLong();
-                      }
-                      obj.initialize(data);
-                      break;
-                    }
-                    default: throw new AssertionError("unsupported enum member");
-                  }
                   break;
                 }
 
@@ -581,6 +582,7 @@ public class Parser {
     }
 
     // Sort roots and instances by id in preparation for the fixup pass.
+    progress.start("Sorting instances", 1);
     Instances<AhatInstance> mInstances = new Instances<AhatInstance>(instances);
     // Ensure that no invalid classes are kept. In hprof dumps of RI it has been seen that two class
     // objects would be stored for the same class name, but with different IDs. Only one of the IDs
@@ -594,6 +596,7 @@ public class Parser {
       }
     });
     roots.add(null);
+    progress.done();
 
     // Fixup pass: Label the root instances and fix up references to instances
     // that we couldn't previously resolve.
@@ -602,10 +605,21 @@ public class Parser {
       progress.start("Resolving references", mInstances.size());
       Iterator<RootData> ri = roots.iterator();
       RootData root = ri.next();
+      Map<AhatClassObj, Integer> numRefsByClass = new HashMap<AhatClassObj, Integer>();
+      long numRefs = 0;
       for (AhatInstance inst : mInstances) {
-        progress.advance();
         long id = inst.getId();
 
+        // Allocate space for the reference fields of class instances.
+        if (inst instanceof AhatClassInstance) {
+          ClassInstData data = (ClassInstData)inst.getTemporaryUserData();
+          data.firstRef = (int)numRefs;
+          numRefs += numRefsByClass.computeIfAbsent(inst.getClassObj(), Parser::numRefFields);
+          if (numRefs > Integer.MAX_VALUE) {
+            throw new HprofFormatException("Too many instance reference fields");
+          }
+        }
+
         // Skip past any roots that don't have associated instances.
         // It's not clear why there would be a root without an associated
         // instance dump, but it does happen in practice, for example when
@@ -622,62 +636,151 @@ public class Parser {
             root = ri.next();
           }
         }
+      }
 
-        // Fixup the instance based on its type using the temporary data we
-        // saved during the first pass over the heap dump.
-        if (inst instanceof AhatClassInstance) {
-          ClassInstData data = (ClassInstData)inst.getTemporaryUserData();
-          inst.setTemporaryUserData(null);
-
-          // Compute the size of the fields array in advance to avoid
-          // extra allocations and copies that would come from using an array
-          // list to collect the field values.
-          int numFields = 0;
-          for (AhatClassObj cls = inst.getClassObj(); cls != null; cls = cls.getSuperClassObj()) {
-            numFields += cls.getInstanceFields().length;
-          }
-
-          Value[] fields = new Value[numFields];
-          int i = 0;
-          hprof.seek(data.position);
-          for (AhatClassObj cls = inst.getClassObj(); cls != null; cls = cls.getSuperClassObj()) {
-            for (Field field : cls.getInstanceFields()) {
-              fields[i++] = hprof.getValue(field.type, mInstances);
-            }
-          }
-          ((AhatClassInstance)inst).initialize(fields);
-        } else if (inst instanceof AhatClassObj) {
-          ClassObjData data = (ClassObjData)inst.getTemporaryUserData();
-          inst.setTemporaryUserData(null);
-          AhatInstance loader = mInstances.get(data.classLoaderId);
-          for (int i = 0; i < data.staticFields.length; ++i) {
-            FieldValue field = data.staticFields[i];
-            if (field.value instanceof DeferredInstanceValue) {
-              DeferredInstanceValue deferred = (DeferredInstanceValue)field.value;
-              data.staticFields[i] = new FieldValue(
-                  field.name, field.type, Value.pack(mInstances.get(deferred.getId())));
-            }
-          }
-          ((AhatClassObj)inst).initialize(loader, data.staticFields);
-        } else if (inst instanceof AhatArrayInstance && inst.getTemporaryUserData() != null) {
-          // TODO: Have specialized object array instance and check for that
-          // rather than checking for the presence of user data?
-          ObjArrayData data = (ObjArrayData)inst.getTemporaryUserData();
-          inst.setTemporaryUserData(null);
-          AhatInstance[] array = new AhatInstance[data.length];
-          hprof.seek(data.position);
-          for (int i = 0; i < data.length; i++) {
-            array[i] = mInstances.get(hprof.getId());
-          }
-          ((AhatArrayInstance)inst).initialize(array);
+      // Fixing up an instance only reads the instance's own region of the
+      // hprof file and looks up other instances by id, so instances can be
+      // fixed up independently of each other.
+      ClassInstanceFields fields = new ClassInstanceFields(hprof, idSize, mInstances, (int)numRefs);
+      if (threads == 1) {
+        for (AhatInstance inst : mInstances) {
+          progress.advance();
+          fixup(inst, hprof, mInstances, fields);
+        }
+      } else {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+          pool.invoke(new FixupTask(hprof, mInstances, fields, progress, 0, mInstances.size()));
+        } finally {
+          pool.shutdown();
         }
       }
       progress.done();
     }
 
+    AnalysisCache analysisCache = cache == null
+        ? null
+        : new AnalysisCache(cache, hprof, retained);
     hprof = null;
     roots = null;
-    return new AhatSnapshot(superRoot, mInstances, heaps.heaps, rootSite, progress, retained);
+    return new AhatSnapshot(superRoot, mInstances, heaps.heaps, rootSite, progress, retained,
+        lazyGcRootFields, analysisCache, threads);
+  }
+
+  /**
+   * Returns the number of reference fields of instances of the given class,
+   * including fields inherited from superclasses.
+   */
+  private static int numRefFields(AhatClassObj classObj) {
+    int numRefs = 0;
+    for (AhatClassObj cls = classObj; cls != null; cls = cls.getSuperClassObj()) {
+      for (Field field : cls.getInstanceFields()) {
+        if (field.type == Type.OBJECT) {
+          numRefs++;
+        }
+      }
+    }
+    return numRefs;
+  }
+
+  /**
+   * Fixes up the given instance based on its type using the temporary data we
+   * saved during the first pass over the heap dump.
+   */
+  private static void fixup(AhatInstance inst, HprofBuffer hprof, Instances<AhatInstance> instances,
+      ClassInstanceFields fields) {
+    if (inst instanceof AhatClassInstance) {
+      ClassInstData data = (ClassInstData)inst.getTemporaryUserData();
+      inst.setTemporaryUserData(null);
+
+      // Only the reference fields are resolved now. Primitive field values
+      // are read from the hprof file when they are asked for.
+      int ref = data.firstRef;
+      hprof.seek(data.position);
+      for (AhatClassObj cls = inst.getClassObj(); cls != null; cls = cls.getSuperClassObj()) {
+        for (Field field : cls.getInstanceFields()) {
+          if (field.type == Type.OBJECT) {
+            fields.setRef(ref++, hprof.getId());
+          } else {
+            hprof.skip(field.type.size(fields.getIdSize()));
+          }
+        }
+      }
+      ((AhatClassInstance)inst).initialize(fields, data.position, data.firstRef);
+    } else if (inst instanceof AhatClassObj) {
+      ClassObjData data = (ClassObjData)inst.getTemporaryUserData();
+      inst.setTemporaryUserData(null);
+      AhatInstance loader = instances.get(data.classLoaderId);
+      for (int i = 0; i < data.staticFields.length; ++i) {
+        FieldValue field = data.staticFields[i];
+        if (field.value instanceof DeferredInstanceValue) {
+          DeferredInstanceValue deferred = (DeferredInstanceValue)field.value;
+          data.staticFields[i] = new FieldValue(
+              field.name, field.type, Value.pack(instances.get(deferred.getId())));
+        }
+      }
+      ((AhatClassObj)inst).initialize(loader, data.staticFields);
+    } else if (inst instanceof AhatArrayInstance && inst.getTemporaryUserData() != null) {
+      // TODO: Have specialized object array instance and check for that
+      // rather than checking for the presence of user data?
+      ObjArrayData data = (ObjArrayData)inst.getTemporaryUserData();
+      inst.setTemporaryUserData(null);
+      AhatInstance[] array = new AhatInstance[data.length];
+      hprof.seek(data.position);
+      for (int i = 0; i < data.length; i++) {
+        array[i] = instances.get(hprof.getId());
+      }
+      ((AhatArrayInstance)inst).initialize(array);
+    }
+  }
+
+  /**
+   * Fixes up a range of instances, splitting the range among the threads of
+   * the ForkJoinPool it is invoked in. Each leaf task reads from its own
+   * duplicate of the hprof buffer.
+   */
+  @SuppressWarnings("serial")
+  private static class FixupTask extends RecursiveAction {
+    // The number of instances below which a range is fixed up directly
+    // rather than being split further.
+    private static final int LEAF_SIZE = 4096;
+
+    private final HprofBuffer mHprof;
+    private final Instances<AhatInstance> mInstances;
+    private final ClassInstanceFields mFields;
+    private final Progress mProgress;
+    private final int mStart;
+    private final int mEnd;
+
+    FixupTask(HprofBuffer hprof, Instances<AhatInstance> instances, ClassInstanceFields fields,
+        Progress progress, int start, int end) {
+      mHprof = hprof;
+      mInstances = instances;
+      mFields = fields;
+      mProgress = progress;
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (mEnd - mStart > LEAF_SIZE) {
+        int mid = mStart + (mEnd - mStart) / 2;
+        invokeAll(new FixupTask(mHprof, mInstances, mFields, mProgress, mStart, mid),
+                  new FixupTask(mHprof, mInstances, mFields, mProgress, mid, mEnd));
+        return;
+      }
+
+      HprofBuffer hprof = mHprof.duplicate();
+      for (int i = mStart; i < mEnd; ++i) {
+        fixup(mInstances.getAt(i), hprof, mInstances, mFields);
+      }
+
+      // Progress implementations are not expected to be thread safe.
+      synchronized (mProgress) {
+        mProgress.advance(mEnd - mStart);
+      }
+    }
   }
 
   private static class RootData {
@@ -692,18 +795,22 @@ public class Parser {
 
   private static class ClassInstData {
     // The byte position in the hprof file where instance field data starts.
-    public int position;
+    public long position;
+
+    // The index of the first reference field of the instance in the
+    // ClassInstanceFields of the heap dump.
+    public int firstRef;
 
-    public ClassInstData(int position) {
+    public ClassInstData(long position) {
       this.position = position;
     }
   }
 
   private static class ObjArrayData {
     public int length;          // Number of array elements.
-    public int position;        // Position in hprof file containing element data.
+    public long position;       // Position in hprof file containing element data.
 
-    public ObjArrayData(int length, int position) {
+    public ObjArrayData(int length, long position) {
       this.length = length;
       this.position = position;
     }
@@ -722,7 +829,7 @@ public class Parser {
    * a placeholder kind of value to store the id of an object. In the fixup pass we
    * resolve all the DeferredInstanceValues into their proper InstanceValues.
    */
-  private static class DeferredInstanceValue extends Value {
+  static class DeferredInstanceValue extends Value {
     private long mId;
 
     public DeferredInstanceValue(long id) {
@@ -905,180 +1012,6 @@ public class Parser {
     }
   }
 
-  /**
-   * Wrapper around a ByteBuffer that presents a uniform interface for
-   * accessing data from an hprof file.
-   */
-  private static class HprofBuffer {
-    private boolean mIdSize8;
-    private final ByteBuffer mBuffer;
-
-    public HprofBuffer(File path) throws IOException {
-      FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ);
-      mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
-      channel.close();
-    }
-
-    public HprofBuffer(ByteBuffer buffer) {
-      mBuffer = buffer;
-    }
-
-    public void setIdSize8() {
-      mIdSize8 = true;
-    }
-
-    public boolean hasRemaining() {
-      return mBuffer.hasRemaining();
-    }
-
-    /**
-     * Returns the size of the file in bytes.
-     */
-    public int size() {
-      return mBuffer.capacity();
-    }
-
-    /**
-     * Return the current absolution position in the file.
-     */
-    public int tell() {
-      return mBuffer.position();
-    }
-
-    /**
-     * Seek to the given absolution position in the file.
-     */
-    public void seek(int position) {
-      mBuffer.position(position);
-    }
-
-    /**
-     * Skip ahead in the file by the given delta bytes. Delta may be negative
-     * to skip backwards in the file.
-     */
-    public void skip(int delta) {
-      seek(tell() + delta);
-    }
-
-    public int getU1() {
-      return mBuffer.get() & 0xFF;
-    }
-
-    public int getU2() {
-      return mBuffer.getShort() & 0xFFFF;
-    }
-
-    public int getU4() {
-      return mBuffer.getInt();
-    }
-
-    public long getId() {
-      if (mIdSize8) {
-        return mBuffer.getLong();
-      } else {
-        return mBuffer.getInt() & 0xFFFFFFFFL;
-      }
-    }
-
-    public boolean getBool() {
-      return mBuffer.get() != 0;
-    }
-
-    public char getChar() {
-      return mBuffer.getChar();
-    }
-
-    public float getFloat() {
-      return mBuffer.getFloat();
-    }
-
-    public double getDouble() {
-      return mBuffer.getDouble();
-    }
-
-    public byte getByte() {
-      return mBuffer.get();
-    }
-
-    public void getBytes(byte[] bytes) {
-      mBuffer.get(bytes);
-    }
-
-    public short getShort() {
-      return mBuffer.getShort();
-    }
-
-    public int getInt() {
-      return mBuffer.getInt();
-    }
-
-    public long getLong() {
-      return mBuffer.getLong();
-    }
-
-    private static Type[] TYPES = new Type[] {
-      null, null, Type.OBJECT, null,
-        Type.BOOLEAN, Type.CHAR, Type.FLOAT, Type.DOUBLE,
-        Type.BYTE, Type.SHORT, Type.INT, Type.LONG
-    };
-
-    public Type getType() throws HprofFormatException {
-      int id = getU1();
-      Type type = id < TYPES.length ? TYPES[id] : null;
-      if (type == null) {
-        throw new HprofFormatException("Invalid basic type id: " + id);
-      }
-      return type;
-    }
-
-    public Type getPrimitiveType() throws HprofFormatException {
-      Type type = getType();
-      if (type == Type.OBJECT) {
-        throw new HprofFormatException("Expected primitive type, but found type 'Object'");
-      }
-      return type;
-    }
-
-    /**
-     * Get a value from the hprof file, using the given instances map to
-     * convert instance ids to their corresponding AhatInstance objects.
-     */
-    public Value getValue(Type type, Instances instances) {
-      switch (type) {
-        case OBJECT:  return Value.pack(instances.get(getId()));
-        case BOOLEAN: return Value.pack(getBool());
-        case CHAR: return Value.pack(getChar());
-        case FLOAT: return Value.pack(getFloat());
-        case DOUBLE: return Value.pack(getDouble());
-        case BYTE: return Value.pack(getByte());
-        case SHORT: return Value.pack(getShort());
-        case INT: return Value.pack(getInt());
-        case LONG: return Value.pack(getLong());
-        default: throw new AssertionError("unsupported enum member");
-      }
-    }
-
-    /**
-     * Get a value from the hprof file. AhatInstance values are returned as
-     * DefferredInstanceValues rather than their corresponding AhatInstance
-     * objects.
-     */
-    public Value getDeferredValue(Type type) {
-      switch (type) {
-        case OBJECT: return new DeferredInstanceValue(getId());
-        case BOOLEAN: return Value.pack(getBool());
-        case CHAR: return Value.pack(getChar());
-        case FLOAT: return Value.pack(getFloat());
-        case DOUBLE: return Value.pack(getDouble());
-        case BYTE: return Value.pack(getByte());
-        case SHORT: return Value.pack(getShort());
-        case INT: return Value.pack(getInt());
-        case LONG: return Value.pack(getLong());
-        default: throw new AssertionError("unsupported enum member");
-      }
-    }
-  }
-
   // ART outputs class names such as:
   //   "java.lang.Class", "java.lang.Class[]", "byte", "byte[]"
   // RI outputs class names such as:
@@ -247,6 +247,33 @@ public class Sort {
     }
   };
 
+  /**
+   * Compares ClassIndex.Entry by their total retained size.
+   * Different entries with the same total retained size are considered equal
+   * for the purposes of comparison.
+   * This sorts entries from larger retained size to smaller retained size.
+   */
+  public static final Comparator<ClassIndex.Entry> CLASS_INDEX_ENTRY_BY_TOTAL_RETAINED_SIZE
+    = new Comparator<ClassIndex.Entry>() {
+    @Override
+    public int compare(ClassIndex.Entry a, ClassIndex.Entry b) {
+      return SIZE_BY_SIZE.compare(b.getTotalRetainedSize(), a.getTotalRetainedSize());
+    }
+  };
+
+  /**
+   * Compares ClassIndex.Entry by name.
+   * Different entries with the same name are considered equal for the
+   * purposes of comparison.
+   */
+  public static final Comparator<ClassIndex.Entry> CLASS_INDEX_ENTRY_BY_NAME
+    = new Comparator<ClassIndex.Entry>() {
+    @Override
+    public int compare(ClassIndex.Entry a, ClassIndex.Entry b) {
+      return a.getName().compareTo(b.getName());
+    }
+  };
+
   /**
    * Compares FieldValue by field name.
    */
@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The growth of a series of heap dumps of the same process, taken one after
+ * another, for finding memory leaks.
+ * <p>
+ * For each class and each allocation site, the number of retained instances
+ * and their retained size is recorded for every snapshot of the series, and
+ * the growth per snapshot is estimated as the slope of the least squares
+ * line through the recorded values. Classes are identified by name and
+ * allocation sites by their stack of frames, so that they can be matched
+ * between snapshots. As for {@link ClassIndex}, an instance contributes its
+ * retained size to a site only if it is not dominated by another instance
+ * allocated at the same site.
+ * <p>
+ * Instances of consecutive snapshots are matched the way {@link Diff} matches
+ * instances to their baselines. An instance of the last snapshot is a leak
+ * suspect if it has a chain of matching instances through every snapshot of
+ * the series along which its retained size never shrinks and at some point
+ * grows. Only the outermost suspects in the dominator tree are reported.
+ * <p>
+ * A Trend is computed with a {@link Builder}, which only keeps the
+ * aggregated values of the snapshots added to it, along with the last
+ * snapshot added, so that long series of heap dumps can be analyzed one
+ * snapshot at a time.
+ */
+public class Trend {
+  private final int mSnapshots;
+  private final List<Series> mClasses;
+  private final List<Series> mSites;
+  private final List<AhatInstance> mLeakSuspects;
+
+  /**
+   * The number of retained instances and their retained size in each
+   * snapshot of the series for a single class or allocation site.
+   */
+  public static class Series {
+    private final String mName;
+    private long[] mCounts;
+    private long[] mRetained;
+
+    // The site in the last snapshot, for allocation sites that exist in the
+    // last snapshot.
+    private Site mSite;
+
+    // The number of instances of this series currently being visited on the
+    // path from the root of the dominator tree. Only used while the values
+    // of a snapshot are being computed.
+    private int mActive;
+
+    private Series(String name, int capacity) {
+      mName = name;
+      mCounts = new long[capacity];
+      mRetained = new long[capacity];
+    }
+
+    /**
+     * Makes room for values of the given snapshot.
+     */
+    private void ensureCapacity(int snapshot) {
+      if (snapshot >= mCounts.length) {
+        int capacity = Math.max(snapshot + 1, 2 * mCounts.length);
+        mCounts = Arrays.copyOf(mCounts, capacity);
+        mRetained = Arrays.copyOf(mRetained, capacity);
+      }
+    }
+
+    /**
+     * Returns the name of the class, or a description of the innermost
+     * frame of the allocation site.
+     *
+     * @return the name of this series
+     */
+    public String getName() {
+      return mName;
+    }
+
+    /**
+     * Returns the allocation site of the last snapshot this series is for.
+     * Returns null for classes and for allocation sites that do not exist in
+     * the last snapshot.
+     *
+     * @return the allocation site in the last snapshot
+     */
+    public Site getSite() {
+      return mSite;
+    }
+
+    /**
+     * Returns the number of retained instances in the given snapshot, where
+     * snapshots are numbered from 0 for the oldest.
+     *
+     * @param snapshot the index of the snapshot
+     * @return the number of instances
+     */
+    public long getInstanceCount(int snapshot) {
+      return mCounts[snapshot];
+    }
+
+    /**
+     * Returns the retained size in bytes in the given snapshot, where
+     * snapshots are numbered from 0 for the oldest.
+     *
+     * @param snapshot the index of the snapshot
+     * @return the retained size in bytes
+     */
+    public long getRetainedSize(int snapshot) {
+      return mRetained[snapshot];
+    }
+
+    /**
+     * Returns the estimated growth of the number of retained instances per
+     * snapshot.
+     *
+     * @return the growth of the instance count per snapshot
+     */
+    public double getInstanceCountSlope() {
+      return slope(mCounts);
+    }
+
+    /**
+     * Returns the estimated growth of the retained size in bytes per
+     * snapshot.
+     *
+     * @return the growth of the retained size per snapshot
+     */
+    public double getRetainedSizeSlope() {
+      return slope(mRetained);
+    }
+
+    private static double slope(long[] values) {
+      int n = values.length;
+      if (n < 2) {
+        return 0;
+      }
+      double meanX = (n - 1) / 2.0;
+      double meanY = 0;
+      for (long value : values) {
+        meanY += value;
+      }
+      meanY /= n;
+
+      double sxy = 0;
+      double sxx = 0;
+      for (int x = 0; x < n; ++x) {
+        sxy += (x - meanX) * (values[x] - meanY);
+        sxx += (x - meanX) * (x - meanX);
+      }
+      return sxy / sxx;
+    }
+
+    @Override public String toString() {
+      return mName;
+    }
+  }
+
+  private Trend(int snapshots, List<Series> classes, List<Series> sites,
+      List<AhatInstance> suspects) {
+    mSnapshots = snapshots;
+    mClasses = classes;
+    mSites = sites;
+    mLeakSuspects = suspects;
+  }
+
+  /**
+   * Returns the number of snapshots in the series.
+   *
+   * @return the number of snapshots
+   */
+  public int getSnapshotCount() {
+    return mSnapshots;
+  }
+
+  /**
+   * Returns the series for each class with retained instances in any
+   * snapshot, from fastest to slowest growing retained size.
+   *
+   * @return the series for classes
+   */
+  public List<Series> getClasses() {
+    return mClasses;
+  }
+
+  /**
+   * Returns the series for each allocation site with retained instances in
+   * any snapshot, from fastest to slowest growing retained size. The
+   * instances of an allocation site do not include the instances of the
+   * sites it calls.
+   *
+   * @return the series for allocation sites
+   */
+  public List<Series> getSites() {
+    return mSites;
+  }
+
+  /**
+   * Returns the leak suspects of the last snapshot, from largest to smallest
+   * retained size. Suspects are never dominated by other suspects.
+   *
+   * @return the leak suspects
+   */
+  public List<AhatInstance> getLeakSuspects() {
+    return mLeakSuspects;
+  }
+
+  /**
+   * Computes the trend of a series of snapshots added one at a time, from
+   * oldest to newest.
+   */
+  public static class Builder {
+    private int mSnapshots = 0;
+
+    private final List<Series> mClasses = new ArrayList<Series>();
+    private final Map<String, Series> mClassesByName = new HashMap<String, Series>();
+
+    // Allocation sites are keyed by the index of the series of their parent
+    // site and their innermost frame.
+    private final List<Series> mSites = new ArrayList<Series>();
+    private final Map<String, Integer> mSitesByKey = new HashMap<String, Integer>();
+
+    // The last snapshot added. Graph indices of its instances that have a
+    // chain of matching instances through every snapshot along which the
+    // retained size never shrinks are set in mPersistent, and those of them
+    // whose retained size grew along the chain are set in mGrew.
+    private AhatSnapshot mLast = null;
+    private BitSet mPersistent = null;
+    private BitSet mGrew = null;
+
+    /**
+     * Creates a builder for a series with no snapshots.
+     */
+    public Builder() {
+    }
+
+    /**
+     * Adds the next snapshot of the series. Only the aggregated values of
+     * the snapshot are kept once the following snapshot has been added.
+     *
+     * @param snapshot the next snapshot of the series
+     * @return this builder
+     */
+    public Builder add(AhatSnapshot snapshot) {
+      int index = mSnapshots++;
+      addClasses(snapshot, index);
+      addSites(snapshot, index);
+
+      BitSet persistent = new BitSet();
+      BitSet grew = new BitSet();
+      if (mLast == null) {
+        // Every retained instance of the first snapshot trivially persists.
+        Deque<AhatInstance> stack = new ArrayDeque<AhatInstance>(snapshot.getRooted());
+        while (!stack.isEmpty()) {
+          AhatInstance inst = stack.pop();
+          if (!inst.isPlaceHolder()) {
+            persistent.set(inst.getGraphIndex());
+            for (AhatInstance child : inst.getDominated()) {
+              stack.push(child);
+            }
+          }
+        }
+      } else {
+        final BitSet lastPersistent = mPersistent;
+        final BitSet lastGrew = mGrew;
+        Diff.correspondingInstances(mLast, snapshot, (a, b) -> {
+          if (lastPersistent.get(a.getGraphIndex())) {
+            long before = a.getTotalRetainedSize().getSize();
+            long after = b.getTotalRetainedSize().getSize();
+            if (after >= before) {
+              persistent.set(b.getGraphIndex());
+              if (after > before || lastGrew.get(a.getGraphIndex())) {
+                grew.set(b.getGraphIndex());
+              }
+            }
+          }
+        });
+      }
+      mLast = snapshot;
+      mPersistent = persistent;
+      mGrew = grew;
+      return this;
+    }
+
+    private void addClasses(AhatSnapshot snapshot, int index) {
+      for (ClassIndex.Entry entry : snapshot.getClassIndex().getClasses()) {
+        if (!entry.isPlaceHolder()) {
+          Series series = mClassesByName.get(entry.getName());
+          if (series == null) {
+            series = new Series(entry.getName(), index + 1);
+            mClasses.add(series);
+            mClassesByName.put(entry.getName(), series);
+          }
+          series.ensureCapacity(index);
+          series.mCounts[index] = entry.getInstanceCount();
+          series.mRetained[index] = entry.getTotalRetainedSize().getSize();
+        }
+      }
+    }
+
+    private void addSites(AhatSnapshot snapshot, int index) {
+      // Find the series of every site of the snapshot.
+      Map<Site, Series> bySite = new IdentityHashMap<Site, Series>();
+      for (Series series : mSites) {
+        series.mSite = null;
+      }
+      Deque<Site> sites = new ArrayDeque<Site>();
+      sites.push(snapshot.getRootSite());
+      Map<Site, Integer> ids = new IdentityHashMap<Site, Integer>();
+      while (!sites.isEmpty()) {
+        Site site = sites.pop();
+        Site parent = site.getParent();
+        String frame = site.getMethodName() + site.getSignature()
+          + " - " + site.getFilename() + ":" + site.getLineNumber();
+        String key = (parent == null ? "" : ids.get(parent)) + " " + frame;
+        Integer id = mSitesByKey.get(key);
+        if (id == null) {
+          id = mSites.size();
+          mSites.add(new Series(parent == null ? "ROOT" : frame, index + 1));
+          mSitesByKey.put(key, id);
+        }
+        ids.put(site, id);
+        Series series = mSites.get(id);
+        series.ensureCapacity(index);
+        series.mSite = site;
+        bySite.put(site, series);
+        for (Site child : site.getChildren()) {
+          sites.push(child);
+        }
+      }
+
+      // Visit the dominator tree, keeping track of which sites have
+      // instances on the path from the root. An instance is entered when it
+      // is popped from the stack, at which point the series of its site is
+      // pushed so the instance can be exited once all instances it dominates
+      // have been visited.
+      Deque<Object> stack = new ArrayDeque<Object>(snapshot.getRooted());
+      while (!stack.isEmpty()) {
+        Object item = stack.pop();
+        if (item instanceof Series) {
+          ((Series)item).mActive--;
+          continue;
+        }
+
+        AhatInstance inst = (AhatInstance)item;
+        Series series = inst.isPlaceHolder() ? null : bySite.get(inst.getSite());
+        if (series == null) {
+          continue;
+        }
+
+        series.mCounts[index]++;
+        if (series.mActive == 0) {
+          series.mRetained[index] += inst.getTotalRetainedSize().getSize();
+        }
+        series.mActive++;
+        stack.push(series);
+        for (AhatInstance child : inst.getDominated()) {
+          stack.push(child);
+        }
+      }
+    }
+
+    /**
+     * Returns the trend of the snapshots added to this builder. The trend of
+     * the last snapshot added is set to the returned trend, and the builder
+     * releases the snapshot. The builder should not be used afterwards.
+     *
+     * @return the trend of the series of snapshots
+     * @throws IllegalStateException if no snapshots have been added
+     */
+    public Trend build() {
+      if (mLast == null) {
+        throw new IllegalStateException("no snapshots");
+      }
+
+      // Report the outermost suspects in the dominator tree.
+      List<AhatInstance> suspects = new ArrayList<AhatInstance>();
+      if (mSnapshots > 1) {
+        Deque<AhatInstance> stack = new ArrayDeque<AhatInstance>(mLast.getRooted());
+        while (!stack.isEmpty()) {
+          AhatInstance inst = stack.pop();
+          if (inst.isPlaceHolder()) {
+            continue;
+          }
+          if (mGrew.get(inst.getGraphIndex())) {
+            suspects.add(inst);
+          } else {
+            for (AhatInstance child : inst.getDominated()) {
+              stack.push(child);
+            }
+          }
+        }
+      }
+      suspects.sort(Sort.INSTANCE_BY_TOTAL_RETAINED_SIZE);
+
+      List<Series> classes = finish(mClasses);
+      List<Series> sites = finish(mSites);
+      Trend trend = new Trend(mSnapshots, classes, sites, suspects);
+      mLast.setTrend(trend);
+      mLast = null;
+      mPersistent = null;
+      mGrew = null;
+      return trend;
+    }
+
+    /**
+     * Trims the values of the given series to the number of snapshots and
+     * sorts them by growth of retained size.
+     */
+    private List<Series> finish(List<Series> list) {
+      List<Series> sorted = new ArrayList<Series>();
+      for (Series series : list) {
+        series.mCounts = Arrays.copyOf(series.mCounts, mSnapshots);
+        series.mRetained = Arrays.copyOf(series.mRetained, mSnapshots);
+        boolean empty = true;
+        for (long count : series.mCounts) {
+          empty = empty && count == 0;
+        }
+        if (!empty) {
+          sorted.add(series);
+        }
+      }
+      Collections.sort(sorted, Sort.withPriority(
+            Comparator.comparingDouble(Series::getRetainedSizeSlope).reversed(),
+            Comparator.comparing(Series::getName)));
+      return sorted;
+    }
+  }
+}
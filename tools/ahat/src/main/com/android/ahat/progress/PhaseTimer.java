@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.progress;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Records the wall time, CPU time, allocated bytes and peak heap use of the
+ * phases of work reported to the Progress indicators it creates.
+ * <p>
+ * The CPU time, allocated bytes and peak heap use are measured for the
+ * whole Java process, so they include the work of all threads, the garbage
+ * collector and anything else running at the same time as the phase. The
+ * number of allocated bytes is estimated from the growth of the heap and
+ * the bytes freed by garbage collections during the phase. Measurements the
+ * Java runtime does not support are reported as -1.
+ */
+public class PhaseTimer {
+  /**
+   * The measurements of a completed phase.
+   */
+  public static class Phase {
+    private final String mSource;
+    private final String mDescription;
+    private final long mWallTime;
+    private final long mCpuTime;
+    private final long mAllocatedBytes;
+    private final long mPeakHeapBytes;
+
+    private Phase(String source, String description, long wallTime, long cpuTime,
+        long allocatedBytes, long peakHeapBytes) {
+      mSource = source;
+      mDescription = description;
+      mWallTime = wallTime;
+      mCpuTime = cpuTime;
+      mAllocatedBytes = allocatedBytes;
+      mPeakHeapBytes = peakHeapBytes;
+    }
+
+    /**
+     * Returns the name of what the phase worked on, such as the name of the
+     * heap dump being processed.
+     *
+     * @return the source of the phase
+     */
+    public String getSource() {
+      return mSource;
+    }
+
+    /**
+     * Returns the human readable description of the phase.
+     *
+     * @return the description of the phase
+     */
+    public String getDescription() {
+      return mDescription;
+    }
+
+    /**
+     * Returns the elapsed wall clock time of the phase.
+     *
+     * @return the wall time in nanoseconds
+     */
+    public long getWallTime() {
+      return mWallTime;
+    }
+
+    /**
+     * Returns the CPU time used by the process during the phase.
+     *
+     * @return the CPU time in nanoseconds, or -1 if not supported
+     */
+    public long getCpuTime() {
+      return mCpuTime;
+    }
+
+    /**
+     * Returns the estimated number of bytes allocated on the Java heap
+     * during the phase.
+     *
+     * @return the allocated bytes, or -1 if not supported
+     */
+    public long getAllocatedBytes() {
+      return mAllocatedBytes;
+    }
+
+    /**
+     * Returns the peak number of bytes used by the Java heap during the
+     * phase.
+     *
+     * @return the peak heap use in bytes
+     */
+    public long getPeakHeapBytes() {
+      return mPeakHeapBytes;
+    }
+  }
+
+  private final List<Phase> mPhases = new ArrayList<Phase>();
+
+  /**
+   * Returns a progress indicator that records the phases reported to it and
+   * forwards them to the given progress indicator.
+   *
+   * @param source the name of what the phases work on
+   * @param progress the progress indicator to forward to
+   * @return a progress indicator recording the phases
+   */
+  public Progress wrap(String source, Progress progress) {
+    return new TimedProgress(source, progress);
+  }
+
+  /**
+   * Returns the completed phases, in the order they completed.
+   *
+   * @return the completed phases
+   */
+  public synchronized List<Phase> getPhases() {
+    return new ArrayList<Phase>(mPhases);
+  }
+
+  private synchronized void add(Phase phase) {
+    mPhases.add(phase);
+  }
+
+  /**
+   * Returns the CPU time used by the process so far in nanoseconds, or -1 if
+   * not supported.
+   */
+  private static long getProcessCpuTime() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the total number of bytes in use by the Java heap.
+   */
+  private static long getHeapUsed() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * Returns the memory pools of the Java heap.
+   */
+  private static List<MemoryPoolMXBean> getHeapPools() {
+    List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pools.add(pool);
+      }
+    }
+    return pools;
+  }
+
+  /**
+   * Forwards to another progress indicator, recording each phase when it is
+   * done.
+   */
+  private class TimedProgress implements Progress, NotificationListener {
+    private final String mSource;
+    private final Progress mProgress;
+
+    // The state of the current phase, or null if there is no current phase.
+    private String mDescription;
+    private long mStartWallTime;
+    private long mStartCpuTime;
+    private long mStartHeapUsed;
+    private List<NotificationEmitter> mCollectors;
+    private Set<String> mHeapPoolNames;
+
+    // The number of bytes freed by garbage collections during the current
+    // phase, or -1 if garbage collections can not be observed.
+    private final AtomicLong mFreedBytes = new AtomicLong();
+
+    TimedProgress(String source, Progress progress) {
+      mSource = source;
+      mProgress = progress;
+    }
+
+    @Override
+    public void start(String description, long duration) {
+      mDescription = description;
+
+      mHeapPoolNames = new HashSet<String>();
+      for (MemoryPoolMXBean pool : getHeapPools()) {
+        mHeapPoolNames.add(pool.getName());
+        pool.resetPeakUsage();
+      }
+
+      mFreedBytes.set(0);
+      mCollectors = new ArrayList<NotificationEmitter>();
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        if (gc instanceof NotificationEmitter) {
+          NotificationEmitter emitter = (NotificationEmitter)gc;
+          emitter.addNotificationListener(this, null, null);
+          mCollectors.add(emitter);
+        } else {
+          mFreedBytes.set(-1);
+        }
+      }
+
+      mStartHeapUsed = getHeapUsed();
+      mStartCpuTime = getProcessCpuTime();
+      mStartWallTime = System.nanoTime();
+      mProgress.start(description, duration);
+    }
+
+    @Override
+    public void advance(long n) {
+      mProgress.advance(n);
+    }
+
+    @Override
+    public void update(long current) {
+      mProgress.update(current);
+    }
+
+    @Override
+    public void done() {
+      mProgress.done();
+      long wallTime = System.nanoTime() - mStartWallTime;
+      long cpuTime = getProcessCpuTime();
+      long heapUsed = getHeapUsed();
+
+      for (NotificationEmitter emitter : mCollectors) {
+        try {
+          emitter.removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+          // The listener was added in start, so this should not happen.
+          throw new AssertionError(e);
+        }
+      }
+      mCollectors = null;
+
+      long peak = 0;
+      for (MemoryPoolMXBean pool : getHeapPools()) {
+        MemoryUsage usage = pool.getPeakUsage();
+        peak += usage == null ? 0 : usage.getUsed();
+      }
+
+      long freed = mFreedBytes.get();
+      add(new Phase(mSource, mDescription, wallTime,
+            cpuTime < 0 || mStartCpuTime < 0 ? -1 : cpuTime - mStartCpuTime,
+            freed < 0 ? -1 : Math.max(0, heapUsed - mStartHeapUsed + freed),
+            Math.max(peak, heapUsed)));
+      mDescription = null;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+            notification.getType())) {
+        return;
+      }
+
+      GcInfo info = GarbageCollectionNotificationInfo.from(
+          (CompositeData)notification.getUserData()).getGcInfo();
+      long collected = getHeapPoolsUsed(info.getMemoryUsageBeforeGc())
+          - getHeapPoolsUsed(info.getMemoryUsageAfterGc());
+      mFreedBytes.getAndUpdate(
+          freed -> freed < 0 ? freed : freed + Math.max(0, collected));
+    }
+
+    /**
+     * Returns the total number of bytes used by the heap pools among the
+     * given memory pools.
+     */
+    private long getHeapPoolsUsed(Map<String, MemoryUsage> usages) {
+      long used = 0;
+      for (Map.Entry<String, MemoryUsage> entry : usages.entrySet()) {
+        if (mHeapPoolNames.contains(entry.getKey())) {
+          used += entry.getValue().getUsed();
+        }
+      }
+      return used;
+    }
+  }
+}
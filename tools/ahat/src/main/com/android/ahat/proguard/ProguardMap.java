@@ -18,14 +18,26 @@ package com.android.ahat.proguard;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,76 +49,152 @@ public class ProguardMap {
 
   private static final String ARRAY_SYMBOL = "[]";
   private static final Version LINE_MAPPING_BEHAVIOR_CHANGE_VERSION = new Version(3, 1, 4);
+  private static final Pattern VERSION_PATTERN
+    = Pattern.compile("#\\s*compiler_version:\\s*(\\d+).(\\d+).(?:(\\d+))?");
 
+  // The minimum number of characters of a mapping file to parse as a single
+  // task when parsing in parallel.
+  private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+  /**
+   * The deobfuscation information for a method, identified by its
+   * obfuscated name and clear signature. Line number ranges are kept in
+   * parallel arrays sorted by the start of the obfuscated range.
+   */
   private static class FrameData {
-    public FrameData(String clearMethodName) {
-      this.clearMethodName = clearMethodName;
+    private final String mClearMethodName;
+    private final int[] mObfuscatedStart;
+    private final int[] mObfuscatedEnd;
+    private final int[] mClearStart;
+    private final int[] mClearEnd;
+
+    FrameData(FrameBuilder builder) {
+      mClearMethodName = builder.clearMethodName;
+
+      // Later mappings for the same obfuscated start line replace earlier
+      // ones.
+      TreeMap<Integer, int[]> lines = new TreeMap<>();
+      for (int[] line : builder.lines) {
+        lines.put(line[0], line);
+      }
+      int n = lines.size();
+      mObfuscatedStart = new int[n];
+      mObfuscatedEnd = new int[n];
+      mClearStart = new int[n];
+      mClearEnd = new int[n];
+      int i = 0;
+      for (int[] line : lines.values()) {
+        mObfuscatedStart[i] = line[0];
+        mObfuscatedEnd[i] = line[1];
+        mClearStart[i] = line[2];
+        mClearEnd[i] = line[3];
+        i++;
+      }
     }
 
-    private final String clearMethodName;
-    private final TreeMap<Integer, LineNumberMapping> lineNumbers = new TreeMap<>();
-
     public int getClearLine(int obfuscatedLine) {
-      var lineNumberEntry = lineNumbers.floorEntry(obfuscatedLine);
-      LineNumberMapping mapping = lineNumberEntry == null ? null : lineNumberEntry.getValue();
-      if (mapping != null && mapping.hasObfuscatedLine(obfuscatedLine)) {
-        return mapping.mapObfuscatedLine(obfuscatedLine);
-      } else {
-        return obfuscatedLine;
+      // Find the last range starting at or before the obfuscated line.
+      int i = Arrays.binarySearch(mObfuscatedStart, obfuscatedLine);
+      if (i < 0) {
+        i = -i - 2;
       }
+      if (i >= 0 && obfuscatedLine <= mObfuscatedEnd[i]) {
+        int mappedLine = mClearStart[i] + obfuscatedLine - mObfuscatedStart[i];
+        if (mappedLine < mClearStart[i] || mappedLine > mClearEnd[i]) {
+          // If the mapped line ends out outside of range, it would be past the end, so just limit
+          // it to the end line
+          return mClearEnd[i];
+        }
+        return mappedLine;
+      }
+      return obfuscatedLine;
     }
   }
 
-  private static class LineRange {
-    public LineRange(int start, int end) {
-      this.start = start;
-      this.end = end;
-    }
-
-    public boolean hasLine(int lineNumber) {
-      return (lineNumber >= start && lineNumber <= end);
+  /**
+   * Collects the line number mappings of a method while parsing.
+   */
+  private static class FrameBuilder {
+    public final String obfuscatedMethodName;
+    public final String clearSignature;
+    public final String clearMethodName;
+
+    // {obfuscated start, obfuscated end, clear start, clear end}, in the
+    // order they appear in the mapping file.
+    public final List<int[]> lines = new ArrayList<int[]>();
+
+    FrameBuilder(String obfuscatedMethodName, String clearSignature, String clearMethodName) {
+      this.obfuscatedMethodName = obfuscatedMethodName;
+      this.clearSignature = clearSignature;
+      this.clearMethodName = clearMethodName;
     }
-
-    public final int start;
-    public final int end;
   }
 
-  private static class LineNumberMapping {
-    public LineNumberMapping(LineRange obfuscatedRange, LineRange clearRange) {
-      this.obfuscatedRange = obfuscatedRange;
-      this.clearRange = clearRange;
-    }
+  /**
+   * Collects the fields and methods of a class while parsing.
+   */
+  private static class ClassBuilder {
+    public final String clearName;
+    public final String obfuscatedName;
+    public final Map<String, String> fields = new HashMap<String, String>();
 
-    public boolean hasObfuscatedLine(int lineNumber) {
-      return obfuscatedRange.hasLine(lineNumber);
-    }
+    // obfuscatedMethodName + clearSignature -> FrameBuilder
+    public final Map<String, FrameBuilder> frames = new HashMap<String, FrameBuilder>();
 
-    public int mapObfuscatedLine(int lineNumber) {
-      int mappedLine = clearRange.start + lineNumber - obfuscatedRange.start;
-      if (!clearRange.hasLine(mappedLine)) {
-        // If the mapped line ends out outside of range, it would be past the end, so just limit it
-        // to the end line
-        return clearRange.end;
-      }
-      return mappedLine;
+    ClassBuilder(String clearName, String obfuscatedName) {
+      this.clearName = clearName;
+      this.obfuscatedName = obfuscatedName;
     }
 
-    public final LineRange obfuscatedRange;
-    public final LineRange clearRange;
+    public void addFrame(String obfuscatedMethodName, String clearMethodName,
+        String clearSignature, int obfuscatedStart, int obfuscatedEnd,
+        int clearStart, int clearEnd) {
+      FrameBuilder frame = frames.computeIfAbsent(obfuscatedMethodName + clearSignature,
+          k -> new FrameBuilder(obfuscatedMethodName, clearSignature, clearMethodName));
+      frame.lines.add(new int[] {obfuscatedStart, obfuscatedEnd, clearStart, clearEnd});
+    }
   }
 
+  /**
+   * The deobfuscation information for a class. Fields and methods are kept
+   * in sorted arrays so they can be looked up by binary search without
+   * allocating.
+   */
   private static class ClassData {
     private final String mClearName;
-
-    // Mapping from obfuscated field name to clear field name.
-    private final Map<String, String> mFields = new HashMap<String, String>();
-
-    // obfuscatedMethodName + clearSignature -> FrameData
-    private final Map<String, FrameData> mFrames = new HashMap<String, FrameData>();
-
-    // Constructs a ClassData object for a class with the given clear name.
-    public ClassData(String clearName) {
-      mClearName = clearName;
+    private final String mFileName;
+
+    // Obfuscated field names in sorted order, and their clear names.
+    private final String[] mObfuscatedFields;
+    private final String[] mClearFields;
+
+    // Obfuscated method names and clear signatures, sorted by method name
+    // then signature, and their frame data.
+    private final String[] mFrameMethods;
+    private final String[] mFrameSignatures;
+    private final FrameData[] mFrames;
+
+    ClassData(ClassBuilder builder) {
+      mClearName = builder.clearName;
+      mFileName = getFileName(builder.clearName);
+
+      TreeMap<String, String> fields = new TreeMap<String, String>(builder.fields);
+      mObfuscatedFields = fields.keySet().toArray(new String[fields.size()]);
+      mClearFields = fields.values().toArray(new String[fields.size()]);
+
+      List<FrameBuilder> frames = new ArrayList<FrameBuilder>(builder.frames.values());
+      frames.sort(Comparator.comparing((FrameBuilder f) -> f.obfuscatedMethodName)
+          .thenComparing(f -> f.clearSignature));
+      int n = frames.size();
+      mFrameMethods = new String[n];
+      mFrameSignatures = new String[n];
+      mFrames = new FrameData[n];
+      for (int i = 0; i < n; ++i) {
+        FrameBuilder frame = frames.get(i);
+        mFrameMethods[i] = frame.obfuscatedMethodName;
+        mFrameSignatures[i] = frame.clearSignature;
+        mFrames[i] = new FrameData(frame);
+      }
     }
 
     // Returns the clear name of the class.
@@ -114,46 +202,143 @@ public class ProguardMap {
       return mClearName;
     }
 
-    public void addField(String obfuscatedName, String clearName) {
-      mFields.put(obfuscatedName, clearName);
-    }
-
     // Get the clear name for the field in this class with the given
     // obfuscated name. Returns the original obfuscated name if a clear
     // name for the field could not be determined.
     // TODO: Do we need to take into account the type of the field to
     // propery determine the clear name?
     public String getField(String obfuscatedName) {
-      String clearField = mFields.get(obfuscatedName);
-      return clearField == null ? obfuscatedName : clearField;
+      int i = Arrays.binarySearch(mObfuscatedFields, obfuscatedName);
+      return i < 0 ? obfuscatedName : mClearFields[i];
     }
 
-    public void addFrame(String obfuscatedMethodName, String clearMethodName,
-            String clearSignature, LineRange obfuscatedLine, LineRange clearRange) {
-        String key = obfuscatedMethodName + clearSignature;
-        FrameData data = mFrames.get(key);
-        if (data == null) {
-          data = new FrameData(clearMethodName);
+    public Frame getFrame(String obfuscatedMethodName, String clearSignature,
+        int obfuscatedLine) {
+      int low = 0;
+      int high = mFrames.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int compare = mFrameMethods[mid].compareTo(obfuscatedMethodName);
+        if (compare == 0) {
+          compare = mFrameSignatures[mid].compareTo(clearSignature);
+        }
+        if (compare < 0) {
+          low = mid + 1;
+        } else if (compare > 0) {
+          high = mid - 1;
+        } else {
+          FrameData frame = mFrames[mid];
+          return new Frame(frame.mClearMethodName, clearSignature,
+              mFileName, frame.getClearLine(obfuscatedLine));
         }
-        data.lineNumbers.put(
-            obfuscatedLine.start, new LineNumberMapping(obfuscatedLine, clearRange));
-        mFrames.put(key, data);
+      }
+      return new Frame(obfuscatedMethodName, clearSignature, mFileName, obfuscatedLine);
+    }
+  }
+
+  /**
+   * An open addressing hash table from names to indices. The table can be
+   * queried with a range of characters of a larger string, optionally
+   * reading '/' as '.', without allocating a String for the name.
+   */
+  private static class NameTable {
+    private String[] mNames = new String[16];
+    private int[] mIndices = new int[16];
+    private int mSize = 0;
+
+    // The hash of the given characters, which for a whole string with no
+    // slashes is derived from String.hashCode.
+    private static int hash(int h) {
+      return h ^ (h >>> 16);
+    }
+
+    private static int hash(String s, int start, int end, boolean slashes) {
+      int h = 0;
+      for (int i = start; i < end; ++i) {
+        char c = s.charAt(i);
+        h = 31 * h + (slashes && c == '/' ? '.' : c);
+      }
+      return hash(h);
+    }
+
+    private static boolean matches(String name, String s, int start, int end, boolean slashes) {
+      if (name.length() != end - start) {
+        return false;
+      }
+      for (int i = start; i < end; ++i) {
+        char c = s.charAt(i);
+        if (name.charAt(i - start) != (slashes && c == '/' ? '.' : c)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the index of the given name, or -1 if the name is not in the
+     * table.
+     */
+    public int get(String name) {
+      int mask = mNames.length - 1;
+      for (int i = hash(name.hashCode()) & mask; mNames[i] != null; i = (i + 1) & mask) {
+        if (mNames[i].equals(name)) {
+          return mIndices[i];
+        }
+      }
+      return -1;
     }
 
-    public Frame getFrame(String clearClassName, String obfuscatedMethodName,
-        String clearSignature, String obfuscatedFilename, int obfuscatedLine) {
-      String key = obfuscatedMethodName + clearSignature;
-      FrameData frame = mFrames.get(key);
-      if (frame == null) {
-        frame = new FrameData(obfuscatedMethodName);
+    /**
+     * Returns the index of the name made up of the characters of s from
+     * start to end, or -1 if the name is not in the table. If slashes is
+     * true, '/' characters in s are read as '.'.
+     */
+    public int get(String s, int start, int end, boolean slashes) {
+      int mask = mNames.length - 1;
+      int h = hash(s, start, end, slashes);
+      for (int i = h & mask; mNames[i] != null; i = (i + 1) & mask) {
+        if (matches(mNames[i], s, start, end, slashes)) {
+          return mIndices[i];
+        }
       }
-      return new Frame(frame.clearMethodName, clearSignature,
-          getFileName(clearClassName), frame.getClearLine(obfuscatedLine));
+      return -1;
+    }
+
+    /**
+     * Sets the index of the given name, replacing any previous index.
+     */
+    public void put(String name, int index) {
+      if (2 * (mSize + 1) > mNames.length) {
+        String[] names = mNames;
+        int[] indices = mIndices;
+        mNames = new String[2 * names.length];
+        mIndices = new int[2 * names.length];
+        mSize = 0;
+        for (int i = 0; i < names.length; ++i) {
+          if (names[i] != null) {
+            put(names[i], indices[i]);
+          }
+        }
+      }
+
+      int mask = mNames.length - 1;
+      int i = hash(name.hashCode()) & mask;
+      while (mNames[i] != null) {
+        if (mNames[i].equals(name)) {
+          mIndices[i] = index;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      mNames[i] = name;
+      mIndices[i] = index;
+      mSize++;
     }
   }
 
-  private Map<String, ClassData> mClassesFromClearName = new HashMap<String, ClassData>();
-  private Map<String, ClassData> mClassesFromObfuscatedName = new HashMap<String, ClassData>();
+  private final List<ClassData> mClasses = new ArrayList<ClassData>();
+  private final NameTable mClassesFromClearName = new NameTable();
+  private final NameTable mClassesFromObfuscatedName = new NameTable();
 
   /**
    * Information associated with a stack frame that identifies a particular
@@ -220,7 +405,36 @@ public class ProguardMap {
    */
   public void readFromFile(File mapFile)
     throws FileNotFoundException, IOException, ParseException {
-    readFromReader(new FileReader(mapFile));
+    readFromFile(mapFile, 1);
+  }
+
+  /**
+   * Adds the proguard mapping information in <code>mapFile</code> to this
+   * proguard mapping, parsing the file using the given number of threads.
+   * The <code>mapFile</code> should be a proguard mapping file generated with
+   * the <code>-printmapping</code> option when proguard was run.
+   *
+   * @param mapFile the name of a file with proguard mapping information
+   * @param threads the number of threads to use for parsing
+   * @throws FileNotFoundException If the <code>mapFile</code> could not be
+   *                               found
+   * @throws IOException If an input exception occurred.
+   * @throws ParseException If the <code>mapFile</code> is not a properly
+   *                        formatted proguard mapping file.
+   * @throws IllegalArgumentException if threads is less than 1
+   */
+  public void readFromFile(File mapFile, int threads)
+    throws FileNotFoundException, IOException, ParseException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads < 1");
+    }
+    if (!mapFile.isFile()) {
+      throw new FileNotFoundException(mapFile.getPath());
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(mapFile), StandardCharsets.UTF_8))) {
+      read(reader, threads);
+    }
   }
 
   /**
@@ -235,14 +449,128 @@ public class ProguardMap {
    *                        formatted proguard mapping file.
    */
   public void readFromReader(Reader mapReader) throws IOException, ParseException {
-    Version compilerVersion = new Version(0, 0, 0);
-    BufferedReader reader = new BufferedReader(mapReader);
+    try (BufferedReader reader = new BufferedReader(mapReader)) {
+      read(reader, 1);
+    }
+  }
+
+  /**
+   * Adds the proguard mapping information read line by line from the given
+   * reader.
+   * <p>
+   * Only comment lines before the first class line can change the compiler
+   * version; all later comment lines belong to the preceding class. The
+   * lines before the first class line are parsed first, to determine the
+   * compiler version, then the rest of the lines are split into chunks at
+   * class lines as they are read and the chunks are parsed in parallel. The
+   * parsed classes are added to the mapping in the order they appear in the
+   * file, so the result is the same as parsing the whole file in order.
+   */
+  private void read(BufferedReader reader, int threads) throws IOException, ParseException {
+    List<String> header = new ArrayList<String>();
     String line = reader.readLine();
+    while (line != null && !isClassLine(line)) {
+      header.add(line);
+      line = reader.readLine();
+    }
+
+    List<ClassBuilder> classes = new ArrayList<ClassBuilder>();
+    final Version version = parse(header, new Version(0, 0, 0), classes);
+
+    // Chunks still being parsed, in the order they were read. At most a few
+    // chunks per thread are read ahead, to bound the number of lines held in
+    // memory at once.
+    ForkJoinPool pool = threads == 1 ? null : new ForkJoinPool(threads);
+    Deque<Future<List<ClassBuilder>>> pending = new ArrayDeque<Future<List<ClassBuilder>>>();
+    try {
+      while (line != null) {
+        // Chunks start at class lines and span at least MIN_CHUNK_SIZE
+        // characters.
+        List<String> chunk = new ArrayList<String>();
+        int size = 0;
+        do {
+          chunk.add(line);
+          size += line.length() + 1;
+          line = reader.readLine();
+        } while (line != null && (size < MIN_CHUNK_SIZE || !isClassLine(line)));
+
+        if (pool == null) {
+          parse(chunk, version, classes);
+          continue;
+        }
+
+        if (pending.size() >= 2 * threads) {
+          classes.addAll(getParsed(pending.removeFirst()));
+        }
+        pending.addLast(pool.submit(() -> {
+          List<ClassBuilder> parsed = new ArrayList<ClassBuilder>();
+          parse(chunk, version, parsed);
+          return parsed;
+        }));
+      }
+      while (!pending.isEmpty()) {
+        classes.addAll(getParsed(pending.removeFirst()));
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+
+    for (ClassBuilder builder : classes) {
+      int index = mClasses.size();
+      mClasses.add(new ClassData(builder));
+      mClassesFromClearName.put(builder.clearName, index);
+      mClassesFromObfuscatedName.put(builder.obfuscatedName, index);
+    }
+  }
+
+  /**
+   * Waits for a chunk to be parsed and returns the parsed classes.
+   */
+  private static List<ClassBuilder> getParsed(Future<List<ClassBuilder>> result)
+      throws ParseException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ParseException("Interrupted while parsing proguard map", 0);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ParseException) {
+        throw (ParseException)e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns true if the given line is a class line, that is, a line that
+   * starts with neither whitespace nor '#'.
+   */
+  private static boolean isClassLine(String line) {
+    if (line.isEmpty()) {
+      return false;
+    }
+    char c = line.charAt(0);
+    return c != ' ' && c != '\t' && c != '#';
+  }
+
+  /**
+   * Parses the classes in the given lines, which must be followed by a class
+   * line or the end of the file. The given compiler version applies at the
+   * start of the lines.
+   *
+   * @return the compiler version that applies at the end of the lines
+   */
+  private static Version parse(List<String> chunk, Version compilerVersion,
+      List<ClassBuilder> classes) throws ParseException {
+    Iterator<String> lines = chunk.iterator();
+    String line = lines.hasNext() ? lines.next() : null;
     while (line != null) {
       // Skip comment lines.
       if (isCommentLine(line)) {
         compilerVersion = tryParseVersion(line, compilerVersion);
-        line = reader.readLine();
+        line = lines.hasNext() ? lines.next() : null;
         continue;
       }
 
@@ -255,20 +583,19 @@ public class ProguardMap {
       String clearClassName = line.substring(0, sep);
       String obfuscatedClassName = line.substring(sep + 4, line.length() - 1);
 
-      ClassData classData = new ClassData(clearClassName);
-      mClassesFromClearName.put(clearClassName, classData);
-      mClassesFromObfuscatedName.put(obfuscatedClassName, classData);
+      ClassBuilder classData = new ClassBuilder(clearClassName, obfuscatedClassName);
+      classes.add(classData);
 
       // After the class line comes zero or more field/method lines of the form:
       //   '    type clearName -> obfuscatedName'
       //   '# comment line'
-      line = reader.readLine();
+      line = lines.hasNext() ? lines.next() : null;
       while (line != null && (line.startsWith("    ") || isCommentLine(line))) {
         String trimmed = line.trim();
         // Comment lines may occur anywhere in the file.
         // Skip over them.
         if (isCommentLine(trimmed)) {
-          line = reader.readLine();
+          line = lines.hasNext() ? lines.next() : null;
           continue;
         }
         int ws = trimmed.indexOf(' ');
@@ -284,7 +611,7 @@ public class ProguardMap {
         // If the clearName contains '(', then this is for a method instead of a
         // field.
         if (clearName.indexOf('(') == -1) {
-          classData.addField(obfuscatedName, clearName);
+          classData.fields.put(obfuscatedName, clearName);
         } else {
           // For methods, the type is of the form: [#:[#:]]<returnType>
           int obfuscatedLineStart = 0;
@@ -302,7 +629,6 @@ public class ProguardMap {
             obfuscatedLineEnd = Integer.parseInt(type.substring(0, colon));
             type = type.substring(colon + 1);
           }
-          LineRange obfuscatedRange = new LineRange(obfuscatedLineStart, obfuscatedLineEnd);
 
           // For methods, the clearName is of the form: <clearName><sig>[:#[:#]]
           int op = clearName.indexOf('(');
@@ -313,15 +639,15 @@ public class ProguardMap {
 
           String sig = clearName.substring(op, cp + 1);
 
-          int clearLineStart = obfuscatedRange.start;
-          int clearLineEnd = obfuscatedRange.end;
+          int clearLineStart = obfuscatedLineStart;
+          int clearLineEnd = obfuscatedLineEnd;
           colon = clearName.lastIndexOf(':');
           if (colon != -1) {
             if (compilerVersion.compareTo(LINE_MAPPING_BEHAVIOR_CHANGE_VERSION) < 0) {
               // Before v3.1.4 if only one clear line was present, that implied a range equal to the
               // obfuscated line range
               clearLineStart = Integer.parseInt(clearName.substring(colon + 1));
-              clearLineEnd = clearLineStart + obfuscatedRange.end - obfuscatedRange.start;
+              clearLineEnd = clearLineStart + obfuscatedLineEnd - obfuscatedLineStart;
             } else {
               // From v3.1.4 if only one clear line was present, that implies that all lines map to
               // a single clear line
@@ -336,18 +662,18 @@ public class ProguardMap {
             clearLineStart = Integer.parseInt(clearName.substring(colon + 1));
             clearName = clearName.substring(0, colon);
           }
-          LineRange clearRange = new LineRange(clearLineStart, clearLineEnd);
 
           clearName = clearName.substring(0, op);
 
           String clearSig = fromProguardSignature(sig + type);
-          classData.addFrame(obfuscatedName, clearName, clearSig, obfuscatedRange, clearRange);
+          classData.addFrame(obfuscatedName, clearName, clearSig,
+              obfuscatedLineStart, obfuscatedLineEnd, clearLineStart, clearLineEnd);
         }
 
-        line = reader.readLine();
+        line = lines.hasNext() ? lines.next() : null;
       }
     }
-    reader.close();
+    return compilerVersion;
   }
 
   private static class Version implements Comparable<Version> {
@@ -374,14 +700,13 @@ public class ProguardMap {
     }
   }
 
-  private boolean isCommentLine(String line) {
+  private static boolean isCommentLine(String line) {
     // Comment lines start with '#' and my have leading whitespaces.
     return line.trim().startsWith("#");
   }
 
-  private Version tryParseVersion(String line, Version old) {
-    Pattern pattern = Pattern.compile("#\\s*compiler_version:\\s*(\\d+).(\\d+).(?:(\\d+))?");
-    Matcher matcher = pattern.matcher(line);
+  private static Version tryParseVersion(String line, Version old) {
+    Matcher matcher = VERSION_PATTERN.matcher(line);
     if (matcher.find()) {
       String buildStr = matcher.group(3);
       if (buildStr == null) {
@@ -407,16 +732,20 @@ public class ProguardMap {
   public String getClassName(String obfuscatedClassName) {
     // Class names for arrays may have trailing [] that need to be
     // stripped before doing the lookup.
-    String baseName = obfuscatedClassName;
-    String arraySuffix = "";
-    while (baseName.endsWith(ARRAY_SYMBOL)) {
-      arraySuffix += ARRAY_SYMBOL;
-      baseName = baseName.substring(0, baseName.length() - ARRAY_SYMBOL.length());
+    int end = obfuscatedClassName.length();
+    while (obfuscatedClassName.startsWith(ARRAY_SYMBOL, end - ARRAY_SYMBOL.length())) {
+      end -= ARRAY_SYMBOL.length();
     }
 
-    ClassData classData = mClassesFromObfuscatedName.get(baseName);
-    String clearBaseName = classData == null ? baseName : classData.getClearName();
-    return clearBaseName + arraySuffix;
+    int index = mClassesFromObfuscatedName.get(obfuscatedClassName, 0, end, false);
+    if (index < 0) {
+      return obfuscatedClassName;
+    }
+    String clearBaseName = mClasses.get(index).getClearName();
+    if (end == obfuscatedClassName.length()) {
+      return clearBaseName;
+    }
+    return clearBaseName + obfuscatedClassName.substring(end);
   }
 
   /**
@@ -431,11 +760,11 @@ public class ProguardMap {
    * @return the deobfuscated field name.
    */
   public String getFieldName(String clearClass, String obfuscatedField) {
-    ClassData classData = mClassesFromClearName.get(clearClass);
-    if (classData == null) {
+    int index = mClassesFromClearName.get(clearClass);
+    if (index < 0) {
       return obfuscatedField;
     }
-    return classData.getField(obfuscatedField);
+    return mClasses.get(index).getField(obfuscatedField);
   }
 
   /**
@@ -456,13 +785,12 @@ public class ProguardMap {
   public Frame getFrame(String clearClassName, String obfuscatedMethodName,
       String obfuscatedSignature, String obfuscatedFilename, int obfuscatedLine) {
     String clearSignature = getSignature(obfuscatedSignature);
-    ClassData classData = mClassesFromClearName.get(clearClassName);
-    if (classData == null) {
+    int index = mClassesFromClearName.get(clearClassName);
+    if (index < 0) {
       return new Frame(obfuscatedMethodName, clearSignature,
           obfuscatedFilename, obfuscatedLine);
     }
-    return classData.getFrame(clearClassName, obfuscatedMethodName, clearSignature,
-        obfuscatedFilename, obfuscatedLine);
+    return mClasses.get(index).getFrame(obfuscatedMethodName, clearSignature, obfuscatedLine);
   }
 
   // Converts a proguard-formatted method signature into a Java formatted
@@ -511,6 +839,12 @@ public class ProguardMap {
 
   // Return a clear signature for the given obfuscated signature.
   private String getSignature(String obfuscatedSig) {
+    // Most signatures refer only to classes that are not obfuscated, in
+    // which case the signature is returned as is.
+    if (!needsDeobfuscation(obfuscatedSig)) {
+      return obfuscatedSig;
+    }
+
     StringBuilder builder = new StringBuilder();
     for (int i = 0; i < obfuscatedSig.length(); i++) {
       if (obfuscatedSig.charAt(i) == 'L') {
@@ -527,6 +861,24 @@ public class ProguardMap {
     return builder.toString();
   }
 
+  // Returns true if the clear version of the given signature differs from
+  // the signature itself.
+  private boolean needsDeobfuscation(String obfuscatedSig) {
+    for (int i = 0; i < obfuscatedSig.length(); i++) {
+      if (obfuscatedSig.charAt(i) == 'L') {
+        int e = obfuscatedSig.indexOf(';', i);
+        if (e == -1
+            || obfuscatedSig.lastIndexOf('.', e) > i
+            || obfuscatedSig.startsWith(ARRAY_SYMBOL, e - ARRAY_SYMBOL.length())
+            || mClassesFromObfuscatedName.get(obfuscatedSig, i + 1, e, true) >= 0) {
+          return true;
+        }
+        i = e;
+      }
+    }
+    return false;
+  }
+
   // Return a file name for the given clear class name.
   private static String getFileName(String clearClass) {
     String filename = clearClass;
@@ -16,28 +16,37 @@
 
 package com.android.ahat;
 
+import com.android.ahat.heapdump.HprofBufferTest;
 import org.junit.runner.JUnitCore;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+  BatchQueryTest.class,
+  ClassesHandlerTest.class,
   DiffFieldsTest.class,
   DiffTest.class,
   DominatorsTest.class,
+  DuplicatesTest.class,
+  HprofBufferTest.class,
   HtmlEscaperTest.class,
   InstanceTest.class,
   NativeAllocationTest.class,
   ObjectHandlerTest.class,
   ObjectsHandlerTest.class,
   OverviewHandlerTest.class,
+  PageCacheTest.class,
+  ParserTest.class,
   PerformanceTest.class,
   ProguardMapTest.class,
   RootedHandlerTest.class,
   QueryTest.class,
   RiTest.class,
   SiteHandlerTest.class,
-  SiteTest.class
+  SiteTest.class,
+  StatsTest.class,
+  TrendTest.class
 })
 
 public class AhatTestSuite {
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Reachability;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchQueryTest {
+  private static AhatSnapshot getSnapshot() throws IOException {
+    return TestDump.getTestDump("O.hprof", null, null, Reachability.STRONG).getAhatSnapshot();
+  }
+
+  private static String print(BatchQuery.Format format, BatchQuery.Table... tables) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintStream ps = new PrintStream(baos);
+    BatchQuery.print(ps, format, Arrays.asList(tables));
+    ps.flush();
+    return baos.toString();
+  }
+
+  @Test
+  public void allQueries() throws IOException {
+    AhatSnapshot snapshot = getSnapshot();
+    BatchQuery batch = new BatchQuery(snapshot, 10);
+    for (String query : BatchQuery.QUERIES) {
+      BatchQuery.Table table = batch.run(query);
+      assertEquals(query, table.name);
+      assertTrue(table.rows.size() <= 10);
+      for (List<Object> row : table.rows) {
+        assertEquals(table.columns.size(), row.size());
+      }
+    }
+  }
+
+  @Test
+  public void rootedIsSortedByRetainedSize() throws IOException {
+    AhatSnapshot snapshot = getSnapshot();
+    BatchQuery.Table table = new BatchQuery(snapshot, 5).run("rooted");
+    assertEquals(Math.min(5, snapshot.getRooted().size()), table.rows.size());
+    int retained = table.columns.indexOf("retained");
+    for (int i = 1; i < table.rows.size(); ++i) {
+      long prev = (Long)table.rows.get(i - 1).get(retained);
+      long curr = (Long)table.rows.get(i).get(retained);
+      assertTrue(prev >= curr);
+    }
+  }
+
+  @Test
+  public void diffAddsBaselineColumns() throws IOException {
+    TestDump dump = TestDump.getTestDump("O.hprof", "L.hprof", null, Reachability.STRONG);
+    BatchQuery batch = new BatchQuery(dump.getAhatSnapshot(), 10);
+    BatchQuery.Table heaps = batch.run("heaps");
+    assertEquals(Arrays.asList("heap", "size", "size_baseline"), heaps.columns);
+
+    BatchQuery.Table rooted = batch.run("rooted");
+    assertTrue(rooted.columns.contains("retained_baseline"));
+  }
+
+  @Test
+  public void noBaselineColumnsWithoutDiff() throws IOException {
+    TestDump dump = TestDump.getTestDump("O.hprof", null, null, Reachability.STRONG);
+    BatchQuery batch = new BatchQuery(dump.getAhatSnapshot(), 10);
+    BatchQuery.Table heaps = batch.run("heaps");
+    assertEquals(Arrays.asList("heap", "size"), heaps.columns);
+    assertFalse(batch.run("classes").columns.contains("size_baseline"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unsupportedQuery() throws IOException {
+    AhatSnapshot snapshot = getSnapshot();
+    new BatchQuery(snapshot, 10).run("nosuchquery");
+  }
+
+  @Test
+  public void json() {
+    BatchQuery.Table table = new BatchQuery.Table("things");
+    table.columns.add("name");
+    table.columns.add("size");
+    table.row().addAll(Arrays.asList("a \"quoted\"\nname\\", 42L));
+    table.row().addAll(Arrays.asList("b", null));
+    BatchQuery.Table empty = new BatchQuery.Table("empty");
+    assertEquals("{\n"
+        + "  \"things\": [\n"
+        + "    {\"name\": \"a \\\"quoted\\\"\\nname\\\\\", \"size\": 42},\n"
+        + "    {\"name\": \"b\", \"size\": null}\n"
+        + "  ],\n"
+        + "  \"empty\": []\n"
+        + "}\n", print(BatchQuery.Format.JSON, table, empty));
+  }
+
+  @Test
+  public void csv() {
+    BatchQuery.Table table = new BatchQuery.Table("things");
+    table.columns.add("name");
+    table.columns.add("size");
+    table.row().addAll(Arrays.asList("a, \"quoted\" name", 42L));
+    table.row().addAll(Arrays.asList("b", null));
+    BatchQuery.Table other = new BatchQuery.Table("other");
+    other.columns.add("x");
+    other.row().add(1);
+    assertEquals("query,name,size\n"
+        + "things,\"a, \"\"quoted\"\" name\",42\n"
+        + "things,b,\n"
+        + "\n"
+        + "query,x\n"
+        + "other,1\n", print(BatchQuery.Format.CSV, table, other));
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatHeap;
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.ClassIndex;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Size;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClassesHandlerTest {
+  private static AhatSnapshot getSnapshot() throws IOException {
+    return TestDump.getTestDump("O.hprof", null, null, Reachability.STRONG).getAhatSnapshot();
+  }
+
+  @Test
+  public void noCrash() throws IOException {
+    AhatHandler handler = new ClassesHandler(getSnapshot());
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes?by=class");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes?by=hierarchy");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes?by=package");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes?by=bogus");
+  }
+
+  @Test
+  public void noCrashDiffed() throws IOException {
+    AhatSnapshot snapshot = TestDump.getTestDump("O.hprof", "L.hprof", null, Reachability.STRONG)
+      .getAhatSnapshot();
+    AhatHandler handler = new ClassesHandler(snapshot);
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes?by=class");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes?by=hierarchy");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/classes?by=package");
+  }
+
+  @Test
+  public void classEntries() throws IOException {
+    AhatSnapshot snapshot = getSnapshot();
+    ClassIndex index = snapshot.getClassIndex();
+
+    // The index only covers retained instances.
+    List<AhatInstance> strings = new ArrayList<AhatInstance>();
+    snapshot.getRootSite().getObjects(
+        x -> x.isStronglyReachable() && "java.lang.String".equals(x.getClassName()),
+        x -> strings.add(x));
+    long javaSize = 0;
+    for (AhatInstance inst : strings) {
+      javaSize += inst.getSize().getJavaSize();
+    }
+
+    ClassIndex.Entry entry = index.findClass("java.lang.String");
+    assertNotNull(entry);
+    assertEquals(strings.size(), entry.getInstanceCount());
+    assertEquals(javaSize, entry.getSize().getJavaSize());
+
+    // Strings do not dominate other strings, so their retained size is at
+    // least their shallow size.
+    assertTrue(entry.getTotalRetainedSize().getSize() >= entry.getSize().getSize());
+
+    assertNull(index.findClass("no.such.Class"));
+    assertEquals(entry, entry.getBaseline());
+  }
+
+  @Test
+  public void packageEntries() throws IOException {
+    AhatSnapshot snapshot = getSnapshot();
+    ClassIndex index = snapshot.getClassIndex();
+
+    ClassIndex.Entry java = index.findPackage("java");
+    ClassIndex.Entry lang = index.findPackage("java.lang");
+    ClassIndex.Entry string = index.findClass("java.lang.String");
+    assertNotNull(java);
+    assertNotNull(lang);
+
+    // Every instance in java.lang is in java too.
+    assertTrue(java.getInstanceCount() >= lang.getInstanceCount());
+    assertTrue(lang.getInstanceCount() >= string.getInstanceCount());
+    assertTrue(java.getTotalRetainedSize().getSize() >= lang.getTotalRetainedSize().getSize());
+    assertTrue(lang.getTotalRetainedSize().getSize() >= string.getTotalRetainedSize().getSize());
+
+    // Instances dominated by other instances of the same package are not
+    // counted twice, so no package retains more than the whole heap.
+    Size total = Size.ZERO;
+    for (AhatHeap heap : snapshot.getHeaps()) {
+      total = total.plus(heap.getSize());
+    }
+    for (ClassIndex.Entry entry : index.getPackages()) {
+      assertTrue(entry.getTotalRetainedSize().getSize() <= total.getSize());
+    }
+  }
+
+  @Test
+  public void hierarchyEntries() throws IOException {
+    AhatSnapshot snapshot = getSnapshot();
+    ClassIndex index = snapshot.getClassIndex();
+
+    ClassIndex.Entry object = index.findHierarchy("java.lang.Object");
+    ClassIndex.Entry string = index.findHierarchy("java.lang.String");
+    assertNotNull(object);
+    assertEquals(index.findClass("java.lang.String").getInstanceCount(),
+        string.getInstanceCount());
+    assertTrue(object.getInstanceCount() >= string.getInstanceCount());
+    assertTrue(object.getTotalRetainedSize().getSize()
+        >= string.getTotalRetainedSize().getSize());
+  }
+
+  @Test
+  public void diffed() throws IOException {
+    AhatSnapshot snapshot = TestDump.getTestDump("O.hprof", "L.hprof", null, Reachability.STRONG)
+      .getAhatSnapshot();
+    ClassIndex index = snapshot.getClassIndex();
+    for (ClassIndex.Entry entry : index.getClasses()) {
+      ClassIndex.Entry base = entry.getBaseline();
+      assertNotNull(base);
+      assertEquals(entry, base.getBaseline());
+      assertEquals(entry.getName(), base.getName());
+    }
+  }
+}
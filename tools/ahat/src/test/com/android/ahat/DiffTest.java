@@ -18,9 +18,15 @@ package com.android.ahat;
 
 import com.android.ahat.heapdump.AhatHeap;
 import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Diff;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
 import com.android.ahat.heapdump.Reachability;
 import com.android.ahat.heapdump.Value;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -84,4 +90,53 @@ public class DiffTest {
     AhatHandler handler = new ObjectsHandler(dump.getAhatSnapshot());
     TestHandler.testNoCrash(handler, "http://localhost:7100/objects?class=java.lang.Class");
   }
+
+  /**
+   * Checks that each instance of a has a baseline corresponding to the
+   * baseline of the instance with the same id in b.
+   */
+  private static void assertSameBaselines(AhatSnapshot a, AhatSnapshot b) {
+    List<AhatInstance> ainsts = new ArrayList<AhatInstance>();
+    a.getRootSite().getObjects(x -> true, ainsts::add);
+    List<AhatInstance> binsts = new ArrayList<AhatInstance>();
+    b.getRootSite().getObjects(x -> true, binsts::add);
+    assertEquals(ainsts.size(), binsts.size());
+
+    for (AhatInstance ainst : ainsts) {
+      if (ainst.isPlaceHolder()) {
+        continue;
+      }
+      AhatInstance binst = b.findInstance(ainst.getId());
+      assertNotNull(binst);
+      AhatInstance abase = ainst.getBaseline();
+      AhatInstance bbase = binst.getBaseline();
+      assertEquals(ainst.toString(), abase.isPlaceHolder(), bbase.isPlaceHolder());
+      if (!abase.isPlaceHolder()) {
+        assertEquals(ainst.toString(), abase.getId(), bbase.getId());
+      }
+    }
+  }
+
+  @Test
+  public void diffParallel() throws IOException, HprofFormatException {
+    // Diffing with multiple threads should match instances the same way as
+    // diffing with a single thread.
+    AhatSnapshot sequential = new Parser(TestDump.dataBufferFromResource("O.hprof")).parse();
+    AhatSnapshot sequentialBase = new Parser(TestDump.dataBufferFromResource("L.hprof")).parse();
+    Diff.snapshots(sequential, sequentialBase);
+
+    AhatSnapshot parallel = new Parser(TestDump.dataBufferFromResource("O.hprof")).parse();
+    AhatSnapshot parallelBase = new Parser(TestDump.dataBufferFromResource("L.hprof")).parse();
+    Diff.snapshots(parallel, parallelBase, 4);
+
+    assertSameBaselines(sequential, parallel);
+    assertSameBaselines(sequentialBase, parallelBase);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void diffInvalidThreads() throws IOException, HprofFormatException {
+    AhatSnapshot a = new Parser(TestDump.dataBufferFromResource("O.hprof")).parse();
+    AhatSnapshot b = new Parser(TestDump.dataBufferFromResource("L.hprof")).parse();
+    Diff.snapshots(a, b, 0);
+  }
 }
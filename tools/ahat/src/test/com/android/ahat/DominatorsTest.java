@@ -18,12 +18,15 @@ package com.android.ahat;
 
 import com.android.ahat.dominators.Dominators;
 import com.android.ahat.dominators.DominatorsComputation;
+import com.android.ahat.dominators.ParallelDominators;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 
@@ -66,6 +69,45 @@ public class DominatorsTest {
     public String dom(String node) {
       return dominators.get(node);
     }
+
+    /**
+     * Get the computed dominators for all nodes.
+     */
+    public Map<String, String> doms() {
+      return dominators;
+    }
+
+    /**
+     * Forget the computed dominators.
+     */
+    public void clear() {
+      dominators = new HashMap<>();
+    }
+  }
+
+  /**
+   * Generates a random graph with nodes named "n0" to "n{size-1}", where n0
+   * is the root, with every node reachable from the root and, on average,
+   * extra edges per node in addition to those needed to make it reachable.
+   */
+  private static Graph randomGraph(Random random, int size, int extra) {
+    List<List<String>> edges = new ArrayList<>();
+    for (int i = 0; i < size; ++i) {
+      edges.add(new ArrayList<>());
+    }
+    for (int i = 1; i < size; ++i) {
+      edges.get(random.nextInt(i)).add("n" + i);
+    }
+    for (int i = 0; i < size * extra; ++i) {
+      edges.get(random.nextInt(size)).add("n" + (1 + random.nextInt(size - 1)));
+    }
+
+    Graph graph = new Graph();
+    for (int i = 0; i < size; ++i) {
+      Collections.shuffle(edges.get(i), random);
+      graph.node("n" + i, edges.get(i).toArray(new String[0]));
+    }
+    return graph;
   }
 
   @Test
@@ -307,6 +349,68 @@ public class DominatorsTest {
     assertEquals("a", graph.dom("f"));
   }
 
+  @Test
+  public void parallelMatchesSequential() {
+    // Compare the parallel dominators computation against the sequential one
+    // on random graphs, from small graphs with few edges to graphs large
+    // enough for the work to be split among threads.
+    Random random = new Random(42);
+    for (int size : new int[] {2, 10, 100, 1000, 20000}) {
+      for (int extra : new int[] {0, 1, 3}) {
+        Graph graph = randomGraph(random, size, extra);
+        new Dominators(graph).computeDominators("n0");
+        Map<String, String> expected = graph.doms();
+        assertEquals(size - 1, expected.size());
+
+        graph.clear();
+        new ParallelDominators<String>(graph).threads(4).computeDominators("n0");
+        assertEquals(expected, graph.doms());
+      }
+    }
+  }
+
+  @Test
+  public void parallelTwiceRevisit() {
+    //       /---->---\
+    //      /     /--> f -->-\
+    // --> a --> b -->--x---> c --> d
+    //            \----------->----/
+    // The twiceRevisit graph, with the dominators computed in parallel.
+    Graph graph = new Graph();
+    graph.node("a", "f", "b");
+    graph.node("b", "f", "d", "x");
+    graph.node("x", "c");
+    graph.node("c", "d");
+    graph.node("d");
+    graph.node("f", "c");
+    new ParallelDominators<String>(graph).computeDominators("a");
+
+    assertEquals("a", graph.dom("b"));
+    assertEquals("b", graph.dom("x"));
+    assertEquals("a", graph.dom("c"));
+    assertEquals("a", graph.dom("d"));
+    assertEquals("a", graph.dom("f"));
+  }
+
+  @Test
+  public void parallelStackOverflow() {
+    // --> a --> b --> ... --> N
+    // Verify we don't smash the stack for deep chains when computing
+    // dominators in parallel.
+    Graph graph = new Graph();
+    String root = "end";
+    graph.node(root);
+
+    for (int i = 0; i < 100000; ++i) {
+      String child = root;
+      root = "n" + i;
+      graph.node(root, child);
+    }
+
+    new ParallelDominators<String>(graph).computeDominators(root);
+    assertEquals("n0", graph.dom("end"));
+  }
+
   // Test the old dominators API.
   private static class Node implements DominatorsComputation.Node {
     public String name;
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Duplicates;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Value;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicatesTest {
+  private static AhatSnapshot getSnapshot() throws IOException {
+    return TestDump.getTestDump("O.hprof", null, null, Reachability.STRONG).getAhatSnapshot();
+  }
+
+  @Test
+  public void groups() throws IOException {
+    AhatSnapshot snapshot = getSnapshot();
+    Duplicates duplicates = snapshot.getDuplicates();
+    assertSame(duplicates, snapshot.getDuplicates());
+
+    List<Duplicates.Group> groups = duplicates.getGroups();
+    assertTrue(groups.size() > 0);
+    long wasted = Long.MAX_VALUE;
+    for (Duplicates.Group group : groups) {
+      List<AhatInstance> insts = group.getInstances();
+      assertTrue(insts.size() > 1);
+      assertTrue(group.getWastedSize() <= wasted);
+      assertTrue(group.getWastedSize() < group.getTotalSize());
+      wasted = group.getWastedSize();
+
+      AhatInstance first = insts.get(0);
+      for (AhatInstance inst : insts) {
+        assertNotNull(inst.getImmediateDominator());
+        assertEquals(first.getClassName(), inst.getClassName());
+        switch (group.getKind()) {
+          case STRING:
+            assertEquals(first.asString(), inst.asString());
+            break;
+
+          case ARRAY:
+            assertNull(inst.getAssociatedClassForOverhead());
+            List<Value> values = inst.asArrayInstance().getValues();
+            assertEquals(first.asArrayInstance().getValues(), values);
+            break;
+
+          default:
+            break;
+        }
+      }
+    }
+  }
+
+  @Test
+  public void strings() throws IOException {
+    // The heap dump holds several copies of the "UTF-8" charset name.
+    Duplicates duplicates = getSnapshot().getDuplicates();
+    Duplicates.Group utf8 = null;
+    for (Duplicates.Group group : duplicates.getGroups()) {
+      if (group.getKind() == Duplicates.Kind.STRING
+          && "UTF-8".equals(group.getInstances().get(0).asString())) {
+        utf8 = group;
+      }
+    }
+    assertNotNull(utf8);
+
+    long total = 0;
+    for (AhatInstance inst : utf8.getInstances()) {
+      AhatInstance chars = inst.getRefField("value");
+      total += inst.getSize().getSize() + chars.getSize().getSize();
+
+      // The characters of the strings are not reported separately.
+      for (Duplicates.Group group : duplicates.getGroups()) {
+        assertTrue(!group.getInstances().contains(chars));
+      }
+    }
+    assertEquals(total, utf8.getTotalSize());
+    assertEquals(total / utf8.getInstances().size() * (utf8.getInstances().size() - 1),
+        utf8.getWastedSize());
+    assertTrue(duplicates.getWastedSize(Duplicates.Kind.STRING) >= utf8.getWastedSize());
+  }
+
+  @Test
+  public void noCrash() throws IOException {
+    AhatHandler handler = new DuplicatesHandler(getSnapshot());
+    TestHandler.testNoCrash(handler, "http://localhost:7100/duplicates");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/duplicates?kind=string");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/duplicates?kind=bitmap");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/duplicates?kind=bogus");
+  }
+}
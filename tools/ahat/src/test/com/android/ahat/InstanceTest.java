@@ -26,6 +26,7 @@ import com.android.ahat.heapdump.Reachability;
 import com.android.ahat.heapdump.Size;
 import com.android.ahat.heapdump.Value;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
 
@@ -34,6 +35,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class InstanceTest {
@@ -674,4 +676,21 @@ public class InstanceTest {
     AhatInstance nonBinderObject = dump.getDumpedAhatInstance("anObject");
     assertNull(nonBinderObject.getBinderStubInterfaceName());
   }
+
+  @Test
+  public void findInstance() throws IOException {
+    TestDump dump = TestDump.getTestDump();
+    AhatSnapshot snapshot = dump.getAhatSnapshot();
+
+    List<AhatInstance> insts = new ArrayList<AhatInstance>();
+    snapshot.getRootSite().getObjects(x -> !x.isPlaceHolder(), x -> insts.add(x));
+    for (AhatInstance inst : insts) {
+      assertSame(inst, snapshot.findInstance(inst.getId()));
+    }
+
+    // Ids that don't belong to any instance are not found.
+    AhatInstance anObject = dump.getDumpedAhatInstance("anObject");
+    assertNull(snapshot.findInstance(anObject.getId() + 1));
+    assertNull(snapshot.findInstance(0));
+  }
 }
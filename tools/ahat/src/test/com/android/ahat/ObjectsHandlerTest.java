@@ -18,12 +18,18 @@ package com.android.ahat;
 
 import com.android.ahat.heapdump.AhatInstance;
 import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Reachability;
 import com.android.ahat.heapdump.Site;
+import com.android.ahat.heapdump.Sort;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ObjectsHandlerTest {
@@ -52,4 +58,65 @@ public class ObjectsHandlerTest {
     assertTrue(subclass.get(0).getClassName().equals("DumpedStuff"));
     assertEquals(dumped.get(0), subclass.get(0));
   }
+
+  /**
+   * Checks that the given index selects the same instances as getObjects,
+   * in sorted order.
+   */
+  private static void assertIndexMatches(AhatSnapshot snapshot, ObjectsIndex index,
+      Site site, String className, boolean subclass, String heapName) {
+    List<AhatInstance> expected = ObjectsHandler.getObjects(site, className, subclass, heapName);
+    ObjectsIndex.Selection selection = index.select(site, className, subclass, heapName);
+    assertEquals(expected.size(), selection.size());
+
+    // Selections are cached, and later requests for more instances continue
+    // from the instances returned by earlier requests.
+    assertSame(selection, index.select(site, className, subclass, heapName));
+    int n = expected.size() / 2;
+    List<AhatInstance> half = selection.first(n);
+    List<AhatInstance> all = selection.first(expected.size() + 1);
+    assertEquals(expected.size(), all.size());
+    assertEquals(new HashSet<AhatInstance>(expected), new HashSet<AhatInstance>(all));
+
+    Comparator<AhatInstance> compare = Sort.defaultInstanceCompare(snapshot);
+    for (int i = 1; i < all.size(); i++) {
+      assertTrue(compare.compare(all.get(i - 1), all.get(i)) <= 0);
+    }
+
+    assertEquals(all.subList(0, n), half);
+    assertEquals(all.subList(0, n), selection.first(n));
+  }
+
+  private static void assertIndexMatches(AhatSnapshot snapshot) {
+    ObjectsIndex index = new ObjectsIndex(snapshot);
+    List<Site> sites = new ArrayList<Site>();
+    sites.add(snapshot.getRootSite());
+    for (Site child : snapshot.getRootSite().getChildren()) {
+      sites.add(child);
+      sites.addAll(child.getChildren());
+    }
+    for (Site site : sites) {
+      for (String heapName : new String[] {null, "app", "zygote"}) {
+        assertIndexMatches(snapshot, index, site, "java.lang.Object", true, heapName);
+        assertIndexMatches(snapshot, index, site, "java.lang.Object", false, heapName);
+        assertIndexMatches(snapshot, index, site, "java.lang.String", false, heapName);
+        assertIndexMatches(snapshot, index, site, "java.lang.Class", false, heapName);
+        assertIndexMatches(snapshot, index, site, "no.such.Class", true, heapName);
+      }
+    }
+  }
+
+  @Test
+  public void index() throws IOException {
+    TestDump dump = TestDump.getTestDump("O.hprof", null, null, Reachability.STRONG);
+    assertIndexMatches(dump.getAhatSnapshot());
+  }
+
+  @Test
+  public void indexDiffed() throws IOException {
+    // Diffed snapshots have placeholder instances listed under their sites.
+    TestDump dump = TestDump.getTestDump("O.hprof", "L.hprof", null, Reachability.STRONG);
+    assertIndexMatches(dump.getAhatSnapshot());
+    assertIndexMatches(dump.getBaselineAhatSnapshot());
+  }
 }
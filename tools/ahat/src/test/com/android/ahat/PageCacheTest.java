@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PageCacheTest {
+  @Test
+  public void getAndPut() {
+    PageCache cache = new PageCache(100);
+    assertNull(cache.get("/rooted"));
+
+    byte[] rooted = new byte[10];
+    cache.put("/rooted", rooted);
+    assertSame(rooted, cache.get("/rooted"));
+    assertNull(cache.get("/rooted?id=0x1"));
+    assertEquals(10, cache.size());
+
+    byte[] replaced = new byte[20];
+    cache.put("/rooted", replaced);
+    assertSame(replaced, cache.get("/rooted"));
+    assertEquals(20, cache.size());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() {
+    PageCache cache = new PageCache(100);
+    cache.put("/a", new byte[40]);
+    cache.put("/b", new byte[40]);
+
+    // Access /a so that /b is the least recently used page.
+    assertEquals(40, cache.get("/a").length);
+    cache.put("/c", new byte[40]);
+    assertNull(cache.get("/b"));
+    assertEquals(40, cache.get("/a").length);
+    assertEquals(40, cache.get("/c").length);
+    assertEquals(80, cache.size());
+
+    // Adding a large page can evict multiple pages.
+    cache.put("/d", new byte[90]);
+    assertNull(cache.get("/a"));
+    assertNull(cache.get("/c"));
+    assertEquals(90, cache.get("/d").length);
+    assertEquals(90, cache.size());
+  }
+
+  @Test
+  public void tooLarge() {
+    PageCache cache = new PageCache(100);
+    cache.put("/a", new byte[40]);
+    cache.put("/b", new byte[101]);
+    assertNull(cache.get("/b"));
+    assertEquals(40, cache.get("/a").length);
+    assertEquals(40, cache.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeSize() {
+    new PageCache(-1);
+  }
+}
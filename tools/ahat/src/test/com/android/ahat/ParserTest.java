@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.Duplicates;
+import com.android.ahat.heapdump.FieldValue;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
+import com.android.ahat.heapdump.PathElement;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.SmallWindows;
+import com.android.ahat.heapdump.Value;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParserTest {
+  /**
+   * Returns all the instances of the given snapshot, ordered by id.
+   */
+  private static List<AhatInstance> instances(AhatSnapshot snapshot) {
+    List<AhatInstance> insts = new ArrayList<AhatInstance>();
+    snapshot.getRootSite().getObjects(x -> true, x -> insts.add(x));
+    insts.sort(Comparator.comparingLong(AhatInstance::getId));
+    return insts;
+  }
+
+  /**
+   * Returns a description of the last step of the path from gc root to the
+   * given instance. Comparing the last step for every instance is enough to
+   * compare the entire paths.
+   */
+  private static String lastStepFromGcRoot(AhatInstance inst) {
+    List<PathElement> path = inst.getPathFromGcRoot();
+    if (path == null || path.size() < 2) {
+      return null;
+    }
+    PathElement elem = path.get(path.size() - 2);
+    return elem.instance + elem.field;
+  }
+
+  /**
+   * Asserts that two snapshots parsed from the same heap dump are the same.
+   */
+  private static void assertSameSnapshot(AhatSnapshot expected, AhatSnapshot actual) {
+    List<AhatInstance> a = instances(expected);
+    List<AhatInstance> b = instances(actual);
+    assertEquals(a.size(), b.size());
+    for (int i = 0; i < a.size(); ++i) {
+      AhatInstance x = a.get(i);
+      AhatInstance y = b.get(i);
+      assertEquals(x.toString(), y.toString());
+      assertEquals(x.getReachability(), y.getReachability());
+      assertEquals(x.getSize(), y.getSize());
+      assertEquals(x.getTotalRetainedSize(), y.getTotalRetainedSize());
+      assertEquals(x.getReverseReferences().size(), y.getReverseReferences().size());
+      for (int r = 0; r < x.getReverseReferences().size(); ++r) {
+        assertEquals(x.getReverseReferences().get(r).getId(),
+            y.getReverseReferences().get(r).getId());
+      }
+      assertEquals(String.valueOf(x.getImmediateDominator()),
+          String.valueOf(y.getImmediateDominator()));
+      assertEquals(x.getDominated().size(), y.getDominated().size());
+      assertEquals(lastStepFromGcRoot(x), lastStepFromGcRoot(y));
+      assertEquals(x.asString(), y.asString());
+      if (x.isClassInstance()) {
+        List<String> xfields = new ArrayList<String>();
+        for (FieldValue field : x.asClassInstance().getInstanceFields()) {
+          xfields.add(field.name + "=" + field.value);
+        }
+        List<String> yfields = new ArrayList<String>();
+        for (FieldValue field : y.asClassInstance().getInstanceFields()) {
+          yfields.add(field.name + "=" + field.value);
+        }
+        assertEquals(xfields, yfields);
+      }
+      if (x.isArrayInstance()) {
+        List<String> xvalues = new ArrayList<String>();
+        for (Value value : x.asArrayInstance().getValues()) {
+          xvalues.add(String.valueOf(value));
+        }
+        List<String> yvalues = new ArrayList<String>();
+        for (Value value : y.asArrayInstance().getValues()) {
+          yvalues.add(String.valueOf(value));
+        }
+        assertEquals(xvalues, yvalues);
+      }
+    }
+    assertEquals(expected.getRooted().size(), actual.getRooted().size());
+  }
+
+  @Test
+  public void parallelFixup() throws IOException, HprofFormatException {
+    for (String hprof : new String[] {"test-dump.hprof", "O.hprof", "RI.hprof"}) {
+      AhatSnapshot sequential = new Parser(TestDump.dataBufferFromResource(hprof))
+          .retained(Reachability.STRONG)
+          .parse();
+      AhatSnapshot parallel = new Parser(TestDump.dataBufferFromResource(hprof))
+          .retained(Reachability.STRONG)
+          .threads(4)
+          .parse();
+      assertSameSnapshot(sequential, parallel);
+    }
+  }
+
+  @Test
+  public void smallWindows() throws IOException, HprofFormatException {
+    // Heap dumps larger than a single window are read in several windows.
+    // Parse the test heap dumps with tiny windows, so that many of the
+    // values read straddle a window boundary.
+    for (String hprof : new String[] {"test-dump.hprof", "O.hprof", "RI.hprof"}) {
+      AhatSnapshot expected = new Parser(TestDump.dataBufferFromResource(hprof))
+          .retained(Reachability.STRONG)
+          .parse();
+      AhatSnapshot windowed = SmallWindows.parser(TestDump.dataBufferFromResource(hprof))
+          .retained(Reachability.STRONG)
+          .threads(4)
+          .parse();
+      assertSameSnapshot(expected, windowed);
+
+      // Duplicates are found by hashing the contents of primitive arrays,
+      // which are decoded from the hprof on demand.
+      for (Duplicates.Kind kind : Duplicates.Kind.values()) {
+        assertEquals(expected.getDuplicates().getWastedSize(kind),
+            windowed.getDuplicates().getWastedSize(kind));
+      }
+      assertEquals(expected.getDuplicates().getGroups().size(),
+          windowed.getDuplicates().getGroups().size());
+    }
+  }
+
+  @Test
+  public void parallelDominators() throws IOException, HprofFormatException {
+    // Reachability and dominators are computed in parallel when parsing with
+    // more than one thread. Check they match the sequential computation when
+    // weaker references are followed too.
+    for (String hprof : new String[] {"test-dump.hprof", "O.hprof", "RI.hprof"}) {
+      for (Reachability retained : new Reachability[] {Reachability.SOFT,
+                                                       Reachability.UNREACHABLE}) {
+        AhatSnapshot sequential = new Parser(TestDump.dataBufferFromResource(hprof))
+            .retained(retained)
+            .parse();
+        AhatSnapshot parallel = new Parser(TestDump.dataBufferFromResource(hprof))
+            .retained(retained)
+            .threads(4)
+            .parse();
+        assertSameSnapshot(sequential, parallel);
+      }
+    }
+  }
+
+  @Test
+  public void lazyGcRootFields() throws IOException, HprofFormatException {
+    for (String hprof : new String[] {"test-dump.hprof", "O.hprof", "RI.hprof"}) {
+      for (Reachability retained : new Reachability[] {
+          Reachability.STRONG, Reachability.SOFT, Reachability.UNREACHABLE}) {
+        AhatSnapshot normal = new Parser(TestDump.dataBufferFromResource(hprof))
+            .retained(retained)
+            .parse();
+        AhatSnapshot lazy = new Parser(TestDump.dataBufferFromResource(hprof))
+            .retained(retained)
+            .lazyGcRootFields(true)
+            .parse();
+        assertSameSnapshot(normal, lazy);
+      }
+    }
+  }
+
+  @Test
+  public void analysisCache() throws IOException, HprofFormatException {
+    File cache = File.createTempFile("ahat", ".ahatidx");
+    cache.delete();
+    try {
+      for (String hprof : new String[] {"test-dump.hprof", "O.hprof"}) {
+        for (Reachability retained : new Reachability[] {
+            Reachability.STRONG, Reachability.SOFT}) {
+          AhatSnapshot expected = new Parser(TestDump.dataBufferFromResource(hprof))
+              .retained(retained)
+              .parse();
+
+          // The first parse computes the analysis and writes the cache, or
+          // ignores and replaces a cache written for a different heap dump
+          // or retained reachability. The second parse reads the cache.
+          AhatSnapshot computed = new Parser(TestDump.dataBufferFromResource(hprof))
+              .retained(retained)
+              .cache(cache)
+              .parse();
+          assertTrue(cache.isFile());
+          assertSameSnapshot(expected, computed);
+
+          AhatSnapshot loaded = new Parser(TestDump.dataBufferFromResource(hprof))
+              .retained(retained)
+              .cache(cache)
+              .parse();
+          assertSameSnapshot(expected, loaded);
+        }
+      }
+    } finally {
+      cache.delete();
+    }
+  }
+
+  @Test
+  public void gzip() throws IOException, HprofFormatException {
+    File gzip = File.createTempFile("ahat", ".hprof.gz");
+    try {
+      for (String hprof : new String[] {"test-dump.hprof", "O.hprof"}) {
+        ByteBuffer data = TestDump.dataBufferFromResource(hprof);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip))) {
+          out.write(bytes);
+        }
+
+        AhatSnapshot expected = new Parser(TestDump.dataBufferFromResource(hprof))
+            .retained(Reachability.STRONG)
+            .parse();
+        AhatSnapshot decompressed = new Parser(gzip)
+            .retained(Reachability.STRONG)
+            .parse();
+        assertSameSnapshot(expected, decompressed);
+
+        // Read the decompressed heap dump in many windows.
+        AhatSnapshot windowed = SmallWindows.parser(gzip)
+            .retained(Reachability.STRONG)
+            .parse();
+        assertSameSnapshot(expected, windowed);
+      }
+    } finally {
+      gzip.delete();
+    }
+  }
+
+  @Test
+  public void unsupportedCompression() throws IOException {
+    // zstd and lz4 frame magic numbers.
+    byte[][] magics = new byte[][] {
+      {(byte)0x28, (byte)0xb5, (byte)0x2f, (byte)0xfd},
+      {(byte)0x04, (byte)0x22, (byte)0x4d, (byte)0x18},
+    };
+    File compressed = File.createTempFile("ahat", ".hprof.zst");
+    try {
+      for (byte[] magic : magics) {
+        try (OutputStream out = new FileOutputStream(compressed)) {
+          out.write(magic);
+          out.write(new byte[64]);
+        }
+
+        boolean thrown = false;
+        try {
+          new Parser(compressed);
+        } catch (IOException e) {
+          thrown = true;
+        }
+        assertTrue(thrown);
+      }
+    } finally {
+      compressed.delete();
+    }
+  }
+}
@@ -16,13 +16,26 @@
 
 package com.android.ahat;
 
+import com.android.ahat.heapdump.AhatHeap;
 import com.android.ahat.heapdump.AhatInstance;
 import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Size;
+import com.android.ahat.heapdump.TestIdIndex;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -54,4 +67,131 @@ public class PerformanceTest {
     long time = System.currentTimeMillis() - start;
     assertTrue("bigArray took too long: " + time + "ms", time < 1000);
   }
+
+  @Test
+  public void lookupById() {
+    // Instances are looked up by id through a hash index. Compare it against
+    // binary searching the sorted ids for 20M synthetic ids, which are 8 byte
+    // aligned addresses with random gaps between them like the ids in a heap
+    // dump. The binary search is over a primitive array of ids, which is
+    // faster than the binary search over instances ahat used to do.
+    Random random = new Random(42);
+    long[] ids = new long[20_000_000];
+    long id = 0x12c00000L;
+    for (int i = 0; i < ids.length; ++i) {
+      id += 8 * (1 + random.nextInt(8));
+      ids[i] = id;
+    }
+    long[] queries = new long[4_000_000];
+    for (int i = 0; i < queries.length; ++i) {
+      queries[i] = ids[random.nextInt(ids.length)];
+    }
+    TestIdIndex index = new TestIdIndex(ids);
+
+    // Measure the second of two rounds, to give the JIT a chance to compile
+    // both loops first.
+    long searchTime = 0;
+    long indexTime = 0;
+    for (int round = 0; round < 2; ++round) {
+      long start = System.nanoTime();
+      long searchSum = 0;
+      for (long query : queries) {
+        searchSum += Arrays.binarySearch(ids, query);
+      }
+      searchTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      long indexSum = 0;
+      for (long query : queries) {
+        indexSum += index.indexOf(query);
+      }
+      indexTime = System.nanoTime() - start;
+      assertEquals(searchSum, indexSum);
+    }
+
+    String results = String.format(
+        "%,d random lookups of %,d ids: binary search %.1fM/s, hash index %.1fM/s",
+        queries.length, ids.length,
+        queries.length * 1e3 / searchTime, queries.length * 1e3 / indexTime);
+    System.out.println(results);
+    assertTrue(results, indexTime < searchTime);
+  }
+
+  /**
+   * The fields each AhatInstance had for its reachability, path to gc root,
+   * dominators and retained sizes before they were moved into primitive
+   * arrays shared by all the instances of a snapshot.
+   */
+  private static class InstanceFields {
+    Reachability reachability;
+    AhatInstance nextInstanceToGcRoot;
+    String nextInstanceToGcRootField;
+    AhatInstance immediateDominator;
+    List<AhatInstance> dominated;
+    Size[] retainedSizes;
+  }
+
+  /**
+   * Returns the number of bytes of the java heap in use after garbage
+   * collection.
+   */
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 4; ++i) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  @Test
+  public void snapshotMemory() throws IOException, HprofFormatException {
+    // Measure the java heap held by a parsed snapshot, with and without lazy
+    // gc root fields, and the heap the per instance fields that are now kept
+    // in primitive arrays would take on top of that. The measurements are
+    // approximate, so only print them.
+    ByteBuffer hprof = TestDump.dataBufferFromResource("O.hprof");
+
+    long before = usedHeap();
+    AhatSnapshot snapshot = new Parser(hprof.duplicate()).retained(Reachability.STRONG).parse();
+    long normalBytes = usedHeap() - before;
+    List<AhatInstance> insts = new ArrayList<AhatInstance>();
+    snapshot.getRootSite().getObjects(x -> true, x -> insts.add(x));
+
+    before = usedHeap();
+    List<AhatHeap> heaps = snapshot.getHeaps();
+    InstanceFields[] fields = new InstanceFields[insts.size()];
+    for (int i = 0; i < fields.length; ++i) {
+      AhatInstance inst = insts.get(i);
+      fields[i] = new InstanceFields();
+      fields[i].reachability = inst.getReachability();
+      fields[i].nextInstanceToGcRoot = inst.getImmediateDominator();
+      fields[i].immediateDominator = inst.getImmediateDominator();
+      fields[i].dominated = new ArrayList<AhatInstance>(inst.getDominated());
+      fields[i].retainedSizes = new Size[heaps.size()];
+      for (int h = 0; h < heaps.size(); ++h) {
+        fields[i].retainedSizes[h] = inst.getRetainedSize(heaps.get(h));
+      }
+    }
+    long fieldBytes = usedHeap() - before;
+    Reference.reachabilityFence(fields);
+    Reference.reachabilityFence(snapshot);
+    fields = null;
+    snapshot = null;
+
+    before = usedHeap();
+    AhatSnapshot lazy = new Parser(hprof.duplicate())
+        .retained(Reachability.STRONG)
+        .lazyGcRootFields(true)
+        .parse();
+    long lazyBytes = usedHeap() - before;
+    Reference.reachabilityFence(lazy);
+
+    System.out.println(String.format(
+        "Heap per instance for %,d instances: snapshot %.1f bytes, "
+        + "with lazy gc root fields %.1f bytes, per instance analysis fields %.1f bytes",
+        insts.size(), (double)normalBytes / insts.size(), (double)lazyBytes / insts.size(),
+        (double)fieldBytes / insts.size()));
+  }
 }
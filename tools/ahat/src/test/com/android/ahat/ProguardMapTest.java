@@ -17,8 +17,11 @@
 package com.android.ahat;
 
 import com.android.ahat.proguard.ProguardMap;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.ParseException;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
@@ -314,4 +317,66 @@ public class ProguardMapTest {
         "()V", "SourceFile.java", 0);
     assertEquals("Methods.java", frame.filename);
   }
+
+  @Test
+  public void parallelProguardMap() throws IOException, ParseException {
+    // Generate a map large enough to be split into several chunks when
+    // parsed in parallel.
+    StringBuilder text = new StringBuilder(String.format(TEST_MAP_FORMAT, "3.1.4"));
+    int classes = 20000;
+    for (int i = 0; i < classes; ++i) {
+      text.append(String.format("big.pkg.Class%d -> z%d:\n", i, i));
+      text.append("  # comment\n");
+      text.append(String.format("    int field%d -> a\n", i));
+      text.append(String.format("    big.pkg.Class%d[] other -> b\n", (i + 1) % classes));
+      text.append(String.format("    1:5:void method%d(big.pkg.Class%d):10:14 -> m\n", i, i));
+      text.append("    6:6:int other(int[]):20 -> m\n");
+    }
+
+    // A later definition of a class replaces an earlier one.
+    text.append("big.pkg.Redefined -> z7:\n");
+    text.append("    int redefined -> a\n");
+
+    File file = File.createTempFile("ahat-proguard", ".map");
+    try {
+      Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+      ProguardMap sequential = new ProguardMap();
+      sequential.readFromReader(new StringReader(text.toString()));
+      ProguardMap parallel = new ProguardMap();
+      parallel.readFromFile(file, 4);
+
+      for (ProguardMap map : new ProguardMap[] { sequential, parallel }) {
+        assertEquals("class.with.Methods", map.getClassName("d"));
+        assertEquals("big.pkg.Redefined", map.getClassName("z7"));
+        assertEquals("redefined", map.getFieldName("big.pkg.Redefined", "a"));
+        assertEquals("field8", map.getFieldName("big.pkg.Class8", "a"));
+        assertEquals("big.pkg.Class12345[]", map.getClassName("z12345[]"));
+
+        ProguardMap.Frame frame = map.getFrame("big.pkg.Class12345", "m",
+            "(Lz12345;)V", "SourceFile.java", 3);
+        assertEquals("method12345", frame.method);
+        assertEquals("(Lbig/pkg/Class12345;)V", frame.signature);
+        assertEquals("Class12345.java", frame.filename);
+        assertEquals(12, frame.line);
+      }
+
+      for (int i = 0; i < classes; i += 97) {
+        String obf = "z" + i;
+        String clear = sequential.getClassName(obf);
+        assertEquals(clear, parallel.getClassName(obf));
+        assertEquals(sequential.getFieldName(clear, "a"), parallel.getFieldName(clear, "a"));
+        assertEquals(sequential.getFieldName(clear, "b"), parallel.getFieldName(clear, "b"));
+
+        String sig = "([I)I";
+        ProguardMap.Frame expected = sequential.getFrame(clear, "m", sig, "SourceFile.java", 6);
+        ProguardMap.Frame actual = parallel.getFrame(clear, "m", sig, "SourceFile.java", 6);
+        assertEquals(expected.method, actual.method);
+        assertEquals(expected.signature, actual.signature);
+        assertEquals(expected.filename, actual.filename);
+        assertEquals(expected.line, actual.line);
+      }
+    } finally {
+      file.delete();
+    }
+  }
 }
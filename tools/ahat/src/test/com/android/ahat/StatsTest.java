@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.progress.NullProgress;
+import com.android.ahat.progress.PhaseTimer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatsTest {
+  private static AhatSnapshot parse(PhaseTimer timer, int threads)
+    throws IOException, HprofFormatException {
+    return new Parser(TestDump.dataBufferFromResource("O.hprof"))
+        .progress(timer.wrap("O.hprof", new NullProgress()))
+        .retained(Reachability.STRONG)
+        .threads(threads)
+        .parse();
+  }
+
+  @Test
+  public void phases() throws IOException, HprofFormatException {
+    PhaseTimer timer = new PhaseTimer();
+    assertTrue(timer.getPhases().isEmpty());
+    parse(timer, 1);
+
+    List<String> descriptions = new ArrayList<String>();
+    for (PhaseTimer.Phase phase : timer.getPhases()) {
+      descriptions.add(phase.getDescription());
+      assertEquals("O.hprof", phase.getSource());
+      assertTrue(phase.getWallTime() >= 0);
+      assertTrue(phase.getCpuTime() >= -1);
+      assertTrue(phase.getAllocatedBytes() >= -1);
+      assertTrue(phase.getPeakHeapBytes() > 0);
+    }
+    assertEquals(Arrays.asList(
+          "Reading hprof",
+          "Sorting instances",
+          "Resolving references",
+          "Computing reachability",
+          "Computing reverse references",
+          "Initializing dominators",
+          "Resolving dominators",
+          "Computing retained sizes",
+          "Preparing sites",
+          "Indexing classes"), descriptions);
+
+    // Phases of later heap dumps are added after those of earlier ones.
+    parse(timer, 4);
+    assertEquals(2 * descriptions.size(), timer.getPhases().size());
+  }
+
+  @Test
+  public void noCrash() throws IOException, HprofFormatException {
+    PhaseTimer timer = new PhaseTimer();
+    TestHandler.testNoCrash(new StatsHandler(timer), "http://localhost:7100/stats");
+
+    AhatSnapshot snapshot = parse(timer, 1);
+    TestHandler.testNoCrash(new StatsHandler(timer), "http://localhost:7100/stats");
+
+    BatchQuery.Table table = new BatchQuery(snapshot, 100, timer).run("stats");
+    assertEquals(timer.getPhases().size(), table.rows.size());
+    assertEquals(0, new BatchQuery(snapshot, 100).run("stats").rows.size());
+  }
+}
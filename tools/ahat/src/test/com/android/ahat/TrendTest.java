@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat;
+
+import com.android.ahat.heapdump.AhatInstance;
+import com.android.ahat.heapdump.AhatSnapshot;
+import com.android.ahat.heapdump.ClassIndex;
+import com.android.ahat.heapdump.HprofFormatException;
+import com.android.ahat.heapdump.Parser;
+import com.android.ahat.heapdump.Reachability;
+import com.android.ahat.heapdump.Site;
+import com.android.ahat.heapdump.Trend;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TrendTest {
+  private static AhatSnapshot parse(Reachability retained)
+    throws IOException, HprofFormatException {
+    return new Parser(TestDump.dataBufferFromResource("O.hprof"))
+        .retained(retained)
+        .parse();
+  }
+
+  @Test
+  public void unchanged() throws IOException, HprofFormatException {
+    AhatSnapshot last = parse(Reachability.STRONG);
+    assertNull(last.getTrend());
+    Trend trend = new Trend.Builder()
+        .add(parse(Reachability.STRONG))
+        .add(parse(Reachability.STRONG))
+        .add(last)
+        .build();
+    assertSame(trend, last.getTrend());
+    assertEquals(3, trend.getSnapshotCount());
+
+    // Nothing grows between identical heap dumps.
+    assertTrue(trend.getLeakSuspects().isEmpty());
+    for (Trend.Series series : trend.getClasses()) {
+      assertEquals(0.0, series.getInstanceCountSlope(), 0.0);
+      assertEquals(0.0, series.getRetainedSizeSlope(), 0.0);
+    }
+    for (Trend.Series series : trend.getSites()) {
+      assertEquals(0.0, series.getRetainedSizeSlope(), 0.0);
+      assertNotNull(series.getSite());
+    }
+
+    // The values of the classes are those of the class index.
+    ClassIndex index = last.getClassIndex();
+    assertEquals(index.getClasses().size(), trend.getClasses().size());
+    for (Trend.Series series : trend.getClasses()) {
+      ClassIndex.Entry entry = index.findClass(series.getName());
+      for (int i = 0; i < 3; ++i) {
+        assertEquals(entry.getInstanceCount(), series.getInstanceCount(i));
+        assertEquals(entry.getTotalRetainedSize().getSize(), series.getRetainedSize(i));
+      }
+    }
+
+    // Every retained instance is counted at its own allocation site.
+    long count = 0;
+    for (Trend.Series series : trend.getSites()) {
+      count += series.getInstanceCount(2);
+    }
+    long expected = 0;
+    for (ClassIndex.Entry entry : index.getClasses()) {
+      expected += entry.getInstanceCount();
+    }
+    assertEquals(expected, count);
+  }
+
+  @Test
+  public void growing() throws IOException, HprofFormatException {
+    // Treating more instances as retained makes the retained sizes grow.
+    AhatSnapshot last = parse(Reachability.UNREACHABLE);
+    Trend trend = new Trend.Builder()
+        .add(parse(Reachability.STRONG))
+        .add(parse(Reachability.WEAK))
+        .add(last)
+        .build();
+
+    List<Trend.Series> classes = trend.getClasses();
+    assertTrue(classes.get(0).getRetainedSizeSlope() > 0);
+    for (int i = 1; i < classes.size(); ++i) {
+      assertTrue(classes.get(i - 1).getRetainedSizeSlope()
+          >= classes.get(i).getRetainedSizeSlope());
+    }
+
+    Site root = last.getRootSite();
+    Trend.Series rootSeries = null;
+    for (Trend.Series series : trend.getSites()) {
+      if (series.getSite() == root) {
+        rootSeries = series;
+      }
+    }
+    assertNotNull(rootSeries);
+    assertTrue(rootSeries.getInstanceCount(0) <= rootSeries.getInstanceCount(2));
+
+    // Suspects do not dominate each other, and grew since the first
+    // snapshot.
+    List<AhatInstance> suspects = trend.getLeakSuspects();
+    assertTrue(!suspects.isEmpty());
+    for (AhatInstance suspect : suspects) {
+      for (AhatInstance dom = suspect.getImmediateDominator(); dom != null;
+          dom = dom.getImmediateDominator()) {
+        assertTrue(!suspects.contains(dom));
+      }
+    }
+  }
+
+  @Test
+  public void single() throws IOException, HprofFormatException {
+    Trend trend = new Trend.Builder().add(parse(Reachability.STRONG)).build();
+    assertEquals(1, trend.getSnapshotCount());
+    assertTrue(trend.getLeakSuspects().isEmpty());
+    assertEquals(0.0, trend.getClasses().get(0).getRetainedSizeSlope(), 0.0);
+  }
+
+  @Test
+  public void noCrash() throws IOException, HprofFormatException {
+    AhatSnapshot last = parse(Reachability.SOFT);
+    new Trend.Builder().add(parse(Reachability.STRONG)).add(last).build();
+    AhatHandler handler = new TrendHandler(last);
+    TestHandler.testNoCrash(handler, "http://localhost:7100/trend");
+    TestHandler.testNoCrash(handler, "http://localhost:7100/trend?suspects=all");
+
+    BatchQuery batch = new BatchQuery(last, 10);
+    assertEquals(20, batch.run("trend").rows.size());
+    assertTrue(batch.run("suspects").rows.size() <= 10);
+
+    AhatSnapshot none = parse(Reachability.STRONG);
+    TestHandler.testNoCrash(new TrendHandler(none), "http://localhost:7100/trend");
+  }
+}
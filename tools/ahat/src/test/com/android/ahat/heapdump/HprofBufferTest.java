@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HprofBufferTest {
+  // Reads from buffers with 8 byte windows are compared against reads from
+  // buffers with a single window. Every value wider than a byte straddles a
+  // window boundary at some of the offsets it is read from.
+  private static final int WINDOW_SHIFT = 3;
+  private static final int SIZE = 100;
+
+  private static ByteBuffer data() {
+    ByteBuffer data = ByteBuffer.allocate(SIZE);
+    for (int i = 0; i < SIZE; ++i) {
+      data.put(i, (byte)(i * 37 + 11));
+    }
+    return data;
+  }
+
+  private static HprofBuffer whole() {
+    return new HprofBuffer(data());
+  }
+
+  private static HprofBuffer windowed() {
+    return new HprofBuffer(data(), WINDOW_SHIFT);
+  }
+
+  @Test
+  public void sequentialReads() {
+    for (int start = 0; start + 8 <= SIZE; ++start) {
+      HprofBuffer expected = whole();
+      HprofBuffer actual = windowed();
+      expected.seek(start);
+      actual.seek(start);
+      assertEquals(expected.getU2(), actual.getU2());
+      expected.seek(start);
+      actual.seek(start);
+      assertEquals(expected.getChar(), actual.getChar());
+      expected.seek(start);
+      actual.seek(start);
+      assertEquals(expected.getShort(), actual.getShort());
+      expected.seek(start);
+      actual.seek(start);
+      assertEquals(expected.getInt(), actual.getInt());
+      expected.seek(start);
+      actual.seek(start);
+      assertEquals(Float.floatToIntBits(expected.getFloat()),
+          Float.floatToIntBits(actual.getFloat()));
+      expected.seek(start);
+      actual.seek(start);
+      assertEquals(expected.getLong(), actual.getLong());
+      expected.setIdSize8();
+      actual.setIdSize8();
+      expected.seek(start);
+      actual.seek(start);
+      assertEquals(expected.getId(), actual.getId());
+      assertEquals(start + 8, actual.tell());
+    }
+  }
+
+  @Test
+  public void bulkReads() {
+    for (int start = 0; start < 16; ++start) {
+      HprofBuffer expected = whole();
+      HprofBuffer actual = windowed();
+      expected.seek(start);
+      actual.seek(start);
+      byte[] expectedBytes = new byte[SIZE - 16];
+      byte[] actualBytes = new byte[SIZE - 16];
+      expected.getBytes(expectedBytes);
+      actual.getBytes(actualBytes);
+      assertArrayEquals(expectedBytes, actualBytes);
+
+      expected.seek(start);
+      actual.seek(start);
+      int[] expectedInts = new int[20];
+      int[] actualInts = new int[20];
+      expected.getInts(expectedInts);
+      actual.getInts(actualInts);
+      assertArrayEquals(expectedInts, actualInts);
+
+      expected.seek(start);
+      actual.seek(start);
+      long[] expectedLongs = new long[10];
+      long[] actualLongs = new long[10];
+      expected.getLongs(expectedLongs);
+      actual.getLongs(actualLongs);
+      assertArrayEquals(expectedLongs, actualLongs);
+      assertEquals(start + 80, actual.tell());
+    }
+  }
+
+  @Test
+  public void absoluteReads() {
+    HprofBuffer expected = whole();
+    HprofBuffer actual = windowed();
+    for (int position = 0; position + 8 <= SIZE; ++position) {
+      for (Type type : new Type[] {Type.BOOLEAN, Type.CHAR, Type.FLOAT, Type.DOUBLE,
+                                   Type.BYTE, Type.SHORT, Type.INT, Type.LONG}) {
+        // Compare as strings, because NaNs are not equal to themselves.
+        assertEquals(expected.getPrimitiveValueAt(position, type).toString(),
+            actual.getPrimitiveValueAt(position, type).toString());
+      }
+    }
+    assertEquals(0, actual.tell());
+  }
+
+  @Test
+  public void absoluteBulkReads() {
+    // These are used to decode the contents of primitive arrays on demand.
+    HprofBuffer expected = whole();
+    HprofBuffer actual = windowed();
+    for (int position = 0; position < 16; ++position) {
+      for (int length = 0; length <= 40; ++length) {
+        byte[] expectedBytes = new byte[length];
+        byte[] actualBytes = new byte[length];
+        expected.getBytesAt(position, expectedBytes);
+        actual.getBytesAt(position, actualBytes);
+        assertArrayEquals(expectedBytes, actualBytes);
+
+        char[] expectedChars = new char[length];
+        char[] actualChars = new char[length];
+        expected.getCharsAt(position, expectedChars);
+        actual.getCharsAt(position, actualChars);
+        assertArrayEquals(expectedChars, actualChars);
+
+        Hasher expectedHash = Hashing.murmur3_128().newHasher();
+        Hasher actualHash = Hashing.murmur3_128().newHasher();
+        expected.putBytesAt(position, length, expectedHash);
+        actual.putBytesAt(position, length, actualHash);
+        assertEquals(expectedHash.hash(), actualHash.hash());
+      }
+    }
+    assertEquals(0, actual.tell());
+  }
+
+  @Test
+  public void seekToEnd() {
+    // A buffer whose size is a multiple of the window size.
+    HprofBuffer buffer = new HprofBuffer(ByteBuffer.allocate(32), WINDOW_SHIFT);
+    assertEquals(32, buffer.size());
+    buffer.seek(24);
+    assertTrue(buffer.hasRemaining());
+    buffer.getLong();
+    assertEquals(32, buffer.tell());
+    assertFalse(buffer.hasRemaining());
+    buffer.seek(32);
+    assertEquals(32, buffer.tell());
+    assertFalse(buffer.hasRemaining());
+    buffer.seek(30);
+    try {
+      buffer.getInt();
+      fail("Expected BufferUnderflowException");
+    } catch (BufferUnderflowException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void duplicate() {
+    HprofBuffer buffer = windowed();
+    buffer.seek(13);
+    HprofBuffer copy = buffer.duplicate();
+    assertEquals(0, copy.tell());
+    copy.seek(6);
+    assertEquals(whole().getPrimitiveValueAt(6, Type.LONG).asLong().longValue(),
+        copy.getLong());
+    assertEquals(13, buffer.tell());
+    assertEquals(whole().checksum(), buffer.checksum());
+  }
+}
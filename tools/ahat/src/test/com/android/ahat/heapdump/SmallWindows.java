@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Creates Parsers that read heap dumps in windows much smaller than the
+ * default, so that tests of small heap dumps exercise the reads that
+ * straddle window boundaries in heap dumps larger than a single window.
+ */
+public class SmallWindows {
+  // The log2 of the size of the windows, in bytes.
+  public static final int WINDOW_SHIFT = 6;
+
+  /**
+   * Returns a Parser for the heap dump in the given buffer.
+   */
+  public static Parser parser(ByteBuffer hprof) {
+    return new Parser(new HprofBuffer(hprof, WINDOW_SHIFT));
+  }
+
+  /**
+   * Returns a Parser for the heap dump in the given file.
+   */
+  public static Parser parser(File hprof) throws IOException {
+    return new Parser(HprofBuffer.open(hprof, WINDOW_SHIFT));
+  }
+}
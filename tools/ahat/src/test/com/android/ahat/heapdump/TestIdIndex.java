@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ahat.heapdump;
+
+/**
+ * Exposes the index used to look up instances by id to tests outside of the
+ * heapdump package, so it can be measured with synthetic ids.
+ */
+public class TestIdIndex {
+  private final IdIndex mIndex;
+
+  /**
+   * Creates an index of the given ids, which must be distinct.
+   */
+  public TestIdIndex(long[] ids) {
+    mIndex = new IdIndex(ids);
+  }
+
+  /**
+   * Returns the position of the given id in the array of ids, or -1 if the
+   * id is not in the array.
+   */
+  public int indexOf(long id) {
+    return mIndex.indexOf(id);
+  }
+}